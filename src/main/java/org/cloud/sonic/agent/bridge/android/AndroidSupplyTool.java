@@ -201,7 +201,7 @@ public class AndroidSupplyTool implements ApplicationListener<ContextRefreshedEv
                 JSONObject perfDetail = new JSONObject();
                 perfDetail.put("msg", "perfDetail");
                 perfDetail.put("detail", perf);
-                BytesTool.sendText(session, perfDetail.toJSONString());
+                BytesTool.sendText(session, perfDetail.toJSONString(), "perfDetail");
             }
             if (logUtil != null) {
                 logUtil.sendPerLog(perf.toJSONString());
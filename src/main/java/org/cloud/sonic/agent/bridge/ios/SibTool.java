@@ -31,6 +31,7 @@ import org.cloud.sonic.agent.tools.BytesTool;
 import org.cloud.sonic.agent.tools.PortTool;
 import org.cloud.sonic.agent.tools.ProcessCommandTool;
 import org.cloud.sonic.agent.tools.ScheduleTool;
+import org.cloud.sonic.agent.tools.SessionOutbox;
 import org.cloud.sonic.agent.transport.TransportWorker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -481,7 +482,7 @@ public class SibTool implements ApplicationListener<ContextRefreshedEvent> {
                 JSONObject appList = new JSONObject();
                 appList.put("msg", "logDetail");
                 appList.put("detail", s);
-                sendText(session, appList.toJSONString());
+                sendText(session, appList.toJSONString(), SessionOutbox.Policy.STREAM);
             }
             try {
                 stdInput.close();
@@ -1025,7 +1026,7 @@ public class SibTool implements ApplicationListener<ContextRefreshedEvent> {
                         JSONObject perfDetail = new JSONObject();
                         perfDetail.put("msg", "perfDetail");
                         perfDetail.put("detail", perf);
-                        sendText(session, perfDetail.toJSONString());
+                        sendText(session, perfDetail.toJSONString(), "perfDetail");
                     }
                     if (logUtil != null) {
                         logUtil.sendPerLog(perf.toJSONString());
@@ -0,0 +1,17 @@
+package org.cloud.sonic.agent.common.maps;
+
+import org.cloud.sonic.agent.tests.ios.IOSScreenHub;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * udId -> iOS 设备的投屏中心，同一台设备的所有观看者共享一条 WDA mjpeg 连接
+ */
+public class IOSScreenMap {
+    private static Map<String, IOSScreenHub> screenHubMap = new ConcurrentHashMap<>();
+
+    public static Map<String, IOSScreenHub> getMap() {
+        return screenHubMap;
+    }
+}
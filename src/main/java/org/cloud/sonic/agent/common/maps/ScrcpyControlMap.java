@@ -0,0 +1,29 @@
+package org.cloud.sonic.agent.common.maps;
+
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyControl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * scrcpy 控制通道
+ */
+public class ScrcpyControlMap {
+    /**
+     * udId -> 单独为触控启动的控制通道
+     */
+    private static Map<String, ScrcpyControl> scrcpyControlMap = new ConcurrentHashMap<>();
+
+    /**
+     * udId -> 投屏服务的控制通道
+     */
+    private static Map<String, ScrcpyControl> scrcpyScreenControlMap = new ConcurrentHashMap<>();
+
+    public static Map<String, ScrcpyControl> getMap() {
+        return scrcpyControlMap;
+    }
+
+    public static Map<String, ScrcpyControl> getScreenMap() {
+        return scrcpyScreenControlMap;
+    }
+}
@@ -0,0 +1,17 @@
+package org.cloud.sonic.agent.common.maps;
+
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyPacketQueue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * key: udId    value: 该设备当前 scrcpy 视频流的包队列，用于查看队列深度与丢包统计
+ */
+public class ScrcpyQueueMap {
+    private static Map<String, ScrcpyPacketQueue> queueMap = new ConcurrentHashMap<>();
+
+    public static Map<String, ScrcpyPacketQueue> getMap() {
+        return queueMap;
+    }
+}
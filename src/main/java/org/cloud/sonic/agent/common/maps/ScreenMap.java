@@ -1,14 +1,17 @@
 package org.cloud.sonic.agent.common.maps;
 
-import jakarta.websocket.Session;
+import org.cloud.sonic.agent.tests.android.AndroidScreenHub;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * udId -> 设备的投屏中心，同一台设备的所有观看者共享一条采集链路
+ */
 public class ScreenMap {
-    private static Map<Session, Thread> miniCapMap = new ConcurrentHashMap<>();
+    private static Map<String, AndroidScreenHub> screenHubMap = new ConcurrentHashMap<>();
 
-    public static Map<Session, Thread> getMap() {
-        return miniCapMap;
+    public static Map<String, AndroidScreenHub> getMap() {
+        return screenHubMap;
     }
 }
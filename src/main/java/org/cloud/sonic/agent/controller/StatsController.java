@@ -0,0 +1,221 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.controller;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import jakarta.websocket.Session;
+import org.cloud.sonic.agent.common.maps.IOSScreenMap;
+import org.cloud.sonic.agent.common.maps.ScreenMap;
+import org.cloud.sonic.agent.common.maps.ScrcpyQueueMap;
+import org.cloud.sonic.agent.common.maps.WebSocketSessionMap;
+import org.cloud.sonic.agent.tests.android.AndroidScreenHub;
+import org.cloud.sonic.agent.tests.android.AndroidScreenViewer;
+import org.cloud.sonic.agent.tests.android.FrameChangeDetector;
+import org.cloud.sonic.agent.tests.android.FramePacer;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyPacketQueue;
+import org.cloud.sonic.agent.tests.ios.IOSScreenHub;
+import org.cloud.sonic.agent.tests.ios.IOSScreenViewer;
+import org.cloud.sonic.agent.tools.SessionOutbox;
+import org.cloud.sonic.agent.transport.InboundDispatcher;
+import org.cloud.sonic.agent.transport.TransportBatcher;
+import org.cloud.sonic.agent.transport.TransportClient;
+import org.cloud.sonic.agent.transport.TransportQueue;
+import org.cloud.sonic.agent.transport.TransportSender;
+import org.cloud.sonic.agent.transport.TransportSpool;
+import org.cloud.sonic.agent.transport.TransportWorker;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/**
+ * 投屏等链路的运行时统计
+ */
+@RestController
+@RequestMapping("/stats")
+public class StatsController {
+
+    @GetMapping(value = "/scrcpy", produces = MediaType.APPLICATION_JSON_VALUE)
+    public String scrcpy() {
+        JSONObject result = new JSONObject();
+        for (Map.Entry<String, ScrcpyPacketQueue> entry : ScrcpyQueueMap.getMap().entrySet()) {
+            ScrcpyPacketQueue queue = entry.getValue();
+            JSONObject stats = new JSONObject();
+            stats.put("depth", queue.size());
+            stats.put("maxDepth", queue.getMaxDepth());
+            stats.put("capacity", queue.getCapacity());
+            stats.put("dropPolicy", queue.getDropPolicy().name());
+            stats.put("received", queue.getReceived());
+            stats.put("dropped", queue.getDropped());
+            stats.put("skips", queue.getSkips());
+            result.put(entry.getKey(), stats);
+        }
+        return result.toJSONString();
+    }
+
+    @GetMapping(value = "/screen", produces = MediaType.APPLICATION_JSON_VALUE)
+    public String screen() {
+        JSONObject result = new JSONObject();
+        for (Map.Entry<String, AndroidScreenHub> entry : ScreenMap.getMap().entrySet()) {
+            AndroidScreenHub hub = entry.getValue();
+            JSONObject stats = new JSONObject();
+            stats.put("type", hub.getType());
+            stats.put("running", hub.isRunning());
+            stats.put("quality", hub.getQuality().name());
+            stats.put("viewers", hub.getViewerCount());
+            stats.put("recorders", hub.getRecorderCount());
+            FrameChangeDetector frameChange = hub.getFrameChange();
+            JSONObject dedupe = new JSONObject();
+            dedupe.put("frames", frameChange.getFrames());
+            dedupe.put("duplicates", frameChange.getDuplicates());
+            dedupe.put("similar", frameChange.getSimilar());
+            dedupe.put("ratio", frameChange.getDedupeRatio());
+            dedupe.put("checkMs", frameChange.getCheckNanos() / 1_000_000);
+            dedupe.put("savedMs", frameChange.getSavedNanos() / 1_000_000);
+            stats.put("dedupe", dedupe);
+            int passthrough = 0;
+            JSONArray viewers = new JSONArray();
+            for (AndroidScreenViewer viewer : hub.getViewers()) {
+                if (viewer.isPassthrough()) {
+                    passthrough++;
+                }
+                JSONObject v = new JSONObject();
+                v.put("codec", viewer.getCodec());
+                v.put("quality", viewer.getQualityController().getQuality().name());
+                v.put("sendMs", viewer.getQualityController().getSendMs());
+                v.put("fps", viewer.getPacer().getFps());
+                v.put("sentFrames", viewer.getPacer().getSent());
+                v.put("coalescedFrames", viewer.getPacer().getCoalesced());
+                viewers.add(v);
+            }
+            stats.put("passthroughViewers", passthrough);
+            stats.put("viewerStats", viewers);
+            result.put(entry.getKey(), stats);
+        }
+        return result.toJSONString();
+    }
+
+    @GetMapping(value = "/ios-screen", produces = MediaType.APPLICATION_JSON_VALUE)
+    public String iosScreen() {
+        JSONObject result = new JSONObject();
+        for (Map.Entry<String, IOSScreenHub> entry : IOSScreenMap.getMap().entrySet()) {
+            IOSScreenHub hub = entry.getValue();
+            JSONObject stats = new JSONObject();
+            stats.put("running", hub.isRunning());
+            stats.put("frames", hub.getFrames());
+            stats.put("framerate", hub.getFramerate());
+            stats.put("scalingFactor", hub.getScalingFactor());
+            stats.put("screenshotQuality", hub.getScreenshotQuality());
+            stats.put("quality", hub.getController().getQuality().name());
+            stats.put("arrivalMs", hub.getController().getArrivalMs());
+            stats.put("viewers", hub.getViewerCount());
+            stats.put("recorders", hub.getRecorderCount());
+            JSONArray viewers = new JSONArray();
+            for (IOSScreenViewer viewer : hub.getViewers().values()) {
+                FramePacer pacer = viewer.getPacer();
+                JSONObject v = new JSONObject();
+                v.put("sendMs", viewer.getSendMs());
+                v.put("fps", pacer.getFps());
+                v.put("sentFrames", pacer.getSent());
+                v.put("coalescedFrames", pacer.getCoalesced());
+                viewers.add(v);
+            }
+            stats.put("viewerStats", viewers);
+            result.put(entry.getKey(), stats);
+        }
+        return result.toJSONString();
+    }
+
+    @GetMapping(value = "/outbox", produces = MediaType.APPLICATION_JSON_VALUE)
+    public String outbox() {
+        JSONObject result = new JSONObject();
+        for (Map.Entry<String, Session> entry : WebSocketSessionMap.getSessionMap().entrySet()) {
+            SessionOutbox outbox = SessionOutbox.peek(entry.getValue());
+            if (outbox == null) {
+                continue;
+            }
+            JSONObject stats = new JSONObject();
+            stats.put("depth", outbox.getDepth());
+            stats.put("maxDepth", outbox.getMaxDepth());
+            stats.put("sent", outbox.getSent());
+            stats.put("dropped", outbox.getDropped());
+            stats.put("coalesced", outbox.getCoalesced());
+            stats.put("failed", outbox.getFailed());
+            stats.put("sendMs", outbox.getSendMs());
+            result.put(entry.getKey(), stats);
+        }
+        return result.toJSONString();
+    }
+
+    @GetMapping(value = "/transport", produces = MediaType.APPLICATION_JSON_VALUE)
+    public String transport() {
+        JSONObject result = new JSONObject();
+        result.put("depth", TransportWorker.getQueueSize());
+        TransportQueue queue = TransportWorker.getQueue();
+        JSONObject lanes = new JSONObject();
+        for (TransportQueue.Lane lane : TransportQueue.Lane.values()) {
+            JSONObject l = new JSONObject();
+            l.put("depth", queue.getDepth(lane));
+            l.put("sent", queue.getSent(lane));
+            lanes.put(lane.name(), l);
+        }
+        result.put("lanes", lanes);
+        result.put("coalesced", queue.getCoalesced());
+        result.put("controlDropped", queue.getDropped());
+        TransportSpool spool = queue.getSpool();
+        result.put("memory", spool.getMemorySize());
+        result.put("disk", spool.getDiskCount());
+        result.put("diskBytes", spool.getDiskBytes());
+        result.put("spilled", spool.getSpilled());
+        result.put("dropped", spool.getDropped());
+        result.put("committed", spool.getCommitted());
+        TransportBatcher batcher = TransportWorker.getBatcher();
+        if (batcher != null) {
+            result.put("batch", batcher.isBatch());
+            result.put("messages", batcher.getMessages());
+            result.put("frames", batcher.getFrames());
+        }
+        TransportSender sender = TransportWorker.getSender();
+        if (sender != null) {
+            result.put("bytes", sender.getBytes());
+        }
+        TransportClient client = TransportWorker.client;
+        result.put("wireFormat", client == null ? null : client.getCodec().getName());
+        return result.toJSONString();
+    }
+
+    @GetMapping(value = "/inbound", produces = MediaType.APPLICATION_JSON_VALUE)
+    public String inbound() {
+        JSONObject result = new JSONObject();
+        result.put("commands", dispatcher(TransportWorker.getCommandDispatcher()));
+        result.put("runningSuites", TransportWorker.getRunningSuites());
+        return result.toJSONString();
+    }
+
+    private JSONObject dispatcher(InboundDispatcher dispatcher) {
+        JSONObject stats = new JSONObject();
+        stats.put("pending", dispatcher.getPending());
+        stats.put("executed", dispatcher.getExecuted());
+        stats.put("rejected", dispatcher.getRejected());
+        stats.put("lanes", dispatcher.getLaneDepths());
+        return stats;
+    }
+}
@@ -22,11 +22,11 @@ import jakarta.websocket.Session;
 import org.cloud.sonic.agent.common.interfaces.DeviceStatus;
 import org.cloud.sonic.agent.common.interfaces.StepType;
 import org.cloud.sonic.agent.common.maps.WebSocketSessionMap;
+import org.cloud.sonic.agent.tools.BytesTool;
 import org.cloud.sonic.agent.transport.TransportWorker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -88,14 +88,8 @@ public class LogUtil {
         if (session == null || !session.isOpen()) {
             return;
         }
-        synchronized (session) {
-            try {
-                message.put("time", getDateToString());
-                session.getBasicRemote().sendText(message.toJSONString());
-            } catch (IllegalStateException | IOException e) {
-                logger.error(e.getMessage());
-            }
-        }
+        message.put("time", getDateToString());
+        BytesTool.sendText(session, message.toJSONString());
     }
 
     /**
@@ -17,11 +17,19 @@
  */
 package org.cloud.sonic.agent.tests.android;
 
+import org.cloud.sonic.agent.common.maps.ScreenMap;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyRecorder;
+import org.cloud.sonic.agent.tests.handlers.AndroidStepHandler;
+import org.cloud.sonic.agent.tools.file.UploadTools;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.Calendar;
+
 /**
  * android 录像线程
+ * 用例运行期间把 scrcpy 的 H.264 包直接写入 mp4，每个用例一个文件，用例结束后上传
  *
  * @author Eason(main) JayWenStar(until e1a877b7)
  * @date 2021/12/2 12:29 上午
@@ -50,76 +58,43 @@ public class AndroidRecordThread extends Thread {
 
     @Override
     public void run() {
-//        AndroidStepHandler androidStepHandler = androidTestTaskBootThread.getAndroidStepHandler();
-//        AndroidRunStepThread runStepThread = androidTestTaskBootThread.getRunStepThread();
-//        String udId = androidTestTaskBootThread.getUdId();
-//
-//        Boolean isSupportRecord = true;
-//        String manufacturer = AndroidDeviceBridgeTool.getIDeviceByUdId(udId).getProperty(IDevice.PROP_DEVICE_MANUFACTURER);
-//        if (manufacturer.equals("HUAWEI") || manufacturer.equals("OPPO") || manufacturer.equals("vivo")) {
-//            isSupportRecord = false;
-//        }
-//
-//        while (runStepThread.isAlive()) {
-//            if (androidStepHandler.getAndroidDriver() == null) {
-//                try {
-//                    Thread.sleep(500);
-//                } catch (InterruptedException e) {
-//                    log.error(e.getMessage());
-//                }
-//                continue;
-//            }
-//            Thread miniCapPro = null;
-//            AtomicReference<List<byte[]>> imgList = new AtomicReference<>(new ArrayList<>());
-//            AtomicReference<String[]> banner = new AtomicReference<>(new String[24]);
-//            if (isSupportRecord) {
-//                try {
-//                    androidStepHandler.startRecord();
-//                } catch (Exception e) {
-//                    log.error(e.getMessage());
-//                    isSupportRecord = false;
-//                }
-//            } else {
-//                MiniCapUtil miniCapUtil = new MiniCapUtil();
-//                miniCapPro = miniCapUtil.start(udId, banner, imgList, "high", -1, null, androidTestTaskBootThread);
-//            }
-//            int w = 0;
-//            while (w < 10 && (runStepThread.isAlive())) {
-//                try {
-//                    Thread.sleep(10000);
-//                } catch (InterruptedException e) {
-//                    log.error(e.getMessage());
-//                }
-//                w++;
-//            }
-//            //处理录像
-//            if (isSupportRecord) {
-//                if (androidStepHandler.getStatus() == 3) {
-//                    androidStepHandler.stopRecord();
-//                    return;
-//                } else {
-//                    androidStepHandler.getAndroidDriver().stopRecordingScreen();
-//                }
-//            } else {
-//                miniCapPro.interrupt();
-//                if (androidStepHandler.getStatus() == 3) {
-//                    File recordByRmvb = new File("test-output/record");
-//                    if (!recordByRmvb.exists()) {
-//                        recordByRmvb.mkdirs();
-//                    }
-//                    long timeMillis = Calendar.getInstance().getTimeInMillis();
-//                    String fileName = timeMillis + "_" + udId.substring(0, 4) + ".mp4";
-//                    File uploadFile = new File(recordByRmvb + File.separator + fileName);
-//                    try {
-//                        androidStepHandler.log.sendRecordLog(true, fileName,
-//                                RecordHandler.record(uploadFile, imgList.get()
-//                                        , Integer.parseInt(banner.get()[9]), Integer.parseInt(banner.get()[13])));
-//                    } catch (FrameRecorder.Exception e) {
-//                        e.printStackTrace();
-//                    }
-//                    return;
-//                }
-//            }
-//        }
+        AndroidStepHandler androidStepHandler = androidTestTaskBootThread.getAndroidStepHandler();
+        AndroidRunStepThread runStepThread = androidTestTaskBootThread.getRunStepThread();
+        String udId = androidTestTaskBootThread.getUdId();
+
+        File recordDir = new File("test-output/record");
+        if (!recordDir.exists()) {
+            recordDir.mkdirs();
+        }
+        long timeMillis = Calendar.getInstance().getTimeInMillis();
+        String fileName = timeMillis + "_" + udId.substring(0, Math.min(4, udId.length())) + ".mp4";
+        ScrcpyRecorder recorder = new ScrcpyRecorder(new File(recordDir + File.separator + fileName));
+        AndroidScreenHub hub = ScreenMap.getMap().computeIfAbsent(udId, AndroidScreenHub::new);
+        if (!hub.addRecorder(recorder)) {
+            log.info("{} screen is not streaming with scrcpy, skip recording.", udId);
+            androidStepHandler.log.sendRecordLog(false, fileName, "");
+            return;
+        }
+        try {
+            while (runStepThread.isAlive()) {
+                runStepThread.join(1000);
+            }
+        } catch (InterruptedException e) {
+            log.info("{} record thread interrupted.", udId);
+        } finally {
+            hub.removeRecorder(recorder);
+            recorder.close();
+        }
+        File file = recorder.getFile();
+        if (recorder.getFrames() == 0 || !file.exists()) {
+            file.delete();
+            androidStepHandler.log.sendRecordLog(false, fileName, "");
+            return;
+        }
+        try {
+            androidStepHandler.log.sendRecordLog(true, fileName, UploadTools.uploadPatchRecord(file));
+        } catch (Exception e) {
+            log.error("{} upload record failed: {}", udId, e.getMessage());
+        }
     }
 }
@@ -0,0 +1,597 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android;
+
+import com.alibaba.fastjson.JSONObject;
+import jakarta.websocket.Session;
+import org.cloud.sonic.agent.common.maps.AndroidDeviceManagerMap;
+import org.cloud.sonic.agent.common.maps.ScrcpyControlMap;
+import org.cloud.sonic.agent.tests.android.minicap.MiniCapUtil;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyControl;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyPacket;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyQuality;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyRecorder;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyServerUtil;
+import org.cloud.sonic.agent.tools.BytesTool;
+import org.cloud.sonic.agent.tools.ScheduleTool;
+import org.cloud.sonic.agent.tools.SessionOutbox;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 单台设备的投屏中心
+ * 一台设备只运行一条 scrcpy 或 minicap 链路，采集到的画面分发给所有观看者
+ * 观看者和录像按引用计数，都离开后停止设备端服务
+ */
+public class AndroidScreenHub {
+
+    private final Logger log = LoggerFactory.getLogger(AndroidScreenHub.class);
+
+    private static final long STOP_TIMEOUT_MS = 10000;
+
+    /**
+     * 重启 scrcpy 服务调整设备端参数的最小间隔
+     */
+    private static final long RENEGOTIATE_INTERVAL_MS = 15000;
+
+    /**
+     * h264 观看者发送队列积压的包数上限，超过后暂停发送，降到下限以下再从 GOP 缓存重新开始
+     */
+    private static final int PASSTHROUGH_HIGH_WATER = 120;
+
+    private static final int PASSTHROUGH_LOW_WATER = 4;
+
+    private final String udId;
+
+    private final Map<Session, AndroidScreenViewer> viewers = new ConcurrentHashMap<>();
+
+    /**
+     * 录像直接使用 scrcpy 的原始包，不占用解码
+     */
+    private final Set<ScrcpyRecorder> recorders = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 当前链路的 server 线程，输入线程退出时清空
+     */
+    private final AtomicReference<Thread> serverThread = new AtomicReference<>();
+
+    private volatile String type;
+
+    private volatile String pic;
+
+    private volatile String sizeMessage;
+
+    private volatile int videoWidth;
+
+    private volatile int videoHeight;
+
+    /**
+     * 当前 scrcpy 服务使用的设备端档位
+     */
+    private volatile ScrcpyQuality quality = ScrcpyQuality.HIGH;
+
+    private long lastRenegotiate = 0;
+
+    /**
+     * 重启 scrcpy 服务调整参数要等待旧链路退出，使用单独的线程，不占用定时发送画面的公共线程池
+     */
+    private final ThreadPoolExecutor renegotiator;
+
+    /**
+     * 当前链路的重复画面过滤，每次启动链路时重建
+     */
+    private volatile FrameChangeDetector frameChange = new FrameChangeDetector(FrameChangeConfig.getThreshold());
+
+    public AndroidScreenHub(String udId) {
+        this.udId = udId;
+        this.renegotiator = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "screen-renegotiate-" + udId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.renegotiator.allowCoreThreadTimeOut(true);
+    }
+
+    public String getUdId() {
+        return udId;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getPic() {
+        return pic;
+    }
+
+    public ScrcpyQuality getQuality() {
+        return quality;
+    }
+
+    public FrameChangeDetector getFrameChange() {
+        return frameChange;
+    }
+
+    public Collection<AndroidScreenViewer> getViewers() {
+        return viewers.values();
+    }
+
+    public int getViewerCount() {
+        return viewers.size();
+    }
+
+    public int getRecorderCount() {
+        return recorders.size();
+    }
+
+    /**
+     * 没有观看者也没有录像
+     */
+    public boolean isIdle() {
+        return viewers.isEmpty() && recorders.isEmpty();
+    }
+
+    public boolean isRunning() {
+        Thread thread = serverThread.get();
+        return thread != null && thread.isAlive();
+    }
+
+    /**
+     * 加入观看或更新输出格式，链路已在运行时补发尺寸和方向，画面由输出线程从缓存的 GOP 补发
+     * 新观看者不需要重启设备端服务
+     */
+    public synchronized void attach(Session session, String codec) {
+        AndroidScreenViewer viewer = viewers.computeIfAbsent(session,
+                s -> new AndroidScreenViewer(s, ScrcpyQuality.fromPic(pic)));
+        String old = viewer.getCodec();
+        viewer.setCodec(codec);
+        if (!viewer.getCodec().equals(old)) {
+            viewer.requestReplay();
+            // minicap 没有缓存画面，下一帧不做去重
+            frameChange.reset();
+        }
+        if (!viewer.getCodec().equals(old) || viewer.isPassthrough()) {
+            JSONObject codecMsg = new JSONObject();
+            codecMsg.put("msg", "codec");
+            codecMsg.put("value", viewer.getCodec());
+            BytesTool.sendText(session, codecMsg.toJSONString());
+        }
+        Integer rotation = AndroidDeviceManagerMap.getRotationMap().get(udId);
+        if (rotation != null) {
+            JSONObject rotationJson = new JSONObject();
+            rotationJson.put("msg", "rotation");
+            rotationJson.put("value", rotation * 90);
+            BytesTool.sendText(session, rotationJson.toJSONString());
+        }
+        if (sizeMessage != null) {
+            BytesTool.sendText(session, sizeMessage);
+        }
+    }
+
+    /**
+     * @return 剩余观看者数量，为 0 且没有录像时链路已停止
+     */
+    public int detach(Session session) {
+        Thread old = null;
+        int remaining;
+        synchronized (this) {
+            viewers.remove(session);
+            if (isIdle()) {
+                old = halt();
+            }
+            remaining = viewers.size();
+        }
+        awaitExit(old);
+        return remaining;
+    }
+
+    /**
+     * 开始录像，没有链路时按 scrcpy 启动；已在运行时请求一个新的关键帧作为录像的开始
+     *
+     * @return 当前链路不是 scrcpy（如观看者正在使用 minicap）时返回 false
+     */
+    public boolean addRecorder(ScrcpyRecorder recorder) {
+        String startPic;
+        synchronized (this) {
+            if (isRunning() && !"scrcpy".equals(type)) {
+                return false;
+            }
+            recorders.add(recorder);
+            if (isRunning()) {
+                ScrcpyControl control = ScrcpyControlMap.getScreenMap().get(udId);
+                if (control != null) {
+                    control.resetVideo();
+                }
+                return true;
+            }
+            startPic = pic == null ? "high" : pic;
+        }
+        start("scrcpy", startPic, false);
+        return true;
+    }
+
+    public void removeRecorder(ScrcpyRecorder recorder) {
+        Thread old = null;
+        synchronized (this) {
+            recorders.remove(recorder);
+            if (isIdle()) {
+                old = halt();
+            }
+        }
+        awaitExit(old);
+    }
+
+    /**
+     * 按需启动采集链路
+     * 已有相同类型和画质的链路在运行时直接复用，restart 为 true（如屏幕旋转）时强制重启；
+     * 和 {@link #renegotiate(ScrcpyQuality)} 一样，等待旧链路退出时不持有锁
+     */
+    public void start(String type, String pic, boolean restart) {
+        Thread old;
+        synchronized (this) {
+            if (isIdle()) {
+                return;
+            }
+            boolean same = type.equals(this.type) && pic.equals(this.pic);
+            if (!restart && same && isRunning()) {
+                return;
+            }
+            old = halt();
+            if (!pic.equals(this.pic)) {
+                // pic 是自适应调整的上限，切换后从上限重新开始
+                quality = ScrcpyQuality.fromPic(pic);
+                for (AndroidScreenViewer viewer : viewers.values()) {
+                    viewer.getQualityController().setCeiling(quality);
+                }
+            }
+            if (!"scrcpy".equals(type) && !recorders.isEmpty()) {
+                log.warn("{} switched to {}, recording is paused.", udId, type);
+            }
+            this.type = type;
+            this.pic = pic;
+            if (old == null) {
+                launch();
+                return;
+            }
+        }
+        awaitExit(old);
+        synchronized (this) {
+            // 等待期间已被其他调用按最新的类型和档位启动，或者观看者都已离开
+            if (serverThread.get() != null || isIdle()) {
+                return;
+            }
+            launch();
+        }
+    }
+
+    /**
+     * 按当前的类型和档位启动链路，调用时持有锁且没有正在运行的链路
+     */
+    private void launch() {
+        frameChange = new FrameChangeDetector(FrameChangeConfig.getThreshold());
+        Integer rotation = AndroidDeviceManagerMap.getRotationMap().get(udId);
+        Thread server = startStream(rotation == null ? -1 : rotation);
+        if (server != null) {
+            serverThread.set(server);
+        }
+    }
+
+    /**
+     * 启动设备端服务，返回链路的 server 线程，它退出时需要调用 {@link #onStreamExit(Thread)}
+     */
+    Thread startStream(int tor) {
+        return switch (type) {
+            case "scrcpy" -> new ScrcpyServerUtil().start(udId, tor, quality, this);
+            case "minicap" -> new MiniCapUtil().start(
+                    udId, new AtomicReference<>(new String[24]), null, pic, tor, this);
+            default -> {
+                log.warn("Unknown screen type: {}", type);
+                yield null;
+            }
+        };
+    }
+
+    /**
+     * 汇总各观看者的自适应档位，由 scrcpy 输出线程定期调用
+     * 每个观看者按自己发送队列的积压调整，设备端只有一个编码器，按最差的观看者调整；
+     * 设备端参数的调整需要重启服务，按最小间隔限频
+     *
+     * @return 当前应使用的档位，JPEG 质量可以立即按它调整
+     */
+    public ScrcpyQuality adapt() {
+        long now = System.currentTimeMillis();
+        ScrcpyQuality target = ScrcpyQuality.fromPic(pic);
+        for (AndroidScreenViewer viewer : viewers.values()) {
+            ScrcpyQuality q = viewer.getQualityController().update(queueLoad(viewer), now);
+            if (q.isLowerThan(target)) {
+                target = q;
+            }
+        }
+        if (target != quality && now - lastRenegotiate >= RENEGOTIATE_INTERVAL_MS) {
+            lastRenegotiate = now;
+            ScrcpyQuality next = target;
+            // 重启会等待当前输出线程退出，不能在输出线程里同步执行
+            renegotiator.execute(() -> renegotiate(next));
+        }
+        return target;
+    }
+
+    /**
+     * 观看者自己发送队列的占用比例
+     * JPEG 按积压的画面数，期间丢弃过画面时为 1；h264 按积压的包数，暂停发送时为 1
+     */
+    private double queueLoad(AndroidScreenViewer viewer) {
+        SessionOutbox outbox = SessionOutbox.peek(viewer.getSession());
+        if (outbox == null) {
+            return 0;
+        }
+        if (viewer.isPassthrough()) {
+            if (viewer.isLagging()) {
+                return 1;
+            }
+            return Math.min(1, (double) outbox.getDepth(SessionOutbox.Policy.CONTROL) / PASSTHROUGH_HIGH_WATER);
+        }
+        if (viewer.updateDropped(outbox.getDropped())) {
+            return 1;
+        }
+        return (double) outbox.getDepth(SessionOutbox.Policy.FRAME) / SessionOutbox.FRAME_CAPACITY;
+    }
+
+    /**
+     * 等待旧链路退出时不持有锁，观看者离开、录像开始等操作不会被阻塞
+     * 期间链路被停止或替换时不再启动
+     */
+    private void renegotiate(ScrcpyQuality next) {
+        Thread old;
+        synchronized (this) {
+            if (isIdle() || !"scrcpy".equals(type) || !isRunning() || next == quality) {
+                return;
+            }
+            log.info("{} scrcpy quality {} -> {}", udId, quality, next);
+            quality = next;
+            old = serverThread.get();
+            old.interrupt();
+        }
+        awaitExit(old);
+        synchronized (this) {
+            if (serverThread.get() != null || isIdle() || !"scrcpy".equals(type)) {
+                return;
+            }
+            sizeMessage = null;
+            launch();
+        }
+    }
+
+    /**
+     * 停止当前链路，等待输入线程释放端口转发，等待时不持有锁
+     */
+    public void stop() {
+        Thread old;
+        synchronized (this) {
+            old = halt();
+        }
+        awaitExit(old);
+    }
+
+    /**
+     * 中断当前链路并清理它的状态，调用时持有锁，之后在锁外调用 {@link #awaitExit(Thread)}
+     *
+     * @return 需要等待退出的 server 线程，没有链路时为 null
+     */
+    private Thread halt() {
+        Thread old = serverThread.get();
+        if (old != null) {
+            old.interrupt();
+        }
+        sizeMessage = null;
+        return old;
+    }
+
+    /**
+     * 等待链路的输入线程退出，超时后不再等待
+     */
+    private void awaitExit(Thread old) {
+        if (old == null) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MS;
+        while (serverThread.get() == old) {
+            if (System.currentTimeMillis() > deadline) {
+                log.warn("{} screen stream did not stop in time.", udId);
+                serverThread.compareAndSet(old, null);
+                break;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * 由输入线程在退出时调用，只清理属于自己的那条链路
+     */
+    public void onStreamExit(Thread server) {
+        if (serverThread.compareAndSet(server, null)) {
+            log.info("{} {} stream exit, {}", udId, type, frameChange);
+        }
+    }
+
+    public void sendText(String message) {
+        for (AndroidScreenViewer viewer : viewers.values()) {
+            BytesTool.sendText(viewer.getSession(), message);
+        }
+    }
+
+    /**
+     * 尺寸消息会缓存下来，补发给后加入的观看者
+     */
+    public void sendSize(String message) {
+        sizeMessage = message;
+        sendText(message);
+    }
+
+    /**
+     * 由 scrcpy 输入线程在读取到视频尺寸后调用，录像写文件头时使用
+     */
+    public void setVideoSize(int width, int height) {
+        this.videoWidth = width;
+        this.videoHeight = height;
+    }
+
+    public boolean hasJpegViewers() {
+        for (AndroidScreenViewer viewer : viewers.values()) {
+            if (!viewer.isPassthrough()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean hasPassthroughViewers() {
+        for (AndroidScreenViewer viewer : viewers.values()) {
+            if (viewer.isPassthrough()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void sendJpeg(byte[] jpeg) {
+        sendJpeg(ByteBuffer.wrap(jpeg));
+    }
+
+    /**
+     * 同一个缓冲区发给多个连接，每个连接使用独立的 position
+     * 按各观看者的帧率限帧，时间槽未到的画面拷贝暂存，到点发送最新的一张；返回后调用方可以复用缓冲区
+     */
+    public void sendJpeg(ByteBuffer jpeg) {
+        long now = System.nanoTime();
+        for (AndroidScreenViewer viewer : viewers.values()) {
+            if (viewer.isPassthrough()) {
+                continue;
+            }
+            FramePacer pacer = viewer.getPacer();
+            if (pacer.tryAcquire(now)) {
+                send(viewer, jpeg.duplicate());
+                continue;
+            }
+            long delay = pacer.hold(jpeg, now);
+            if (delay >= 0) {
+                ScheduleTool.schedule(() -> flush(viewer), delay, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * 距离最早一个 JPEG 观看者的时间槽还有多久，编码阶段据此跳过用不上的帧
+     */
+    public long getJpegDelay(long now) {
+        long delay = Long.MAX_VALUE;
+        for (AndroidScreenViewer viewer : viewers.values()) {
+            if (!viewer.isPassthrough()) {
+                delay = Math.min(delay, viewer.getPacer().getDelay(now));
+            }
+        }
+        return delay == Long.MAX_VALUE ? 0 : delay;
+    }
+
+    /**
+     * 定时发送暂存的画面，期间又有新画面时继续安排下一次
+     */
+    private void flush(AndroidScreenViewer viewer) {
+        FramePacer pacer = viewer.getPacer();
+        ByteBuffer frame = pacer.takePending(System.nanoTime());
+        if (frame == null) {
+            return;
+        }
+        long delay;
+        try {
+            if (viewers.get(viewer.getSession()) == viewer) {
+                send(viewer, frame);
+            }
+        } finally {
+            delay = pacer.finish(System.nanoTime());
+        }
+        if (delay >= 0) {
+            ScheduleTool.schedule(() -> flush(viewer), delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 原始包发给 h264 观看者并写入录像
+     */
+    public void sendPacket(ScrcpyPacket packet) {
+        for (ScrcpyRecorder recorder : recorders) {
+            recorder.write(packet, videoWidth, videoHeight);
+        }
+        ByteBuffer frame = null;
+        for (AndroidScreenViewer viewer : viewers.values()) {
+            if (viewer.isPassthrough() && !skipLagging(viewer)) {
+                if (frame == null) {
+                    frame = packet.toFrame();
+                }
+                SessionOutbox.of(viewer.getSession()).sendBinary(frame.duplicate(), SessionOutbox.Policy.CONTROL,
+                        viewer.getQualityController()::onSend);
+            }
+        }
+    }
+
+    /**
+     * H.264 包之间有依赖，不能像 JPEG 一样丢弃最旧的
+     * 积压过多时暂停发送，等队列排空后从缓存的 GOP 重新开始
+     */
+    private boolean skipLagging(AndroidScreenViewer viewer) {
+        SessionOutbox outbox = SessionOutbox.peek(viewer.getSession());
+        int depth = outbox == null ? 0 : outbox.getDepth(SessionOutbox.Policy.CONTROL);
+        if (viewer.isLagging()) {
+            if (depth > PASSTHROUGH_LOW_WATER) {
+                return true;
+            }
+            viewer.setLagging(false);
+            viewer.requestReplay();
+            return true;
+        }
+        if (depth > PASSTHROUGH_HIGH_WATER) {
+            log.info("{} h264 viewer is lagging with {} queued packets, resync from next GOP", udId, depth);
+            viewer.setLagging(true);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 放入连接的发送队列，从入队到发送完成的耗时作为该观看者链路拥塞程度的依据
+     */
+    private void send(AndroidScreenViewer viewer, ByteBuffer message) {
+        SessionOutbox.of(viewer.getSession()).sendBinary(message, SessionOutbox.Policy.FRAME,
+                viewer.getQualityController()::onSend);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android;
+
+import jakarta.websocket.Session;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyAdaptiveController;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyQuality;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 投屏的一个观看者，保存只属于这个 websocket 连接的输出偏好
+ */
+public class AndroidScreenViewer {
+
+    public static final String CODEC_JPEG = "jpeg";
+
+    public static final String CODEC_H264 = "h264";
+
+    private final Session session;
+
+    private volatile String codec = CODEC_JPEG;
+
+    /**
+     * 新加入或切换格式后需要补发当前画面
+     */
+    private final AtomicBoolean replay = new AtomicBoolean(true);
+
+    /**
+     * h264 发送队列积压，暂停发送直到排空
+     */
+    private volatile boolean lagging = false;
+
+    /**
+     * 上次调整画质时发送队列累计丢弃的画面数
+     */
+    private long lastDropped = 0;
+
+    private final ScrcpyAdaptiveController qualityController;
+
+    /**
+     * JPEG 画面按当前档位的帧率限帧
+     */
+    private final FramePacer pacer;
+
+    public AndroidScreenViewer(Session session, ScrcpyQuality ceiling) {
+        this.session = session;
+        this.qualityController = new ScrcpyAdaptiveController(ceiling);
+        this.pacer = new FramePacer(ceiling.getMaxFps());
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public ScrcpyAdaptiveController getQualityController() {
+        return qualityController;
+    }
+
+    /**
+     * 帧率跟随自适应档位
+     */
+    public FramePacer getPacer() {
+        pacer.setFps(qualityController.getQuality().getMaxFps());
+        return pacer;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public void setCodec(String codec) {
+        this.codec = CODEC_H264.equals(codec) ? CODEC_H264 : CODEC_JPEG;
+    }
+
+    /**
+     * 透传 H.264 给前端 WebCodecs 解码，不需要 agent 端解码
+     */
+    public boolean isPassthrough() {
+        return CODEC_H264.equals(codec);
+    }
+
+    public boolean isLagging() {
+        return lagging;
+    }
+
+    public void setLagging(boolean lagging) {
+        this.lagging = lagging;
+    }
+
+    /**
+     * @return 发送队列在上次调用之后是否又丢弃了画面
+     */
+    public synchronized boolean updateDropped(long dropped) {
+        boolean more = dropped > lastDropped;
+        lastDropped = dropped;
+        return more;
+    }
+
+    public void requestReplay() {
+        replay.set(true);
+    }
+
+    /**
+     * @return 是否有待处理的补发请求，取出后清除
+     */
+    public boolean takeReplay() {
+        return replay.compareAndSet(true, false);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * 投屏重复画面过滤的配置
+ */
+@Component
+public class FrameChangeConfig {
+    private static final Logger logger = LoggerFactory.getLogger(FrameChangeConfig.class);
+
+    @Value("${modules.android.frame-change-threshold:0}")
+    private int getThreshold;
+
+    private static int threshold = 0;
+
+    @PostConstruct
+    public void setEnv() {
+        threshold = getThreshold;
+        logger.info("Screen frame change threshold: {}", threshold);
+    }
+
+    /**
+     * 缩略图亮度的平均差异阈值（0-255），低于它视为同一画面
+     * 0 只过滤相同的画面，小于 0 时关闭过滤
+     */
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    public static void setThreshold(int threshold) {
+        FrameChangeConfig.threshold = threshold;
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 投屏画面变化检测，minicap 与 scrcpy 的 JPEG 输出共用
+ * 依次比较：长度、按固定位置采样的滚动哈希、可选的缩略图亮度差异，都只和上一次发出的画面比较
+ * scrcpy 的亮度平面在哈希相同时再和上一次发出的平面逐字节比较，完全相同才跳过，光标、输入框等局部的微小变化不会被漏掉；
+ * JPEG 只看采样哈希，可能把局部的微小变化当成重复，所以跳过的画面最多持续 {@link #REFRESH_INTERVAL_MS} 就补发一次
+ * 每路流一个实例，除 {@link #reset()} 外只在单个线程内调用
+ */
+public class FrameChangeDetector {
+
+    /**
+     * 缩略图边长，感知比较使用 GRID x GRID 个亮度采样
+     */
+    public static final int GRID = 32;
+
+    /**
+     * 采样哈希读取的 8 字节块数
+     */
+    public static final int HASH_SAMPLES = 2048;
+
+    public static final long REFRESH_INTERVAL_MS = 1000;
+
+    private final int threshold;
+
+    private int length = -1;
+    private long shape;
+    private long hash;
+    private final byte[] thumbnail = new byte[GRID * GRID];
+    private boolean thumbnailReady;
+
+    private int sentLength = -1;
+    private long sentShape;
+    private long sentHash;
+    private final byte[] sentThumbnail = new byte[GRID * GRID];
+    private boolean sentThumbnailReady;
+    private long sentAt;
+
+    /**
+     * 亮度平面的紧凑拷贝（每行 width 字节），只在画面有变化时拷贝，发出后与 sentPlane 交换
+     */
+    private byte[] plane = new byte[0];
+    private boolean planeReady;
+    private byte[] sentPlane = new byte[0];
+    private boolean sentPlaneReady;
+
+    private volatile boolean resetRequested;
+
+    private long frames;
+    private long duplicates;
+    private long similar;
+    private long checkNanos;
+    private long workNanos;
+    private long workFrames;
+
+    /**
+     * @param threshold 见 {@link FrameChangeConfig#getThreshold()}
+     */
+    public FrameChangeDetector(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * 长度和采样哈希都相同而跳过的画面
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * 缩略图差异低于阈值而跳过的画面
+     */
+    public long getSimilar() {
+        return similar;
+    }
+
+    public double getDedupeRatio() {
+        return frames == 0 ? 0 : (double) (duplicates + similar) / frames;
+    }
+
+    public long getCheckNanos() {
+        return checkNanos;
+    }
+
+    /**
+     * 跳过的画面数 x 一次编码/发送的平均耗时，再减去检测本身的耗时
+     */
+    public long getSavedNanos() {
+        long skipped = duplicates + similar;
+        long average = workFrames == 0 ? 0 : workNanos / workFrames;
+        return skipped * average - checkNanos;
+    }
+
+    /**
+     * 下一帧无论是否变化都输出，用于新观看者加入
+     */
+    public void reset() {
+        resetRequested = true;
+    }
+
+    /**
+     * 记录一次发出画面的下游耗时（编码、发送），用于估算节省的 CPU
+     */
+    public void recordWork(long nanos) {
+        workNanos += nanos;
+        workFrames++;
+    }
+
+    /**
+     * 检查一张 JPEG，开启感知比较时会解码一张缩略图
+     */
+    public boolean isChanged(ByteBuffer jpeg) {
+        if (threshold < 0) {
+            frames++;
+            return true;
+        }
+        long start = System.nanoTime();
+        length = jpeg.remaining();
+        hash = sampledHash(jpeg, jpeg.position(), length, 1, 0);
+        // JPEG 的尺寸要解码后才知道，旋转等尺寸变化会体现在缩略图上
+        shape = 0;
+        thumbnailReady = false;
+        planeReady = false;
+        boolean changed = compare(() -> true, () -> thumbnailReady = jpegThumbnail(jpeg, thumbnail));
+        checkNanos += System.nanoTime() - start;
+        return changed;
+    }
+
+    /**
+     * 检查一帧 YUV，只看亮度平面，不需要先编码
+     *
+     * @param luma   亮度平面，从 position 开始
+     * @param stride 每行的字节数
+     */
+    public boolean isChanged(ByteBuffer luma, int width, int height, int stride) {
+        if (threshold < 0) {
+            frames++;
+            return true;
+        }
+        long start = System.nanoTime();
+        length = width * height;
+        // 尺寸变化时一定输出
+        shape = ((long) width << 32) | height;
+        hash = sampledHash(luma, luma.position(), width, height, stride);
+        thumbnailReady = false;
+        planeReady = false;
+        boolean changed = compare(() -> sentPlaneReady && samePlane(luma, width, height, stride, sentPlane), () -> {
+            lumaThumbnail(luma, width, height, stride, thumbnail);
+            thumbnailReady = true;
+        });
+        if (changed) {
+            if (plane.length != length) {
+                plane = new byte[length];
+            }
+            copyPlane(luma, width, height, stride, plane);
+            planeReady = true;
+        }
+        checkNanos += System.nanoTime() - start;
+        return changed;
+    }
+
+    /**
+     * 当前画面已发出，作为之后比较的基准
+     */
+    public void markSent() {
+        sentLength = length;
+        sentShape = shape;
+        sentHash = hash;
+        sentThumbnailReady = thumbnailReady;
+        if (thumbnailReady) {
+            System.arraycopy(thumbnail, 0, sentThumbnail, 0, thumbnail.length);
+        }
+        if (planeReady) {
+            byte[] previous = sentPlane;
+            sentPlane = plane;
+            plane = previous;
+        }
+        sentPlaneReady = planeReady;
+        planeReady = false;
+        sentAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @param sameAsSent 采样哈希相同后确认画面确实没有变化
+     */
+    private boolean compare(BooleanSupplier sameAsSent, Runnable loadThumbnail) {
+        frames++;
+        boolean refresh = sentLength < 0 || System.currentTimeMillis() - sentAt >= REFRESH_INTERVAL_MS;
+        if (resetRequested) {
+            resetRequested = false;
+            refresh = true;
+        }
+        if (!refresh && shape == sentShape && length == sentLength && hash == sentHash && sameAsSent.getAsBoolean()) {
+            duplicates++;
+            return false;
+        }
+        if (threshold > 0) {
+            // 输出的画面也要有缩略图，作为下一次比较的基准
+            loadThumbnail.run();
+            if (!refresh && shape == sentShape && thumbnailReady && sentThumbnailReady
+                    && difference(thumbnail, sentThumbnail) < threshold) {
+                similar++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frames %d, duplicates %d, similar %d, dedupe %.1f%%, check %dms, saved %dms",
+                frames, duplicates, similar, getDedupeRatio() * 100,
+                checkNanos / 1_000_000, getSavedNanos() / 1_000_000);
+    }
+
+    /**
+     * 在 rows 行、每行 width 字节的区域内均匀取约 HASH_SAMPLES 个 8 字节块做多项式滚动哈希，每行末尾 8 字节总会参与
+     * JPEG 按一行处理（rows = 1）
+     */
+    static long sampledHash(ByteBuffer buffer, int offset, int width, int rows, int stride) {
+        long h = (long) width * 31 + rows;
+        if (width < 8) {
+            for (int y = 0; y < rows; y++) {
+                for (int x = 0; x < width; x++) {
+                    h = h * 31 + buffer.get(offset + y * stride + x);
+                }
+            }
+            return h;
+        }
+        int sampledRows = Math.min(rows, 64);
+        int rowStep = Math.max(1, rows / sampledRows);
+        int step = Math.max(8, (int) ((long) width * sampledRows / HASH_SAMPLES));
+        for (int y = 0; y < rows; y += rowStep) {
+            int row = offset + y * stride;
+            for (int x = 0; x + 8 <= width; x += step) {
+                h = h * 0x100000001B3L + buffer.getLong(row + x);
+            }
+            h = h * 0x100000001B3L + buffer.getLong(row + width - 8);
+        }
+        return h;
+    }
+
+    /**
+     * 逐行比较亮度平面与紧凑拷贝
+     */
+    static boolean samePlane(ByteBuffer luma, int width, int height, int stride, byte[] copy) {
+        if (copy.length != width * height) {
+            return false;
+        }
+        int offset = luma.position();
+        ByteBuffer target = ByteBuffer.wrap(copy);
+        for (int y = 0; y < height; y++) {
+            if (luma.slice(offset + y * stride, width).mismatch(target.slice(y * width, width)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void copyPlane(ByteBuffer luma, int width, int height, int stride, byte[] out) {
+        int offset = luma.position();
+        for (int y = 0; y < height; y++) {
+            luma.get(offset + y * stride, out, y * width, width);
+        }
+    }
+
+    /**
+     * 按网格取亮度平面的中心点
+     */
+    static void lumaThumbnail(ByteBuffer luma, int width, int height, int stride, byte[] out) {
+        int offset = luma.position();
+        for (int y = 0; y < GRID; y++) {
+            int row = (int) ((y + 0.5) * height / GRID);
+            for (int x = 0; x < GRID; x++) {
+                int col = (int) ((x + 0.5) * width / GRID);
+                out[y * GRID + x] = luma.get(offset + row * stride + col);
+            }
+        }
+    }
+
+    /**
+     * 按源图下采样解码 JPEG，再取网格亮度
+     */
+    static boolean jpegThumbnail(ByteBuffer jpeg, byte[] out) {
+        ByteArrayInputStream bytes;
+        if (jpeg.hasArray()) {
+            bytes = new ByteArrayInputStream(jpeg.array(), jpeg.arrayOffset() + jpeg.position(), jpeg.remaining());
+        } else {
+            byte[] data = new byte[jpeg.remaining()];
+            jpeg.duplicate().get(data);
+            bytes = new ByteArrayInputStream(data);
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(bytes)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return false;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(Math.max(1, width / GRID), Math.max(1, height / GRID), 0, 0);
+                BufferedImage image = reader.read(0, param);
+                for (int y = 0; y < GRID; y++) {
+                    int row = Math.min(image.getHeight() - 1, y * image.getHeight() / GRID);
+                    for (int x = 0; x < GRID; x++) {
+                        int rgb = image.getRGB(Math.min(image.getWidth() - 1, x * image.getWidth() / GRID), row);
+                        int luminance = (((rgb >> 16) & 0xff) * 77 + ((rgb >> 8) & 0xff) * 150 + (rgb & 0xff) * 29) >> 8;
+                        out[y * GRID + x] = (byte) luminance;
+                    }
+                }
+                return true;
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 两张缩略图亮度的平均绝对差
+     */
+    static int difference(byte[] a, byte[] b) {
+        long sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += Math.abs((a[i] & 0xff) - (b[i] & 0xff));
+        }
+        return (int) (sum / a.length);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 单个观看者的按时钟限帧
+ * 每个时间槽最多发一帧：空闲时新画面立即发出，槽未到时暂存，同一槽内后到的画面覆盖先到的，到点只发最新的一张
+ * 带宽只取决于目标帧率，与设备出帧的快慢和突发无关
+ * 暂存需要拷贝画面，发送中的画面与暂存的画面使用两个交替的缓冲区
+ */
+public class FramePacer {
+
+    private long intervalNanos;
+
+    private long nextSlot = Long.MIN_VALUE;
+
+    private byte[] pending = new byte[0];
+
+    private byte[] sending = new byte[0];
+
+    private int pendingLength;
+
+    private boolean hasPending;
+
+    /**
+     * 已有定时发送的任务（排队中或正在发送）
+     */
+    private boolean scheduled;
+
+    private int fps;
+
+    private long sent;
+
+    private long coalesced;
+
+    public FramePacer(int fps) {
+        setFps(fps);
+    }
+
+    public synchronized int getFps() {
+        return fps;
+    }
+
+    public synchronized void setFps(int fps) {
+        if (fps == this.fps) {
+            return;
+        }
+        this.fps = Math.max(1, fps);
+        this.intervalNanos = 1_000_000_000L / this.fps;
+    }
+
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    /**
+     * 被更新的画面覆盖而没有发出的画面数
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * @return 距离下一个时间槽的纳秒数，已到时为 0
+     */
+    public synchronized long getDelay(long now) {
+        return nextSlot == Long.MIN_VALUE ? 0 : Math.max(0, nextSlot - now);
+    }
+
+    /**
+     * 没有暂存的画面且时间槽已到时占用这个槽，调用方随即直接发送
+     */
+    public synchronized boolean tryAcquire(long now) {
+        if (scheduled || hasPending || getDelay(now) > 0) {
+            return false;
+        }
+        advance(now);
+        return true;
+    }
+
+    /**
+     * 暂存画面，等到下一个时间槽再发
+     *
+     * @return 需要安排定时发送时返回延迟的纳秒数，已经安排过时为 -1
+     */
+    public synchronized long hold(ByteBuffer frame, long now) {
+        int length = frame.remaining();
+        if (pending.length < length) {
+            pending = new byte[length + (length >> 2)];
+        }
+        frame.duplicate().get(pending, 0, length);
+        pendingLength = length;
+        if (hasPending) {
+            coalesced++;
+        }
+        hasPending = true;
+        if (scheduled) {
+            return -1;
+        }
+        scheduled = true;
+        return getDelay(now);
+    }
+
+    /**
+     * 由定时任务调用，取出暂存的最新画面并占用当前时间槽
+     * 返回的缓冲区在调用 {@link #finish(long)} 之前有效
+     */
+    public synchronized ByteBuffer takePending(long now) {
+        if (!hasPending) {
+            scheduled = false;
+            return null;
+        }
+        byte[] frame = pending;
+        pending = sending;
+        sending = frame;
+        hasPending = false;
+        advance(now);
+        return ByteBuffer.wrap(sending, 0, pendingLength);
+    }
+
+    /**
+     * 定时发送完成
+     *
+     * @return 期间又有新画面暂存时返回下一次发送的延迟，否则为 -1
+     */
+    public synchronized long finish(long now) {
+        if (hasPending) {
+            return getDelay(now);
+        }
+        scheduled = false;
+        return -1;
+    }
+
+    /**
+     * 稍晚于时间槽的发送保持原有节奏，空闲较久后从当前时间重新开始
+     */
+    private void advance(long now) {
+        long base = nextSlot != Long.MIN_VALUE && now - nextSlot < intervalNanos ? nextSlot : now;
+        nextSlot = base + intervalNanos;
+        sent++;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.minicap;
+
+/**
+ * minicap 连接建立后首先发送的 banner，多字节字段均为 little-endian
+ */
+public class MiniCapBanner {
+
+    public static final int MIN_LENGTH = 24;
+
+    private final int version;
+
+    private final int length;
+
+    private final long pid;
+
+    private final long realWidth;
+
+    private final long realHeight;
+
+    private final long virtualWidth;
+
+    private final long virtualHeight;
+
+    private final int orientation;
+
+    private final int quirks;
+
+    public MiniCapBanner(int version, int length, long pid, long realWidth, long realHeight,
+                         long virtualWidth, long virtualHeight, int orientation, int quirks) {
+        this.version = version;
+        this.length = length;
+        this.pid = pid;
+        this.realWidth = realWidth;
+        this.realHeight = realHeight;
+        this.virtualWidth = virtualWidth;
+        this.virtualHeight = virtualHeight;
+        this.orientation = orientation;
+        this.quirks = quirks;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public long getPid() {
+        return pid;
+    }
+
+    public long getRealWidth() {
+        return realWidth;
+    }
+
+    public long getRealHeight() {
+        return realHeight;
+    }
+
+    public long getVirtualWidth() {
+        return virtualWidth;
+    }
+
+    public long getVirtualHeight() {
+        return virtualHeight;
+    }
+
+    /**
+     * 旋转角度：0、90、180、270
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    public int getQuirks() {
+        return quirks;
+    }
+
+    /**
+     * 按旧版 banner 数组的下标填充，保持 {@link MiniCapUtil#start} 调用方的取值方式不变
+     */
+    public void fill(String[] banner) {
+        banner[0] = String.valueOf(version);
+        banner[1] = String.valueOf(length);
+        banner[5] = String.valueOf(pid);
+        banner[9] = String.valueOf(realWidth);
+        banner[13] = String.valueOf(realHeight);
+        banner[17] = String.valueOf(virtualWidth);
+        banner[21] = String.valueOf(virtualHeight);
+        banner[22] = String.valueOf(orientation);
+        banner[23] = String.valueOf(quirks);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.minicap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * minicap 协议解析：banner + 若干个 [4 字节 little-endian 长度][JPEG]
+ * socket 数据直接读入一个可复用、按需扩容的缓冲区，banner 与长度前缀原地解析，帧以切片的形式交出，不做中间拷贝
+ * 已消费的空间在写满时回收：只搬动尾部未读完的半帧，缓冲区至少保持最大帧的 {@link #FRAMES_PER_BUFFER} 倍，搬动的字节数远小于收到的字节数
+ * 非线程安全，读取与解析需要在同一线程
+ */
+public class MiniCapFrameDecoder {
+
+    public static final int INITIAL_CAPACITY = 256 * 1024;
+
+    public static final int FRAMES_PER_BUFFER = 4;
+
+    /**
+     * 单帧上限，长度前缀超过它时视为数据错乱
+     */
+    public static final int MAX_FRAME_SIZE = 32 * 1024 * 1024;
+
+    private static final int MIN_READ = 16 * 1024;
+
+    private byte[] buffer;
+
+    /**
+     * 未解析数据的起止位置
+     */
+    private int start;
+
+    private int end;
+
+    private MiniCapBanner banner;
+
+    /**
+     * 已读到长度前缀、正在等待数据的帧长度，没有时为 -1
+     */
+    private int pending = -1;
+
+    private long frames;
+
+    private long bytes;
+
+    private long compactedBytes;
+
+    public MiniCapFrameDecoder() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public MiniCapFrameDecoder(int initialCapacity) {
+        buffer = new byte[Math.max(initialCapacity, MiniCapBanner.MIN_LENGTH)];
+    }
+
+    public MiniCapBanner getBanner() {
+        return banner;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * 回收空间时搬动过的字节数，用于观察缓冲区大小是否合适
+     */
+    public long getCompactedBytes() {
+        return compactedBytes;
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    /**
+     * 从输入流读一次，直接写入缓冲区
+     * 调用后之前交出的帧切片全部失效
+     *
+     * @return 读到的字节数，流结束时为 -1
+     */
+    public int readFrom(InputStream inputStream) throws IOException {
+        ensureWritable(wanted());
+        int len = inputStream.read(buffer, end, buffer.length - end);
+        if (len > 0) {
+            end += len;
+            bytes += len;
+        }
+        return len;
+    }
+
+    /**
+     * 写入一段已有的数据，用于回放录制的码流
+     * 调用后之前交出的帧切片全部失效
+     */
+    public void feed(byte[] data, int offset, int length) {
+        while (length > 0) {
+            ensureWritable(Math.min(length, wanted()));
+            int len = Math.min(length, buffer.length - end);
+            System.arraycopy(data, offset, buffer, end, len);
+            end += len;
+            bytes += len;
+            offset += len;
+            length -= len;
+        }
+    }
+
+    /**
+     * 取下一帧
+     *
+     * @return 指向缓冲区内部的切片，在下一次 {@link #readFrom}/{@link #feed} 之前有效；数据不足一帧时为 null
+     */
+    public ByteBuffer nextFrame() {
+        if (banner == null && !readBanner()) {
+            return null;
+        }
+        if (pending < 0) {
+            if (end - start < 4) {
+                return null;
+            }
+            pending = readInt(start);
+            if (pending < 0 || pending > MAX_FRAME_SIZE) {
+                throw new IllegalStateException("Invalid minicap frame length: " + (pending & 0xffffffffL));
+            }
+            start += 4;
+        }
+        if (end - start < pending) {
+            return null;
+        }
+        ByteBuffer frame = ByteBuffer.wrap(buffer, start, pending).slice();
+        start += pending;
+        pending = -1;
+        frames++;
+        if (start == end) {
+            // 刚好读完，下次从头写，不需要搬动
+            start = 0;
+            end = 0;
+        }
+        return frame;
+    }
+
+    private boolean readBanner() {
+        if (end - start < 2) {
+            return false;
+        }
+        int length = buffer[start + 1] & 0xff;
+        if (length < MiniCapBanner.MIN_LENGTH) {
+            throw new IllegalStateException("Invalid minicap banner length: " + length);
+        }
+        if (end - start < length) {
+            return false;
+        }
+        banner = new MiniCapBanner(
+                buffer[start] & 0xff,
+                length,
+                readInt(start + 2) & 0xffffffffL,
+                readInt(start + 6) & 0xffffffffL,
+                readInt(start + 10) & 0xffffffffL,
+                readInt(start + 14) & 0xffffffffL,
+                readInt(start + 18) & 0xffffffffL,
+                (buffer[start + 22] & 0xff) * 90,
+                buffer[start + 23] & 0xff);
+        start += length;
+        return true;
+    }
+
+    private int readInt(int offset) {
+        return (buffer[offset] & 0xff)
+                | ((buffer[offset + 1] & 0xff) << 8)
+                | ((buffer[offset + 2] & 0xff) << 16)
+                | ((buffer[offset + 3] & 0xff) << 24);
+    }
+
+    /**
+     * 本次至少需要的可写空间：等待中的帧要能一次放下，其余情况读一个常规大小
+     */
+    private int wanted() {
+        if (pending > 0) {
+            return Math.max(pending - (end - start), 1);
+        }
+        return MIN_READ;
+    }
+
+    private void ensureWritable(int wanted) {
+        if (buffer.length - end >= wanted) {
+            return;
+        }
+        int remaining = end - start;
+        int capacity = buffer.length;
+        if (pending > 0) {
+            capacity = Math.max(capacity, (int) Math.min(Integer.MAX_VALUE - 8L, (long) pending * FRAMES_PER_BUFFER));
+        }
+        while (capacity - remaining < wanted) {
+            capacity = capacity << 1;
+        }
+        if (capacity != buffer.length) {
+            byte[] grown = new byte[capacity];
+            System.arraycopy(buffer, start, grown, 0, remaining);
+            buffer = grown;
+        } else {
+            System.arraycopy(buffer, start, buffer, 0, remaining);
+        }
+        compactedBytes += remaining;
+        start = 0;
+        end = remaining;
+    }
+}
@@ -17,10 +17,12 @@
  */
 package org.cloud.sonic.agent.tests.android.minicap;
 
+import com.alibaba.fastjson.JSONObject;
 import com.android.ddmlib.IDevice;
-import jakarta.websocket.Session;
 import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
-import org.cloud.sonic.agent.common.maps.ScreenMap;
+import org.cloud.sonic.agent.tests.android.AndroidScreenHub;
+import org.cloud.sonic.agent.tests.android.FrameChangeConfig;
+import org.cloud.sonic.agent.tests.android.FrameChangeDetector;
 import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
 import org.cloud.sonic.agent.tools.PortTool;
 import org.slf4j.Logger;
@@ -29,13 +31,14 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
-
-import static org.cloud.sonic.agent.tools.BytesTool.subByteArray;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * minicap socket线程
- * 通过端口转发，将设备视频流转发到此Socket
+ * 通过端口转发，将设备视频流转发到此Socket，在同一线程内原地解析并发送
+ * minicap 只在客户端读走上一帧后才写入最新的一帧，发送慢时设备端自然丢帧，不需要额外的队列
  *
  * @author Eason(main) JayWenStar(until e1a877b7)
  * @date 2021/12/02 00:52 下午
@@ -51,19 +54,34 @@ public class MiniCapInputSocketThread extends Thread {
 
     private IDevice iDevice;
 
-    private BlockingQueue<byte[]> dataQueue;
-
     private MiniCapLocalThread miniCapPro;
 
     private AndroidTestTaskBootThread androidTestTaskBootThread;
 
-    private Session session;
+    private AndroidScreenHub hub;
+
+    private AtomicReference<String[]> banner;
 
-    public MiniCapInputSocketThread(IDevice iDevice, BlockingQueue<byte[]> dataQueue, MiniCapLocalThread miniCapPro, Session session) {
+    private AtomicReference<List<byte[]>> imgList;
+
+    /**
+     * 画面没有变化时不重复发送
+     */
+    private FrameChangeDetector frameChange;
+
+    public MiniCapInputSocketThread(
+            IDevice iDevice,
+            MiniCapLocalThread miniCapPro,
+            AtomicReference<String[]> banner,
+            AtomicReference<List<byte[]>> imgList,
+            AndroidScreenHub hub
+    ) {
         this.iDevice = iDevice;
-        this.dataQueue = dataQueue;
         this.miniCapPro = miniCapPro;
-        this.session = session;
+        this.banner = banner;
+        this.imgList = imgList;
+        this.hub = hub;
+        this.frameChange = hub != null ? hub.getFrameChange() : new FrameChangeDetector(FrameChangeConfig.getThreshold());
         this.androidTestTaskBootThread = miniCapPro.getAndroidTestTaskBootThread();
 
         // 让资源合理关闭
@@ -75,10 +93,6 @@ public class MiniCapInputSocketThread extends Thread {
         return iDevice;
     }
 
-    public BlockingQueue<byte[]> getDataQueue() {
-        return dataQueue;
-    }
-
     public MiniCapLocalThread getMiniCapPro() {
         return miniCapPro;
     }
@@ -87,8 +101,12 @@ public class MiniCapInputSocketThread extends Thread {
         return androidTestTaskBootThread;
     }
 
-    public Session getSession() {
-        return session;
+    public AndroidScreenHub getHub() {
+        return hub;
+    }
+
+    public boolean sessionOpen() {
+        return hub != null && hub.getViewerCount() > 0;
     }
 
     @Override
@@ -101,20 +119,24 @@ public class MiniCapInputSocketThread extends Thread {
         try {
             capSocket = new Socket("localhost", finalMiniCapPort);
             inputStream = capSocket.getInputStream();
-            int len = 1024;
-            while (miniCapPro.isAlive()) {
-                byte[] buffer = new byte[len];
-                int realLen;
-                realLen = inputStream.read(buffer);
-                if (buffer.length != realLen && realLen >= 0) {
-                    buffer = subByteArray(buffer, 0, realLen);
-                }
-                if (realLen >= 0) {
-                    dataQueue.offer(buffer);
-                }
+            MiniCapFrameDecoder decoder = new MiniCapFrameDecoder();
+            boolean bannerReady = false;
+            read:
+            while (miniCapPro.isAlive() && decoder.readFrom(inputStream) >= 0) {
+                ByteBuffer frame;
+                do {
+                    frame = decoder.nextFrame();
+                    if (!bannerReady && decoder.getBanner() != null) {
+                        bannerReady = true;
+                        onBanner(decoder.getBanner());
+                    }
+                    if (frame != null && !onFrame(frame)) {
+                        break read;
+                    }
+                } while (frame != null);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+        } catch (IOException | IllegalStateException e) {
+            log.info("miniCap stream error: {}", e.getMessage());
         } finally {
             if (miniCapPro.isAlive()) {
                 miniCapPro.interrupt();
@@ -138,9 +160,44 @@ public class MiniCapInputSocketThread extends Thread {
             }
         }
         AndroidDeviceBridgeTool.removeForward(iDevice, finalMiniCapPort, "minicap");
-        if (session != null) {
-            ScreenMap.getMap().remove(session);
+        if (hub != null) {
+            hub.onStreamExit(miniCapPro);
+        }
+    }
+
+    private void onBanner(MiniCapBanner miniCapBanner) {
+        miniCapBanner.fill(banner.get());
+        log.info("banner读取已就绪");
+        if (sessionOpen()) {
+            JSONObject size = new JSONObject();
+            size.put("msg", "size");
+            size.put("width", banner.get()[9]);
+            size.put("height", banner.get()[13]);
+            hub.sendSize(size.toJSONString());
+        }
+    }
+
+    /**
+     * @param frame 解码器内部缓冲区的切片，只在本次调用内有效
+     * @return 数据不是 JPEG 时返回 false，停止读取
+     */
+    private boolean onFrame(ByteBuffer frame) {
+        if (frame.remaining() < 2 || frame.get(0) != -1 || frame.get(1) != -40) {
+            return false;
+        }
+        if (sessionOpen() && frameChange.isChanged(frame)) {
+            // 按观看者的帧率限帧，由 hub 处理
+            long start = System.nanoTime();
+            hub.sendJpeg(frame);
+            frameChange.recordWork(System.nanoTime() - start);
+            frameChange.markSent();
+        }
+        if (imgList != null) {
+            byte[] img = new byte[frame.remaining()];
+            frame.duplicate().get(img);
+            imgList.get().add(img);
         }
+        return true;
     }
 }
 
@@ -20,8 +20,8 @@ package org.cloud.sonic.agent.tests.android.minicap;
 import com.alibaba.fastjson.JSONObject;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
-import jakarta.websocket.Session;
 import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
+import org.cloud.sonic.agent.tests.android.AndroidScreenHub;
 import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
 import org.cloud.sonic.agent.tools.BytesTool;
 import org.slf4j.Logger;
@@ -53,7 +53,7 @@ public class MiniCapLocalThread extends Thread {
 
     private int finalC;
 
-    private Session session;
+    private AndroidScreenHub hub;
 
     private String udId;
 
@@ -62,12 +62,12 @@ public class MiniCapLocalThread extends Thread {
     private Semaphore isFinish = new Semaphore(0);
 
 
-    public MiniCapLocalThread(IDevice iDevice, String pic, int finalC, Session session,
+    public MiniCapLocalThread(IDevice iDevice, String pic, int finalC, AndroidScreenHub hub,
                               AndroidTestTaskBootThread androidTestTaskBootThread) {
         this.iDevice = iDevice;
         this.pic = pic;
         this.finalC = finalC;
-        this.session = session;
+        this.hub = hub;
         this.udId = iDevice.getSerialNumber();
         this.androidTestTaskBootThread = androidTestTaskBootThread;
 
@@ -87,8 +87,8 @@ public class MiniCapLocalThread extends Thread {
         return finalC;
     }
 
-    public Session getSession() {
-        return session;
+    public AndroidScreenHub getHub() {
+        return hub;
     }
 
     public String getUdId() {
@@ -195,11 +195,11 @@ public class MiniCapLocalThread extends Thread {
         if (!suc && iDevice != null && man.equals("LGE")) {
             suc = runMiniCap("LGE");
         }
-        if (session != null && (!suc)) {
+        if (hub != null && (!suc)) {
             JSONObject support = new JSONObject();
             support.put("msg", "support");
             support.put("text", "该设备不兼容MiniCap投屏！");
-            BytesTool.sendText(session, support.toJSONString());
+            hub.sendText(support.toJSONString());
         }
     }
 
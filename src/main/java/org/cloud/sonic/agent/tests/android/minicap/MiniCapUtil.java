@@ -18,15 +18,14 @@
 package org.cloud.sonic.agent.tests.android.minicap;
 
 import com.android.ddmlib.IDevice;
-import jakarta.websocket.Session;
 import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
 import org.cloud.sonic.agent.tests.TaskManager;
+import org.cloud.sonic.agent.tests.android.AndroidScreenHub;
 import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread.ANDROID_TEST_TASK_BOOT_PRE;
@@ -45,10 +44,10 @@ public class MiniCapUtil {
             AtomicReference<List<byte[]>> imgList,
             String pic,
             int tor,
-            Session session
+            AndroidScreenHub hub
     ) {
         // 这里的AndroidTestTaskBootThread仅作为data bean使用，不会启动
-        return start(udId, banner, imgList, pic, tor, session, new AndroidTestTaskBootThread().setUdId(udId));
+        return start(udId, banner, imgList, pic, tor, hub, new AndroidTestTaskBootThread().setUdId(udId));
     }
 
 
@@ -58,7 +57,7 @@ public class MiniCapUtil {
             AtomicReference<List<byte[]>> imgList,
             String pic,
             int tor,
-            Session session,
+            AndroidScreenHub hub,
             AndroidTestTaskBootThread androidTestTaskBootThread
     ) {
         IDevice iDevice = AndroidDeviceBridgeTool.getIDeviceByUdId(udId);
@@ -70,7 +69,7 @@ public class MiniCapUtil {
             s = tor;
         }
         // 启动minicap服务
-        MiniCapLocalThread miniCapPro = new MiniCapLocalThread(iDevice, pic, s * 90, session, androidTestTaskBootThread);
+        MiniCapLocalThread miniCapPro = new MiniCapLocalThread(iDevice, pic, s * 90, hub, androidTestTaskBootThread);
         TaskManager.startChildThread(key, miniCapPro);
 
         // 等待启动
@@ -88,16 +87,12 @@ public class MiniCapUtil {
             }
         }
 
-        // 启动输入流
+        // 启动输入流，解析后直接输出
         MiniCapInputSocketThread sendImg = new MiniCapInputSocketThread(
-                iDevice, new LinkedBlockingQueue<>(), miniCapPro, session
-        );
-        // 启动输出流
-        MiniCapOutputSocketThread miniCapOutputSocketThread = new MiniCapOutputSocketThread(
-                sendImg, banner, imgList, session, pic
+                iDevice, miniCapPro, banner, imgList, hub
         );
 
-        TaskManager.startChildThread(key, sendImg, miniCapOutputSocketThread);
+        TaskManager.startChildThread(key, sendImg);
 
         return miniCapPro; // server线程
     }
@@ -0,0 +1,110 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+/**
+ * 单个观看者的自适应画质控制
+ * 根据 websocket 发送耗时（指数平均）和输出队列水位判断链路是否拥塞：
+ * 持续拥塞时降一档，持续通畅时升一档，升档等待更久以避免来回抖动
+ */
+public class ScrcpyAdaptiveController {
+
+    public static final double CONGESTED_SEND_MS = 40;
+
+    public static final double RECOVERED_SEND_MS = 15;
+
+    public static final double CONGESTED_QUEUE_LOAD = 0.5;
+
+    public static final double RECOVERED_QUEUE_LOAD = 0.1;
+
+    public static final long STEP_DOWN_AFTER_MS = 2000;
+
+    public static final long STEP_UP_AFTER_MS = 10000;
+
+    private static final double EWMA_ALPHA = 0.2;
+
+    private ScrcpyQuality ceiling;
+
+    private ScrcpyQuality quality;
+
+    private double sendMs = 0;
+
+    private long congestedSince = -1;
+
+    private long healthySince = -1;
+
+    public ScrcpyAdaptiveController(ScrcpyQuality ceiling) {
+        this.ceiling = ceiling;
+        this.quality = ceiling;
+    }
+
+    /**
+     * 记录一次发送耗时
+     */
+    public synchronized void onSend(long nanos) {
+        sendMs += EWMA_ALPHA * (nanos / 1_000_000.0 - sendMs);
+    }
+
+    /**
+     * @param queueLoad 输出队列的占用比例，发生丢包时为 1
+     * @return 当前建议的档位
+     */
+    public synchronized ScrcpyQuality update(double queueLoad, long now) {
+        boolean congested = sendMs > CONGESTED_SEND_MS || queueLoad > CONGESTED_QUEUE_LOAD;
+        boolean healthy = sendMs < RECOVERED_SEND_MS && queueLoad < RECOVERED_QUEUE_LOAD;
+        if (congested) {
+            healthySince = -1;
+            if (congestedSince < 0) {
+                congestedSince = now;
+            } else if (now - congestedSince >= STEP_DOWN_AFTER_MS) {
+                quality = quality.lower();
+                congestedSince = now;
+            }
+        } else if (healthy) {
+            congestedSince = -1;
+            if (healthySince < 0) {
+                healthySince = now;
+            } else if (now - healthySince >= STEP_UP_AFTER_MS && quality.isLowerThan(ceiling)) {
+                quality = quality.higher();
+                healthySince = now;
+            }
+        } else {
+            congestedSince = -1;
+            healthySince = -1;
+        }
+        return quality;
+    }
+
+    public synchronized ScrcpyQuality getQuality() {
+        return quality;
+    }
+
+    public synchronized double getSendMs() {
+        return sendMs;
+    }
+
+    /**
+     * 前端切换 pic 时调整上限，并从新的上限重新开始
+     */
+    public synchronized void setCeiling(ScrcpyQuality ceiling) {
+        this.ceiling = ceiling;
+        this.quality = ceiling;
+        congestedSince = -1;
+        healthySince = -1;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * scrcpy 控制通道
+ * 投屏时在视频 socket 之后连接同一个转发端口建立；只用于触控时由 {@link ScrcpyControlUtil} 单独启动不带视频的服务
+ * 消息格式参考 scrcpy 3.1 的 ControlMessage，均为大端序
+ */
+public class ScrcpyControl implements Closeable {
+
+    private final Logger log = LoggerFactory.getLogger(ScrcpyControl.class);
+
+    public static final int TYPE_INJECT_KEYCODE = 0;
+    public static final int TYPE_INJECT_TEXT = 1;
+    public static final int TYPE_INJECT_TOUCH_EVENT = 2;
+    public static final int TYPE_INJECT_SCROLL_EVENT = 3;
+    public static final int TYPE_BACK_OR_SCREEN_ON = 4;
+    public static final int TYPE_RESET_VIDEO = 17;
+
+    // android.view.MotionEvent / KeyEvent 的 action
+    public static final int ACTION_DOWN = 0;
+    public static final int ACTION_UP = 1;
+    public static final int ACTION_MOVE = 2;
+
+    /**
+     * 与 scrcpy 客户端的 SC_POINTER_ID_GENERIC_FINGER 一致，按手指而不是鼠标注入
+     */
+    public static final long POINTER_ID_GENERIC_FINGER = -2;
+
+    public static final int INJECT_TEXT_MAX_LENGTH = 300;
+
+    private final Socket socket;
+
+    private final OutputStream outputStream;
+
+    private Runnable onClose;
+
+    private volatile int videoWidth;
+
+    private volatile int videoHeight;
+
+    public ScrcpyControl(Socket socket) throws IOException {
+        this(socket, true);
+    }
+
+    /**
+     * @param drain 是否读取并丢弃设备端发回的消息（剪贴板、ack 等），
+     *              不读取时设备端的发送缓冲写满后会阻塞它的控制线程
+     */
+    ScrcpyControl(Socket socket, boolean drain) throws IOException {
+        this.socket = socket;
+        this.outputStream = socket.getOutputStream();
+        this.socket.setTcpNoDelay(true);
+        if (drain) {
+            Thread drainThread = new Thread(this::drain, "scrcpy-control-drain");
+            drainThread.setDaemon(true);
+            drainThread.start();
+        }
+    }
+
+    private void drain() {
+        byte[] buffer = new byte[1024];
+        try {
+            InputStream inputStream = socket.getInputStream();
+            while (inputStream.read(buffer) >= 0) {
+                // 设备消息目前都用不到，直接丢弃
+            }
+        } catch (IOException e) {
+            log.debug("scrcpy control drain stopped: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 关闭时额外执行的清理，如停止单独启动的 scrcpy 服务
+     */
+    public void setOnClose(Runnable onClose) {
+        this.onClose = onClose;
+    }
+
+    /**
+     * 与视频共用服务时，坐标需要换算到视频尺寸，否则服务端会忽略该事件
+     */
+    public void setVideoSize(int videoWidth, int videoHeight) {
+        this.videoWidth = videoWidth;
+        this.videoHeight = videoHeight;
+    }
+
+    public boolean isConnected() {
+        return socket.isConnected() && !socket.isClosed();
+    }
+
+    /**
+     * 让设备端重启编码器，随后会收到新的 config 包和关键帧
+     */
+    public boolean resetVideo() {
+        return send(new byte[]{TYPE_RESET_VIDEO});
+    }
+
+    /**
+     * 注入触控事件，坐标和尺寸均为设备当前方向下的像素值
+     */
+    public boolean injectTouch(int action, int x, int y, int screenWidth, int screenHeight) {
+        int[] p = toVideo(x, y, screenWidth, screenHeight, videoWidth, videoHeight);
+        return send(touch(action, POINTER_ID_GENERIC_FINGER, p[0], p[1], p[2], p[3],
+                action == ACTION_UP ? 0f : 1f));
+    }
+
+    public boolean injectKeycode(int action, int keycode) {
+        return send(keycode(action, keycode, 0, 0));
+    }
+
+    /**
+     * 按下并抬起一个按键
+     */
+    public boolean pressKey(int keycode) {
+        return injectKeycode(ACTION_DOWN, keycode) && injectKeycode(ACTION_UP, keycode);
+    }
+
+    public boolean injectText(String text) {
+        return send(text(text));
+    }
+
+    /**
+     * @param hScroll 水平滚动量，范围 [-1, 1]
+     * @param vScroll 垂直滚动量，范围 [-1, 1]
+     */
+    public boolean injectScroll(int x, int y, int screenWidth, int screenHeight, float hScroll, float vScroll) {
+        int[] p = toVideo(x, y, screenWidth, screenHeight, videoWidth, videoHeight);
+        return send(scroll(p[0], p[1], p[2], p[3], hScroll, vScroll));
+    }
+
+    /**
+     * 把屏幕坐标换算为视频坐标，返回 {x, y, width, height}
+     * 视频尺寸只在连接时下发一次，旋转后宽高互换，这里按屏幕方向对齐；没有视频时原样返回
+     */
+    public static int[] toVideo(int x, int y, int screenWidth, int screenHeight, int videoWidth, int videoHeight) {
+        if (videoWidth <= 0 || videoHeight <= 0 || screenWidth <= 0 || screenHeight <= 0) {
+            return new int[]{x, y, screenWidth, screenHeight};
+        }
+        int vw = videoWidth;
+        int vh = videoHeight;
+        if ((vw > vh) != (screenWidth > screenHeight)) {
+            vw = videoHeight;
+            vh = videoWidth;
+        }
+        return new int[]{(int) ((long) x * vw / screenWidth), (int) ((long) y * vh / screenHeight), vw, vh};
+    }
+
+    public static byte[] touch(int action, long pointerId, int x, int y, int screenWidth, int screenHeight, float pressure) {
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        buffer.put((byte) TYPE_INJECT_TOUCH_EVENT);
+        buffer.put((byte) action);
+        buffer.putLong(pointerId);
+        putPosition(buffer, x, y, screenWidth, screenHeight);
+        buffer.putShort((short) toU16FixedPoint(pressure));
+        // action button, buttons
+        buffer.putInt(0);
+        buffer.putInt(0);
+        return buffer.array();
+    }
+
+    public static byte[] keycode(int action, int keycode, int repeat, int metaState) {
+        ByteBuffer buffer = ByteBuffer.allocate(14);
+        buffer.put((byte) TYPE_INJECT_KEYCODE);
+        buffer.put((byte) action);
+        buffer.putInt(keycode);
+        buffer.putInt(repeat);
+        buffer.putInt(metaState);
+        return buffer.array();
+    }
+
+    public static byte[] text(String text) {
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(raw.length, INJECT_TEXT_MAX_LENGTH);
+        // 不截断多字节字符
+        while (length < raw.length && length > 0 && (raw[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(5 + length);
+        buffer.put((byte) TYPE_INJECT_TEXT);
+        buffer.putInt(length);
+        buffer.put(raw, 0, length);
+        return buffer.array();
+    }
+
+    public static byte[] scroll(int x, int y, int screenWidth, int screenHeight, float hScroll, float vScroll) {
+        ByteBuffer buffer = ByteBuffer.allocate(21);
+        buffer.put((byte) TYPE_INJECT_SCROLL_EVENT);
+        putPosition(buffer, x, y, screenWidth, screenHeight);
+        buffer.putShort((short) toI16FixedPoint(hScroll));
+        buffer.putShort((short) toI16FixedPoint(vScroll));
+        // buttons
+        buffer.putInt(0);
+        return buffer.array();
+    }
+
+    private static void putPosition(ByteBuffer buffer, int x, int y, int screenWidth, int screenHeight) {
+        buffer.putInt(x);
+        buffer.putInt(y);
+        buffer.putShort((short) screenWidth);
+        buffer.putShort((short) screenHeight);
+    }
+
+    private static int toU16FixedPoint(float value) {
+        if (value >= 1f) {
+            return 0xffff;
+        }
+        return value <= 0f ? 0 : (int) (value * 0x1p16f);
+    }
+
+    private static int toI16FixedPoint(float value) {
+        if (value >= 1f) {
+            return 0x7fff;
+        }
+        if (value <= -1f) {
+            return -0x8000;
+        }
+        return (int) (value * 0x1p15f);
+    }
+
+    protected synchronized boolean send(byte[] message) {
+        if (!isConnected()) {
+            return false;
+        }
+        try {
+            outputStream.write(message);
+            outputStream.flush();
+            return true;
+        } catch (IOException e) {
+            log.error("scrcpy control send error: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("scrcpy control close error: {}", e.getMessage());
+        }
+        if (onClose != null) {
+            onClose.run();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import com.android.ddmlib.IDevice;
+import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
+import org.cloud.sonic.agent.tests.TaskManager;
+import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
+import org.cloud.sonic.agent.tools.PortTool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread.ANDROID_TEST_TASK_BOOT_PRE;
+
+/**
+ * 单独启动一个只有控制通道的 scrcpy 服务，用于触控、按键和文本注入
+ * 使用独立的 scid，与同一设备上的投屏服务互不影响
+ */
+public class ScrcpyControlUtil {
+    private final Logger logger = LoggerFactory.getLogger(ScrcpyControlUtil.class);
+
+    private static final String CONTROL_JAR = "/data/local/tmp/sonic-android-scrcpy-control.jar";
+
+    private static final int DEVICE_NAME_SIZE = 64;
+
+    private static final int CONNECT_RETRY = 10;
+
+    /**
+     * @return 已完成握手的控制通道，启动失败时返回 null
+     */
+    public ScrcpyControl start(IDevice iDevice) {
+        String udId = iDevice.getSerialNumber();
+        AndroidTestTaskBootThread androidTestTaskBootThread = new AndroidTestTaskBootThread().setUdId(udId);
+        String key = androidTestTaskBootThread.formatThreadName(ANDROID_TEST_TASK_BOOT_PRE);
+        int scid = ThreadLocalRandom.current().nextInt() & 0x7fffffff;
+        String socketName = String.format("scrcpy_%08x", scid);
+        ScrcpyLocalThread scrcpyThread = new ScrcpyLocalThread(iDevice, CONTROL_JAR,
+                String.format("scid=%08x tunnel_forward=true video=false audio=false control=true clipboard_autosync=false", scid),
+                androidTestTaskBootThread);
+        TaskManager.startChildThread(key, scrcpyThread);
+
+        // 等待启动
+        int wait = 0;
+        while (!scrcpyThread.getIsFinish().tryAcquire()) {
+            wait++;
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            if (wait > 8) {
+                break;
+            }
+        }
+
+        int port = PortTool.getPort();
+        AndroidDeviceBridgeTool.forward(iDevice, port, socketName);
+        Socket socket = null;
+        for (int i = 0; i < CONNECT_RETRY && scrcpyThread.isAlive(); i++) {
+            socket = connect(port);
+            if (socket != null) {
+                break;
+            }
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (socket == null) {
+            logger.info("{} scrcpy control server is not available.", udId);
+            scrcpyThread.interrupt();
+            AndroidDeviceBridgeTool.removeForward(iDevice, port, socketName);
+            return null;
+        }
+        try {
+            ScrcpyControl control = new ScrcpyControl(socket);
+            control.setOnClose(() -> {
+                scrcpyThread.interrupt();
+                AndroidDeviceBridgeTool.removeForward(iDevice, port, socketName);
+            });
+            logger.info("{} scrcpy control connected.", udId);
+            return control;
+        } catch (IOException e) {
+            logger.error(e.getMessage());
+            scrcpyThread.interrupt();
+            AndroidDeviceBridgeTool.removeForward(iDevice, port, socketName);
+            return null;
+        }
+    }
+
+    /**
+     * 没有视频时控制 socket 是第一个连接：先收到 dummy byte，再收到 64 字节的设备名
+     * 设备端还没开始监听时 adb 会直接断开，由调用方重试
+     */
+    private Socket connect(int port) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress("localhost", port));
+            InputStream inputStream = socket.getInputStream();
+            if (inputStream.read() < 0) {
+                socket.close();
+                return null;
+            }
+            byte[] deviceName = new byte[DEVICE_NAME_SIZE];
+            int total = 0;
+            while (total < DEVICE_NAME_SIZE) {
+                int read = inputStream.read(deviceName, total, DEVICE_NAME_SIZE - total);
+                if (read < 0) {
+                    socket.close();
+                    return null;
+                }
+                total += read;
+            }
+            return socket;
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+    }
+}
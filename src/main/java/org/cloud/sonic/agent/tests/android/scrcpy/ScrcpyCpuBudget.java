@@ -0,0 +1,103 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 本机投屏可用的 CPU 预算，按正在解码的设备数平分
+ * 每路流启动时按当时的份额确定解码和编码的线程数，之后加入的流分到的份额更少
+ */
+@Component
+public class ScrcpyCpuBudget {
+    private static final Logger logger = LoggerFactory.getLogger(ScrcpyCpuBudget.class);
+
+    /**
+     * 单个阶段的线程上限，再多收益很小
+     */
+    public static final int MAX_STAGE_THREADS = 4;
+
+    @Value("${modules.android.screen-cpu-budget:0}")
+    private int getCpuBudget;
+
+    private static int cpuBudget = Runtime.getRuntime().availableProcessors();
+
+    private static final AtomicInteger activeStreams = new AtomicInteger();
+
+    @PostConstruct
+    public void setEnv() {
+        if (getCpuBudget > 0) {
+            cpuBudget = getCpuBudget;
+        }
+        logger.info("Screen cpu budget: {}", cpuBudget);
+    }
+
+    public static int getCpuBudget() {
+        return cpuBudget;
+    }
+
+    public static int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    /**
+     * 占用一份预算，流结束时必须调用 {@link Lease#close()}
+     */
+    public static Lease acquire() {
+        int streams = activeStreams.incrementAndGet();
+        return new Lease(Math.max(1, cpuBudget / streams));
+    }
+
+    public static class Lease implements AutoCloseable {
+        private final int share;
+        private boolean closed = false;
+
+        Lease(int share) {
+            this.share = share;
+        }
+
+        public int getShare() {
+            return share;
+        }
+
+        /**
+         * 编码阶段至少留一个核
+         */
+        public int getDecodeThreads() {
+            return Math.min(MAX_STAGE_THREADS, Math.max(1, share - 1));
+        }
+
+        public int getEncodeThreads() {
+            return Math.min(MAX_STAGE_THREADS, Math.max(1, share - getDecodeThreads()));
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                activeStreams.decrementAndGet();
+            }
+        }
+    }
+}
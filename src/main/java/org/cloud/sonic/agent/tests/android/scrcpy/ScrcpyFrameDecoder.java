@@ -0,0 +1,253 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.javacpp.BytePointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * scrcpy H.264 解码
+ * 每路视频流一个实例，native 缓冲区只在包变大时重新分配，{@link #close()} 时全部释放
+ * 解出的帧可以直接交给 {@link ScrcpyJpegEncoder}，或通过 {@link #getFrame()} 引用后交给 {@link ScrcpyFramePipeline}
+ */
+public class ScrcpyFrameDecoder implements Closeable {
+
+    private final Logger log = LoggerFactory.getLogger(ScrcpyFrameDecoder.class);
+
+    private static final byte[] PACKET_PADDING = new byte[AV_INPUT_BUFFER_PADDING_SIZE];
+
+    private AVCodecContext codecContext;
+    private AVPacket packet;
+    // avcodec_receive_frame 的输出，失败时会被清空
+    private AVFrame frame;
+    // 最近一次解出的帧，持有引用直到下一次解出新帧
+    private AVFrame lastFrame;
+    private boolean initialized = false;
+
+    // 包数据的 native 缓冲区，末尾保留 FFmpeg 要求的 padding
+    private BytePointer packetBuffer;
+    private int packetCapacity = 0;
+
+    // lastFrame 中有尚未编码的新帧
+    private boolean frameReady = false;
+
+    // 同步使用时（decodeToJpeg / encodeJpeg）的编码器
+    private final ScrcpyJpegEncoder jpegEncoder = new ScrcpyJpegEncoder();
+
+    public int getWidth() {
+        return jpegEncoder.getWidth();
+    }
+
+    public int getHeight() {
+        return jpegEncoder.getHeight();
+    }
+
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    public float getJpegQuality() {
+        return jpegEncoder.getJpegQuality();
+    }
+
+    /**
+     * 调整 JPEG 质量（0~1），从下一帧开始生效
+     */
+    public void setJpegQuality(float jpegQuality) {
+        jpegEncoder.setJpegQuality(jpegQuality);
+    }
+
+    public boolean init() {
+        return init(1);
+    }
+
+    /**
+     * 初始化 H.264 解码器
+     *
+     * @param threadCount 解码线程数，只使用 slice 多线程，不像 frame 多线程那样增加延迟
+     */
+    public boolean init(int threadCount) {
+        try {
+            AVCodec codec = avcodec_find_decoder(AV_CODEC_ID_H264);
+            if (codec == null) {
+                log.error("H.264 decoder not found");
+                return false;
+            }
+
+            codecContext = avcodec_alloc_context3(codec);
+            if (codecContext == null) {
+                log.error("Could not allocate codec context");
+                return false;
+            }
+
+            // 设置解码参数
+            codecContext.flags(codecContext.flags() | AV_CODEC_FLAG_LOW_DELAY);
+            codecContext.flags2(codecContext.flags2() | AV_CODEC_FLAG2_FAST);
+            codecContext.thread_count(Math.max(1, threadCount));
+            codecContext.thread_type(FF_THREAD_SLICE);
+
+            if (avcodec_open2(codecContext, codec, (org.bytedeco.ffmpeg.avutil.AVDictionary) null) < 0) {
+                log.error("Could not open codec");
+                return false;
+            }
+
+            packet = av_packet_alloc();
+            frame = av_frame_alloc();
+            lastFrame = av_frame_alloc();
+
+            if (packet == null || frame == null || lastFrame == null) {
+                log.error("Could not allocate frame or packet");
+                return false;
+            }
+
+            initialized = true;
+            log.info("H.264 decoder initialized successfully, threads: {}", codecContext.thread_count());
+            return true;
+        } catch (Exception e) {
+            log.error("Failed to initialize H.264 decoder", e);
+            return false;
+        }
+    }
+
+    /**
+     * 解码 H.264 NAL 单元并转换为 JPEG
+     *
+     * @return JPEG 数据，指向内部复用的缓冲区，下一次调用前有效；没有可输出的帧时返回 null
+     */
+    public ByteBuffer decodeToJpeg(byte[] nalUnit) {
+        return decode(nalUnit) ? encodeJpeg() : null;
+    }
+
+    /**
+     * 只解码不编码，用于重放缓存的 GOP 追上当前画面
+     *
+     * @return 是否解出了新的一帧
+     */
+    public boolean decode(byte[] nalUnit) {
+        if (!initialized) {
+            return false;
+        }
+        try {
+            fillPacket(nalUnit);
+
+            // 发送 packet 到解码器
+            if (avcodec_send_packet(codecContext, packet) < 0) {
+                return false;
+            }
+
+            // 接收解码后的帧，需要更多数据或出错时返回负数
+            if (avcodec_receive_frame(codecContext, frame) < 0) {
+                return false;
+            }
+            av_frame_unref(lastFrame);
+            av_frame_move_ref(lastFrame, frame);
+            frameReady = true;
+            return true;
+        } catch (Exception e) {
+            log.debug("Decode error: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return 最近一次解出的帧，下一次解出新帧前有效；需要在其他线程使用时用 av_frame_ref 取引用
+     */
+    public AVFrame getFrame() {
+        if (!initialized || lastFrame.width() <= 0) {
+            return null;
+        }
+        return lastFrame;
+    }
+
+    /**
+     * 将最近解出的一帧编码为 JPEG，没有新帧时重新编码上一帧的画面
+     *
+     * @return JPEG 数据，指向内部复用的缓冲区，下一次调用前有效；还没有任何画面时返回 null
+     */
+    public ByteBuffer encodeJpeg() {
+        if (!initialized) {
+            return null;
+        }
+        ByteBuffer jpeg = jpegEncoder.encode(frameReady ? lastFrame : null);
+        frameReady = false;
+        return jpeg;
+    }
+
+    private void fillPacket(byte[] data) {
+        if (packetCapacity < data.length) {
+            if (packetBuffer != null) {
+                av_free(packetBuffer);
+            }
+            packetCapacity = Math.max(data.length, packetCapacity * 2);
+            packetBuffer = new BytePointer(av_malloc(packetCapacity + AV_INPUT_BUFFER_PADDING_SIZE))
+                    .capacity(packetCapacity + AV_INPUT_BUFFER_PADDING_SIZE);
+        }
+        packetBuffer.position(0).put(data, 0, data.length);
+        packetBuffer.position(data.length).put(PACKET_PADDING, 0, PACKET_PADDING.length);
+        packetBuffer.position(0);
+        packet.data(packetBuffer);
+        packet.size(data.length);
+    }
+
+    /**
+     * 释放解码器资源
+     */
+    @Override
+    public void close() {
+        try {
+            jpegEncoder.close();
+            if (lastFrame != null) {
+                av_frame_free(lastFrame);
+                lastFrame = null;
+            }
+            if (frame != null) {
+                av_frame_free(frame);
+                frame = null;
+            }
+            if (packet != null) {
+                av_packet_free(packet);
+                packet = null;
+            }
+            if (packetBuffer != null) {
+                av_free(packetBuffer);
+                packetBuffer = null;
+                packetCapacity = 0;
+            }
+            if (codecContext != null) {
+                avcodec_free_context(codecContext);
+                codecContext = null;
+            }
+            frameReady = false;
+            initialized = false;
+            log.info("H.264 decoder released");
+        } catch (Exception e) {
+            log.error("Error releasing decoder", e);
+        }
+    }
+}
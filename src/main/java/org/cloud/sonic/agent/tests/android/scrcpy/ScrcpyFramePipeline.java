@@ -0,0 +1,338 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.cloud.sonic.agent.tests.android.FrameChangeDetector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.LongUnaryOperator;
+
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * 解码之后的流水线：转换 + JPEG 编码阶段、发送阶段各一个线程，解码留在输出线程
+ * 阶段之间是容量很小的缓冲，下游跟不上时丢弃最旧的一项，只保留最新画面，不会阻塞上游
+ * 解出的帧以引用计数的方式传递，不拷贝像素；画面没有变化时编码阶段直接跳过，不编码也不发送
+ * 编码阶段按观看者的帧率等到下一个时间槽再编码最新的一帧，期间到达的帧直接合并，编码的 CPU 只取决于目标帧率
+ */
+public class ScrcpyFramePipeline implements Closeable {
+
+    private final Logger log = LoggerFactory.getLogger(ScrcpyFramePipeline.class);
+
+    public static final int CAPACITY = 2;
+
+    private static final long CLOSE_TIMEOUT_MS = 3000;
+
+    /**
+     * 发送阶段的输出，通常为 AndroidScreenHub#sendJpeg，返回后缓冲区会被复用
+     */
+    private final Consumer<ByteBuffer> sink;
+
+    private final ScrcpyJpegEncoder encoder;
+
+    /**
+     * 只在编码线程使用，为 null 时不去重
+     */
+    private final FrameChangeDetector frameChange;
+
+    /**
+     * 输入当前时间，返回距离下一帧需要输出的纳秒数，为 null 时不限帧
+     */
+    private final LongUnaryOperator pace;
+
+    // 空闲帧 + 待编码帧 + 编码中的一帧 = CAPACITY + 1
+    private final ArrayBlockingQueue<AVFrame> freeFrames = new ArrayBlockingQueue<>(CAPACITY + 1);
+    private final ArrayBlockingQueue<AVFrame> pendingFrames = new ArrayBlockingQueue<>(CAPACITY + 1);
+
+    // 空闲 + 待发送 + 发送中的一张 = CAPACITY + 1
+    private final ArrayBlockingQueue<JpegSlot> freeJpegs = new ArrayBlockingQueue<>(CAPACITY + 1);
+    private final ArrayBlockingQueue<JpegSlot> pendingJpegs = new ArrayBlockingQueue<>(CAPACITY + 1);
+
+    private final Thread encodeThread;
+
+    private final Thread sendThread;
+
+    private final AtomicLong encoded = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong droppedJpegs = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong paced = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    public ScrcpyFramePipeline(Consumer<ByteBuffer> sink, String name) {
+        this(sink, name, 1);
+    }
+
+    /**
+     * @param encodeThreads JPEG 编码阶段使用的线程数
+     */
+    public ScrcpyFramePipeline(Consumer<ByteBuffer> sink, String name, int encodeThreads) {
+        this(sink, name, encodeThreads, null, null);
+    }
+
+    /**
+     * @param frameChange 重复画面过滤，为 null 时每帧都编码
+     * @param pace        限帧，通常为 AndroidScreenHub#getJpegDelay，为 null 时每帧都编码
+     */
+    public ScrcpyFramePipeline(Consumer<ByteBuffer> sink, String name, int encodeThreads,
+                               FrameChangeDetector frameChange, LongUnaryOperator pace) {
+        this.sink = sink;
+        this.encoder = new ScrcpyJpegEncoder(encodeThreads);
+        this.frameChange = frameChange;
+        this.pace = pace;
+        for (int i = 0; i < CAPACITY + 1; i++) {
+            freeFrames.add(av_frame_alloc());
+            freeJpegs.add(new JpegSlot());
+        }
+        encodeThread = new Thread(this::encodeLoop, name + "-encode");
+        encodeThread.setDaemon(true);
+        sendThread = new Thread(this::sendLoop, name + "-send");
+        sendThread.setDaemon(true);
+    }
+
+    public void start() {
+        encodeThread.start();
+        sendThread.start();
+    }
+
+    public float getJpegQuality() {
+        return encoder.getJpegQuality();
+    }
+
+    public void setJpegQuality(float jpegQuality) {
+        encoder.setJpegQuality(jpegQuality);
+    }
+
+    public long getEncoded() {
+        return encoded.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    public long getDroppedJpegs() {
+        return droppedJpegs.get();
+    }
+
+    /**
+     * 等待时间槽期间被更新的帧合并掉的帧数
+     */
+    public long getPaced() {
+        return paced.get();
+    }
+
+    /**
+     * 画面没有变化而跳过编码的帧数
+     */
+    public long getUnchanged() {
+        return unchanged.get();
+    }
+
+    /**
+     * 提交一帧给编码阶段，在解码线程调用，不会阻塞
+     * 只取引用，调用返回后 frame 可以继续被解码器复用
+     */
+    public void submit(AVFrame frame) {
+        if (!running || frame == null) {
+            return;
+        }
+        AVFrame slot = freeFrames.poll();
+        if (slot == null) {
+            // 编码跟不上，替换掉最旧的待编码帧
+            slot = pendingFrames.poll();
+            if (slot == null) {
+                droppedFrames.incrementAndGet();
+                return;
+            }
+            droppedFrames.incrementAndGet();
+            av_frame_unref(slot);
+        }
+        if (av_frame_ref(slot, frame) < 0) {
+            freeFrames.offer(slot);
+            return;
+        }
+        pendingFrames.offer(slot);
+    }
+
+    private void encodeLoop() {
+        try {
+            while (running) {
+                AVFrame frame = pendingFrames.poll(100, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    continue;
+                }
+                frame = awaitSlot(frame);
+                ByteBuffer jpeg = null;
+                long start = 0;
+                try {
+                    if (isChanged(frame)) {
+                        start = System.nanoTime();
+                        jpeg = encoder.encode(frame);
+                    } else {
+                        unchanged.incrementAndGet();
+                    }
+                } finally {
+                    av_frame_unref(frame);
+                    freeFrames.offer(frame);
+                }
+                if (jpeg == null) {
+                    continue;
+                }
+                encoded.incrementAndGet();
+                if (frameChange != null) {
+                    frameChange.recordWork(System.nanoTime() - start);
+                    frameChange.markSent();
+                }
+                JpegSlot slot = freeJpegs.poll();
+                if (slot == null) {
+                    // 发送跟不上，替换掉最旧的待发送画面
+                    slot = pendingJpegs.poll();
+                    droppedJpegs.incrementAndGet();
+                    if (slot == null) {
+                        continue;
+                    }
+                }
+                slot.fill(jpeg);
+                pendingJpegs.offer(slot);
+            }
+        } catch (InterruptedException e) {
+            log.debug("scrcpy encode stage interrupted");
+        }
+    }
+
+    /**
+     * 等到下一个时间槽，换成期间到达的最新一帧
+     */
+    private AVFrame awaitSlot(AVFrame frame) {
+        if (pace == null) {
+            return frame;
+        }
+        long wait;
+        while (running && (wait = pace.applyAsLong(System.nanoTime())) > 0) {
+            LockSupport.parkNanos(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(100)));
+        }
+        AVFrame newer;
+        while ((newer = pendingFrames.poll()) != null) {
+            av_frame_unref(frame);
+            freeFrames.offer(frame);
+            paced.incrementAndGet();
+            frame = newer;
+        }
+        return frame;
+    }
+
+    /**
+     * 只比较亮度平面，跳过的帧省去整帧的色彩转换和 JPEG 编码
+     */
+    private boolean isChanged(AVFrame frame) {
+        if (frameChange == null) {
+            return true;
+        }
+        int stride = frame.linesize(0);
+        ByteBuffer luma = frame.data(0).capacity((long) stride * frame.height()).asByteBuffer();
+        return frameChange.isChanged(luma, frame.width(), frame.height(), stride);
+    }
+
+    private void sendLoop() {
+        try {
+            while (running) {
+                JpegSlot slot = pendingJpegs.poll(100, TimeUnit.MILLISECONDS);
+                if (slot == null) {
+                    continue;
+                }
+                try {
+                    sink.accept(slot.toByteBuffer());
+                    sent.incrementAndGet();
+                } catch (Exception e) {
+                    log.debug("scrcpy send stage error: {}", e.getMessage());
+                } finally {
+                    freeJpegs.offer(slot);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.debug("scrcpy send stage interrupted");
+        }
+    }
+
+    /**
+     * 停止两个阶段并释放帧和编码器
+     */
+    @Override
+    public void close() {
+        running = false;
+        encodeThread.interrupt();
+        sendThread.interrupt();
+        try {
+            encodeThread.join(CLOSE_TIMEOUT_MS);
+            sendThread.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (encodeThread.isAlive()) {
+            // 编码线程仍可能使用编码器和帧，交给 GC，不在这里释放
+            log.warn("scrcpy encode stage did not stop in time.");
+            return;
+        }
+        AVFrame frame;
+        while ((frame = pendingFrames.poll()) != null) {
+            av_frame_free(frame);
+        }
+        while ((frame = freeFrames.poll()) != null) {
+            av_frame_free(frame);
+        }
+        encoder.close();
+        log.info("scrcpy pipeline closed, encoded {}, sent {}, unchanged {}, paced {}, dropped {} frames and {} jpegs",
+                encoded.get(), sent.get(), unchanged.get(), paced.get(), droppedFrames.get(), droppedJpegs.get());
+    }
+
+    /**
+     * 发送阶段持有的 JPEG，缓冲区只在画面变大时扩容
+     */
+    private static class JpegSlot {
+        private byte[] data = new byte[64 * 1024];
+        private int length;
+
+        void fill(ByteBuffer jpeg) {
+            length = jpeg.remaining();
+            if (data.length < length) {
+                data = new byte[Math.max(length, data.length * 2)];
+            }
+            jpeg.get(data, 0, length);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(data, 0, length);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 缓存最近的 config 包（SPS/PPS）和从最近一个关键帧开始的整组 GOP
+ * 新加入的观看者或解码器重放这些包即可立即得到当前画面，不必等待下一个自然关键帧
+ * 只由输出线程访问，不做同步
+ */
+public class ScrcpyGopCache {
+
+    public static final int MAX_GOP_PACKETS = 600;
+
+    public static final long MAX_GOP_BYTES = 8L * 1024 * 1024;
+
+    private ScrcpyPacket config;
+
+    private final List<ScrcpyPacket> gop = new ArrayList<>();
+
+    private long gopBytes = 0;
+
+    private long keyFrameTime = 0;
+
+    public void add(ScrcpyPacket packet) {
+        if (packet.isConfig()) {
+            // 参数变化后旧的 GOP 不能再用于解码
+            config = packet;
+            clearGop();
+            return;
+        }
+        if (packet.isKeyFrame()) {
+            clearGop();
+            keyFrameTime = System.currentTimeMillis();
+        } else if (gop.isEmpty()) {
+            // 还没有关键帧，单独的 P 帧无法解码
+            return;
+        }
+        if (gop.size() >= MAX_GOP_PACKETS || gopBytes + packet.getData().length > MAX_GOP_BYTES) {
+            // GOP 过长时放弃缓存，等待下一个关键帧
+            clearGop();
+            return;
+        }
+        gop.add(packet);
+        gopBytes += packet.getData().length;
+    }
+
+    public boolean hasKeyFrame() {
+        return config != null && !gop.isEmpty();
+    }
+
+    public ScrcpyPacket getConfig() {
+        return config;
+    }
+
+    /**
+     * @return 以关键帧开头的包序列，没有关键帧时为空
+     */
+    public List<ScrcpyPacket> getGop() {
+        return Collections.unmodifiableList(gop);
+    }
+
+    public long getGopBytes() {
+        return gopBytes;
+    }
+
+    /**
+     * @return 距离最近一个关键帧的毫秒数，没有关键帧时为 -1
+     */
+    public long getKeyFrameAge() {
+        return gop.isEmpty() ? -1 : System.currentTimeMillis() - keyFrameTime;
+    }
+
+    public void clear() {
+        config = null;
+        clearGop();
+    }
+
+    private void clearGop() {
+        gop.clear();
+        gopBytes = 0;
+    }
+}
@@ -19,11 +19,11 @@ package org.cloud.sonic.agent.tests.android.scrcpy;
 
 import com.alibaba.fastjson.JSONObject;
 import com.android.ddmlib.IDevice;
-import jakarta.websocket.Session;
 import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
-import org.cloud.sonic.agent.common.maps.ScreenMap;
+import org.cloud.sonic.agent.common.maps.ScrcpyControlMap;
+import org.cloud.sonic.agent.common.maps.ScrcpyQueueMap;
+import org.cloud.sonic.agent.tests.android.AndroidScreenHub;
 import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
-import org.cloud.sonic.agent.tools.BytesTool;
 import org.cloud.sonic.agent.tools.PortTool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,7 +32,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
 
 /**
  * scrcpy socket线程
@@ -46,19 +45,21 @@ public class ScrcpyInputSocketThread extends Thread {
 
     private IDevice iDevice;
 
-    private BlockingQueue<byte[]> dataQueue;
+    private ScrcpyPacketQueue dataQueue;
 
     private ScrcpyLocalThread scrcpyLocalThread;
 
     private AndroidTestTaskBootThread androidTestTaskBootThread;
 
-    private Session session;
+    private AndroidScreenHub hub;
 
-    public ScrcpyInputSocketThread(IDevice iDevice, BlockingQueue<byte[]> dataQueue, ScrcpyLocalThread scrcpyLocalThread, Session session) {
+    private volatile ScrcpyControl control;
+
+    public ScrcpyInputSocketThread(IDevice iDevice, ScrcpyPacketQueue dataQueue, ScrcpyLocalThread scrcpyLocalThread, AndroidScreenHub hub) {
         this.iDevice = iDevice;
         this.dataQueue = dataQueue;
         this.scrcpyLocalThread = scrcpyLocalThread;
-        this.session = session;
+        this.hub = hub;
         this.androidTestTaskBootThread = scrcpyLocalThread.getAndroidTestTaskBootThread();
         this.setDaemon(false);
         this.setName(androidTestTaskBootThread.formatThreadName(ANDROID_INPUT_SOCKET_PRE));
@@ -68,7 +69,7 @@ public class ScrcpyInputSocketThread extends Thread {
         return iDevice;
     }
 
-    public BlockingQueue<byte[]> getDataQueue() {
+    public ScrcpyPacketQueue getDataQueue() {
         return dataQueue;
     }
 
@@ -80,8 +81,15 @@ public class ScrcpyInputSocketThread extends Thread {
         return androidTestTaskBootThread;
     }
 
-    public Session getSession() {
-        return session;
+    public AndroidScreenHub getHub() {
+        return hub;
+    }
+
+    /**
+     * @return 控制通道，连接建立前或连接失败时为 null
+     */
+    public ScrcpyControl getControl() {
+        return control;
     }
 
     private static final int BUFFER_SIZE = 1024 * 1024 * 10;
@@ -91,15 +99,21 @@ public class ScrcpyInputSocketThread extends Thread {
     private static final int CODEC_ID_H264 = 0x68323634; // "h264" in big-endian
     private static final int CODEC_META_SIZE = 12; // codec_id(4) + width(4) + height(4)
     private static final int FRAME_HEADER_SIZE = 12; // pts(8) + size(4)
+    private static final long PTS_MASK = 0x3FFFFFFFFFFFFFFFL; // 去掉 config/key frame 两位 flags
+    private static final int HANDSHAKE_TIMEOUT = 10000; // 读取 dummy byte 和设备信息的超时（毫秒）
 
     @Override
     public void run() {
+        String udId = iDevice.getSerialNumber();
+        ScrcpyQueueMap.getMap().put(udId, dataQueue);
         int scrcpyPort = PortTool.getPort();
         AndroidDeviceBridgeTool.forward(iDevice, scrcpyPort, "scrcpy");
         Socket videoSocket = new Socket();
         InputStream inputStream = null;
         try {
             videoSocket.connect(new InetSocketAddress("localhost", scrcpyPort));
+            // 握手阶段设备端异常时不至于一直阻塞在读取上
+            videoSocket.setSoTimeout(HANDSHAKE_TIMEOUT);
             inputStream = videoSocket.getInputStream();
             
             if (!videoSocket.isConnected()) {
@@ -117,6 +131,18 @@ public class ScrcpyInputSocketThread extends Thread {
                 return;
             }
             log.info("scrcpy dummy byte received: {}", dummyByte[0] & 0xFF);
+
+            // 服务端接受视频连接后等待控制连接，之后才发送设备信息
+            Socket controlSocket = new Socket();
+            try {
+                controlSocket.connect(new InetSocketAddress("localhost", scrcpyPort));
+                control = new ScrcpyControl(controlSocket);
+            } catch (IOException e) {
+                // 服务端以 control=true 启动，没有控制连接就不会发送后续数据，直接结束
+                log.error("Failed to connect to scrcpy control socket: {}", e.getMessage());
+                controlSocket.close();
+                return;
+            }
             
             // 2. 读取 device metadata（设备名称，固定 64 字节）
             // scrcpy 3.1 发送固定 64 字节，null-terminated UTF-8
@@ -164,13 +190,23 @@ public class ScrcpyInputSocketThread extends Thread {
                              ((codecMeta[10] & 0xFF) << 8) | (codecMeta[11] & 0xFF);
             
             log.info("scrcpy codec: 0x{}, size: {}x{}", Integer.toHexString(codecId), videoWidth, videoHeight);
+            // 画面静止时设备端可能长时间不发帧，之后不再设置超时
+            videoSocket.setSoTimeout(0);
+            if (control != null) {
+                control.setVideoSize(videoWidth, videoHeight);
+                // 投屏期间 scrcpy 触控直接复用这条控制通道
+                ScrcpyControlMap.getScreenMap().put(udId, control);
+            }
             
             // 发送尺寸信息到前端
             JSONObject size = new JSONObject();
             size.put("msg", "size");
             size.put("width", String.valueOf(videoWidth));
             size.put("height", String.valueOf(videoHeight));
-            BytesTool.sendText(session, size.toJSONString());
+            if (hub != null) {
+                hub.setVideoSize(videoWidth, videoHeight);
+                hub.sendSize(size.toJSONString());
+            }
             
             // 4. 读取视频帧（每帧有 12-byte header）
             byte[] frameHeader = new byte[FRAME_HEADER_SIZE];
@@ -196,6 +232,7 @@ public class ScrcpyInputSocketThread extends Thread {
                 }
                 boolean isConfig = (ptsAndFlags & 0x8000000000000000L) != 0;
                 boolean isKeyFrame = (ptsAndFlags & 0x4000000000000000L) != 0;
+                long pts = ptsAndFlags & PTS_MASK;
                 
                 int packetSize = ((frameHeader[8] & 0xFF) << 24) | ((frameHeader[9] & 0xFF) << 16) | 
                                 ((frameHeader[10] & 0xFF) << 8) | (frameHeader[11] & 0xFF);
@@ -218,8 +255,8 @@ public class ScrcpyInputSocketThread extends Thread {
                 }
                 
                 if (totalRead == packetSize) {
-                    // 发送数据到队列
-                    dataQueue.add(packetData);
+                    // 发送数据到队列，消费端跟不上时由队列按策略丢包
+                    dataQueue.put(new ScrcpyPacket(pts, isConfig, isKeyFrame, packetData));
                     // 调试日志：打印前 10 帧的信息
                     if (dataQueue.size() <= 10) {
                         log.info("scrcpy frame received: size={}, isConfig={}, isKeyFrame={}, queueSize={}", 
@@ -229,7 +266,18 @@ public class ScrcpyInputSocketThread extends Thread {
             }
         } catch (IOException e) {
             log.error("scrcpy socket error: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            log.info("scrcpy input socket interrupted.");
         } finally {
+            ScrcpyQueueMap.getMap().remove(udId, dataQueue);
+            if (dataQueue.getDropped() > 0) {
+                log.info("scrcpy queue of {} dropped {} of {} packets, skipped to key frame {} times",
+                        udId, dataQueue.getDropped(), dataQueue.getReceived(), dataQueue.getSkips());
+            }
+            if (control != null) {
+                ScrcpyControlMap.getScreenMap().remove(udId, control);
+                control.close();
+            }
             if (scrcpyLocalThread.isAlive()) {
                 scrcpyLocalThread.interrupt();
                 log.info("scrcpy thread closed.");
@@ -250,10 +298,10 @@ public class ScrcpyInputSocketThread extends Thread {
                     e.printStackTrace();
                 }
             }
-        }
-        AndroidDeviceBridgeTool.removeForward(iDevice, scrcpyPort, "scrcpy");
-        if (session != null) {
-            ScreenMap.getMap().remove(session);
+            AndroidDeviceBridgeTool.removeForward(iDevice, scrcpyPort, "scrcpy");
+            if (hub != null) {
+                hub.onStreamExit(scrcpyLocalThread);
+            }
         }
     }
 }
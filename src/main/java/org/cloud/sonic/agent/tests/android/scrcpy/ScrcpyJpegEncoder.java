@@ -0,0 +1,253 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.swscale.SwsContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+import static org.bytedeco.ffmpeg.global.swscale.*;
+
+/**
+ * 解码后的 AVFrame -> JPEG，使用 FFmpeg 的 mjpeg 编码器直接编码 YUV，不经过 RGB 和 Java 堆
+ * 解码出的是 limited range 的 YUV420P 时先用 sws_scale 转为 full range 的 YUVJ420P，否则直接送入编码器
+ * 只在一个线程中使用，编码器和转换缓冲区只在分辨率或像素格式变化时重建
+ */
+public class ScrcpyJpegEncoder implements Closeable {
+
+    private final Logger log = LoggerFactory.getLogger(ScrcpyJpegEncoder.class);
+
+    private final int threadCount;
+
+    private AVCodecContext codecContext;
+    private AVPacket packet;
+    private SwsContext swsContext;
+    // 需要转换时的 YUVJ420P 画面
+    private AVFrame convertedFrame;
+    // 不需要转换时持有输入帧的引用
+    private AVFrame inputFrame;
+    // 最近一次编码的画面，重新编码时使用
+    private AVFrame lastFrame;
+
+    private int width = 0;
+    private int height = 0;
+    private int pixelFormat = -1;
+    private int colorRange = -1;
+
+    // 可能由其他线程调整，编码前换算为 qscale
+    private volatile float jpegQuality = 0.75f;
+
+    public ScrcpyJpegEncoder() {
+        this(1);
+    }
+
+    /**
+     * @param threadCount 编码线程数，mjpeg 按 slice 多线程编码
+     */
+    public ScrcpyJpegEncoder(int threadCount) {
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public float getJpegQuality() {
+        return jpegQuality;
+    }
+
+    /**
+     * 调整 JPEG 质量（0~1），从下一帧开始生效
+     */
+    public void setJpegQuality(float jpegQuality) {
+        this.jpegQuality = jpegQuality;
+    }
+
+    /**
+     * 把 0~1 的质量换算为 mjpeg 的 qscale（2 最好，31 最差）
+     * 0.75（high）约为 5，0.3（最低档）约为 20
+     */
+    public static int toQscale(float quality) {
+        return Math.max(2, Math.min(31, Math.round(31 - quality * 35)));
+    }
+
+    /**
+     * 编码一帧，frame 为 null 时重新编码上一帧的画面
+     *
+     * @return JPEG 数据，指向编码器的 native 缓冲区，下一次调用前有效；还没有任何画面时返回 null
+     */
+    public ByteBuffer encode(AVFrame frame) {
+        try {
+            if (frame != null) {
+                if (width != frame.width() || height != frame.height()
+                        || pixelFormat != frame.format() || colorRange != frame.color_range()) {
+                    if (!reopen(frame.width(), frame.height(), frame.format(), frame.color_range())) {
+                        return null;
+                    }
+                }
+                if (swsContext != null) {
+                    sws_scale(swsContext, frame.data(), frame.linesize(), 0, height,
+                            convertedFrame.data(), convertedFrame.linesize());
+                    lastFrame = convertedFrame;
+                } else {
+                    av_frame_unref(inputFrame);
+                    if (av_frame_ref(inputFrame, frame) < 0) {
+                        return null;
+                    }
+                    lastFrame = inputFrame;
+                }
+            }
+            if (lastFrame == null || codecContext == null) {
+                return null;
+            }
+            lastFrame.quality(FF_QP2LAMBDA * toQscale(jpegQuality));
+            av_packet_unref(packet);
+            if (avcodec_send_frame(codecContext, lastFrame) < 0
+                    || avcodec_receive_packet(codecContext, packet) < 0) {
+                return null;
+            }
+            return packet.data().capacity(packet.size()).asByteBuffer();
+        } catch (Exception e) {
+            log.debug("Encode error: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 分辨率或像素格式变化时重建编码器与转换缓冲区，旧的资源在这里释放
+     * 任何一步失败都释放已创建的资源并清空尺寸，下一帧重新尝试
+     */
+    private boolean reopen(int newWidth, int newHeight, int newFormat, int newColorRange) {
+        release();
+        boolean opened = false;
+        try {
+            opened = open(newWidth, newHeight, newFormat, newColorRange);
+        } finally {
+            if (!opened) {
+                release();
+            }
+        }
+        return opened;
+    }
+
+    private boolean open(int newWidth, int newHeight, int newFormat, int newColorRange) {
+        width = newWidth;
+        height = newHeight;
+        pixelFormat = newFormat;
+        colorRange = newColorRange;
+
+        // mjpeg 需要 full range，limited range 的输入转换一次
+        boolean direct = newFormat == AV_PIX_FMT_YUVJ420P
+                || (newFormat == AV_PIX_FMT_YUV420P && newColorRange == AVCOL_RANGE_JPEG);
+        int encodeFormat = direct ? newFormat : AV_PIX_FMT_YUVJ420P;
+
+        AVCodec codec = avcodec_find_encoder(AV_CODEC_ID_MJPEG);
+        if (codec == null) {
+            log.error("MJPEG encoder not found");
+            return false;
+        }
+        codecContext = avcodec_alloc_context3(codec);
+        codecContext.width(width);
+        codecContext.height(height);
+        codecContext.pix_fmt(encodeFormat);
+        codecContext.color_range(AVCOL_RANGE_JPEG);
+        codecContext.time_base(av_make_q(1, 60));
+        codecContext.flags(codecContext.flags() | AV_CODEC_FLAG_QSCALE);
+        codecContext.thread_count(threadCount);
+        codecContext.thread_type(FF_THREAD_SLICE);
+        if (avcodec_open2(codecContext, codec, (org.bytedeco.ffmpeg.avutil.AVDictionary) null) < 0) {
+            log.error("Could not open MJPEG encoder");
+            return false;
+        }
+        packet = av_packet_alloc();
+        inputFrame = av_frame_alloc();
+
+        if (!direct) {
+            convertedFrame = av_frame_alloc();
+            convertedFrame.width(width);
+            convertedFrame.height(height);
+            convertedFrame.format(AV_PIX_FMT_YUVJ420P);
+            convertedFrame.color_range(AVCOL_RANGE_JPEG);
+            if (av_frame_get_buffer(convertedFrame, 0) < 0) {
+                log.error("Could not allocate YUVJ420P frame");
+                return false;
+            }
+            swsContext = sws_getContext(
+                    width, height, newFormat,
+                    width, height, AV_PIX_FMT_YUVJ420P,
+                    SWS_POINT, null, null, (double[]) null
+            );
+            if (swsContext == null) {
+                log.error("Could not create converter from format {}", newFormat);
+                return false;
+            }
+        }
+        log.info("Video size: {}x{}, format: {}, encoder threads: {}", width, height, newFormat, threadCount);
+        return true;
+    }
+
+    private void release() {
+        lastFrame = null;
+        if (swsContext != null) {
+            sws_freeContext(swsContext);
+            swsContext = null;
+        }
+        if (convertedFrame != null) {
+            av_frame_free(convertedFrame);
+            convertedFrame = null;
+        }
+        if (inputFrame != null) {
+            av_frame_free(inputFrame);
+            inputFrame = null;
+        }
+        if (packet != null) {
+            av_packet_free(packet);
+            packet = null;
+        }
+        if (codecContext != null) {
+            avcodec_free_context(codecContext);
+            codecContext = null;
+        }
+        width = 0;
+        height = 0;
+        pixelFormat = -1;
+        colorRange = -1;
+    }
+
+    @Override
+    public void close() {
+        try {
+            release();
+        } catch (Exception e) {
+            log.error("Error releasing jpeg encoder", e);
+        }
+    }
+}
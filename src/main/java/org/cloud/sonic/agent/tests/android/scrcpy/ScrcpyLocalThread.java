@@ -20,7 +20,7 @@ package org.cloud.sonic.agent.tests.android.scrcpy;
 import com.alibaba.fastjson.JSONObject;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
-import jakarta.websocket.Session;
+import org.cloud.sonic.agent.tests.android.AndroidScreenHub;
 import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,8 +30,6 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import static org.cloud.sonic.agent.tools.BytesTool.sendText;
-
 /**
  * 启动scrcpy等服务的线程
  */
@@ -45,7 +43,9 @@ public class ScrcpyLocalThread extends Thread {
 
     private int finalC;
 
-    private Session session;
+    private ScrcpyQuality quality;
+
+    private AndroidScreenHub hub;
 
     private String udId;
 
@@ -53,10 +53,30 @@ public class ScrcpyLocalThread extends Thread {
 
     private Semaphore isFinish = new Semaphore(0);
 
-    public ScrcpyLocalThread(IDevice iDevice, int finalC, Session session, AndroidTestTaskBootThread androidTestTaskBootThread) {
-        this.iDevice = iDevice;
+    public static final String SERVER_JAR = "/data/local/tmp/sonic-android-scrcpy.jar";
+
+    private String remoteJar;
+
+    private String serverArgs;
+
+    public ScrcpyLocalThread(IDevice iDevice, int finalC, ScrcpyQuality quality, AndroidScreenHub hub, AndroidTestTaskBootThread androidTestTaskBootThread) {
+        this(iDevice, SERVER_JAR,
+                "tunnel_forward=true video=true audio=false control=true clipboard_autosync=false " + quality.toServerArgs(),
+                androidTestTaskBootThread);
         this.finalC = finalC;
-        this.session = session;
+        this.quality = quality;
+        this.hub = hub;
+    }
+
+    /**
+     * 按给定参数启动 scrcpy 服务，如只带控制通道、不带视频的服务
+     *
+     * @param remoteJar 推送到设备上的路径，与正在运行的投屏服务分开，避免覆盖正在使用的 jar
+     */
+    public ScrcpyLocalThread(IDevice iDevice, String remoteJar, String serverArgs, AndroidTestTaskBootThread androidTestTaskBootThread) {
+        this.iDevice = iDevice;
+        this.remoteJar = remoteJar;
+        this.serverArgs = serverArgs;
         this.udId = iDevice.getSerialNumber();
         this.androidTestTaskBootThread = androidTestTaskBootThread;
 
@@ -72,8 +92,12 @@ public class ScrcpyLocalThread extends Thread {
         return finalC;
     }
 
-    public Session getSession() {
-        return session;
+    public ScrcpyQuality getQuality() {
+        return quality;
+    }
+
+    public AndroidScreenHub getHub() {
+        return hub;
     }
 
     public String getUdId() {
@@ -92,7 +116,7 @@ public class ScrcpyLocalThread extends Thread {
     public void run() {
         File scrcpyServerFile = new File("plugins/sonic-android-scrcpy.jar");
         try {
-            iDevice.pushFile(scrcpyServerFile.getAbsolutePath(), "/data/local/tmp/sonic-android-scrcpy.jar");
+            iDevice.pushFile(scrcpyServerFile.getAbsolutePath(), remoteJar);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -109,7 +133,7 @@ public class ScrcpyLocalThread extends Thread {
             
             // scrcpy 3.1 参数格式（兼容 Android 15+，SDK >= 35）
             // 也向下兼容旧版本 Android
-            String scrcpyCommand = "CLASSPATH=/data/local/tmp/sonic-android-scrcpy.jar app_process / com.genymobile.scrcpy.Server 3.1 tunnel_forward=true video=true audio=false control=false max_size=800 max_fps=60";
+            String scrcpyCommand = "CLASSPATH=" + remoteJar + " app_process / com.genymobile.scrcpy.Server 3.1 " + serverArgs;
             
             log.info("Starting scrcpy with SDK version: {}, command: {}", sdkVersion, scrcpyCommand);
             
@@ -127,7 +151,9 @@ public class ScrcpyLocalThread extends Thread {
                                 JSONObject support = new JSONObject();
                                 support.put("msg", "support");
                                 support.put("text", "scrcpy服务启动失败！");
-                                sendText(session, support.toJSONString());
+                                if (hub != null) {
+                                    hub.sendText(support.toJSONString());
+                                }
                             }
                         }
 
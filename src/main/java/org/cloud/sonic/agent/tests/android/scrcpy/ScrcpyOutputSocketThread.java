@@ -17,31 +17,23 @@
  */
 package org.cloud.sonic.agent.tests.android.scrcpy;
 
-import jakarta.websocket.Session;
-import org.bytedeco.ffmpeg.avcodec.AVCodec;
-import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
-import org.bytedeco.ffmpeg.avcodec.AVPacket;
-import org.bytedeco.ffmpeg.avutil.AVFrame;
-import org.bytedeco.ffmpeg.swscale.SwsContext;
-import org.bytedeco.javacpp.BytePointer;
+import org.cloud.sonic.agent.tests.android.AndroidScreenHub;
+import org.cloud.sonic.agent.tests.android.AndroidScreenViewer;
 import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
+import org.cloud.sonic.agent.tools.SessionOutbox;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.nio.ByteBuffer;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
-import static org.bytedeco.ffmpeg.global.avcodec.*;
-import static org.bytedeco.ffmpeg.global.avutil.*;
-import static org.bytedeco.ffmpeg.global.swscale.*;
 import static org.cloud.sonic.agent.tools.BytesTool.sendByte;
 
 /**
  * 视频流输出线程 - 支持 H.264 解码
- * 将 scrcpy 的 H.264 流解码为 JPEG 帧发送给前端
+ * 每台设备只有一个输出线程，按观看者的格式分发：
+ * jpeg 观看者收到解码后的 JPEG 帧，h264 观看者收到按 {@link ScrcpyPacket#toFrame()} 封装的原始包，由前端 WebCodecs 解码
+ * 本线程只负责解码，JPEG 编码和发送由 {@link ScrcpyFramePipeline} 的两个阶段完成，线程数按 {@link ScrcpyCpuBudget} 分配
+ * 最近的 config 包和 GOP 缓存在 {@link ScrcpyGopCache} 中，后加入的观看者不必等待下一个关键帧
  */
 public class ScrcpyOutputSocketThread extends Thread {
 
@@ -51,250 +43,188 @@ public class ScrcpyOutputSocketThread extends Thread {
 
     private ScrcpyInputSocketThread scrcpyInputSocketThread;
 
-    private Session session;
-
-    private String udId;
+    private AndroidScreenHub hub;
 
     private AndroidTestTaskBootThread androidTestTaskBootThread;
 
-    // FFmpeg 解码器相关
-    private AVCodecContext codecContext;
-    private AVPacket packet;
-    private AVFrame frame;
-    private AVFrame rgbFrame;
-    private SwsContext swsContext;
-    private boolean decoderInitialized = false;
-    private int width = 0;
-    private int height = 0;
+    private static final long REPLAY_CHECK_INTERVAL_MS = 16;
+
+    private static final long KEY_FRAME_REFRESH_MS = 3000;
+
+    private static final long KEY_FRAME_REQUEST_INTERVAL_MS = 1000;
+
+    private final ScrcpyGopCache gopCache = new ScrcpyGopCache();
+
+    // 没有 jpeg 观看者时不解码，之后从下一个关键帧（或缓存的 GOP）重新开始
+    private boolean waitKeyFrame = false;
+
+    private long lastKeyFrameRequest = 0;
+
+    private static final long ADAPT_INTERVAL_MS = 500;
+
+    private long lastAdapt = 0;
 
     public ScrcpyOutputSocketThread(
             ScrcpyInputSocketThread scrcpyInputSocketThread,
-            Session session
+            AndroidScreenHub hub
     ) {
         this.scrcpyInputSocketThread = scrcpyInputSocketThread;
-        this.session = session;
+        this.hub = hub;
         this.androidTestTaskBootThread = scrcpyInputSocketThread.getAndroidTestTaskBootThread();
         this.setDaemon(true);
         this.setName(androidTestTaskBootThread.formatThreadName(ANDROID_OUTPUT_SOCKET_PRE));
     }
 
-    /**
-     * 初始化 H.264 解码器
-     */
-    private boolean initDecoder() {
-        try {
-            AVCodec codec = avcodec_find_decoder(AV_CODEC_ID_H264);
-            if (codec == null) {
-                log.error("H.264 decoder not found");
-                return false;
-            }
-
-            codecContext = avcodec_alloc_context3(codec);
-            if (codecContext == null) {
-                log.error("Could not allocate codec context");
-                return false;
-            }
-
-            // 设置解码参数
-            codecContext.flags(codecContext.flags() | AV_CODEC_FLAG_LOW_DELAY);
-            codecContext.flags2(codecContext.flags2() | AV_CODEC_FLAG2_FAST);
-
-            if (avcodec_open2(codecContext, codec, (org.bytedeco.ffmpeg.avutil.AVDictionary) null) < 0) {
-                log.error("Could not open codec");
-                return false;
-            }
-
-            packet = av_packet_alloc();
-            frame = av_frame_alloc();
-            rgbFrame = av_frame_alloc();
+    @Override
+    public void run() {
+        log.info("ScrcpyOutputSocketThread started");
 
-            if (packet == null || frame == null || rgbFrame == null) {
-                log.error("Could not allocate frame or packet");
-                return false;
+        // 初始化解码器，缓冲区在整个流的生命周期内复用
+        ScrcpyCpuBudget.Lease lease = ScrcpyCpuBudget.acquire();
+        ScrcpyFrameDecoder decoder = new ScrcpyFrameDecoder();
+        ScrcpyFramePipeline pipeline = null;
+        boolean decoderOk = false;
+        try {
+            decoderOk = decoder.init(lease.getDecodeThreads());
+            if (decoderOk) {
+                pipeline = new ScrcpyFramePipeline(hub::sendJpeg, getName(), lease.getEncodeThreads(),
+                        hub.getFrameChange(), hub::getJpegDelay);
+                pipeline.start();
             }
-
-            decoderInitialized = true;
-            log.info("H.264 decoder initialized successfully");
-            return true;
-        } catch (Exception e) {
-            log.error("Failed to initialize H.264 decoder", e);
-            return false;
+        } catch (Throwable e) {
+            log.error("Failed to initialize decoder: {}", e.getMessage(), e);
+            decoderOk = false;
         }
-    }
 
-    /**
-     * 解码 H.264 NAL 单元并转换为 JPEG
-     */
-    private byte[] decodeToJpeg(byte[] nalUnit) {
-        if (!decoderInitialized) {
-            return null;
+        if (!decoderOk) {
+            log.error("FFmpeg decoder initialization failed! Video streaming will not work.");
         }
 
+        int frameCount = 0;
         try {
-            // 设置 packet 数据
-            BytePointer data = new BytePointer(nalUnit);
-            packet.data(data);
-            packet.size(nalUnit.length);
-
-            // 发送 packet 到解码器
-            int ret = avcodec_send_packet(codecContext, packet);
-            if (ret < 0) {
-                data.close();
-                return null;
-            }
+            while (scrcpyInputSocketThread.isAlive()) {
+                ScrcpyPacket packet;
+                try {
+                    // 画面静止时设备不发包，定时醒来处理新观看者的补发
+                    packet = scrcpyInputSocketThread.getDataQueue().poll(REPLAY_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    log.debug("scrcpy was interrupted：", e);
+                    break;
+                }
+                if (scrcpyInputSocketThread.getDataQueue().isSkipping()) {
+                    // 跟不上时队列丢包直到下一个关键帧，主动请求，不等设备的下一个周期
+                    requestKeyFrame();
+                }
+                replay(decoder, pipeline, packet, frameCount > 0);
+                adapt(pipeline);
+                if (packet == null) {
+                    continue;
+                }
+                frameCount++;
+                gopCache.add(packet);
 
-            // 接收解码后的帧
-            ret = avcodec_receive_frame(codecContext, frame);
-            data.close();
-            
-            if (ret < 0) {
-                return null; // 需要更多数据或出错
-            }
+                hub.sendPacket(packet);
 
-            // 更新尺寸
-            if (width != frame.width() || height != frame.height()) {
-                width = frame.width();
-                height = frame.height();
-                
-                // 重新创建 SwsContext
-                if (swsContext != null) {
-                    sws_freeContext(swsContext);
+                if (!packet.isConfig()) {
+                    if (!hub.hasJpegViewers()) {
+                        waitKeyFrame = true;
+                        continue;
+                    }
+                    if (waitKeyFrame && !packet.isKeyFrame()) {
+                        continue;
+                    }
+                    waitKeyFrame = false;
                 }
-                swsContext = sws_getContext(
-                        width, height, frame.format(),
-                        width, height, AV_PIX_FMT_BGR24,
-                        SWS_BILINEAR, null, null, (double[]) null
-                );
-                
-                // 分配 RGB 帧缓冲区
-                int size = av_image_get_buffer_size(AV_PIX_FMT_BGR24, width, height, 1);
-                BytePointer buffer = new BytePointer(av_malloc(size));
-                av_image_fill_arrays(rgbFrame.data(), rgbFrame.linesize(), buffer, AV_PIX_FMT_BGR24, width, height, 1);
-                
-                log.info("Video size: {}x{}", width, height);
-            }
 
-            if (swsContext == null) {
-                return null;
+                if (decoderOk) {
+                    // config 包只更新解码器参数，不产生画面
+                    if (decoder.decode(packet.getData())) {
+                        pipeline.submit(decoder.getFrame());
+                    } else if (frameCount <= 5 && !packet.isConfig()) {
+                        log.warn("Failed to decode frame {}", frameCount);
+                    }
+                }
             }
-
-            // 转换为 RGB
-            sws_scale(swsContext, frame.data(), frame.linesize(), 0, height, rgbFrame.data(), rgbFrame.linesize());
-
-            // 转换为 BufferedImage
-            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-            byte[] imageData = ((java.awt.image.DataBufferByte) image.getRaster().getDataBuffer()).getData();
-            
-            BytePointer rgbData = rgbFrame.data(0);
-            int linesize = rgbFrame.linesize(0);
-            
-            for (int y = 0; y < height; y++) {
-                rgbData.position(y * linesize);
-                rgbData.get(imageData, y * width * 3, width * 3);
+        } finally {
+            log.info("ScrcpyOutputSocketThread exiting, processed {} packets", frameCount);
+            gopCache.clear();
+            if (pipeline != null) {
+                pipeline.close();
             }
-            rgbData.position(0);
-
-            // 转换为 JPEG
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(image, "JPEG", baos);
-            return baos.toByteArray();
-
-        } catch (Exception e) {
-            log.debug("Decode error: {}", e.getMessage());
-            return null;
+            decoder.close();
+            lease.close();
         }
     }
 
     /**
-     * 释放解码器资源
+     * 给新加入（或切换格式）的观看者补发当前画面，在处理 next 之前调用，保证与实时包的顺序一致
+     * h264 观看者收到缓存的 config + GOP；jpeg 观看者收到解码器当前画面重新编码的 JPEG，解码器空闲时先用缓存的 GOP 追上
+     * 重新编码的画面经过流水线发给所有 jpeg 观看者，对已有的观看者只是重复一帧
      */
-    private void releaseDecoder() {
-        try {
-            if (swsContext != null) {
-                sws_freeContext(swsContext);
-                swsContext = null;
-            }
-            if (rgbFrame != null) {
-                av_frame_free(rgbFrame);
-                rgbFrame = null;
+    private void replay(ScrcpyFrameDecoder decoder, ScrcpyFramePipeline pipeline, ScrcpyPacket next, boolean streaming) {
+        boolean nextStartsGop = next != null && (next.isConfig() || next.isKeyFrame());
+        for (AndroidScreenViewer viewer : hub.getViewers()) {
+            if (!viewer.takeReplay()) {
+                continue;
             }
-            if (frame != null) {
-                av_frame_free(frame);
-                frame = null;
+            if (!gopCache.hasKeyFrame()) {
+                // 还没有可用的关键帧，等待下一个（必要时主动请求）
+                if (streaming && !nextStartsGop) {
+                    requestKeyFrame();
+                }
+                continue;
             }
-            if (packet != null) {
-                av_packet_free(packet);
-                packet = null;
+            if (gopCache.getKeyFrameAge() > KEY_FRAME_REFRESH_MS) {
+                // 缓存的 GOP 已经很长，请求新的关键帧，让之后加入的观看者重放得更少
+                requestKeyFrame();
             }
-            if (codecContext != null) {
-                avcodec_free_context(codecContext);
-                codecContext = null;
+            if (viewer.isPassthrough()) {
+                sendByte(viewer.getSession(), gopCache.getConfig().toFrame(), SessionOutbox.Policy.CONTROL);
+                if (!nextStartsGop) {
+                    for (ScrcpyPacket cached : gopCache.getGop()) {
+                        sendByte(viewer.getSession(), cached.toFrame(), SessionOutbox.Policy.CONTROL);
+                    }
+                }
+            } else if (pipeline != null) {
+                if (waitKeyFrame) {
+                    decoder.decode(gopCache.getConfig().getData());
+                    for (ScrcpyPacket cached : gopCache.getGop()) {
+                        decoder.decode(cached.getData());
+                    }
+                    waitKeyFrame = false;
+                }
+                pipeline.submit(decoder.getFrame());
             }
-            decoderInitialized = false;
-            log.info("H.264 decoder released");
-        } catch (Exception e) {
-            log.error("Error releasing decoder", e);
         }
     }
 
-    @Override
-    public void run() {
-        log.info("ScrcpyOutputSocketThread started");
-        
-        // 初始化解码器
-        boolean decoderOk = false;
-        try {
-            decoderOk = initDecoder();
-        } catch (Throwable e) {
-            log.error("Failed to initialize decoder: {}", e.getMessage(), e);
+    /**
+     * 按观看者的链路状况调整画质：JPEG 质量立即生效，设备端参数由 hub 限频重启
+     */
+    private void adapt(ScrcpyFramePipeline pipeline) {
+        long now = System.currentTimeMillis();
+        if (now - lastAdapt < ADAPT_INTERVAL_MS) {
+            return;
         }
-        
-        if (!decoderOk) {
-            log.error("FFmpeg decoder initialization failed! Video streaming will not work.");
+        lastAdapt = now;
+        ScrcpyQuality quality = hub.adapt();
+        if (pipeline != null && pipeline.getJpegQuality() != quality.getJpegQuality()) {
+            pipeline.setJpegQuality(quality.getJpegQuality());
         }
+    }
 
-        int frameCount = 0;
-        try {
-            while (scrcpyInputSocketThread.isAlive()) {
-                BlockingQueue<byte[]> dataQueue = scrcpyInputSocketThread.getDataQueue();
-                byte[] buffer = new byte[0];
-                try {
-                    buffer = dataQueue.take();
-                } catch (InterruptedException e) {
-                    log.debug("scrcpy was interrupted：", e);
-                    break;
-                }
-
-                frameCount++;
-                if (frameCount <= 5) {
-                    log.info("ScrcpyOutputSocketThread processing frame {}, size={}, decoderInitialized={}", 
-                        frameCount, buffer.length, decoderInitialized);
-                }
-
-                if (decoderInitialized) {
-                    // 解码 H.264 为 JPEG
-                    byte[] jpeg = decodeToJpeg(buffer);
-                    if (jpeg != null) {
-                        sendByte(session, jpeg);
-                        if (frameCount <= 5) {
-                            log.info("Sent JPEG frame {}, size={}", frameCount, jpeg.length);
-                        }
-                    } else {
-                        if (frameCount <= 5) {
-                            log.warn("Failed to decode frame {}", frameCount);
-                        }
-                    }
-                } else {
-                    // 回退：直接发送原始数据（前端无法显示）
-                    sendByte(session, buffer);
-                }
-            }
-        } finally {
-            log.info("ScrcpyOutputSocketThread exiting, processed {} frames", frameCount);
-            releaseDecoder();
+    private void requestKeyFrame() {
+        long now = System.currentTimeMillis();
+        if (now - lastKeyFrameRequest < KEY_FRAME_REQUEST_INTERVAL_MS) {
+            return;
+        }
+        ScrcpyControl control = scrcpyInputSocketThread.getControl();
+        if (control != null && control.resetVideo()) {
+            lastKeyFrameRequest = now;
+            log.info("Requested a new key frame from scrcpy");
         }
     }
-    
+
     /**
      * 使用 screencap 命令截屏作为回退方案
      * 帧率较低 (~5 FPS) 但比无画面好
@@ -325,7 +255,7 @@ public class ScrcpyOutputSocketThread extends Thread {
                 // 使用 screencap 获取截图
                 byte[] pngData = captureScreen(iDevice);
                 if (pngData != null && pngData.length > 0) {
-                    sendByte(session, pngData);
+                    hub.sendJpeg(pngData);
                     frameCount++;
                     if (frameCount <= 3) {
                         log.info("Sent screencap frame {}, size={}", frameCount, pngData.length);
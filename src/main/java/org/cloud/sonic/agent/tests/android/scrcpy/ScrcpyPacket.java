@@ -0,0 +1,90 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * scrcpy 视频包
+ * 对应 scrcpy 协议中的一个 frame header + packet，pts 已去掉最高两位的 flags
+ */
+public class ScrcpyPacket {
+
+    /**
+     * 透传帧头：flags(1) + pts(8)，pts 为 big-endian
+     */
+    public static final int FRAME_HEADER_SIZE = 9;
+
+    public static final int FLAG_CONFIG = 0x01;
+
+    public static final int FLAG_KEY_FRAME = 0x02;
+
+    private final long pts;
+
+    private final boolean config;
+
+    private final boolean keyFrame;
+
+    private final byte[] data;
+
+    public ScrcpyPacket(long pts, boolean config, boolean keyFrame, byte[] data) {
+        this.pts = pts;
+        this.config = config;
+        this.keyFrame = keyFrame;
+        this.data = data;
+    }
+
+    public long getPts() {
+        return pts;
+    }
+
+    public boolean isConfig() {
+        return config;
+    }
+
+    public boolean isKeyFrame() {
+        return keyFrame;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getFlags() {
+        int flags = 0;
+        if (config) {
+            flags |= FLAG_CONFIG;
+        }
+        if (keyFrame) {
+            flags |= FLAG_KEY_FRAME;
+        }
+        return flags;
+    }
+
+    /**
+     * 透传模式下发给前端的二进制帧，前端按帧头拆出 pts 与 flags 后直接交给 WebCodecs 解码
+     */
+    public ByteBuffer toFrame() {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + data.length);
+        frame.put((byte) getFlags());
+        frame.putLong(pts);
+        frame.put(data);
+        frame.flip();
+        return frame;
+    }
+}
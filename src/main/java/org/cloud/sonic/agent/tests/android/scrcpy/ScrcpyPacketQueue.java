@@ -0,0 +1,245 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * scrcpy 读取线程与解码/发送线程之间的有界队列
+ * 消费端跟不上时按 {@link DropPolicy} 丢包，保证画面延迟有上限
+ */
+public class ScrcpyPacketQueue {
+
+    public static final int DEFAULT_CAPACITY = 20;
+
+    public enum DropPolicy {
+        /**
+         * 队列满时丢掉最新关键帧之前的所有包（config 包保留），
+         * 队列里没有关键帧时清空队列并丢弃后续包，直到下一个关键帧到达
+         */
+        SKIP_TO_KEY_FRAME,
+        /**
+         * 队列满时阻塞生产者，不丢包
+         */
+        BLOCK
+    }
+
+    private final ArrayDeque<ScrcpyPacket> queue;
+
+    private final int capacity;
+
+    private final DropPolicy dropPolicy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * 正在等待下一个关键帧，消费端读取后可以主动请求关键帧
+     */
+    private volatile boolean skipping = false;
+
+    private final AtomicLong received = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong skips = new AtomicLong();
+
+    private volatile int maxDepth = 0;
+
+    public ScrcpyPacketQueue() {
+        this(DEFAULT_CAPACITY, DropPolicy.SKIP_TO_KEY_FRAME);
+    }
+
+    public ScrcpyPacketQueue(int capacity, DropPolicy dropPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.dropPolicy = dropPolicy;
+        this.queue = new ArrayDeque<>(capacity + 4);
+    }
+
+    public void put(ScrcpyPacket packet) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            received.incrementAndGet();
+            // config 包（SPS/PPS）很小且解码必需，总是保留
+            if (packet.isConfig()) {
+                enqueue(packet);
+                return;
+            }
+            if (dropPolicy == DropPolicy.BLOCK) {
+                while (queue.size() >= capacity) {
+                    notFull.await();
+                }
+                enqueue(packet);
+                return;
+            }
+            if (skipping) {
+                if (!packet.isKeyFrame()) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                skipping = false;
+            }
+            if (queue.size() >= capacity) {
+                skips.incrementAndGet();
+                if (packet.isKeyFrame()) {
+                    dropNonConfig(queue.size());
+                } else if (!dropBeforeLastKeyFrame()) {
+                    dropNonConfig(queue.size());
+                    skipping = true;
+                    dropped.incrementAndGet();
+                    return;
+                }
+            }
+            enqueue(packet);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ScrcpyPacket take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (queue.isEmpty()) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ScrcpyPacket poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (queue.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(ScrcpyPacket packet) {
+        queue.addLast(packet);
+        if (queue.size() > maxDepth) {
+            maxDepth = queue.size();
+        }
+        notEmpty.signal();
+    }
+
+    private ScrcpyPacket dequeue() {
+        ScrcpyPacket packet = queue.pollFirst();
+        notFull.signal();
+        return packet;
+    }
+
+    /**
+     * 丢掉队列中最后一个关键帧之前的非 config 包
+     *
+     * @return 队列中是否存在关键帧且腾出了空间
+     */
+    private boolean dropBeforeLastKeyFrame() {
+        int index = 0;
+        int lastKeyFrame = -1;
+        for (ScrcpyPacket p : queue) {
+            if (p.isKeyFrame()) {
+                lastKeyFrame = index;
+            }
+            index++;
+        }
+        if (lastKeyFrame <= 0) {
+            return false;
+        }
+        return dropNonConfig(lastKeyFrame) > 0;
+    }
+
+    /**
+     * 丢掉队首 count 个包中的非 config 包
+     */
+    private int dropNonConfig(int count) {
+        int removed = 0;
+        Iterator<ScrcpyPacket> iterator = queue.iterator();
+        for (int i = 0; i < count && iterator.hasNext(); i++) {
+            if (!iterator.next().isConfig()) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        dropped.addAndGet(removed);
+        return removed;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public DropPolicy getDropPolicy() {
+        return dropPolicy;
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * 因消费端跟不上而触发跳帧的次数
+     */
+    public long getSkips() {
+        return skips.get();
+    }
+
+    /**
+     * 是否正在丢包等待下一个关键帧
+     */
+    public boolean isSkipping() {
+        return skipping;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+/**
+ * scrcpy 投屏的画质档位，从高到低排列
+ * 设备端参数（分辨率、帧率、码率）需要重启 scrcpy 服务才能生效，agent 端的 JPEG 质量可以逐帧调整
+ */
+public enum ScrcpyQuality {
+    HIGH(800, 60, 8_000_000, 0.75f),
+    MEDIUM(720, 30, 4_000_000, 0.6f),
+    LOW(600, 20, 2_000_000, 0.45f),
+    MINIMUM(480, 12, 1_000_000, 0.3f);
+
+    private final int maxSize;
+    private final int maxFps;
+    private final int videoBitRate;
+    private final float jpegQuality;
+
+    ScrcpyQuality(int maxSize, int maxFps, int videoBitRate, float jpegQuality) {
+        this.maxSize = maxSize;
+        this.maxFps = maxFps;
+        this.videoBitRate = videoBitRate;
+        this.jpegQuality = jpegQuality;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    public int getVideoBitRate() {
+        return videoBitRate;
+    }
+
+    public float getJpegQuality() {
+        return jpegQuality;
+    }
+
+    /**
+     * scrcpy server 的启动参数
+     */
+    public String toServerArgs() {
+        return String.format("max_size=%d max_fps=%d video_bit_rate=%d", maxSize, maxFps, videoBitRate);
+    }
+
+    public ScrcpyQuality lower() {
+        ScrcpyQuality[] values = values();
+        return values[Math.min(ordinal() + 1, values.length - 1)];
+    }
+
+    public ScrcpyQuality higher() {
+        return values()[Math.max(ordinal() - 1, 0)];
+    }
+
+    public boolean isLowerThan(ScrcpyQuality other) {
+        return ordinal() > other.ordinal();
+    }
+
+    /**
+     * 前端的 pic 设置作为自适应调整的上限
+     * fixed（minicap 固定分辨率）与原来的 minicap 限帧一致，按 middle 处理
+     */
+    public static ScrcpyQuality fromPic(String pic) {
+        if (pic == null) {
+            return HIGH;
+        }
+        return switch (pic) {
+            case "low" -> LOW;
+            case "middle", "fixed" -> MEDIUM;
+            default -> HIGH;
+        };
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.javacpp.BytePointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Arrays;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avformat.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * scrcpy 录像，把设备端编码好的 H.264 包直接封装为 fragmented MP4，不解码也不重新编码
+ * 每个关键帧开始一个新的 fragment，进程异常退出时已写入的部分仍然可以播放
+ */
+public class ScrcpyRecorder implements Closeable {
+
+    private final Logger log = LoggerFactory.getLogger(ScrcpyRecorder.class);
+
+    private static final String MOV_FLAGS = "frag_keyframe+empty_moov+default_base_moof";
+
+    /**
+     * 设备端服务重启后 pts 从 0 开始，接在上一帧之后的间隔
+     */
+    private static final long RESTART_GAP_US = 16_666;
+
+    private static final byte[] PACKET_PADDING = new byte[AV_INPUT_BUFFER_PADDING_SIZE];
+
+    private final File file;
+
+    private AVFormatContext formatContext;
+
+    private AVStream stream;
+
+    private AVPacket packet;
+
+    /**
+     * scrcpy 的 pts 单位为微秒
+     */
+    private AVRational timeBase;
+
+    private BytePointer packetBuffer;
+
+    private int packetCapacity = 0;
+
+    /**
+     * 最近一次收到的 config 包（SPS + PPS），写文件头时作为 extradata
+     */
+    private byte[] config;
+
+    /**
+     * 写入文件头之后 config 发生变化（旋转、调整分辨率），随下一个关键帧带入码流
+     */
+    private boolean configChanged = false;
+
+    private long ptsOffset = 0;
+
+    private long lastPts = -1;
+
+    private long frames = 0;
+
+    private boolean failed = false;
+
+    private boolean closed = false;
+
+    public ScrcpyRecorder(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * 写入一个 scrcpy 包，在收到 config 和关键帧之前的包会被丢弃
+     *
+     * @param width  当前视频宽度，写文件头时使用
+     * @param height 当前视频高度，写文件头时使用
+     */
+    public synchronized void write(ScrcpyPacket scrcpyPacket, int width, int height) {
+        if (failed || closed) {
+            return;
+        }
+        if (scrcpyPacket.isConfig()) {
+            byte[] data = scrcpyPacket.getData();
+            if (formatContext != null && !Arrays.equals(data, config)) {
+                configChanged = true;
+            }
+            config = data;
+            return;
+        }
+        if (formatContext == null) {
+            if (config == null || !scrcpyPacket.isKeyFrame()) {
+                return;
+            }
+            if (!open(width, height)) {
+                failed = true;
+                close();
+                return;
+            }
+        }
+        boolean inBandConfig = configChanged && scrcpyPacket.isKeyFrame();
+        fillPacket(inBandConfig ? config : null, scrcpyPacket.getData());
+        if (inBandConfig) {
+            configChanged = false;
+        }
+        long pts = scrcpyPacket.getPts() + ptsOffset;
+        if (pts <= lastPts) {
+            ptsOffset = lastPts + RESTART_GAP_US - scrcpyPacket.getPts();
+            pts = lastPts + RESTART_GAP_US;
+        }
+        lastPts = pts;
+        packet.pts(pts);
+        packet.dts(pts);
+        packet.stream_index(0);
+        packet.flags(scrcpyPacket.isKeyFrame() ? AV_PKT_FLAG_KEY : 0);
+        av_packet_rescale_ts(packet, timeBase, stream.time_base());
+        int ret = av_write_frame(formatContext, packet);
+        if (ret < 0) {
+            log.error("Failed to write record packet: {}", ret);
+            failed = true;
+            close();
+            return;
+        }
+        frames++;
+    }
+
+    private boolean open(int width, int height) {
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (!parent.exists()) {
+                parent.mkdirs();
+            }
+            timeBase = av_make_q(1, 1000000);
+            formatContext = new AVFormatContext(null);
+            if (avformat_alloc_output_context2(formatContext, null, "mp4", file.getPath()) < 0) {
+                log.error("Failed to create mp4 muxer");
+                formatContext = null;
+                return false;
+            }
+            stream = avformat_new_stream(formatContext, null);
+            AVCodecParameters codecpar = stream.codecpar();
+            codecpar.codec_type(AVMEDIA_TYPE_VIDEO);
+            codecpar.codec_id(AV_CODEC_ID_H264);
+            codecpar.width(width);
+            codecpar.height(height);
+            // extradata 为 Annex B 格式，由 mp4 muxer 转换为 avcC
+            BytePointer extradata = new BytePointer(av_mallocz(config.length + AV_INPUT_BUFFER_PADDING_SIZE))
+                    .capacity(config.length + AV_INPUT_BUFFER_PADDING_SIZE);
+            extradata.put(config, 0, config.length);
+            codecpar.extradata(extradata);
+            codecpar.extradata_size(config.length);
+            stream.time_base(timeBase);
+
+            AVIOContext pb = new AVIOContext(null);
+            if (avio_open(pb, file.getPath(), AVIO_FLAG_WRITE) < 0) {
+                log.error("Failed to open record file: {}", file.getPath());
+                return false;
+            }
+            formatContext.pb(pb);
+            AVDictionary options = new AVDictionary(null);
+            av_dict_set(options, "movflags", MOV_FLAGS, 0);
+            int ret = avformat_write_header(formatContext, options);
+            av_dict_free(options);
+            if (ret < 0) {
+                log.error("Failed to write record header: {}", ret);
+                return false;
+            }
+            packet = av_packet_alloc();
+            log.info("Recording {}x{} to {}", width, height, file.getPath());
+            return true;
+        } catch (Throwable e) {
+            // 当前平台没有对应的 FFmpeg 本地库
+            log.error("Failed to start recording: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private void fillPacket(byte[] prefix, byte[] data) {
+        int prefixLength = prefix == null ? 0 : prefix.length;
+        int size = prefixLength + data.length;
+        if (packetCapacity < size) {
+            if (packetBuffer != null) {
+                av_free(packetBuffer);
+            }
+            packetCapacity = Math.max(size, packetCapacity * 2);
+            packetBuffer = new BytePointer(av_malloc(packetCapacity + AV_INPUT_BUFFER_PADDING_SIZE))
+                    .capacity(packetCapacity + AV_INPUT_BUFFER_PADDING_SIZE);
+        }
+        if (prefix != null) {
+            packetBuffer.position(0).put(prefix, 0, prefixLength);
+        }
+        packetBuffer.position(prefixLength).put(data, 0, data.length);
+        packetBuffer.position(size).put(PACKET_PADDING, 0, PACKET_PADDING.length);
+        packetBuffer.position(0);
+        packet.data(packetBuffer);
+        packet.size(size);
+    }
+
+    /**
+     * 写入文件尾并释放 native 资源，可以重复调用
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (formatContext != null) {
+                if (packet != null) {
+                    av_write_trailer(formatContext);
+                }
+                if (formatContext.pb() != null) {
+                    avio_close(formatContext.pb());
+                    formatContext.pb(null);
+                }
+                avformat_free_context(formatContext);
+                formatContext = null;
+                stream = null;
+            }
+            if (packet != null) {
+                av_packet_free(packet);
+                packet = null;
+            }
+            if (packetBuffer != null) {
+                av_free(packetBuffer);
+                packetBuffer = null;
+                packetCapacity = 0;
+            }
+        } catch (Throwable e) {
+            log.error("Failed to close recording: {}", e.getMessage());
+        }
+        log.info("Recorded {} frames to {}", frames, file.getPath());
+    }
+}
@@ -18,15 +18,13 @@
 package org.cloud.sonic.agent.tests.android.scrcpy;
 
 import com.android.ddmlib.IDevice;
-import jakarta.websocket.Session;
 import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
 import org.cloud.sonic.agent.tests.TaskManager;
+import org.cloud.sonic.agent.tests.android.AndroidScreenHub;
 import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.LinkedBlockingQueue;
-
 import static org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread.ANDROID_TEST_TASK_BOOT_PRE;
 
 public class ScrcpyServerUtil {
@@ -35,15 +33,21 @@ public class ScrcpyServerUtil {
     public Thread start(
             String udId,
             int tor,
-            Session session
+            ScrcpyQuality quality,
+            AndroidScreenHub hub
     ) {
-        return start(udId, tor, session, new AndroidTestTaskBootThread().setUdId(udId));
+        return start(udId, tor, quality, hub, new AndroidTestTaskBootThread().setUdId(udId));
     }
 
+    /**
+     * @param quality 设备端的分辨率、帧率和码率
+     * @param hub     设备的投屏中心，解码后的 JPEG 和透传的 H.264 包都经由它分发给各个观看者
+     */
     public Thread start(
             String udId,
             int tor,
-            Session session,
+            ScrcpyQuality quality,
+            AndroidScreenHub hub,
             AndroidTestTaskBootThread androidTestTaskBootThread
     ) {
         IDevice iDevice = AndroidDeviceBridgeTool.getIDeviceByUdId(udId);
@@ -55,7 +59,7 @@ public class ScrcpyServerUtil {
             s = tor;
         }
         // 启动scrcpy服务
-        ScrcpyLocalThread scrcpyThread = new ScrcpyLocalThread(iDevice, s, session, androidTestTaskBootThread);
+        ScrcpyLocalThread scrcpyThread = new ScrcpyLocalThread(iDevice, s, quality, hub, androidTestTaskBootThread);
         TaskManager.startChildThread(key, scrcpyThread);
 
         // 等待启动
@@ -73,9 +77,9 @@ public class ScrcpyServerUtil {
             }
         }
         // 启动输入流
-        ScrcpyInputSocketThread scrcpyInputSocketThread = new ScrcpyInputSocketThread(iDevice, new LinkedBlockingQueue<>(), scrcpyThread, session);
+        ScrcpyInputSocketThread scrcpyInputSocketThread = new ScrcpyInputSocketThread(iDevice, new ScrcpyPacketQueue(), scrcpyThread, hub);
         // 启动输出流
-        ScrcpyOutputSocketThread scrcpyOutputSocketThread = new ScrcpyOutputSocketThread(scrcpyInputSocketThread, session);
+        ScrcpyOutputSocketThread scrcpyOutputSocketThread = new ScrcpyOutputSocketThread(scrcpyInputSocketThread, hub);
         TaskManager.startChildThread(key, scrcpyInputSocketThread, scrcpyOutputSocketThread);
         return scrcpyThread; // server线程
     }
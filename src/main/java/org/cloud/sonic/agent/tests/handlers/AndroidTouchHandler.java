@@ -24,6 +24,9 @@ import org.cloud.sonic.agent.bridge.android.AndroidDeviceBridgeTool;
 import org.cloud.sonic.agent.common.enums.AndroidKey;
 import org.cloud.sonic.agent.common.maps.AndroidDeviceManagerMap;
 import org.cloud.sonic.agent.common.maps.HandlerMap;
+import org.cloud.sonic.agent.common.maps.ScrcpyControlMap;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyControl;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyControlUtil;
 import org.cloud.sonic.agent.tools.PortTool;
 import org.cloud.sonic.driver.common.tool.SonicRespException;
 
@@ -50,7 +53,8 @@ public class AndroidTouchHandler {
     public enum TouchMode {
         SONIC_APK,
         ADB,
-        APPIUM_UIAUTOMATOR2_SERVER;
+        APPIUM_UIAUTOMATOR2_SERVER,
+        SCRCPY;
     }
 
     public static void switchTouchMode(IDevice iDevice, TouchMode mode) {
@@ -73,6 +77,12 @@ public class AndroidTouchHandler {
                 }
                 writeToOutputStream(iDevice, "up\n");
             }
+            case SCRCPY -> {
+                if (injectTouch(iDevice, ScrcpyControl.ACTION_DOWN, x, y)) {
+                    sleep(50);
+                    injectTouch(iDevice, ScrcpyControl.ACTION_UP, x, y);
+                }
+            }
             case ADB -> AndroidDeviceBridgeTool.executeCommand(iDevice, String.format("input tap %d %d", x, y));
             case APPIUM_UIAUTOMATOR2_SERVER -> {
                 AndroidStepHandler curStepHandler = HandlerMap.getAndroidMap().get(iDevice.getSerialNumber());
@@ -96,6 +106,12 @@ public class AndroidTouchHandler {
                 }
                 writeToOutputStream(iDevice, "up\n");
             }
+            case SCRCPY -> {
+                if (injectTouch(iDevice, ScrcpyControl.ACTION_DOWN, x, y)) {
+                    sleep(time);
+                    injectTouch(iDevice, ScrcpyControl.ACTION_UP, x, y);
+                }
+            }
             case ADB -> AndroidDeviceBridgeTool.executeCommand(iDevice, String.format("input swipe %d %d %d %d %d", x, y, x, y, time));
             case APPIUM_UIAUTOMATOR2_SERVER -> {
                 AndroidStepHandler curStepHandler = HandlerMap.getAndroidMap().get(iDevice.getSerialNumber());
@@ -155,6 +171,7 @@ public class AndroidTouchHandler {
                 }
                 writeToOutputStream(iDevice, "up\n");
             }
+            case SCRCPY -> scrcpyMove(iDevice, x1, y1, x2, y2, 0, swipeDuration);
             case ADB -> AndroidDeviceBridgeTool.executeCommand(iDevice, String.format("input swipe %d %d %d %d %d",
                     x1, y1, x2, y2, swipeDuration));
             case APPIUM_UIAUTOMATOR2_SERVER -> {
@@ -225,7 +242,7 @@ public class AndroidTouchHandler {
                 }
                 writeToOutputStream(iDevice, "up\n");
             }
-
+            case SCRCPY -> scrcpyMove(iDevice, x1, y1, x2, y2, 1000, swipeDuration);
         }
     }
 
@@ -237,6 +254,14 @@ public class AndroidTouchHandler {
                 int[] re1 = transferWithRotation(iDevice, x1, y1);
                 writeToOutputStream(iDevice, String.format("%s %d %d\n", motionEventType.toLowerCase(), re1[0], re1[1]));
             }
+            case SCRCPY -> {
+                switch (motionEventType.toUpperCase()) {
+                    case "DOWN" -> injectTouch(iDevice, ScrcpyControl.ACTION_DOWN, x1, y1);
+                    case "MOVE" -> injectTouch(iDevice, ScrcpyControl.ACTION_MOVE, x1, y1);
+                    case "UP" -> injectTouch(iDevice, ScrcpyControl.ACTION_UP, x1, y1);
+                    default -> log.info("unsupported motion event: {}", motionEventType);
+                }
+            }
             case APPIUM_UIAUTOMATOR2_SERVER -> {
                 AndroidStepHandler curStepHandler = HandlerMap.getAndroidMap().get(iDevice.getSerialNumber());
                 if (curStepHandler != null && curStepHandler.getAndroidDriver() != null) {
@@ -246,6 +271,120 @@ public class AndroidTouchHandler {
         }
     }
 
+    /**
+     * 按键，scrcpy 模式下走控制通道，其余模式使用 adb input keyevent
+     */
+    public static void pressKey(IDevice iDevice, int keyCode) {
+        if (getTouchMode(iDevice) == TouchMode.SCRCPY) {
+            ScrcpyControl control = getScrcpyControl(iDevice);
+            if (control != null && control.pressKey(keyCode)) {
+                return;
+            }
+            onScrcpyFailed(iDevice);
+        }
+        AndroidDeviceBridgeTool.pressKey(iDevice, keyCode);
+    }
+
+    /**
+     * scrcpy 模式下按下、按固定间隔插值移动、抬起，hold 为按下后开始移动前的停留时间
+     */
+    private static void scrcpyMove(IDevice iDevice, int x1, int y1, int x2, int y2, int hold, int swipeDuration) {
+        if (!injectTouch(iDevice, ScrcpyControl.ACTION_DOWN, x1, y1)) {
+            return;
+        }
+        if (hold > 0) {
+            sleep(hold);
+        }
+        long startTime = System.currentTimeMillis();
+        while (true) {
+            float timeProgress = (System.currentTimeMillis() - startTime) / (float) swipeDuration;
+            if (timeProgress >= 1.0f) {
+                break;
+            }
+            int currentX = (int) (x1 + (x2 - x1) * timeProgress);
+            int currentY = (int) (y1 + (y2 - y1) * timeProgress);
+            if (!injectTouch(iDevice, ScrcpyControl.ACTION_MOVE, currentX, currentY)) {
+                return;
+            }
+            sleep(5);
+        }
+        injectTouch(iDevice, ScrcpyControl.ACTION_MOVE, x2, y2);
+        injectTouch(iDevice, ScrcpyControl.ACTION_UP, x2, y2);
+    }
+
+    /**
+     * 坐标与 adb input 一致，为设备当前方向下的坐标，不需要做 sonic apk 那样的旋转换算
+     */
+    private static boolean injectTouch(IDevice iDevice, int action, int x, int y) {
+        ScrcpyControl control = getScrcpyControl(iDevice);
+        if (control != null) {
+            int[] size = getSize(iDevice);
+            Integer directionStatus = AndroidDeviceManagerMap.getRotationMap().get(iDevice.getSerialNumber());
+            boolean landscape = directionStatus != null && (directionStatus == 1 || directionStatus == 3);
+            if (control.injectTouch(action, x, y, landscape ? size[1] : size[0], landscape ? size[0] : size[1])) {
+                return true;
+            }
+        }
+        onScrcpyFailed(iDevice);
+        return false;
+    }
+
+    /**
+     * 优先复用投屏已经建立的控制通道，没有投屏时单独启动一个只有控制通道的 scrcpy 服务
+     */
+    private static ScrcpyControl getScrcpyControl(IDevice iDevice) {
+        String udId = iDevice.getSerialNumber();
+        ScrcpyControl control = ScrcpyControlMap.getScreenMap().get(udId);
+        if (control != null && control.isConnected()) {
+            return control;
+        }
+        control = ScrcpyControlMap.getMap().get(udId);
+        if (control != null && control.isConnected()) {
+            return control;
+        }
+        synchronized (ScrcpyControlMap.class) {
+            control = ScrcpyControlMap.getMap().get(udId);
+            if (control != null && control.isConnected()) {
+                return control;
+            }
+            if (control != null) {
+                control.close();
+                ScrcpyControlMap.getMap().remove(udId);
+            }
+            control = new ScrcpyControlUtil().start(iDevice);
+            if (control != null) {
+                ScrcpyControlMap.getMap().put(udId, control);
+            }
+            return control;
+        }
+    }
+
+    private static void onScrcpyFailed(IDevice iDevice) {
+        log.info("{} scrcpy control is not available, auto switch to adb touch mode...", iDevice.getSerialNumber());
+        switchTouchMode(iDevice, TouchMode.ADB);
+        ScrcpyControl control = ScrcpyControlMap.getMap().remove(iDevice.getSerialNumber());
+        if (control != null) {
+            control.close();
+        }
+    }
+
+    private static int[] getSize(IDevice iDevice) {
+        int[] size = sizeMap.get(iDevice.getSerialNumber());
+        if (size == null) {
+            size = Arrays.stream(AndroidDeviceBridgeTool.getScreenSize(iDevice).split("x")).mapToInt(Integer::parseInt).toArray();
+            sizeMap.put(iDevice.getSerialNumber(), size);
+        }
+        return size;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
     private static int[] transferWithRotation(IDevice iDevice, int x, int y) {
         Integer directionStatus = AndroidDeviceManagerMap.getRotationMap().get(iDevice.getSerialNumber());
         if (directionStatus == null) {
@@ -430,6 +569,10 @@ public class AndroidTouchHandler {
                 }
             }
         }
+        ScrcpyControl control = ScrcpyControlMap.getMap().remove(udId);
+        if (control != null) {
+            control.close();
+        }
         touchModeMap.remove(udId);
         touchMap.remove(udId);
     }
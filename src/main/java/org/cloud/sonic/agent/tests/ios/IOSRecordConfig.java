@@ -0,0 +1,64 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.ios;
+
+import jakarta.annotation.PostConstruct;
+import org.cloud.sonic.agent.tests.ios.mjpeg.MjpegRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * iOS 录像的配置
+ */
+@Component
+public class IOSRecordConfig {
+    private static final Logger logger = LoggerFactory.getLogger(IOSRecordConfig.class);
+
+    @Value("${modules.ios.record-codec:mjpeg}")
+    private String getCodec;
+
+    @Value("${modules.ios.record-h264-fps:10}")
+    private int getH264Fps;
+
+    private static String codec = MjpegRecorder.CODEC_MJPEG;
+
+    private static int h264Fps = 10;
+
+    @PostConstruct
+    public void setEnv() {
+        codec = MjpegRecorder.CODEC_H264.equalsIgnoreCase(getCodec) ? MjpegRecorder.CODEC_H264 : MjpegRecorder.CODEC_MJPEG;
+        h264Fps = Math.max(1, getH264Fps);
+        logger.info("iOS record codec: {}, h264 fps: {}", codec, h264Fps);
+    }
+
+    /**
+     * mjpeg 直接封装 WDA 的 JPEG，不重新编码；h264 在 agent 端转码，文件更小但占用 CPU
+     */
+    public static String getCodec() {
+        return codec;
+    }
+
+    /**
+     * h264 转码的最高帧率
+     */
+    public static int getH264Fps() {
+        return h264Fps;
+    }
+}
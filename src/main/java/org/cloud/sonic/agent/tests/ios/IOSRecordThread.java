@@ -1,8 +1,19 @@
 package org.cloud.sonic.agent.tests.ios;
 
+import org.cloud.sonic.agent.common.maps.IOSScreenMap;
+import org.cloud.sonic.agent.tests.handlers.IOSStepHandler;
+import org.cloud.sonic.agent.tests.ios.mjpeg.MjpegRecorder;
+import org.cloud.sonic.agent.tools.file.UploadTools;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.Calendar;
+
+/**
+ * iOS 录像线程
+ * 用例运行期间从投屏共用的 WDA mjpeg 连接取画面写入 mp4，每个用例一个文件，用例结束后上传
+ */
 public class IOSRecordThread extends Thread {
 
     private final Logger log = LoggerFactory.getLogger(IOSRecordThread.class);
@@ -24,39 +35,46 @@ public class IOSRecordThread extends Thread {
 
     @Override
     public void run() {
-//        IOSStepHandler iosStepHandler = iosTestTaskBootThread.getIosStepHandler();
-//        IOSRunStepThread runStepThread = iosTestTaskBootThread.getRunStepThread();
-//
-//        while (runStepThread.isAlive()) {
-//            if (iosStepHandler.getDriver() == null) {
-//                try {
-//                    Thread.sleep(500);
-//                } catch (InterruptedException e) {
-//                    log.error(e.getMessage());
-//                }
-//                continue;
-//            }
-//            try {
-//                iosStepHandler.startRecord();
-//            } catch (Exception e) {
-//                log.error(e.getMessage());
-//            }
-//            int w = 0;
-//            while (w < 10 && (runStepThread.isAlive())) {
-//                try {
-//                    Thread.sleep(10000);
-//                } catch (InterruptedException e) {
-//                    log.error(e.getMessage());
-//                }
-//                w++;
-//            }
-//            //处理录像
-//            if (iosStepHandler.getStatus() == 3) {
-//                iosStepHandler.stopRecord();
-//                return;
-//            } else {
-//                iosStepHandler.getDriver().stopRecordingScreen();
-//            }
-//        }
+        IOSStepHandler iosStepHandler = iosTestTaskBootThread.getIosStepHandler();
+        IOSRunStepThread runStepThread = iosTestTaskBootThread.getRunStepThread();
+        String udId = iosTestTaskBootThread.getUdId();
+
+        File recordDir = new File("test-output/record");
+        if (!recordDir.exists()) {
+            recordDir.mkdirs();
+        }
+        long timeMillis = Calendar.getInstance().getTimeInMillis();
+        String fileName = timeMillis + "_" + udId.substring(0, Math.min(4, udId.length())) + ".mp4";
+        int mjpegPort = iosTestTaskBootThread.getMjpegPort();
+        if (mjpegPort == 0) {
+            log.info("{} mjpeg port is unknown, skip recording.", udId);
+            iosStepHandler.log.sendRecordLog(false, fileName, "");
+            return;
+        }
+        MjpegRecorder recorder = new MjpegRecorder(new File(recordDir + File.separator + fileName),
+                IOSRecordConfig.getCodec(), IOSRecordConfig.getH264Fps());
+        IOSScreenHub hub = IOSScreenMap.getMap().computeIfAbsent(udId, IOSScreenHub::new);
+        hub.addRecorder(recorder, mjpegPort);
+        try {
+            while (runStepThread.isAlive()) {
+                runStepThread.join(1000);
+            }
+        } catch (InterruptedException e) {
+            log.info("{} record thread interrupted.", udId);
+        } finally {
+            hub.removeRecorder(recorder);
+            recorder.close();
+        }
+        File file = recorder.getFile();
+        if (recorder.getFrames() == 0 || !file.exists()) {
+            file.delete();
+            iosStepHandler.log.sendRecordLog(false, fileName, "");
+            return;
+        }
+        try {
+            iosStepHandler.log.sendRecordLog(true, fileName, UploadTools.uploadPatchRecord(file));
+        } catch (Exception e) {
+            log.error("{} upload record failed: {}", udId, e.getMessage());
+        }
     }
 }
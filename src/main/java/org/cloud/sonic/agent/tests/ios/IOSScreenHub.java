@@ -0,0 +1,382 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.ios;
+
+import com.alibaba.fastjson.JSONObject;
+import jakarta.websocket.Session;
+import org.cloud.sonic.agent.tests.android.FramePacer;
+import org.cloud.sonic.agent.tests.ios.mjpeg.MjpegAdaptiveController;
+import org.cloud.sonic.agent.tests.ios.mjpeg.MjpegInputStream;
+import org.cloud.sonic.agent.tests.ios.mjpeg.MjpegQuality;
+import org.cloud.sonic.agent.tests.ios.mjpeg.MjpegRecorder;
+import org.cloud.sonic.agent.tools.ScheduleTool;
+import org.cloud.sonic.agent.tools.SessionOutbox;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 单台 iOS 设备的投屏中心
+ * 只保持一条到 WDA mjpeg 端口的连接，读到的画面分发给所有观看者，最后一个观看者离开时断开
+ * 每个观看者异步发送，发送跟不上时只保留最新的一张，慢的连接不会拖慢其他观看者和读取
+ * 根据到达间隔和发送耗时自动调整 WDA 的 mjpeg 设置，前端选择的画质作为上限
+ * 用例录像也从这条连接取画面，有录像时即使没有观看者也保持连接
+ */
+public class IOSScreenHub {
+
+    private final Logger log = LoggerFactory.getLogger(IOSScreenHub.class);
+
+    private static final int CONNECT_RETRY = 20;
+
+    private static final long CONNECT_INTERVAL_MS = 1000;
+
+    private static final long ADAPT_INTERVAL_MS = 500;
+
+    private final String udId;
+
+    private final Map<Session, IOSScreenViewer> viewers = new ConcurrentHashMap<>();
+
+    private final List<MjpegRecorder> recorders = new CopyOnWriteArrayList<>();
+
+    private final MjpegAdaptiveController controller = new MjpegAdaptiveController(MjpegQuality.HIGH);
+
+    /**
+     * 下发 WDA 设置，由持有 driver 的 IOSWSServer 提供
+     */
+    private volatile Consumer<JSONObject> settingsSink;
+
+    private volatile MjpegQuality applied;
+
+    private long lastAdapt = 0;
+
+    /**
+     * 最近一次下发给 WDA 的 mjpeg 设置，WDA 对已有的连接立即生效
+     */
+    private volatile int framerate = 60;
+
+    private volatile int scalingFactor = 100;
+
+    private volatile int screenshotQuality = 50;
+
+    private Thread reader;
+
+    private int port;
+
+    private volatile MjpegInputStream stream;
+
+    private volatile long frames;
+
+    public IOSScreenHub(String udId) {
+        this.udId = udId;
+    }
+
+    public String getUdId() {
+        return udId;
+    }
+
+    public int getViewerCount() {
+        return viewers.size();
+    }
+
+    public Map<Session, IOSScreenViewer> getViewers() {
+        return viewers;
+    }
+
+    public int getRecorderCount() {
+        return recorders.size();
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public int getFramerate() {
+        return framerate;
+    }
+
+    public int getScalingFactor() {
+        return scalingFactor;
+    }
+
+    public int getScreenshotQuality() {
+        return screenshotQuality;
+    }
+
+    public MjpegAdaptiveController getController() {
+        return controller;
+    }
+
+    public synchronized void setSettingsSink(Consumer<JSONObject> settingsSink) {
+        this.settingsSink = settingsSink;
+    }
+
+    /**
+     * 持有 driver 的连接断开时调用，只清除它自己设置的下发方式，不影响观看者和录像
+     */
+    public synchronized void removeSettingsSink(Consumer<JSONObject> settingsSink) {
+        if (this.settingsSink == settingsSink) {
+            this.settingsSink = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return reader != null && reader.isAlive();
+    }
+
+    /**
+     * 加入观看，连接未建立或 mjpeg 端口变化（WDA 重启）时重新连接
+     */
+    public synchronized void attach(Session session, int port) {
+        viewers.computeIfAbsent(session, s -> new IOSScreenViewer(s, framerate));
+        start(port);
+    }
+
+    /**
+     * 开始录像，与观看者共用同一条连接
+     */
+    public synchronized void addRecorder(MjpegRecorder recorder, int port) {
+        recorders.add(recorder);
+        start(port);
+    }
+
+    /**
+     * 停止向这个录像写入画面，录像文件由调用方关闭
+     */
+    public synchronized void removeRecorder(MjpegRecorder recorder) {
+        recorders.remove(recorder);
+        stopIfIdle();
+    }
+
+    private void start(int port) {
+        if (isRunning() && this.port == port) {
+            return;
+        }
+        stop();
+        this.port = port;
+        reader = new Thread(() -> read(port), "ios-mjpeg-" + udId);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * @return 剩余观看者数量，为 0 且没有录像时连接已断开
+     */
+    public synchronized int detach(Session session) {
+        viewers.remove(session);
+        stopIfIdle();
+        return viewers.size();
+    }
+
+    /**
+     * 前端选择的画质作为上限，从上限重新开始调整
+     */
+    public void setCeiling(MjpegQuality ceiling) {
+        controller.setCeiling(ceiling);
+        applied = ceiling;
+        push(ceiling);
+    }
+
+    private void push(MjpegQuality quality) {
+        JSONObject settings = quality.toSettings();
+        Consumer<JSONObject> sink = settingsSink;
+        if (sink != null) {
+            sink.accept(settings);
+        }
+        applySettings(settings);
+    }
+
+    /**
+     * 记录下发给 WDA 的设置，帧率同时作为各观看者的发送上限
+     */
+    public void applySettings(JSONObject settings) {
+        if (settings.containsKey("mjpegServerFramerate")) {
+            framerate = settings.getIntValue("mjpegServerFramerate");
+            for (IOSScreenViewer viewer : viewers.values()) {
+                viewer.getPacer().setFps(framerate);
+            }
+        }
+        if (settings.containsKey("mjpegScalingFactor")) {
+            scalingFactor = settings.getIntValue("mjpegScalingFactor");
+        }
+        if (settings.containsKey("mjpegServerScreenshotQuality")) {
+            screenshotQuality = settings.getIntValue("mjpegServerScreenshotQuality");
+        }
+    }
+
+    private void stopIfIdle() {
+        if (viewers.isEmpty() && recorders.isEmpty()) {
+            stop();
+        }
+    }
+
+    public synchronized void stop() {
+        Thread old = reader;
+        reader = null;
+        if (old == null) {
+            return;
+        }
+        old.interrupt();
+        // 关闭连接让阻塞中的读取立即返回
+        closeStream();
+    }
+
+    private void read(int port) {
+        MjpegInputStream mjpegInputStream = connect(port);
+        if (mjpegInputStream == null) {
+            return;
+        }
+        synchronized (this) {
+            if (reader != Thread.currentThread()) {
+                // 连接期间已被停止或替换，不能覆盖新连接
+                closeStream(mjpegInputStream);
+                return;
+            }
+            stream = mjpegInputStream;
+        }
+        try {
+            ByteBuffer frame;
+            while (!Thread.currentThread().isInterrupted()
+                    && (frame = mjpegInputStream.readFrameForByteBuffer()) != null) {
+                frames++;
+                long now = System.nanoTime();
+                controller.onFrame(now);
+                for (MjpegRecorder recorder : recorders) {
+                    recorder.write(frame, now);
+                }
+                fanOut(frame);
+                adapt();
+            }
+        } catch (IOException e) {
+            if (!Thread.currentThread().isInterrupted()) {
+                log.info("{} mjpeg stream error: {}", udId, e.getMessage());
+            }
+        } finally {
+            closeStream(mjpegInputStream);
+            log.info("{} mjpeg stream done, {} frames.", udId, frames);
+        }
+    }
+
+    private MjpegInputStream connect(int port) {
+        for (int i = 0; i < CONNECT_RETRY; i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            try {
+                return new MjpegInputStream(new URL("http://localhost:" + port).openStream());
+            } catch (IOException e) {
+                log.info(e.getMessage());
+            }
+            try {
+                Thread.sleep(CONNECT_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+        log.info("mjpeg server connect fail");
+        return null;
+    }
+
+    private void closeStream() {
+        MjpegInputStream old = stream;
+        if (old != null) {
+            closeStream(old);
+        }
+    }
+
+    /**
+     * 只关闭指定的连接，已被新的读取线程替换时不影响新连接
+     */
+    private void closeStream(MjpegInputStream mine) {
+        synchronized (this) {
+            if (stream == mine) {
+                stream = null;
+            }
+        }
+        try {
+            mine.close();
+        } catch (IOException e) {
+            log.debug("close mjpeg stream: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 按最慢的观看者调整档位，下发设置是一次 WDA 请求，放到读取线程之外
+     */
+    private void adapt() {
+        long now = System.currentTimeMillis();
+        if (now - lastAdapt < ADAPT_INTERVAL_MS) {
+            return;
+        }
+        lastAdapt = now;
+        double sendMs = 0;
+        for (IOSScreenViewer viewer : viewers.values()) {
+            sendMs = Math.max(sendMs, viewer.getSendMs());
+        }
+        MjpegQuality quality = controller.update(sendMs, now);
+        if (applied != null && quality != applied) {
+            log.info("{} mjpeg quality {} -> {}, arrival {} ms, send {} ms",
+                    udId, applied, quality, Math.round(controller.getArrivalMs()), Math.round(sendMs));
+            applied = quality;
+            ScheduleTool.schedule(() -> push(quality), 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 画面拷贝到各观看者的暂存区后立即返回，由定时任务发送
+     */
+    private void fanOut(ByteBuffer frame) {
+        long now = System.nanoTime();
+        for (IOSScreenViewer viewer : viewers.values()) {
+            long delay = viewer.getPacer().hold(frame, now);
+            if (delay >= 0) {
+                ScheduleTool.schedule(() -> flush(viewer), delay, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void flush(IOSScreenViewer viewer) {
+        FramePacer pacer = viewer.getPacer();
+        long start = System.nanoTime();
+        ByteBuffer frame = pacer.takePending(start);
+        if (frame == null) {
+            return;
+        }
+        long delay;
+        try {
+            Session session = viewer.getSession();
+            if (viewers.get(session) == viewer && session.isOpen()) {
+                // 只是入队，从入队到发送完成的耗时在回调中计入观看者的链路状况
+                SessionOutbox.of(session).sendBinary(frame, SessionOutbox.Policy.FRAME, viewer::onSend);
+            }
+        } finally {
+            delay = pacer.finish(System.nanoTime());
+        }
+        if (delay >= 0) {
+            ScheduleTool.schedule(() -> flush(viewer), delay, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.ios;
+
+import jakarta.websocket.Session;
+import org.cloud.sonic.agent.tests.android.FramePacer;
+
+/**
+ * iOS 投屏的一个观看者
+ */
+public class IOSScreenViewer {
+
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final Session session;
+
+    private final FramePacer pacer;
+
+    private double sendMs = 0;
+
+    public IOSScreenViewer(Session session, int fps) {
+        this.session = session;
+        this.pacer = new FramePacer(fps);
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public FramePacer getPacer() {
+        return pacer;
+    }
+
+    /**
+     * 记录一次发送耗时
+     */
+    public synchronized void onSend(long nanos) {
+        sendMs += EWMA_ALPHA * (nanos / 1_000_000.0 - sendMs);
+    }
+
+    public synchronized double getSendMs() {
+        return sendMs;
+    }
+}
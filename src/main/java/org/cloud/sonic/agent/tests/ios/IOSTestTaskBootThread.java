@@ -82,6 +82,11 @@ public class IOSTestTaskBootThread extends Thread {
      */
     private String udId;
 
+    /**
+     * WDA mjpeg 端口，录像从这里取画面
+     */
+    private int mjpegPort = 0;
+
     public String formatThreadName(String baseFormat) {
         return String.format(baseFormat, this.resultId, this.caseId, this.udId);
     }
@@ -149,6 +154,10 @@ public class IOSTestTaskBootThread extends Thread {
         return udId;
     }
 
+    public int getMjpegPort() {
+        return mjpegPort;
+    }
+
     public IOSTestTaskBootThread setUdId(String udId) {
         this.udId = udId;
         return this;
@@ -179,8 +188,9 @@ public class IOSTestTaskBootThread extends Thread {
             startTestSuccess = true;
             //启动测试
             try {
-                int wdaPort = SibTool.startWda(udId)[0];
-                iosStepHandler.startIOSDriver(udId, wdaPort);
+                int[] ports = SibTool.startWda(udId);
+                mjpegPort = ports[1];
+                iosStepHandler.startIOSDriver(udId, ports[0]);
             } catch (Exception e) {
                 log.error(e.getMessage());
                 iosStepHandler.closeIOSDriver();
@@ -0,0 +1,133 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.ios.mjpeg;
+
+/**
+ * iOS 投屏的自适应画质控制，一台设备只有一份 WDA 设置，按最慢的观看者调整
+ * 两个信号：帧到达间隔相对目标帧率的倍数（设备截图或读取跟不上），websocket 发送耗时（链路跟不上）
+ * 持续拥塞时降一档，持续通畅时升一档，升档等待更久以避免来回抖动
+ */
+public class MjpegAdaptiveController {
+
+    public static final double CONGESTED_SEND_MS = 60;
+
+    public static final double RECOVERED_SEND_MS = 20;
+
+    public static final double CONGESTED_ARRIVAL = 1.5;
+
+    public static final double RECOVERED_ARRIVAL = 1.2;
+
+    /**
+     * 超过这个间隔视为停顿（例如重连），不计入到达间隔
+     */
+    public static final long IDLE_GAP_MS = 1000;
+
+    public static final long STEP_DOWN_AFTER_MS = 2000;
+
+    public static final long STEP_UP_AFTER_MS = 10000;
+
+    private static final double EWMA_ALPHA = 0.2;
+
+    private MjpegQuality ceiling;
+
+    private MjpegQuality quality;
+
+    private double arrivalMs = 0;
+
+    private long lastFrame = -1;
+
+    private long congestedSince = -1;
+
+    private long healthySince = -1;
+
+    public MjpegAdaptiveController(MjpegQuality ceiling) {
+        this.ceiling = ceiling;
+        this.quality = ceiling;
+    }
+
+    /**
+     * 记录一帧的到达时间
+     */
+    public synchronized void onFrame(long nanos) {
+        if (lastFrame >= 0) {
+            double interval = (nanos - lastFrame) / 1_000_000.0;
+            if (interval < IDLE_GAP_MS) {
+                arrivalMs = arrivalMs == 0 ? interval : arrivalMs + EWMA_ALPHA * (interval - arrivalMs);
+            }
+        }
+        lastFrame = nanos;
+    }
+
+    /**
+     * @param sendMs 观看者中最大的平均发送耗时
+     * @return 当前建议的档位
+     */
+    public synchronized MjpegQuality update(double sendMs, long now) {
+        double arrival = getArrivalRatio();
+        boolean congested = sendMs > CONGESTED_SEND_MS || arrival > CONGESTED_ARRIVAL;
+        boolean healthy = sendMs < RECOVERED_SEND_MS && arrival < RECOVERED_ARRIVAL;
+        if (congested) {
+            healthySince = -1;
+            if (congestedSince < 0) {
+                congestedSince = now;
+            } else if (now - congestedSince >= STEP_DOWN_AFTER_MS) {
+                quality = quality.lower();
+                congestedSince = now;
+            }
+        } else if (healthy) {
+            congestedSince = -1;
+            if (healthySince < 0) {
+                healthySince = now;
+            } else if (now - healthySince >= STEP_UP_AFTER_MS && quality.isLowerThan(ceiling)) {
+                quality = quality.higher();
+                healthySince = now;
+            }
+        } else {
+            congestedSince = -1;
+            healthySince = -1;
+        }
+        return quality;
+    }
+
+    /**
+     * 平均到达间隔是当前档位目标间隔的多少倍，还没有数据时为 0
+     */
+    public synchronized double getArrivalRatio() {
+        return arrivalMs * quality.getFramerate() / 1000;
+    }
+
+    public synchronized double getArrivalMs() {
+        return arrivalMs;
+    }
+
+    public synchronized MjpegQuality getQuality() {
+        return quality;
+    }
+
+    /**
+     * 前端切换画质时调整上限，并从新的上限重新开始
+     */
+    public synchronized void setCeiling(MjpegQuality ceiling) {
+        this.ceiling = ceiling;
+        this.quality = ceiling;
+        arrivalMs = 0;
+        lastFrame = -1;
+        congestedSince = -1;
+        healthySince = -1;
+    }
+}
@@ -17,116 +17,294 @@
  */
 package org.cloud.sonic.agent.tests.ios.mjpeg;
 
-import lombok.extern.slf4j.Slf4j;
-
-import java.io.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
- * ***************************************************************************
- * This code is built with reference to Swebcam-capture
- *
- * @see {https://github.com/sarxos/webcam-capture/blob/master/webcam-capture/src/main/java/com/github/sarxos/webcam/util/MjpegInputStream.java}
- * ***************************************************************************
+ * WDA mjpeg（multipart/x-mixed-replace）流的解析
+ * 数据直接读入一个可复用、按需扩容的缓冲区，在缓冲区内查找分段头和 JPEG 边界：
+ * 有 Content-Length 时直接按长度截取，不扫描 JPEG 内容；没有时按 8 字节一组查找 EOI 标记
+ * 帧以缓冲区切片的形式交出，不为每帧分配内存
  */
-@Slf4j
-public class MjpegInputStream extends DataInputStream {
-    private final byte[] SOI_MARKER = {(byte) 0xFF, (byte) 0xD8};
-    private final byte[] EOI_MARKER = {(byte) 0xFF, (byte) 0xD9};
-    private final String CONTENT_LENGTH = "Content-Length".toLowerCase();
-    private final static int HEADER_MAX_LENGTH = 100;
-    private final static int FRAME_MAX_LENGTH = 1024 * 5 + HEADER_MAX_LENGTH;
+public class MjpegInputStream implements Closeable {
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes();
+    private final static int HEADER_MAX_LENGTH = 8 * 1024;
+    private final static int INITIAL_CAPACITY = 512 * 1024;
+    private final static int FRAMES_PER_BUFFER = 4;
+    private final static int MIN_READ = 32 * 1024;
+    private final static int MAX_FRAME_LENGTH = 32 * 1024 * 1024;
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private final InputStream in;
+
+    private byte[] buffer;
+
+    /**
+     * 未解析数据的起止位置
+     */
+    private int start;
+
+    private int end;
+
+    private long frames;
+
+    private long bytes;
 
     public MjpegInputStream(final InputStream in) {
-        super(new BufferedInputStream(in, FRAME_MAX_LENGTH));
-    }
-
-    private int getEndOfSequence(final DataInputStream in, final byte[] sequence) throws IOException {
-        int s = 0;
-        byte b;
-        for (int i = 0; i < FRAME_MAX_LENGTH; i++) {
-            b = (byte) in.readUnsignedByte();
-            if (b == sequence[s]) {
-                s++;
-                if (s == sequence.length) {
-                    return i + 1;
+        this(in, INITIAL_CAPACITY);
+    }
+
+    public MjpegInputStream(final InputStream in, int initialCapacity) {
+        this.in = in;
+        this.buffer = new byte[Math.max(initialCapacity, HEADER_MAX_LENGTH * 2)];
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    /**
+     * 读取下一帧
+     *
+     * @return 指向内部缓冲区的 JPEG 切片，在下一次读取之前有效；流结束时为 null
+     */
+    public ByteBuffer readFrameForByteBuffer() throws IOException {
+        // 分段头：查找空行，JPEG 在空行之后；没有分段头时直接从 SOI 开始
+        int bodyOffset;
+        int length = -1;
+        int searched = 0;
+        while (true) {
+            // WDA 在每帧之后追加 \r\n\r\n，不能把这个空行当作分段头的结尾
+            searched = Math.max(0, searched - skipLineBreaks());
+            int headerEnd = indexOf(buffer, start + searched, end, HEADER_END);
+            int soi = indexOfSoi(start, headerEnd < 0 ? end : headerEnd);
+            if (soi >= 0) {
+                bodyOffset = soi - start;
+                break;
+            }
+            if (headerEnd >= 0) {
+                length = parseContentLength(start, headerEnd);
+                bodyOffset = headerEnd + HEADER_END.length - start;
+                break;
+            }
+            if (end - start > HEADER_MAX_LENGTH) {
+                throw new IOException("mjpeg part header not found in " + HEADER_MAX_LENGTH + " bytes");
+            }
+            searched = Math.max(0, end - start - HEADER_END.length + 1);
+            if (fill(MIN_READ) < 0) {
+                return null;
+            }
+        }
+
+        if (length >= 0) {
+            // 信任 Content-Length，只需要读够数据
+            while (end - start < bodyOffset + length) {
+                if (fill(bodyOffset + length - (end - start)) < 0) {
+                    return null;
                 }
-            } else {
-                s = 0;
+            }
+        } else {
+            length = findEoi(bodyOffset);
+            if (length < 0) {
+                return null;
+            }
+        }
+        ByteBuffer frame = ByteBuffer.wrap(buffer, start + bodyOffset, length).slice();
+        start += bodyOffset + length;
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+        frames++;
+        return frame;
+    }
+
+    /**
+     * 没有 Content-Length 时从 SOI 之后查找 EOI
+     *
+     * @return JPEG 长度，流结束时为 -1
+     */
+    private int findEoi(int bodyOffset) throws IOException {
+        int searched = bodyOffset + 2;
+        while (true) {
+            int eoi = indexOfEoi(start + searched, end);
+            if (eoi >= 0) {
+                return eoi + 2 - start - bodyOffset;
+            }
+            // 最后一个字节可能是 0xFF，下次从它开始
+            searched = Math.max(searched, end - start - 1);
+            if (end - start - bodyOffset > MAX_FRAME_LENGTH) {
+                throw new IOException("mjpeg EOI marker not found");
+            }
+            if (fill(MIN_READ) < 0) {
+                return -1;
             }
         }
-        return -1;
     }
 
-    private int getStartOfSequence(final DataInputStream in, final byte[] sequence) throws IOException {
-        int end = getEndOfSequence(in, sequence);
-        return end < 0 ? -1 : end - sequence.length;
+    private int skipLineBreaks() {
+        int from = start;
+        while (start < end && (buffer[start] == '\r' || buffer[start] == '\n')) {
+            start++;
+        }
+        return start - from;
     }
 
-    private int parseContentLength(final byte[] headerBytes) {
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(headerBytes);
-        InputStreamReader inputStreamReader = new InputStreamReader(byteArrayInputStream);
-        BufferedReader br = new BufferedReader(inputStreamReader);
-        String line;
-        int result = 0;
-        while (true) {
-            try {
-                if ((line = br.readLine()) == null) break;
-            } catch (IOException e) {
-                log.info(e.getMessage());
+    private int parseContentLength(int from, int to) throws IOException {
+        int at = indexOfIgnoreCase(from, to, CONTENT_LENGTH);
+        if (at < 0) {
+            return -1;
+        }
+        long value = -1;
+        for (int i = at + CONTENT_LENGTH.length; i < to; i++) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (b - '0');
+                if (value > MAX_FRAME_LENGTH) {
+                    throw new IOException("mjpeg Content-Length too large");
+                }
+            } else if (value >= 0 || (b != ' ' && b != '\t')) {
                 break;
             }
-            if (line.toLowerCase().startsWith(CONTENT_LENGTH)) {
-                final String[] parts = line.split(":");
-                if (parts.length == 2) {
-                    result = Integer.parseInt(parts[1].trim());
-                    break;
+        }
+        return (int) value;
+    }
+
+    private int indexOfIgnoreCase(int from, int to, byte[] lowerCase) {
+        outer:
+        for (int i = from; i + lowerCase.length <= to; i++) {
+            for (int j = 0; j < lowerCase.length; j++) {
+                int b = buffer[i + j];
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                if (b != lowerCase[j]) {
+                    continue outer;
                 }
             }
+            return i;
         }
-        try {
-            br.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        return -1;
+    }
+
+    private int indexOfSoi(int from, int to) {
+        return indexOfPair(buffer, from, to, (byte) 0xD8);
+    }
+
+    private int indexOfEoi(int from, int to) {
+        return indexOfPair(buffer, from, to, (byte) 0xD9);
+    }
+
+    /**
+     * 查找 0xFF 后紧跟 second 的位置
+     */
+    static int indexOfPair(byte[] data, int from, int to, byte second) {
+        int i = from;
+        while (true) {
+            i = indexOf(data, i, to - 1, (byte) 0xFF);
+            if (i < 0) {
+                return -1;
+            }
+            if (data[i + 1] == second) {
+                return i;
+            }
+            i++;
         }
-        try {
-            inputStreamReader.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    }
+
+    static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+        int i = from;
+        int last = to - pattern.length + 1;
+        while (i < last) {
+            i = indexOf(data, i, last, pattern[0]);
+            if (i < 0) {
+                return -1;
+            }
+            int j = 1;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * 在 [from, to) 中查找单个字节：每次比较 8 个字节（SWAR），命中后再定位到具体位置
+     */
+    static int indexOf(byte[] data, int from, int to, byte value) {
+        int i = from;
+        if (to - from >= 16) {
+            long pattern = (value & 0xffL) * ONES;
+            for (; i + 8 <= to; i += 8) {
+                long word = (long) LONGS.get(data, i) ^ pattern;
+                long found = (word - ONES) & ~word & HIGHS;
+                if (found != 0) {
+                    return i + (Long.numberOfTrailingZeros(found) >>> 3);
+                }
+            }
         }
-        try {
-            byteArrayInputStream.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        for (; i < to; i++) {
+            if (data[i] == value) {
+                return i;
+            }
         }
-        return result;
+        return -1;
     }
 
-    public ByteBuffer readFrameForByteBuffer() throws IOException {
-        mark(FRAME_MAX_LENGTH);
-        int n = getStartOfSequence(this, SOI_MARKER);
-        reset();
-        final byte[] header = new byte[n];
-        readFully(header);
-        int length;
-        try {
-            length = parseContentLength(header);
-        } catch (NumberFormatException e) {
-            length = getEndOfSequence(this, EOI_MARKER);
+    /**
+     * 从输入流读一次，必要时回收已消费的空间或扩容
+     *
+     * @param wanted 至少需要的可写空间
+     * @return 读到的字节数，流结束时为 -1
+     */
+    private int fill(int wanted) throws IOException {
+        if (buffer.length - end < wanted) {
+            int remaining = end - start;
+            int capacity = buffer.length;
+            if (wanted > MIN_READ) {
+                // 按帧长度扩容，保证缓冲区能放下若干帧，减少搬动
+                capacity = Math.max(capacity, (int) Math.min(Integer.MAX_VALUE - 8L, (long) (remaining + wanted) * FRAMES_PER_BUFFER));
+            }
+            while (capacity - remaining < wanted) {
+                capacity <<= 1;
+            }
+            byte[] target = capacity == buffer.length ? buffer : new byte[capacity];
+            System.arraycopy(buffer, start, target, 0, remaining);
+            buffer = target;
+            start = 0;
+            end = remaining;
         }
-        if (length == 0) {
-            log.error("EOI Marker 0xFF,0xD9 not found!");
+        int len = in.read(buffer, end, buffer.length - end);
+        if (len > 0) {
+            end += len;
+            bytes += len;
         }
-        reset();
-        final byte[] frame = new byte[length];
-        skipBytes(n);
-        readFully(frame);
-        return ByteBuffer.wrap(frame);
+        return len;
     }
 
     @Override
     public void close() throws IOException {
-        super.close();
+        in.close();
     }
-
-}
\ No newline at end of file
+}
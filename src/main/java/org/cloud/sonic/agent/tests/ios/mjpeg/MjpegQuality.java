@@ -0,0 +1,80 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.ios.mjpeg;
+
+import com.alibaba.fastjson.JSONObject;
+
+/**
+ * WDA mjpeg 投屏的画质档位，从高到低排列，通过 setAppiumSettings 下发，对已有的连接立即生效
+ */
+public enum MjpegQuality {
+    HIGH(60, 100, 50),
+    MEDIUM(45, 75, 30),
+    LOW(30, 50, 10),
+    MINIMUM(15, 35, 5);
+
+    private final int framerate;
+    private final int scalingFactor;
+    private final int screenshotQuality;
+
+    MjpegQuality(int framerate, int scalingFactor, int screenshotQuality) {
+        this.framerate = framerate;
+        this.scalingFactor = scalingFactor;
+        this.screenshotQuality = screenshotQuality;
+    }
+
+    public int getFramerate() {
+        return framerate;
+    }
+
+    public int getScalingFactor() {
+        return scalingFactor;
+    }
+
+    public int getScreenshotQuality() {
+        return screenshotQuality;
+    }
+
+    public JSONObject toSettings() {
+        JSONObject settings = new JSONObject();
+        settings.put("mjpegServerFramerate", framerate);
+        settings.put("mjpegScalingFactor", scalingFactor);
+        settings.put("mjpegServerScreenshotQuality", screenshotQuality);
+        return settings;
+    }
+
+    public MjpegQuality lower() {
+        MjpegQuality[] values = values();
+        return values[Math.min(ordinal() + 1, values.length - 1)];
+    }
+
+    public MjpegQuality higher() {
+        return values()[Math.max(ordinal() - 1, 0)];
+    }
+
+    public boolean isLowerThan(MjpegQuality other) {
+        return ordinal() > other.ordinal();
+    }
+
+    /**
+     * 前端的 screen 设置作为自适应调整的上限
+     */
+    public static MjpegQuality fromDetail(String detail) {
+        return "low".equals(detail) ? LOW : HIGH;
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.ios.mjpeg;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.javacpp.BytePointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avformat.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+/**
+ * iOS 录像，画面来自投屏共用的 WDA mjpeg 连接，按到达时间打时间戳，写入 fragmented MP4
+ * mjpeg：每张 JPEG 直接作为一个包封装，不解码也不重新编码，在读取线程中完成，只有一次内存拷贝
+ * h264：拷贝到暂存区后由单独的线程限帧转码，转码跟不上时只保留最新的一张，不影响读取和投屏
+ */
+public class MjpegRecorder implements Closeable {
+
+    private final Logger log = LoggerFactory.getLogger(MjpegRecorder.class);
+
+    public static final String CODEC_MJPEG = "mjpeg";
+
+    public static final String CODEC_H264 = "h264";
+
+    private static final String MOV_FLAGS = "frag_keyframe+empty_moov+default_base_moof";
+
+    private static final byte[] PACKET_PADDING = new byte[AV_INPUT_BUFFER_PADDING_SIZE];
+
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    private final File file;
+
+    private final int h264Fps;
+
+    private final long h264IntervalNanos;
+
+    /**
+     * 转码器不可用时退回 mjpeg
+     */
+    private volatile String codec;
+
+    private AVFormatContext formatContext;
+
+    private AVStream stream;
+
+    private AVPacket packet;
+
+    private AVRational timeBase;
+
+    private AVRational transcodeTimeBase;
+
+    private BytePointer packetBuffer;
+
+    private int packetCapacity = 0;
+
+    private long startNanos = -1;
+
+    private long lastPts = -1;
+
+    private long frames = 0;
+
+    private boolean failed = false;
+
+    private boolean closed = false;
+
+    private final Object lock = new Object();
+
+    private Thread encodeThread;
+
+    private byte[] pending = new byte[0];
+
+    private int pendingLength;
+
+    private long pendingNanos;
+
+    private boolean hasPending = false;
+
+    private long lastAccepted = -1;
+
+    private long dropped = 0;
+
+    private boolean closing = false;
+
+    public MjpegRecorder(File file) {
+        this(file, CODEC_MJPEG, 0);
+    }
+
+    /**
+     * @param h264Fps codec 为 h264 时的最高帧率
+     */
+    public MjpegRecorder(File file, String codec, int h264Fps) {
+        this.file = file;
+        this.codec = CODEC_H264.equals(codec) ? CODEC_H264 : CODEC_MJPEG;
+        this.h264Fps = Math.max(1, h264Fps);
+        this.h264IntervalNanos = 1_000_000_000L / this.h264Fps;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public synchronized long getFrames() {
+        return frames;
+    }
+
+    /**
+     * h264 转码跟不上而被更新的画面覆盖的帧数
+     */
+    public long getDropped() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    /**
+     * 由读取线程调用，jpeg 在调用返回后失效
+     *
+     * @param nanos 到达时间，System.nanoTime()
+     */
+    public void write(ByteBuffer jpeg, long nanos) {
+        if (CODEC_H264.equals(codec)) {
+            offer(jpeg, nanos);
+        } else {
+            writeJpeg(jpeg, nanos);
+        }
+    }
+
+    private synchronized void writeJpeg(ByteBuffer jpeg, long nanos) {
+        if (failed || closed) {
+            return;
+        }
+        if (formatContext == null) {
+            int[] size = jpegSize(jpeg);
+            if (size == null) {
+                return;
+            }
+            if (!open(size[0], size[1], null)) {
+                fail();
+                return;
+            }
+        }
+        fillPacket(jpeg);
+        packet.pts(toPts(nanos));
+        packet.dts(packet.pts());
+        packet.stream_index(0);
+        packet.flags(AV_PKT_FLAG_KEY);
+        av_packet_rescale_ts(packet, timeBase, stream.time_base());
+        writePacket(packet);
+    }
+
+    /**
+     * 到达时间 -> 从第一帧开始的微秒数，保证单调递增
+     */
+    private long toPts(long nanos) {
+        if (startNanos < 0) {
+            startNanos = nanos;
+        }
+        long pts = Math.max((nanos - startNanos) / 1000, lastPts + 1);
+        lastPts = pts;
+        return pts;
+    }
+
+    private void writePacket(AVPacket avPacket) {
+        int ret = av_write_frame(formatContext, avPacket);
+        if (ret < 0) {
+            log.error("Failed to write record packet: {}", ret);
+            fail();
+            return;
+        }
+        frames++;
+    }
+
+    private void offer(ByteBuffer jpeg, long nanos) {
+        synchronized (lock) {
+            if (closing || (lastAccepted >= 0 && nanos - lastAccepted < h264IntervalNanos)) {
+                return;
+            }
+            if (hasPending) {
+                dropped++;
+            }
+            int length = jpeg.remaining();
+            if (pending.length < length) {
+                pending = new byte[Math.max(length, pending.length * 2)];
+            }
+            jpeg.duplicate().get(pending, 0, length);
+            pendingLength = length;
+            pendingNanos = nanos;
+            hasPending = true;
+            lastAccepted = nanos;
+            if (encodeThread == null) {
+                encodeThread = new Thread(this::encodeLoop, "ios-record-encode");
+                encodeThread.setDaemon(true);
+                encodeThread.start();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void encodeLoop() {
+        byte[] work = new byte[0];
+        MjpegTranscoder transcoder = null;
+        try {
+            while (true) {
+                int length;
+                long nanos;
+                synchronized (lock) {
+                    while (!hasPending && !closing) {
+                        lock.wait();
+                    }
+                    if (!hasPending) {
+                        break;
+                    }
+                    byte[] swap = work;
+                    work = pending;
+                    pending = swap;
+                    length = pendingLength;
+                    nanos = pendingNanos;
+                    hasPending = false;
+                }
+                ByteBuffer jpeg = ByteBuffer.wrap(work, 0, length);
+                if (transcoder == null) {
+                    transcoder = openTranscoder(jpeg);
+                    if (transcoder == null) {
+                        // 没有可用的 H.264 编码器，之后的画面直接封装
+                        codec = CODEC_MJPEG;
+                        writeJpeg(jpeg, nanos);
+                        return;
+                    }
+                }
+                if (!transcoder.transcode(work, length, toTranscodePts(nanos), this::writeEncoded)) {
+                    log.debug("Failed to transcode record frame");
+                }
+            }
+            if (transcoder != null) {
+                transcoder.flush(this::writeEncoded);
+            }
+        } catch (InterruptedException e) {
+            log.debug("record encode interrupted");
+        } finally {
+            if (transcoder != null) {
+                transcoder.close();
+            }
+        }
+    }
+
+    private synchronized long toTranscodePts(long nanos) {
+        return toPts(nanos) / 1000;
+    }
+
+    private MjpegTranscoder openTranscoder(ByteBuffer jpeg) {
+        int[] size = jpegSize(jpeg);
+        if (size == null) {
+            return null;
+        }
+        MjpegTranscoder transcoder = new MjpegTranscoder(h264Fps);
+        if (!transcoder.open(size[0], size[1])) {
+            transcoder.close();
+            return null;
+        }
+        synchronized (this) {
+            if (closed || !open(size[0], size[1], transcoder.getEncoder())) {
+                fail();
+                transcoder.close();
+                return null;
+            }
+        }
+        return transcoder;
+    }
+
+    private synchronized void writeEncoded(AVPacket encoded) {
+        if (failed || closed) {
+            return;
+        }
+        encoded.stream_index(0);
+        av_packet_rescale_ts(encoded, transcodeTimeBase, stream.time_base());
+        writePacket(encoded);
+    }
+
+    /**
+     * @param encoder 转码时的编码器，为 null 时按 mjpeg 封装
+     */
+    private boolean open(int width, int height, AVCodecContext encoder) {
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (!parent.exists()) {
+                parent.mkdirs();
+            }
+            timeBase = av_make_q(1, 1000000);
+            transcodeTimeBase = av_make_q(1, 1000);
+            formatContext = new AVFormatContext(null);
+            if (avformat_alloc_output_context2(formatContext, null, "mp4", file.getPath()) < 0) {
+                log.error("Failed to create mp4 muxer");
+                formatContext = null;
+                return false;
+            }
+            stream = avformat_new_stream(formatContext, null);
+            AVCodecParameters codecpar = stream.codecpar();
+            if (encoder != null) {
+                avcodec_parameters_from_context(codecpar, encoder);
+            } else {
+                codecpar.codec_type(AVMEDIA_TYPE_VIDEO);
+                codecpar.codec_id(AV_CODEC_ID_MJPEG);
+                codecpar.width(width);
+                codecpar.height(height);
+            }
+            stream.time_base(timeBase);
+
+            AVIOContext pb = new AVIOContext(null);
+            if (avio_open(pb, file.getPath(), AVIO_FLAG_WRITE) < 0) {
+                log.error("Failed to open record file: {}", file.getPath());
+                return false;
+            }
+            formatContext.pb(pb);
+            AVDictionary options = new AVDictionary(null);
+            av_dict_set(options, "movflags", MOV_FLAGS, 0);
+            int ret = avformat_write_header(formatContext, options);
+            av_dict_free(options);
+            if (ret < 0) {
+                log.error("Failed to write record header: {}", ret);
+                return false;
+            }
+            packet = av_packet_alloc();
+            log.info("Recording {} {}x{} to {}", codec, width, height, file.getPath());
+            return true;
+        } catch (Throwable e) {
+            // 当前平台没有对应的 FFmpeg 本地库
+            log.error("Failed to start recording: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private void fillPacket(ByteBuffer jpeg) {
+        int size = jpeg.remaining();
+        if (packetCapacity < size) {
+            if (packetBuffer != null) {
+                av_free(packetBuffer);
+            }
+            packetCapacity = Math.max(size, packetCapacity * 2);
+            packetBuffer = new BytePointer(av_malloc(packetCapacity + AV_INPUT_BUFFER_PADDING_SIZE))
+                    .capacity(packetCapacity + AV_INPUT_BUFFER_PADDING_SIZE);
+        }
+        if (jpeg.hasArray()) {
+            packetBuffer.position(0).put(jpeg.array(), jpeg.arrayOffset() + jpeg.position(), size);
+        } else {
+            byte[] copy = new byte[size];
+            jpeg.duplicate().get(copy);
+            packetBuffer.position(0).put(copy, 0, size);
+        }
+        packetBuffer.position(size).put(PACKET_PADDING, 0, PACKET_PADDING.length);
+        packetBuffer.position(0);
+        packet.data(packetBuffer);
+        packet.size(size);
+    }
+
+    private void fail() {
+        failed = true;
+        closeMuxer();
+    }
+
+    /**
+     * 从 SOF 段读取 JPEG 的宽高
+     *
+     * @return {width, height}，不是 JPEG 或没有 SOF 时为 null
+     */
+    public static int[] jpegSize(ByteBuffer jpeg) {
+        int i = jpeg.position();
+        int end = jpeg.limit();
+        if (end - i < 4 || jpeg.get(i) != (byte) 0xFF || jpeg.get(i + 1) != (byte) 0xD8) {
+            return null;
+        }
+        i += 2;
+        while (i + 4 <= end) {
+            if (jpeg.get(i) != (byte) 0xFF) {
+                return null;
+            }
+            int marker = jpeg.get(i + 1) & 0xFF;
+            if (marker == 0xFF) {
+                // 填充字节
+                i++;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                i += 2;
+                continue;
+            }
+            int length = ((jpeg.get(i + 2) & 0xFF) << 8) | (jpeg.get(i + 3) & 0xFF);
+            boolean sof = marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+            if (sof) {
+                if (i + 9 > end) {
+                    return null;
+                }
+                int height = ((jpeg.get(i + 5) & 0xFF) << 8) | (jpeg.get(i + 6) & 0xFF);
+                int width = ((jpeg.get(i + 7) & 0xFF) << 8) | (jpeg.get(i + 8) & 0xFF);
+                return width > 0 && height > 0 ? new int[]{width, height} : null;
+            }
+            if (marker == 0xDA || marker == 0xD9) {
+                return null;
+            }
+            i += 2 + length;
+        }
+        return null;
+    }
+
+    /**
+     * 等待转码线程写完剩余的画面，写入文件尾并释放 native 资源，可以重复调用
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (lock) {
+            closing = true;
+            thread = encodeThread;
+            lock.notifyAll();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(CLOSE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeMuxer();
+    }
+
+    private synchronized void closeMuxer() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (formatContext != null) {
+                if (packet != null) {
+                    av_write_trailer(formatContext);
+                }
+                if (formatContext.pb() != null) {
+                    avio_close(formatContext.pb());
+                    formatContext.pb(null);
+                }
+                avformat_free_context(formatContext);
+                formatContext = null;
+                stream = null;
+            }
+            if (packet != null) {
+                av_packet_free(packet);
+                packet = null;
+            }
+            if (packetBuffer != null) {
+                av_free(packetBuffer);
+                packetBuffer = null;
+                packetCapacity = 0;
+            }
+        } catch (Throwable e) {
+            log.error("Failed to close recording: {}", e.getMessage());
+        }
+        log.info("Recorded {} frames to {}", frames, file.getPath());
+    }
+}
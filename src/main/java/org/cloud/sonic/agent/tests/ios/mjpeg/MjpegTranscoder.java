@@ -0,0 +1,251 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tests.ios.mjpeg;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.swscale.SwsContext;
+import org.bytedeco.javacpp.BytePointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.function.Consumer;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+import static org.bytedeco.ffmpeg.global.swscale.*;
+
+/**
+ * WDA 的 JPEG -> H.264，录像选择 h264 时使用
+ * 编码优先使用 libx264（ultrafast + zerolatency），尺寸以第一帧为准，之后尺寸变化（旋转）的画面缩放到这个尺寸
+ * 只在一个线程中使用
+ */
+public class MjpegTranscoder implements Closeable {
+
+    private final Logger log = LoggerFactory.getLogger(MjpegTranscoder.class);
+
+    private static final String CRF = "30";
+
+    private final int fps;
+
+    private AVCodecContext decoder;
+    private AVCodecContext encoder;
+    private AVPacket inPacket;
+    private AVPacket outPacket;
+    private AVFrame decodedFrame;
+    private AVFrame yuvFrame;
+    private SwsContext swsContext;
+    private BytePointer inBuffer;
+    private int inCapacity = 0;
+
+    private int srcWidth = 0;
+    private int srcHeight = 0;
+    private int srcFormat = -1;
+
+    private long lastPts = -1;
+
+    public MjpegTranscoder(int fps) {
+        this.fps = Math.max(1, fps);
+    }
+
+    /**
+     * 打开后可以从编码器取得 extradata 等参数写入文件头
+     */
+    public AVCodecContext getEncoder() {
+        return encoder;
+    }
+
+    public boolean open(int width, int height) {
+        try {
+            AVCodec mjpeg = avcodec_find_decoder(AV_CODEC_ID_MJPEG);
+            if (mjpeg == null) {
+                log.error("MJPEG decoder not found");
+                return false;
+            }
+            decoder = avcodec_alloc_context3(mjpeg);
+            if (avcodec_open2(decoder, mjpeg, (AVDictionary) null) < 0) {
+                log.error("Could not open MJPEG decoder");
+                return false;
+            }
+
+            AVCodec h264 = avcodec_find_encoder_by_name("libx264");
+            if (h264 == null) {
+                h264 = avcodec_find_encoder(AV_CODEC_ID_H264);
+            }
+            if (h264 == null) {
+                log.error("H.264 encoder not found");
+                return false;
+            }
+            encoder = avcodec_alloc_context3(h264);
+            encoder.width(width & ~1);
+            encoder.height(height & ~1);
+            encoder.pix_fmt(AV_PIX_FMT_YUV420P);
+            // 时间戳为到达时间的毫秒数
+            encoder.time_base(av_make_q(1, 1000));
+            encoder.framerate(av_make_q(fps, 1));
+            encoder.gop_size(fps * 2);
+            encoder.max_b_frames(0);
+            encoder.thread_count(1);
+            // mp4 需要在文件头中写入 SPS/PPS
+            encoder.flags(encoder.flags() | AV_CODEC_FLAG_GLOBAL_HEADER);
+            AVDictionary options = new AVDictionary(null);
+            av_dict_set(options, "preset", "ultrafast", 0);
+            av_dict_set(options, "tune", "zerolatency", 0);
+            av_dict_set(options, "crf", CRF, 0);
+            int ret = avcodec_open2(encoder, h264, options);
+            av_dict_free(options);
+            if (ret < 0) {
+                log.error("Could not open H.264 encoder: {}", ret);
+                return false;
+            }
+
+            inPacket = av_packet_alloc();
+            outPacket = av_packet_alloc();
+            decodedFrame = av_frame_alloc();
+            yuvFrame = av_frame_alloc();
+            yuvFrame.width(encoder.width());
+            yuvFrame.height(encoder.height());
+            yuvFrame.format(AV_PIX_FMT_YUV420P);
+            if (av_frame_get_buffer(yuvFrame, 0) < 0) {
+                log.error("Could not allocate YUV420P frame");
+                return false;
+            }
+            log.info("Transcoding mjpeg to h264 {}x{} with {}", encoder.width(), encoder.height(), h264.name().getString());
+            return true;
+        } catch (Throwable e) {
+            // 当前平台没有对应的 FFmpeg 本地库
+            log.error("Failed to open transcoder: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 转码一张 JPEG，编码出的包（时间基 1/1000）交给 sink，sink 返回后包即失效
+     *
+     * @param ptsMs 到达时间，毫秒
+     */
+    public boolean transcode(byte[] jpeg, int length, long ptsMs, Consumer<AVPacket> sink) {
+        if (inCapacity < length) {
+            if (inBuffer != null) {
+                av_free(inBuffer);
+            }
+            inCapacity = Math.max(length, inCapacity * 2);
+            inBuffer = new BytePointer(av_mallocz(inCapacity + AV_INPUT_BUFFER_PADDING_SIZE))
+                    .capacity(inCapacity + AV_INPUT_BUFFER_PADDING_SIZE);
+        }
+        inBuffer.position(0).put(jpeg, 0, length);
+        inBuffer.position(0);
+        inPacket.data(inBuffer);
+        inPacket.size(length);
+        if (avcodec_send_packet(decoder, inPacket) < 0 || avcodec_receive_frame(decoder, decodedFrame) < 0) {
+            return false;
+        }
+        try {
+            if (srcWidth != decodedFrame.width() || srcHeight != decodedFrame.height()
+                    || srcFormat != decodedFrame.format()) {
+                if (swsContext != null) {
+                    sws_freeContext(swsContext);
+                }
+                srcWidth = decodedFrame.width();
+                srcHeight = decodedFrame.height();
+                srcFormat = decodedFrame.format();
+                swsContext = sws_getContext(
+                        srcWidth, srcHeight, srcFormat,
+                        encoder.width(), encoder.height(), AV_PIX_FMT_YUV420P,
+                        SWS_FAST_BILINEAR, null, null, (double[]) null
+                );
+            }
+            if (av_frame_make_writable(yuvFrame) < 0) {
+                return false;
+            }
+            sws_scale(swsContext, decodedFrame.data(), decodedFrame.linesize(), 0, srcHeight,
+                    yuvFrame.data(), yuvFrame.linesize());
+        } finally {
+            av_frame_unref(decodedFrame);
+        }
+        long pts = Math.max(ptsMs, lastPts + 1);
+        lastPts = pts;
+        yuvFrame.pts(pts);
+        if (avcodec_send_frame(encoder, yuvFrame) < 0) {
+            return false;
+        }
+        drain(sink);
+        return true;
+    }
+
+    /**
+     * 取出编码器中剩余的包
+     */
+    public void flush(Consumer<AVPacket> sink) {
+        if (encoder != null && avcodec_send_frame(encoder, null) >= 0) {
+            drain(sink);
+        }
+    }
+
+    private void drain(Consumer<AVPacket> sink) {
+        while (avcodec_receive_packet(encoder, outPacket) >= 0) {
+            sink.accept(outPacket);
+            av_packet_unref(outPacket);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (swsContext != null) {
+                sws_freeContext(swsContext);
+                swsContext = null;
+            }
+            if (yuvFrame != null) {
+                av_frame_free(yuvFrame);
+                yuvFrame = null;
+            }
+            if (decodedFrame != null) {
+                av_frame_free(decodedFrame);
+                decodedFrame = null;
+            }
+            if (inPacket != null) {
+                av_packet_free(inPacket);
+                inPacket = null;
+            }
+            if (outPacket != null) {
+                av_packet_free(outPacket);
+                outPacket = null;
+            }
+            if (inBuffer != null) {
+                av_free(inBuffer);
+                inBuffer = null;
+                inCapacity = 0;
+            }
+            if (decoder != null) {
+                avcodec_free_context(decoder);
+                decoder = null;
+            }
+            if (encoder != null) {
+                avcodec_free_context(encoder);
+                encoder = null;
+            }
+        } catch (Throwable e) {
+            log.error("Error releasing transcoder: {}", e.getMessage());
+        }
+    }
+}
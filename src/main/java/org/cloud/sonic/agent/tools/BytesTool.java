@@ -20,7 +20,6 @@ package org.cloud.sonic.agent.tools;
 import jakarta.websocket.Session;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.regex.Matcher;
@@ -80,43 +79,53 @@ public class BytesTool {
         return data3;
     }
 
+    /**
+     * 以下发送方法只把消息放入连接的发送队列，不会阻塞调用线程，见 {@link SessionOutbox}
+     * 二进制消息按画面处理：入队时拷贝，积压时丢弃最旧的
+     */
     public static void sendByte(Session session, byte[] message) {
+        sendByte(session, ByteBuffer.wrap(message));
+    }
+
+    public static void sendByte(Session session, ByteBuffer message) {
+        sendByte(session, message, SessionOutbox.Policy.FRAME);
+    }
+
+    public static void sendByte(Session session, ByteBuffer message, SessionOutbox.Policy policy) {
         if (session == null || !session.isOpen()) {
             return;
         }
-        synchronized (session) {
-            try {
-                session.getBasicRemote().sendBinary(ByteBuffer.wrap(message));
-            } catch (IllegalStateException | IOException e) {
-                log.error("WebSocket send msg error...connection has been closed.");
-            }
-        }
+        SessionOutbox.of(session).sendBinary(message, policy, null);
     }
 
-    public static void sendByte(Session session, ByteBuffer message) {
+    /**
+     * 文本消息按顺序发送，从不丢弃
+     */
+    public static void sendText(Session session, String message) {
         if (session == null || !session.isOpen()) {
             return;
         }
-        synchronized (session) {
-            try {
-                session.getBasicRemote().sendBinary(message);
-            } catch (IllegalStateException | IOException e) {
-                log.error("WebSocket send msg error...connection has been closed.");
-            }
-        }
+        SessionOutbox.of(session).sendText(message);
     }
 
-    public static void sendText(Session session, String message) {
+    /**
+     * @param policy {@link SessionOutbox.Policy#STREAM} 时积压后丢弃最旧的，用于日志等持续输出的文本
+     */
+    public static void sendText(Session session, String message, SessionOutbox.Policy policy) {
         if (session == null || !session.isOpen()) {
             return;
         }
-        synchronized (session) {
-            try {
-                session.getBasicRemote().sendText(message);
-            } catch (IllegalStateException | IOException e) {
-                log.error("WebSocket send msg error...connection has been closed.");
-            }
+        SessionOutbox.of(session).sendText(message, policy);
+    }
+
+    /**
+     * 只关心最新值的消息（如性能数据），积压时同一个 key 只保留最新的一条
+     */
+    public static void sendText(Session session, String message, String key) {
+        if (session == null || !session.isOpen()) {
+            return;
         }
+        SessionOutbox.of(session).sendText(message, key);
     }
 
     public static boolean isInt(String s) {
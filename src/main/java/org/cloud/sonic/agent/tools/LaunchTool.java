@@ -42,8 +42,8 @@ public class LaunchTool implements ApplicationRunner {
         }
         ScheduleTool.scheduleAtFixedRate(
                 new TransportConnectionThread(),
-                TransportConnectionThread.DELAY,
-                TransportConnectionThread.DELAY,
+                TransportConnectionThread.TICK,
+                TransportConnectionThread.TICK,
                 TransportConnectionThread.TIME_UNIT
         );
         TransportWorker.readQueue();
@@ -0,0 +1,450 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.tools;
+
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+/**
+ * 单个 websocket 连接的发送队列，生产者只入队，不会阻塞在网络上
+ * 队列由 getAsyncRemote 依次发送，同一时刻只有一条消息在发送中，上一条完成后在回调中发送下一条
+ * 按消息类别处理积压：控制消息从不丢弃，性能数据按 key 只保留最新的一条，音频和日志丢弃最旧的，画面只保留最新的几帧
+ * 控制消息积压超过上限时说明前端已经跟不上，直接关闭连接
+ * 发送顺序：控制消息、性能数据、音频和日志、画面
+ */
+public class SessionOutbox {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionOutbox.class);
+
+    private static final String PROPERTY = "outbox";
+
+    /**
+     * 积压的画面超过这个数量时丢弃最旧的
+     */
+    public static final int FRAME_CAPACITY = 2;
+
+    /**
+     * 积压的音频、日志超过这个数量时丢弃最旧的
+     */
+    public static final int STREAM_CAPACITY = 256;
+
+    /**
+     * 积压的控制消息超过这个数量或字节数（文本按字符数计）时关闭连接
+     */
+    public static final int CONTROL_MAX_COUNT = 8192;
+
+    public static final long CONTROL_MAX_BYTES = 32L * 1024 * 1024;
+
+    private static final double EWMA_ALPHA = 0.2;
+
+    public enum Policy {
+        /**
+         * 按顺序发送，从不丢弃；二进制消息不拷贝，调用方之后不能再修改缓冲区
+         */
+        CONTROL,
+        /**
+         * 同一个 key 只保留最新的一条
+         */
+        PERF,
+        /**
+         * 按顺序发送，积压时丢弃最旧的，用于音频、日志等持续输出的数据；二进制消息不拷贝
+         */
+        STREAM,
+        /**
+         * 入队时拷贝，积压时丢弃最旧的画面
+         */
+        FRAME
+    }
+
+    private static class Message {
+        private final Policy policy;
+        private final String text;
+        private final ByteBuffer data;
+        private final LongConsumer onSent;
+        private final long enqueued;
+        private final long size;
+
+        private Message(Policy policy, String text, ByteBuffer data, LongConsumer onSent) {
+            this.policy = policy;
+            this.text = text;
+            this.data = data;
+            this.onSent = onSent;
+            this.enqueued = System.nanoTime();
+            this.size = text != null ? text.length() : data.remaining();
+        }
+    }
+
+    private final Session session;
+
+    private final ArrayDeque<Message> control = new ArrayDeque<>();
+
+    private final Map<String, Message> perf = new LinkedHashMap<>();
+
+    private final ArrayDeque<Message> stream = new ArrayDeque<>();
+
+    private final ArrayDeque<Message> frames = new ArrayDeque<>();
+
+    private long controlBytes = 0;
+
+    /**
+     * 控制消息积压超过上限，连接已经关闭
+     */
+    private boolean overflowed = false;
+
+    /**
+     * 发送完或被丢弃的画面缓冲区，下一帧拷贝时复用
+     */
+    private ByteBuffer spare;
+
+    private boolean sending = false;
+
+    /**
+     * 发送回调是否在发起发送的线程中同步执行，是时由发起方的循环继续发送下一条，避免递归
+     */
+    private boolean inline = false;
+
+    private boolean completed = false;
+
+    private long sent = 0;
+
+    private long dropped = 0;
+
+    private long streamDropped = 0;
+
+    private long coalesced = 0;
+
+    private long failed = 0;
+
+    private int maxDepth = 0;
+
+    private double sendMs = 0;
+
+    public SessionOutbox(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * 取得连接的发送队列，第一次使用时创建
+     */
+    public static SessionOutbox of(Session session) {
+        Map<String, Object> properties = session.getUserProperties();
+        synchronized (properties) {
+            Object outbox = properties.get(PROPERTY);
+            if (outbox == null) {
+                outbox = new SessionOutbox(session);
+                properties.put(PROPERTY, outbox);
+            }
+            return (SessionOutbox) outbox;
+        }
+    }
+
+    /**
+     * @return 连接的发送队列，还没有发送过消息时为 null
+     */
+    public static SessionOutbox peek(Session session) {
+        return (SessionOutbox) session.getUserProperties().get(PROPERTY);
+    }
+
+    public void sendText(String text) {
+        offer(null, new Message(Policy.CONTROL, text, null, null));
+    }
+
+    /**
+     * @param policy 只能是 {@link Policy#CONTROL} 或 {@link Policy#STREAM}
+     */
+    public void sendText(String text, Policy policy) {
+        if (policy != Policy.CONTROL && policy != Policy.STREAM) {
+            throw new IllegalArgumentException("text message can not use policy " + policy);
+        }
+        offer(null, new Message(policy, text, null, null));
+    }
+
+    /**
+     * 性能数据等只关心最新值的消息，积压时同一个 key 只保留最新的一条
+     */
+    public void sendText(String text, String key) {
+        offer(key, new Message(Policy.PERF, text, null, null));
+    }
+
+    /**
+     * @param onSent 发送完成后回调从入队到发送完成的纳秒数，可以为 null
+     */
+    public void sendBinary(ByteBuffer data, Policy policy, LongConsumer onSent) {
+        if (policy == Policy.FRAME) {
+            data = copy(data);
+        }
+        offer(null, new Message(policy, null, data, onSent));
+    }
+
+    private ByteBuffer copy(ByteBuffer data) {
+        int length = data.remaining();
+        ByteBuffer target;
+        synchronized (this) {
+            target = spare;
+            spare = null;
+        }
+        if (target == null || target.capacity() < length) {
+            target = ByteBuffer.allocate(Math.max(length, length + (length >> 2)));
+        }
+        target.clear();
+        target.put(data.duplicate());
+        target.flip();
+        return target;
+    }
+
+    private void offer(String key, Message message) {
+        if (session == null || !session.isOpen()) {
+            return;
+        }
+        Message next;
+        synchronized (this) {
+            if (overflowed) {
+                return;
+            }
+            switch (message.policy) {
+                case CONTROL -> {
+                    if (control.size() >= CONTROL_MAX_COUNT || controlBytes + message.size > CONTROL_MAX_BYTES) {
+                        overflow();
+                        return;
+                    }
+                    control.add(message);
+                    controlBytes += message.size;
+                }
+                case PERF -> {
+                    if (perf.put(key, message) != null) {
+                        coalesced++;
+                    }
+                }
+                case STREAM -> {
+                    stream.add(message);
+                    while (stream.size() > STREAM_CAPACITY) {
+                        stream.poll();
+                        streamDropped++;
+                    }
+                }
+                case FRAME -> {
+                    frames.add(message);
+                    while (frames.size() > FRAME_CAPACITY) {
+                        recycle(frames.poll());
+                        dropped++;
+                    }
+                }
+            }
+            maxDepth = Math.max(maxDepth, getDepth());
+            if (sending) {
+                return;
+            }
+            sending = true;
+            next = poll();
+        }
+        transmit(next);
+    }
+
+    /**
+     * 调用时持有锁：清空积压的消息，在其他线程中关闭连接，避免在发送线程里阻塞
+     */
+    private void overflow() {
+        overflowed = true;
+        log.warn("websocket send backlog exceeds {} messages or {} bytes, closing the session.",
+                CONTROL_MAX_COUNT, CONTROL_MAX_BYTES);
+        clear();
+        Thread closer = new Thread(() -> {
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "send backlog overflow"));
+            } catch (IOException | RuntimeException e) {
+                log.debug("close session error: {}", e.getMessage());
+            }
+        }, "outbox-overflow-close");
+        closer.setDaemon(true);
+        closer.start();
+    }
+
+    private void clear() {
+        control.clear();
+        controlBytes = 0;
+        perf.clear();
+        stream.clear();
+        frames.clear();
+    }
+
+    /**
+     * 调用时持有锁，队列为空时结束发送状态
+     */
+    private Message poll() {
+        Message message = control.poll();
+        if (message != null) {
+            controlBytes -= message.size;
+        }
+        if (message == null && !perf.isEmpty()) {
+            Iterator<Message> iterator = perf.values().iterator();
+            message = iterator.next();
+            iterator.remove();
+        }
+        if (message == null) {
+            message = stream.poll();
+        }
+        if (message == null) {
+            message = frames.poll();
+        }
+        if (message == null) {
+            sending = false;
+        }
+        return message;
+    }
+
+    private void transmit(Message message) {
+        while (message != null) {
+            Message current = message;
+            synchronized (this) {
+                inline = true;
+                completed = false;
+            }
+            try {
+                if (current.text != null) {
+                    session.getAsyncRemote().sendText(current.text, result -> onResult(current, result));
+                } else {
+                    session.getAsyncRemote().sendBinary(current.data, result -> onResult(current, result));
+                }
+            } catch (RuntimeException e) {
+                // 连接已经关闭
+                onResult(current, new SendResult(e));
+            }
+            synchronized (this) {
+                inline = false;
+                if (!completed) {
+                    // 在其他线程中完成，由回调继续发送
+                    return;
+                }
+                message = poll();
+            }
+        }
+    }
+
+    private void onResult(Message message, SendResult result) {
+        long latency = System.nanoTime() - message.enqueued;
+        Message next;
+        synchronized (this) {
+            if (result.isOK()) {
+                sent++;
+                sendMs += EWMA_ALPHA * (latency / 1_000_000.0 - sendMs);
+            } else {
+                failed++;
+                if (!session.isOpen()) {
+                    // 连接已经关闭，之后的消息不再发送
+                    clear();
+                }
+            }
+            recycle(message);
+            completed = true;
+            if (inline) {
+                next = null;
+            } else {
+                next = poll();
+            }
+        }
+        if (!result.isOK()) {
+            log.error("WebSocket send msg error...connection has been closed.");
+        } else if (message.onSent != null) {
+            message.onSent.accept(latency);
+        }
+        if (next != null) {
+            transmit(next);
+        }
+    }
+
+    private void recycle(Message message) {
+        if (message != null && message.policy == Policy.FRAME
+                && (spare == null || spare.capacity() < message.data.capacity())) {
+            spare = message.data;
+        }
+    }
+
+    /**
+     * 排队中的消息数，不含发送中的一条
+     */
+    public synchronized int getDepth() {
+        return control.size() + perf.size() + stream.size() + frames.size();
+    }
+
+    public synchronized int getDepth(Policy policy) {
+        return switch (policy) {
+            case CONTROL -> control.size();
+            case PERF -> perf.size();
+            case STREAM -> stream.size();
+            case FRAME -> frames.size();
+        };
+    }
+
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    /**
+     * 积压时丢弃的画面数
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * 积压时丢弃的音频、日志条数
+     */
+    public synchronized long getStreamDropped() {
+        return streamDropped;
+    }
+
+    /**
+     * 控制消息积压超过上限而关闭了连接
+     */
+    public synchronized boolean isOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * 被同一个 key 的新消息覆盖的性能数据条数
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     * 从入队到发送完成的平均耗时（指数平均）
+     */
+    public synchronized double getSendMs() {
+        return sendMs;
+    }
+}
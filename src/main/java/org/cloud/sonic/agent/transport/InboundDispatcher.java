@@ -0,0 +1,223 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import com.alibaba.fastjson.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * server 下发指令的分发器
+ * 同一个 key（通常是 udId）的指令进入同一条队列按到达顺序串行执行，不同 key 之间并行，
+ * 全部队列共用固定数量的工作线程，每条队列每次只执行一条后让出线程；
+ * 单条队列或全部积压超过上限时拒绝新指令，不再无限制地创建线程；
+ * release、stopDebug 等必须执行的指令不受上限限制，见 {@link #isMandatory(JSONObject)}
+ */
+public class InboundDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(InboundDispatcher.class);
+
+    /**
+     * 没有 udId 的指令（hub、reboot 等）共用的 key
+     */
+    public static final String AGENT_KEY = "agent";
+
+    /**
+     * 拒绝指令时回复 server 的消息
+     */
+    public static final String REJECTED_MSG = "commandRejected";
+
+    private static final Set<String> MANDATORY = Set.of("release", "stopDebug", "forceStopSuite");
+
+    private final String name;
+
+    private final int laneCapacity;
+
+    private final int maxPending;
+
+    private final ExecutorService executor;
+
+    private final Map<String, ArrayDeque<Runnable>> lanes = new HashMap<>();
+
+    /**
+     * 没有 key 的指令各自独立，使用递增的 key
+     */
+    private long uniqueKey = 0;
+
+    private int pending = 0;
+
+    private long executed = 0;
+
+    private long rejected = 0;
+
+    /**
+     * @param workers      工作线程数，即同时执行的指令数上限
+     * @param laneCapacity 单条队列的积压上限，包括正在执行的一条
+     * @param maxPending   全部队列的积压上限
+     */
+    public InboundDispatcher(String name, int workers, int laneCapacity, int maxPending) {
+        this.name = name;
+        this.laneCapacity = laneCapacity;
+        this.maxPending = maxPending;
+        AtomicInteger index = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, name + "-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    /**
+     * 按 udId 分队列，没有 udId 的指令都进入 {@link #AGENT_KEY}
+     */
+    public static String keyOf(JSONObject jsonObject) {
+        String udId = jsonObject.getString("udId");
+        return udId == null || udId.isEmpty() ? AGENT_KEY : udId;
+    }
+
+    /**
+     * 认证和释放设备等指令被拒绝后 agent 与 server 的状态会不一致，始终排队执行
+     */
+    public static boolean isMandatory(JSONObject jsonObject) {
+        return MANDATORY.contains(jsonObject.getString("msg"));
+    }
+
+    /**
+     * 指令被拒绝时回复 server，由 server 决定重试还是提示用户
+     */
+    public static JSONObject rejection(JSONObject jsonObject, String reason) {
+        JSONObject reply = new JSONObject();
+        reply.put("msg", REJECTED_MSG);
+        reply.put("command", jsonObject.getString("msg"));
+        reply.put("udId", jsonObject.getString("udId"));
+        reply.put("reason", reason);
+        return reply;
+    }
+
+    /**
+     * @param key 同一个 key 的指令按顺序执行，null 表示不需要和其他指令保持顺序
+     * @return 积压超过上限被拒绝时为 false
+     */
+    public boolean dispatch(String key, Runnable task) {
+        return dispatch(key, task, false);
+    }
+
+    /**
+     * @param force 为 true 时不受积压上限限制，仍与同一个 key 的指令保持顺序
+     * @return 积压超过上限被拒绝时为 false
+     */
+    public boolean dispatch(String key, Runnable task, boolean force) {
+        synchronized (this) {
+            if (key == null) {
+                key = "#" + uniqueKey++;
+            }
+            ArrayDeque<Runnable> lane = lanes.get(key);
+            if (!force && (pending >= maxPending || (lane != null && lane.size() >= laneCapacity))) {
+                rejected++;
+                log.warn("{} rejected a command for {}, lane depth: {}, pending: {}", name, key,
+                        lane == null ? 0 : lane.size(), pending);
+                return false;
+            }
+            pending++;
+            if (lane != null) {
+                // 队列正在执行，排在后面
+                lane.add(task);
+                return true;
+            }
+            lane = new ArrayDeque<>();
+            lane.add(task);
+            lanes.put(key, lane);
+        }
+        schedule(key);
+        return true;
+    }
+
+    private void schedule(String key) {
+        executor.execute(() -> runNext(key));
+    }
+
+    /**
+     * 执行队列头部的一条，完成后才从队列移除，队列不为空时重新排队
+     */
+    private void runNext(String key) {
+        Runnable task;
+        synchronized (this) {
+            task = lanes.get(key).peek();
+        }
+        try {
+            task.run();
+        } catch (Throwable e) {
+            log.error("{} failed to handle command for {}", name, key, e);
+        }
+        boolean more;
+        synchronized (this) {
+            ArrayDeque<Runnable> lane = lanes.get(key);
+            lane.poll();
+            pending--;
+            executed++;
+            more = !lane.isEmpty();
+            if (!more) {
+                lanes.remove(key);
+            }
+        }
+        if (more) {
+            schedule(key);
+        }
+    }
+
+    /**
+     * @return 每个 key 积压的指令数，包括正在执行的一条
+     */
+    public synchronized Map<String, Integer> getLaneDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        for (Map.Entry<String, ArrayDeque<Runnable>> entry : lanes.entrySet()) {
+            depths.put(entry.getKey(), entry.getValue().size());
+        }
+        return depths;
+    }
+
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    public synchronized long getExecuted() {
+        return executed;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
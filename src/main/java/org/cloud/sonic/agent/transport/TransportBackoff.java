@@ -0,0 +1,58 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 重连间隔：每失败一次翻倍，直到上限；在 [一半, 全部] 之间随机，
+ * 避免 server 重启后大量 agent 在同一时刻重连
+ */
+public class TransportBackoff {
+
+    private final long baseMs;
+
+    private final long maxMs;
+
+    private int attempts = 0;
+
+    public TransportBackoff(long baseMs, long maxMs) {
+        this.baseMs = baseMs;
+        this.maxMs = maxMs;
+    }
+
+    /**
+     * @return 下一次重连前等待的时间
+     */
+    public synchronized long nextDelayMs() {
+        long cap = attempts >= 30 ? maxMs : Math.min(maxMs, baseMs << attempts);
+        attempts++;
+        return cap / 2 + ThreadLocalRandom.current().nextLong(cap - cap / 2 + 1);
+    }
+
+    /**
+     * 连接成功后从最短的间隔重新开始
+     */
+    public synchronized void reset() {
+        attempts = 0;
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * 把发往 server 的消息合并成尽量少的 websocket 帧
+ * 阻塞等待第一条消息，队列空闲时消息到达后立即发送；随后在很短的时间窗口内继续收集，
+ * 多条消息用 {"msg":"batch","messages":[...]} 包装成一帧，只有一条时仍按原样发送
+ * server 选定二进制格式时由 {@link TransportCodec} 拼成二进制帧
+ */
+public class TransportBatcher {
+
+    public static final String BATCH_MSG = "batch";
+
+    private static final int ENVELOPE_LENGTH = 64;
+
+    /**
+     * 待发送消息的来源，BlockingQueue::poll 或 {@link TransportSpool}
+     */
+    public interface Source {
+        JSONObject poll(long timeout, TimeUnit unit) throws InterruptedException;
+    }
+
+    private final Source source;
+
+    private final long lingerNanos;
+
+    private final int maxBytes;
+
+    private final boolean batch;
+
+    /**
+     * 已经取出但还没有放进帧的消息，超出大小限制时留到下一帧
+     */
+    private JSONObject carry;
+
+    /**
+     * 上一帧中最大的 seq，只有 {@link TransportSpool} 中的消息带 seq，没有时为 0
+     */
+    private long lastSeq;
+
+    private volatile long messages = 0;
+
+    private volatile long frames = 0;
+
+    /**
+     * @param batch      server 不支持 batch 时为 false，每条消息单独成帧，也不再等待
+     * @param lingerMs   收到第一条消息后继续收集的时间
+     * @param maxBytes   一帧的大致上限，单条超过上限的消息单独成帧
+     */
+    public TransportBatcher(Source source, boolean batch, long lingerMs, int maxBytes) {
+        this.source = source;
+        this.batch = batch;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, lingerMs));
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 取出下一帧，超时仍没有消息时返回 null
+     *
+     * @param agentId 写入每条消息的 agentId
+     */
+    public String next(Integer agentId, long timeout, TimeUnit unit) throws InterruptedException {
+        List<String> batched = collect(agentId, timeout, unit, JSONObject::toJSONString, String::length, 1);
+        if (batched == null) {
+            return null;
+        }
+        return batched.size() == 1 ? batched.get(0) : wrap(batched, agentId);
+    }
+
+    /**
+     * 按 server 选定的二进制格式取出下一帧，见 {@link TransportCodec}
+     */
+    public ByteBuffer nextBinary(TransportCodec codec, Integer agentId, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        List<byte[]> batched = collect(agentId, timeout, unit, TransportCodec::encodeMessage, m -> m.length, 4);
+        return batched == null ? null : codec.pack(batched);
+    }
+
+    /**
+     * @param overhead 每条消息在帧中额外占用的长度
+     */
+    private <T> List<T> collect(Integer agentId, long timeout, TimeUnit unit, Function<JSONObject, T> encoder,
+                                ToIntFunction<T> length, int overhead) throws InterruptedException {
+        JSONObject first = carry;
+        carry = null;
+        if (first == null) {
+            first = source.poll(timeout, unit);
+            if (first == null) {
+                return null;
+            }
+            first.put("agentId", agentId);
+        }
+        lastSeq = first.getLongValue(TransportSpool.SEQ);
+        List<T> batched = new ArrayList<>();
+        T encoded = encoder.apply(first);
+        batched.add(encoded);
+        messages++;
+        frames++;
+        if (!batch) {
+            return batched;
+        }
+        // 预留 batch 包装的长度
+        int bytes = length.applyAsInt(encoded) + ENVELOPE_LENGTH;
+        long deadline = System.nanoTime() + lingerNanos;
+        while (bytes < maxBytes) {
+            // 先取已经在队列里的，队列空了再等到窗口结束
+            JSONObject m = source.poll(0, TimeUnit.NANOSECONDS);
+            if (m == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || (m = source.poll(remaining, TimeUnit.NANOSECONDS)) == null) {
+                    break;
+                }
+            }
+            m.put("agentId", agentId);
+            encoded = encoder.apply(m);
+            int size = length.applyAsInt(encoded) + overhead;
+            if (bytes + size > maxBytes) {
+                carry = m;
+                break;
+            }
+            // 控制消息没有 seq，插在 BULK 消息之间
+            lastSeq = Math.max(lastSeq, m.getLongValue(TransportSpool.SEQ));
+            batched.add(encoded);
+            bytes += size;
+            messages++;
+        }
+        return batched;
+    }
+
+    /**
+     * 取走留到下一帧的消息，重连后重新发送时使用
+     */
+    public JSONObject takeCarry() {
+        JSONObject m = carry;
+        carry = null;
+        return m;
+    }
+
+    /**
+     * 消息已经序列化，直接拼接，不再重新序列化一遍
+     */
+    static String wrap(List<String> messages, Integer agentId) {
+        int length = ENVELOPE_LENGTH;
+        for (String m : messages) {
+            length += m.length() + 1;
+        }
+        StringBuilder sb = new StringBuilder(length);
+        sb.append("{\"msg\":\"").append(BATCH_MSG).append("\",\"agentId\":").append(agentId)
+                .append(",\"messages\":[");
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(messages.get(i));
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * 按 server 的方式拆开一帧：batch 帧还原为其中的消息，其他帧原样返回
+     */
+    public static List<JSONObject> unwrap(String frame) {
+        JSONObject jsonObject = JSON.parseObject(frame);
+        List<JSONObject> result = new ArrayList<>();
+        if (BATCH_MSG.equals(jsonObject.getString("msg"))) {
+            JSONArray array = jsonObject.getJSONArray("messages");
+            for (int i = 0; i < array.size(); i++) {
+                result.add(array.getJSONObject(i));
+            }
+        } else {
+            result.add(jsonObject);
+        }
+        return result;
+    }
+
+    /**
+     * 已取出的消息数
+     */
+    public long getMessages() {
+        return messages;
+    }
+
+    /**
+     * 已取出的帧数
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * 上一帧中最大的 seq，发送成功后提交
+     */
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    public boolean isBatch() {
+        return batch;
+    }
+}
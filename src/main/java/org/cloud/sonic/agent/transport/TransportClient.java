@@ -54,6 +54,7 @@ import org.testng.xml.XmlTest;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -64,8 +65,27 @@ public class TransportClient extends WebSocketClient {
     String version = String.valueOf(SpringTool.getPropertiesValue("spring.version"));
     Integer port = Integer.valueOf(SpringTool.getPropertiesValue("sonic.agent.port"));
 
+    /**
+     * auth 通过后由 server 选定，见 {@link TransportCodec}
+     */
+    private volatile TransportCodec codec = TransportCodec.TEXT;
+
+    /**
+     * server 是否确认收到的消息，见 {@link TransportSession}
+     */
+    private volatile boolean ack = false;
+
     public TransportClient(URI serverUri) {
-        super(serverUri);
+        super(serverUri, TransportSession.headers(TransportCodec.offer(TransportWorker.getWireFormat()),
+                TransportWorker.getQueue().getSpool().getCommitted()));
+    }
+
+    public TransportCodec getCodec() {
+        return codec;
+    }
+
+    public boolean isAck() {
+        return ack;
     }
 
     @Override
@@ -75,12 +95,38 @@ public class TransportClient extends WebSocketClient {
 
     @Override
     public void onMessage(String s) {
-        JSONObject jsonObject = JSON.parseObject(s);
+        onMessage(JSON.parseObject(s));
+    }
+
+    /**
+     * server 选定二进制格式后发来的帧，一帧中可能有多条消息
+     */
+    @Override
+    public void onMessage(ByteBuffer bytes) {
+        for (JSONObject jsonObject : TransportCodec.decode(bytes)) {
+            onMessage(jsonObject);
+        }
+    }
+
+    private void onMessage(JSONObject jsonObject) {
         if (jsonObject.getString("msg").equals("pong")) {
             return;
         }
+        if (jsonObject.getString("msg").equals("ack")) {
+            TransportWorker.ack(jsonObject.getLongValue("seq"));
+            return;
+        }
         log.info("Agent <- Server message: {}", jsonObject);
-        TransportWorker.cachedThreadPool.execute(() -> {
+        // 连接相关的消息在 socket 线程中处理，不排在可能长时间阻塞的设备指令之后
+        if (jsonObject.getString("msg").equals("auth")) {
+            onAuth(jsonObject);
+            return;
+        }
+        if (jsonObject.getString("msg").equals("settings")) {
+            onSettings(jsonObject);
+            return;
+        }
+        boolean accepted = TransportWorker.dispatch(jsonObject, () -> {
             switch (jsonObject.getString("msg")) {
                 case "occupy" -> {
                     String udId = jsonObject.getString("udId");
@@ -222,61 +268,6 @@ public class TransportClient extends WebSocketClient {
                         }
                     }
                 }
-                case "settings" -> {
-                    if (jsonObject.getInteger("id") != null) {
-                        BytesTool.agentId = jsonObject.getInteger("id");
-                    }
-                    if (jsonObject.getInteger("highTemp") != null) {
-                        BytesTool.highTemp = jsonObject.getInteger("highTemp");
-                    }
-                    if (jsonObject.getInteger("highTempTime") != null) {
-                        BytesTool.highTempTime = jsonObject.getInteger("highTempTime");
-                    }
-                    if (jsonObject.getInteger("remoteTimeout") != null) {
-                        BytesTool.remoteTimeout = jsonObject.getInteger("remoteTimeout");
-                    }
-                }
-                case "auth" -> {
-                    if (jsonObject.getString("result").equals("pass")) {
-                        log.info("server auth successful!");
-                        BytesTool.agentId = jsonObject.getInteger("id");
-                        BytesTool.highTemp = jsonObject.getInteger("highTemp");
-                        BytesTool.highTempTime = jsonObject.getInteger("highTempTime");
-                        BytesTool.remoteTimeout = jsonObject.getInteger("remoteTimeout");
-                        BytesTool.agentHost = host;
-                        TransportWorker.client = this;
-                        JSONObject agentInfo = new JSONObject();
-                        agentInfo.put("msg", "agentInfo");
-                        agentInfo.put("agentId", BytesTool.agentId);
-                        agentInfo.put("port", port);
-                        agentInfo.put("version", "v" + version);
-                        agentInfo.put("systemType", System.getProperty("os.name"));
-                        agentInfo.put("host", host);
-                        agentInfo.put("hasHub", PHCTool.isSupport() ? 1 : 0);
-                        TransportWorker.client.send(agentInfo.toJSONString());
-                        IDevice[] iDevices = AndroidDeviceBridgeTool.getRealOnLineDevices();
-                        for (IDevice d : iDevices) {
-                            String status = AndroidDeviceManagerMap.getStatusMap().get(d.getSerialNumber());
-                            if (status != null) {
-                                AndroidDeviceLocalStatus.send(d.getSerialNumber(), status);
-                            } else {
-                                AndroidDeviceLocalStatus.send(d.getSerialNumber(), d.getState() == null ? null : d.getState().toString());
-                            }
-                        }
-                        List<String> udIds = SibTool.getDeviceList();
-                        for (String u : udIds) {
-                            String status = IOSDeviceManagerMap.getMap().get(u);
-                            if (status != null) {
-                                IOSDeviceLocalStatus.send(u, status);
-                            } else {
-                                IOSDeviceLocalStatus.send(u, DeviceStatus.ONLINE);
-                            }
-                        }
-                    } else {
-                        TransportWorker.isKeyAuth = false;
-                        log.info("server auth failed!");
-                    }
-                }
                 case "shutdown" -> AgentManagerTool.stop();
                 case "reboot" -> {
                     if (jsonObject.getInteger("platform") == PlatformType.ANDROID) {
@@ -357,12 +348,115 @@ public class TransportClient extends WebSocketClient {
                 }
             }
         });
+        if (!accepted) {
+            log.warn("Too many pending commands, reject server message: {}", jsonObject.getString("msg"));
+            TransportWorker.send(InboundDispatcher.rejection(jsonObject, "busy"));
+        }
+    }
+
+    private void onSettings(JSONObject jsonObject) {
+        if (jsonObject.getInteger("id") != null) {
+            BytesTool.agentId = jsonObject.getInteger("id");
+        }
+        if (jsonObject.getInteger("highTemp") != null) {
+            BytesTool.highTemp = jsonObject.getInteger("highTemp");
+        }
+        if (jsonObject.getInteger("highTempTime") != null) {
+            BytesTool.highTempTime = jsonObject.getInteger("highTempTime");
+        }
+        if (jsonObject.getInteger("remoteTimeout") != null) {
+            BytesTool.remoteTimeout = jsonObject.getInteger("remoteTimeout");
+        }
+    }
+
+    /**
+     * 只处理当前正在连接的这一条，已经超时关闭或被替换的连接不再设置为可用
+     */
+    private void onAuth(JSONObject jsonObject) {
+        if (isClosed() || isClosing() || !TransportConnectionThread.isConnecting(this)) {
+            log.info("ignore auth of a stale connection.");
+            return;
+        }
+        if (jsonObject.getString("result").equals("pass")) {
+            log.info("server auth successful!");
+            BytesTool.agentId = jsonObject.getInteger("id");
+            BytesTool.highTemp = jsonObject.getInteger("highTemp");
+            BytesTool.highTempTime = jsonObject.getInteger("highTempTime");
+            BytesTool.remoteTimeout = jsonObject.getInteger("remoteTimeout");
+            BytesTool.agentHost = host;
+            codec = TransportCodec.choose(jsonObject.getString("wireFormat"), TransportWorker.getWireFormat());
+            log.info("wire format: {}", codec.getName());
+            ack = jsonObject.getBooleanValue("ack");
+            if (ack) {
+                // server 已经处理到 ackSeq，之后的消息重新发送
+                TransportWorker.getQueue().commit(jsonObject.getLongValue("ackSeq"));
+            }
+            TransportConnectionThread.connected();
+            TransportWorker.setClient(this);
+            if (isClosed() || isClosing()) {
+                // 设置期间连接被关闭，onClose 可能已经先执行，这里补一次清理
+                if (TransportWorker.client == this) {
+                    TransportWorker.client = null;
+                }
+                return;
+            }
+            if (TransportSession.canResume(jsonObject.getBooleanValue("resumed"))) {
+                log.info("session {} resumed, skip agent info.", TransportSession.getId());
+            } else {
+                registerAgent();
+                TransportSession.setRegistered(true);
+            }
+            // 控制消息没有 seq，交给连接后就出队，断开时可能丢失，每次连接都重新上报设备状态
+            registerDevices();
+        } else {
+            TransportWorker.isKeyAuth = false;
+            log.info("server auth failed!");
+        }
+    }
+
+    /**
+     * 上报 agent 信息
+     */
+    private void registerAgent() {
+        JSONObject agentInfo = new JSONObject();
+        agentInfo.put("msg", "agentInfo");
+        agentInfo.put("agentId", BytesTool.agentId);
+        agentInfo.put("port", port);
+        agentInfo.put("version", "v" + version);
+        agentInfo.put("systemType", System.getProperty("os.name"));
+        agentInfo.put("host", host);
+        agentInfo.put("hasHub", PHCTool.isSupport() ? 1 : 0);
+        TransportWorker.client.send(agentInfo.toJSONString());
+    }
+
+    /**
+     * 上报全部设备的状态
+     */
+    private void registerDevices() {
+        IDevice[] iDevices = AndroidDeviceBridgeTool.getRealOnLineDevices();
+        for (IDevice d : iDevices) {
+            String status = AndroidDeviceManagerMap.getStatusMap().get(d.getSerialNumber());
+            if (status != null) {
+                AndroidDeviceLocalStatus.send(d.getSerialNumber(), status);
+            } else {
+                AndroidDeviceLocalStatus.send(d.getSerialNumber(), d.getState() == null ? null : d.getState().toString());
+            }
+        }
+        List<String> udIds = SibTool.getDeviceList();
+        for (String u : udIds) {
+            String status = IOSDeviceManagerMap.getMap().get(u);
+            if (status != null) {
+                IOSDeviceLocalStatus.send(u, status);
+            } else {
+                IOSDeviceLocalStatus.send(u, DeviceStatus.ONLINE);
+            }
+        }
     }
 
     @Override
     public void onClose(int i, String s, boolean b) {
         if (TransportWorker.isKeyAuth) {
-            log.info("Server disconnected. Retry in 10s...");
+            log.info("Server disconnected. Reconnecting...");
         }
         if (TransportWorker.client == this) {
             TransportWorker.client = null;
@@ -0,0 +1,209 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson2.JSONB;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 与 server 之间的消息格式
+ * 连接时通过 {@link #HEADER} 请求头按优先顺序列出 agent 支持的格式，server 在 auth 回复的 wireFormat 中选定一种，
+ * 没有选择的 server 继续使用 JSON 文本；无论选择哪种格式，文本帧始终有效
+ * <p>
+ * 二进制帧：第一个字节为格式编号，之后是若干条 [4 字节长度][fastjson JSONB] 消息，jsonb-deflate 时这部分整体压缩，
+ * 一帧中有多条消息时即为 batch，不再需要外层包装；jsonb-deflate 下太小的帧压缩不划算，按 jsonb 发送
+ */
+public enum TransportCodec {
+    TEXT("text", 0),
+    JSONB_PLAIN("jsonb", 1),
+    JSONB_DEFLATE("jsonb-deflate", 2);
+
+    public static final String HEADER = "Sonic-Wire-Format";
+
+    private static final int DEFLATE_MIN_BYTES = 512;
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private final String name;
+
+    private final byte id;
+
+    TransportCodec(String name, int id) {
+        this.name = name;
+        this.id = (byte) id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isBinary() {
+        return this != TEXT;
+    }
+
+    /**
+     * @return 请求头的值，从 preferred 开始按优先顺序列出，最后总是 text
+     */
+    public static String offer(TransportCodec preferred) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = preferred.ordinal(); i >= 0; i--) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(values()[i].name);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param name 配置中的名称，无法识别时为 text
+     */
+    public static TransportCodec of(String name) {
+        for (TransportCodec codec : values()) {
+            if (codec.name.equalsIgnoreCase(name)) {
+                return codec;
+            }
+        }
+        return TEXT;
+    }
+
+    /**
+     * @param chosen server 选定的格式，没有选择或不在 offer 的范围内时为 text
+     */
+    public static TransportCodec choose(String chosen, TransportCodec preferred) {
+        TransportCodec codec = of(chosen);
+        return codec.ordinal() <= preferred.ordinal() ? codec : TEXT;
+    }
+
+    public static byte[] encodeMessage(JSONObject m) {
+        return JSONB.toBytes(m);
+    }
+
+    /**
+     * 把已经编码的消息拼成一帧
+     */
+    public ByteBuffer pack(List<byte[]> messages) {
+        int length = 0;
+        for (byte[] m : messages) {
+            length += m.length + 4;
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        for (byte[] m : messages) {
+            body.putInt(m.length).put(m);
+        }
+        byte[] bytes = body.array();
+        byte frameId = JSONB_PLAIN.id;
+        if (this == JSONB_DEFLATE && bytes.length >= DEFLATE_MIN_BYTES) {
+            bytes = deflate(bytes);
+            frameId = id;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(bytes.length + 1);
+        frame.put(frameId).put(bytes).flip();
+        return frame;
+    }
+
+    /**
+     * 按当前格式编码一帧，用于重连后格式变化时转换还没有发出的帧
+     */
+    public Object encode(List<JSONObject> messages, Integer agentId) {
+        if (isBinary()) {
+            List<byte[]> encoded = new ArrayList<>(messages.size());
+            for (JSONObject m : messages) {
+                encoded.add(encodeMessage(m));
+            }
+            return pack(encoded);
+        }
+        if (messages.size() == 1) {
+            return messages.get(0).toJSONString();
+        }
+        List<String> texts = new ArrayList<>(messages.size());
+        for (JSONObject m : messages) {
+            texts.add(m.toJSONString());
+        }
+        return TransportBatcher.wrap(texts, agentId);
+    }
+
+    /**
+     * 拆开任意格式的一帧
+     */
+    public static List<JSONObject> decode(Object frame) {
+        if (frame instanceof String text) {
+            return TransportBatcher.unwrap(text);
+        }
+        ByteBuffer buffer = ((ByteBuffer) frame).duplicate();
+        byte id = buffer.get();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        if (id == JSONB_DEFLATE.id) {
+            bytes = inflate(bytes);
+        } else if (id != JSONB_PLAIN.id) {
+            throw new IllegalArgumentException("Unknown wire format: " + id);
+        }
+        ByteBuffer body = ByteBuffer.wrap(bytes);
+        List<JSONObject> result = new ArrayList<>();
+        while (body.hasRemaining()) {
+            byte[] m = new byte[body.getInt()];
+            body.get(m);
+            result.add(new JSONObject(JSONB.parseObject(m)));
+        }
+        return result;
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] bytes) {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(bytes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated deflate frame");
+                }
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt deflate frame", e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -31,31 +31,86 @@ import java.util.concurrent.TimeUnit;
 @Slf4j
 public class TransportConnectionThread implements Runnable {
     /**
-     * second
+     * second，连接后发送 ping 的间隔
      */
     public static final long DELAY = 10;
 
+    /**
+     * 检查连接的间隔
+     */
+    public static final long TICK = 1;
+
     public static final String THREAD_NAME = "transport-connection-thread";
 
     public static final TimeUnit TIME_UNIT = TimeUnit.SECONDS;
 
+    /**
+     * 连接建立后等待 auth 的最长时间
+     */
+    private static final long AUTH_TIMEOUT_MS = 30000;
+
+    private static final TransportBackoff backoff = new TransportBackoff(1000, 60000);
+
+    /**
+     * 正在连接、还没有通过 auth 的连接
+     */
+    private static volatile TransportClient connecting;
+
+    private static long connectingSince = 0;
+
+    private static long nextAttemptAt = 0;
+
+    private static long lastPingAt = 0;
+
     String serverHost = String.valueOf(SpringTool.getPropertiesValue("sonic.server.host"));
     Integer serverPort = Integer.valueOf(SpringTool.getPropertiesValue("sonic.server.port"));
     String key = String.valueOf(SpringTool.getPropertiesValue("sonic.agent.key"));
 
+    /**
+     * auth 通过后调用，下次断开时从最短的间隔开始重连
+     */
+    public static void connected() {
+        backoff.reset();
+    }
+
+    /**
+     * 是否为当前正在连接的那一条，超时后被替换的连接不再接受 auth
+     */
+    public static boolean isConnecting(TransportClient client) {
+        return client != null && client == connecting;
+    }
+
     @Override
     public void run() {
         Thread.currentThread().setName(THREAD_NAME);
+        long now = System.currentTimeMillis();
         if (TransportWorker.client == null) {
             if (!TransportWorker.isKeyAuth) {
                 return;
             }
+            if (connecting != null && !connecting.isClosed() && !connecting.isClosing()) {
+                if (now - connectingSince < AUTH_TIMEOUT_MS) {
+                    return;
+                }
+                log.info("Server auth timeout, reconnecting...");
+                connecting.close();
+            }
+            // 断开后按指数退避的间隔重连，不再固定每 10s 一次
+            if (now < nextAttemptAt) {
+                return;
+            }
+            long delay = backoff.nextDelayMs();
+            nextAttemptAt = now + delay;
             String url = String.format("ws://%s:%d/server/websockets/agent/%s",
                     serverHost, serverPort, key).replace(":80/", "/");
             URI uri = URI.create(url);
             TransportClient transportClient = new TransportClient(uri);
+            connecting = transportClient;
+            connectingSince = now;
+            log.info("Connecting to server, attempt {}, next retry in {} ms if failed", backoff.getAttempts(), delay);
             transportClient.connect();
-        } else {
+        } else if (now - lastPingAt >= TIME_UNIT.toMillis(DELAY)) {
+            lastPingAt = now;
             JSONObject ping = new JSONObject();
             ping.put("msg", "ping");
             TransportWorker.send(ping);
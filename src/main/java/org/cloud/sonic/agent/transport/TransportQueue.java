@@ -0,0 +1,270 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import com.alibaba.fastjson.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 发往 server 的消息按类别分道：
+ * 设备状态、占用确认等控制消息优先发送，不合并；电量、心跳这类只关心最新值的消息按 key 合并；
+ * 步骤日志、性能数据等其余消息进入 {@link TransportSpool}，按顺序发送，断开或重启后补发
+ * 各道按权重轮流发送（平滑加权轮询），控制消息到达后几乎立即发出，大量控制消息也不会让其余消息完全停下
+ */
+public class TransportQueue implements TransportBatcher.Source {
+
+    public enum Lane {
+        CONTROL(16),
+        LATEST(4),
+        BULK(1);
+
+        private final int weight;
+
+        Lane(int weight) {
+            this.weight = weight;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    /**
+     * 控制消息积压的上限，超过后丢弃最旧的
+     */
+    public static final int CONTROL_CAPACITY = 10000;
+
+    private final TransportSpool spool;
+
+    private final Map<Object, JSONObject> control = new LinkedHashMap<>();
+
+    private final Map<Object, JSONObject> latest = new LinkedHashMap<>();
+
+    /**
+     * 没有 key 的消息使用递增的 key，不会被合并
+     */
+    private long uniqueKey = 0;
+
+    private final int[] current = new int[Lane.values().length];
+
+    private final long[] sent = new long[Lane.values().length];
+
+    private long coalesced = 0;
+
+    private long dropped = 0;
+
+    public TransportQueue(TransportSpool spool) {
+        this.spool = spool;
+    }
+
+    public static Lane laneOf(JSONObject m) {
+        String msg = m.getString("msg");
+        if (msg == null) {
+            return Lane.BULK;
+        }
+        return switch (msg) {
+            case "deviceDetail", "debugUser", "errCall", "heartBeat", "ping" -> Lane.CONTROL;
+            case "battery" -> Lane.LATEST;
+            default -> Lane.BULK;
+        };
+    }
+
+    /**
+     * @return 合并用的 key，null 表示不合并
+     */
+    public static String keyOf(JSONObject m) {
+        String msg = m.getString("msg");
+        if (msg == null) {
+            return null;
+        }
+        return switch (msg) {
+            // 电量一次上报所有设备，心跳只需要一个
+            // 性能数据是逐条的时间序列，设备状态中的注册信息会被之后只有状态的消息覆盖，都不能合并
+            case "battery", "heartBeat", "ping" -> msg;
+            default -> null;
+        };
+    }
+
+    public void offer(JSONObject m) {
+        Lane lane = laneOf(m);
+        if (lane == Lane.BULK) {
+            spool.offer(m);
+            synchronized (this) {
+                notifyAll();
+            }
+            return;
+        }
+        synchronized (this) {
+            Object key = keyOf(m);
+            if (key == null) {
+                key = uniqueKey++;
+            }
+            Map<Object, JSONObject> map = lane == Lane.CONTROL ? control : latest;
+            if (map.put(key, m) != null) {
+                // 原来的位置不变，只替换为最新的值
+                coalesced++;
+            } else if (map.size() > CONTROL_CAPACITY) {
+                Iterator<JSONObject> iterator = map.values().iterator();
+                iterator.next();
+                iterator.remove();
+                dropped++;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * 重连后放回没有发出的消息，同一个 key 已经有更新的值时丢弃；BULK 消息由 {@link #rewind()} 重新发送
+     */
+    public synchronized void requeue(JSONObject m) {
+        Lane lane = laneOf(m);
+        if (lane == Lane.BULK) {
+            return;
+        }
+        Object key = keyOf(m);
+        if (key == null) {
+            key = uniqueKey++;
+        }
+        (lane == Lane.CONTROL ? control : latest).putIfAbsent(key, m);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized JSONObject poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            Lane lane = pick();
+            if (lane != null) {
+                JSONObject m = take(lane);
+                if (m != null) {
+                    sent[lane.ordinal()]++;
+                    return m;
+                }
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    /**
+     * 平滑加权轮询：有消息的道累加权重，选出最大的一道，再减去本轮的权重总和
+     */
+    private Lane pick() {
+        Lane best = null;
+        int total = 0;
+        for (Lane lane : Lane.values()) {
+            int i = lane.ordinal();
+            if (!hasNext(lane)) {
+                current[i] = 0;
+                continue;
+            }
+            current[i] += lane.weight;
+            total += lane.weight;
+            if (best == null || current[i] > current[best.ordinal()]) {
+                best = lane;
+            }
+        }
+        if (best != null) {
+            current[best.ordinal()] -= total;
+        }
+        return best;
+    }
+
+    private boolean hasNext(Lane lane) {
+        return switch (lane) {
+            case CONTROL -> !control.isEmpty();
+            case LATEST -> !latest.isEmpty();
+            case BULK -> spool.size() > 0;
+        };
+    }
+
+    private JSONObject take(Lane lane) throws InterruptedException {
+        if (lane == Lane.BULK) {
+            return spool.poll(0, TimeUnit.NANOSECONDS);
+        }
+        Iterator<JSONObject> iterator = (lane == Lane.CONTROL ? control : latest).values().iterator();
+        JSONObject m = iterator.next();
+        iterator.remove();
+        return m;
+    }
+
+    /**
+     * 断开期间 BULK 消息直接写入磁盘
+     */
+    public void setOnline(boolean online) {
+        spool.setOnline(online);
+    }
+
+    /**
+     * BULK 消息发送成功或 server 确认后提交
+     */
+    public void commit(long seq) {
+        spool.commit(seq);
+    }
+
+    /**
+     * 已经取出但没有提交的 BULK 消息重新发送
+     */
+    public void rewind() {
+        spool.rewind();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    public TransportSpool getSpool() {
+        return spool;
+    }
+
+    public synchronized long size() {
+        return control.size() + latest.size() + spool.size();
+    }
+
+    public synchronized long getDepth(Lane lane) {
+        return switch (lane) {
+            case CONTROL -> control.size();
+            case LATEST -> latest.size();
+            case BULK -> spool.size();
+        };
+    }
+
+    public synchronized long getSent(Lane lane) {
+        return sent[lane.ordinal()];
+    }
+
+    /**
+     * 被同一个 key 的新消息覆盖的条数
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * 控制消息积压超过上限而丢弃的条数
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+}
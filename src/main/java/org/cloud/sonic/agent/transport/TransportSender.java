@@ -0,0 +1,195 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import com.alibaba.fastjson.JSONObject;
+import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * 发往 server 的发送线程：阻塞等待 {@link TransportQueue} 中的消息，经 {@link TransportBatcher} 合并后发送
+ * 发送成功后提交 seq；连接断开时等待 {@link #wakeUp()}，期间新消息写入磁盘
+ * server 支持确认时改为收到确认后提交，未确认的消息最多 {@link #ACK_WINDOW} 条，重连后从未确认的位置重新发送
+ */
+public class TransportSender implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(TransportSender.class);
+
+    private static final long LINK_CHECK_MS = 1000;
+
+    public static final int ACK_WINDOW = 10000;
+
+    private final TransportQueue queue;
+
+    private final TransportBatcher batcher;
+
+    private final Supplier<WebSocket> link;
+
+    private final Supplier<Integer> agentId;
+
+    private final BooleanSupplier running;
+
+    private final Supplier<TransportCodec> codec;
+
+    private final BooleanSupplier ack;
+
+    private volatile long bytes = 0;
+
+    private final Object linkLock = new Object();
+
+    /**
+     * @param link    当前的连接，未连接时为 null
+     * @param agentId 写入每条消息的 agentId
+     * @param running 返回 false 时退出
+     * @param codec   当前连接协商的格式
+     * @param ack     当前连接的 server 是否确认收到的消息
+     */
+    public TransportSender(TransportQueue queue, TransportBatcher batcher, Supplier<WebSocket> link,
+                           Supplier<Integer> agentId, BooleanSupplier running, Supplier<TransportCodec> codec,
+                           BooleanSupplier ack) {
+        this.queue = queue;
+        this.batcher = batcher;
+        this.link = link;
+        this.agentId = agentId;
+        this.running = running;
+        this.codec = codec;
+        this.ack = ack;
+    }
+
+    /**
+     * 连接建立或收到确认后调用，不必等到下一次检查
+     */
+    public void wakeUp() {
+        synchronized (linkLock) {
+            linkLock.notifyAll();
+        }
+    }
+
+    private boolean isOpen(WebSocket webSocket) {
+        return webSocket != null && webSocket.isOpen();
+    }
+
+    @Override
+    public void run() {
+        Object frame = null;
+        TransportCodec frameCodec = TransportCodec.TEXT;
+        long frameSeq = 0;
+        WebSocket lastLink = null;
+        while (running.getAsBoolean()) {
+            try {
+                WebSocket webSocket = link.get();
+                if (isOpen(webSocket)) {
+                    queue.setOnline(true);
+                    boolean acked = ack.getAsBoolean();
+                    if (webSocket != lastLink) {
+                        lastLink = webSocket;
+                        if (acked) {
+                            resend(frame);
+                            frame = null;
+                        }
+                    }
+                    if (acked && frame == null && queue.getSpool().getInflight() >= ACK_WINDOW) {
+                        // 等待 server 确认
+                        synchronized (linkLock) {
+                            linkLock.wait(LINK_CHECK_MS);
+                        }
+                        continue;
+                    }
+                    TransportCodec current = codec.get();
+                    if (frame == null) {
+                        // 定时醒来检查连接状态
+                        frame = current.isBinary()
+                                ? batcher.nextBinary(current, agentId.get(), LINK_CHECK_MS, TimeUnit.MILLISECONDS)
+                                : batcher.next(agentId.get(), LINK_CHECK_MS, TimeUnit.MILLISECONDS);
+                        frameCodec = current;
+                        frameSeq = batcher.getLastSeq();
+                    } else if (frameCodec != current) {
+                        // 重连后 server 选定的格式变了，还没发出的帧按新格式重新编码
+                        frame = current.encode(TransportCodec.decode(frame), agentId.get());
+                        frameCodec = current;
+                    }
+                    if (frame != null) {
+                        if (frame instanceof String text) {
+                            webSocket.send(text);
+                            bytes += text.length();
+                        } else {
+                            ByteBuffer buffer = (ByteBuffer) frame;
+                            webSocket.send(buffer.duplicate());
+                            bytes += buffer.remaining();
+                        }
+                        frame = null;
+                        if (!acked) {
+                            queue.commit(frameSeq);
+                        }
+                    }
+                } else {
+                    queue.setOnline(false);
+                    synchronized (linkLock) {
+                        if (!isOpen(link.get())) {
+                            linkLock.wait(LINK_CHECK_MS);
+                        }
+                    }
+                }
+            } catch (WebsocketNotConnectedException e) {
+                // 连接刚好断开，重连后再发送这一帧
+                log.info("Server disconnected, frame will be sent after reconnecting.");
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                frame = null;
+                queue.commit(frameSeq);
+                log.error("Failed to send message to server", e);
+            }
+        }
+    }
+
+    /**
+     * 新连接从 server 确认的位置继续：没有发出的帧和留到下一帧的消息中，
+     * 控制消息放回队列，BULK 消息连同已发出但未确认的一起按原来的顺序重新发送
+     */
+    private void resend(Object frame) {
+        if (frame != null) {
+            for (JSONObject m : TransportCodec.decode(frame)) {
+                queue.requeue(m);
+            }
+        }
+        JSONObject carry = batcher.takeCarry();
+        if (carry != null) {
+            queue.requeue(carry);
+        }
+        queue.rewind();
+    }
+
+    /**
+     * 已发送的帧长度之和，文本帧按字符数计
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public TransportBatcher getBatcher() {
+        return batcher;
+    }
+}
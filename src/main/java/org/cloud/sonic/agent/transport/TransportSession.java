@@ -0,0 +1,67 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 与 server 之间的会话，agent 进程内不变
+ * 连接时通过请求头带上会话 id 和已经确认的 seq；server 在 auth 回复中说明：
+ * ack 为 true 时 server 会用 {"msg":"ack","seq":n} 确认收到的消息，ackSeq 为 server 已经处理到的 seq；
+ * resumed 为 true 时 server 仍保留这个会话的 agent 信息，重连后不必重新上报；设备状态仍然每次上报
+ */
+public class TransportSession {
+
+    public static final String HEADER_ID = "Sonic-Session";
+
+    public static final String HEADER_SEQ = "Sonic-Session-Seq";
+
+    private static final String ID = UUID.randomUUID().toString();
+
+    /**
+     * 是否已经上报过一次 agent 信息
+     */
+    private static volatile boolean registered = false;
+
+    public static String getId() {
+        return ID;
+    }
+
+    /**
+     * @param wireFormat {@link TransportCodec#offer(TransportCodec)} 的值
+     * @param ackedSeq   已经确认的 seq
+     */
+    public static Map<String, String> headers(String wireFormat, long ackedSeq) {
+        return Map.of(TransportCodec.HEADER, wireFormat,
+                HEADER_ID, ID,
+                HEADER_SEQ, String.valueOf(ackedSeq));
+    }
+
+    /**
+     * @param resumed auth 回复中的 resumed
+     * @return 可以跳过上报 agent 信息时为 true，之前没有上报过时总是 false
+     */
+    public static boolean canResume(boolean resumed) {
+        return resumed && registered;
+    }
+
+    public static void setRegistered(boolean registered) {
+        TransportSession.registered = registered;
+    }
+}
@@ -0,0 +1,626 @@
+/*
+ *   sonic-agent  Agent of Sonic Cloud Real Machine Platform.
+ *   Copyright (C) 2022 SonicCloudOrg
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.cloud.sonic.agent.transport;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 发往 server 的消息队列，内存中只保留有限的条数，其余追加到本地磁盘的分段文件中
+ * 每条消息带递增的 seq，按 seq 顺序取出；发送成功后 {@link #commit(long)}，已经全部发送的分段文件被删除
+ * 与 server 断开时新消息和内存中的消息都写入磁盘，agent 重启后从上次提交的位置继续发送
+ * 每个分段文件一行一条消息，文件名为第一条消息的 seq，提交位置保存在 cursor 文件中
+ * 已经取出但还没有提交的消息保留在内存中，server 确认前连接断开时 {@link #rewind()} 后重新发送
+ */
+public class TransportSpool implements TransportBatcher.Source {
+
+    private static final Logger log = LoggerFactory.getLogger(TransportSpool.class);
+
+    public static final String SEQ = "seq";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String CURSOR_FILE = "cursor";
+
+    private static final long CURSOR_INTERVAL_MS = 1000;
+
+    private static class Segment {
+        private final File file;
+        private long lastSeq;
+        private long bytes;
+        /**
+         * 还没有取出的条数
+         */
+        private long unread;
+
+        private Segment(File file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * 已经取出、等待提交的消息
+     */
+    private static class Pending {
+        private final JSONObject message;
+        private final long seq;
+        /**
+         * 所在的分段还没有删除，重启后会从磁盘重新读取
+         */
+        private boolean onDisk;
+
+        private Pending(JSONObject message, boolean onDisk) {
+            this.message = message;
+            this.seq = message.getLongValue(SEQ);
+            this.onDisk = onDisk;
+        }
+    }
+
+    private final File dir;
+
+    private final int memoryLimit;
+
+    private final long segmentBytes;
+
+    private final long maxBytes;
+
+    private final ArrayDeque<JSONObject> memory = new ArrayDeque<>();
+
+    private ArrayDeque<Pending> inflight = new ArrayDeque<>();
+
+    /**
+     * rewind 后需要重新发送的消息，比内存和磁盘上未读的都早
+     */
+    private ArrayDeque<Pending> replay = new ArrayDeque<>();
+
+    /**
+     * 按 seq 从旧到新，readIndex 之前是已经读完、等待提交后删除的分段
+     */
+    private final List<Segment> segments = new ArrayList<>();
+
+    private int readIndex = 0;
+
+    private BufferedReader reader;
+
+    private Segment writing;
+
+    private BufferedWriter writer;
+
+    private long diskCount = 0;
+
+    private long diskBytes = 0;
+
+    private long nextSeq = 1;
+
+    private long committed = 0;
+
+    /**
+     * 最近一次取出的 seq，取出的顺序与 seq 一致
+     */
+    private long polled = 0;
+
+    private long cursorSaved = 0;
+
+    private long cursorSavedAt = 0;
+
+    private boolean online = false;
+
+    private long spilled = 0;
+
+    private long dropped = 0;
+
+    /**
+     * @param memoryLimit  内存中最多保留的条数
+     * @param segmentBytes 单个分段文件的大小，超过后写入新的分段
+     * @param maxBytes     磁盘上最多保留的大小，超过后丢弃最旧的分段
+     */
+    public TransportSpool(File dir, int memoryLimit, long segmentBytes, long maxBytes) {
+        this.dir = dir;
+        this.memoryLimit = memoryLimit;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        recover();
+    }
+
+    /**
+     * 读取上次退出时留下的分段，跳过已经提交的消息
+     */
+    private void recover() {
+        committed = readCursor();
+        cursorSaved = committed;
+        long maxSeq = committed;
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            Segment segment = new Segment(file);
+            try (BufferedReader in = open(file)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    long seq = parseSeq(line);
+                    if (seq <= 0) {
+                        continue;
+                    }
+                    maxSeq = Math.max(maxSeq, seq);
+                    segment.lastSeq = seq;
+                    if (seq > committed) {
+                        segment.unread++;
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Failed to read transport spool segment {}: {}", file, e.getMessage());
+            }
+            if (segment.unread == 0) {
+                file.delete();
+                continue;
+            }
+            segment.bytes = file.length();
+            segments.add(segment);
+            diskCount += segment.unread;
+            diskBytes += segment.bytes;
+        }
+        nextSeq = maxSeq + 1;
+        if (diskCount > 0) {
+            log.info("Recovered {} unsent transport messages from {}", diskCount, dir);
+        }
+    }
+
+    private static long parseSeq(String line) {
+        try {
+            JSONObject m = JSON.parseObject(line);
+            Long seq = m == null ? null : m.getLong(SEQ);
+            return seq == null ? 0 : seq;
+        } catch (Exception e) {
+            // 写到一半的行
+            return 0;
+        }
+    }
+
+    public synchronized void offer(JSONObject m) {
+        long seq = nextSeq++;
+        m.put(SEQ, seq);
+        // 磁盘上还有没读完的消息时新消息也写入磁盘，保证顺序
+        if (online && diskCount == 0 && memory.size() < memoryLimit) {
+            memory.add(m);
+        } else {
+            try {
+                append(m, seq);
+                spilled++;
+            } catch (IOException e) {
+                log.error("Failed to spool transport message: {}", e.getMessage());
+                closeWriter();
+                if (diskCount == 0) {
+                    memory.add(m);
+                } else {
+                    dropped++;
+                }
+            }
+        }
+        notifyAll();
+    }
+
+    private void append(JSONObject m, long seq) throws IOException {
+        if (diskCount == 0) {
+            // 磁盘上的消息都已经取出，未读的消息从新的分段开始，内存中的消息写入磁盘时可以排在它之前
+            closeReader();
+            closeWriter();
+            readIndex = segments.size();
+        }
+        if (writer == null || writing.bytes >= segmentBytes) {
+            closeWriter();
+            writing = new Segment(segmentFile(seq));
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(writing.file, true), StandardCharsets.UTF_8));
+            segments.add(writing);
+        }
+        String line = m.toJSONString();
+        writer.write(line);
+        writer.write('\n');
+        // 整行写出后才计数，读取时不会读到半行
+        writer.flush();
+        long bytes = line.getBytes(StandardCharsets.UTF_8).length + 1;
+        writing.bytes += bytes;
+        writing.lastSeq = seq;
+        writing.unread++;
+        diskBytes += bytes;
+        diskCount++;
+        trim();
+    }
+
+    /**
+     * 磁盘占用超过上限时丢弃最旧的分段，正在写入的分段除外
+     */
+    private void trim() {
+        while (diskBytes > maxBytes && segments.size() > 1 && segments.get(0) != writing) {
+            Segment oldest = segments.remove(0);
+            if (readIndex > 0) {
+                readIndex--;
+            } else if (reader != null) {
+                closeReader();
+            }
+            diskCount -= oldest.unread;
+            diskBytes -= oldest.bytes;
+            dropped += oldest.unread;
+            log.warn("Transport spool exceeds {} bytes, dropped {} unsent messages", maxBytes, oldest.unread);
+            oldest.file.delete();
+        }
+    }
+
+    @Override
+    public synchronized JSONObject poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (replay.isEmpty() && memory.isEmpty() && diskCount == 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        Pending pending = replay.poll();
+        if (pending == null) {
+            // 内存中的消息总是比磁盘上未读的更早
+            JSONObject m = memory.poll();
+            if (m != null) {
+                pending = new Pending(m, false);
+            } else if ((m = readDisk()) != null) {
+                pending = new Pending(m, true);
+            }
+            if (pending == null) {
+                return null;
+            }
+            polled = pending.seq;
+        }
+        inflight.add(pending);
+        return pending.message;
+    }
+
+    /**
+     * 连接断开后，已经取出但没有提交的消息排回最前面，下次按原来的顺序重新取出
+     */
+    public synchronized void rewind() {
+        if (inflight.isEmpty()) {
+            return;
+        }
+        // 取出的顺序与 seq 一致，inflight 中的都比 replay 中的早
+        inflight.addAll(replay);
+        replay.clear();
+        ArrayDeque<Pending> swap = replay;
+        replay = inflight;
+        inflight = swap;
+        notifyAll();
+    }
+
+    private JSONObject readDisk() {
+        while (readIndex < segments.size()) {
+            Segment segment = segments.get(readIndex);
+            try {
+                if (reader == null) {
+                    reader = open(segment.file);
+                }
+                String line = reader.readLine();
+                if (line == null) {
+                    if (segment == writing) {
+                        return null;
+                    }
+                    closeReader();
+                    readIndex++;
+                    continue;
+                }
+                JSONObject m = JSON.parseObject(line);
+                Long seq = m == null ? null : m.getLong(SEQ);
+                if (seq == null || seq <= Math.max(committed, polled)) {
+                    continue;
+                }
+                segment.unread--;
+                diskCount--;
+                return m;
+            } catch (Exception e) {
+                log.error("Failed to read transport spool segment {}: {}", segment.file, e.getMessage());
+                // 跳过损坏的分段
+                closeReader();
+                diskCount -= segment.unread;
+                dropped += segment.unread;
+                segment.unread = 0;
+                if (segment == writing) {
+                    closeWriter();
+                }
+                readIndex++;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * seq 及之前的消息已经发送，删除已经读完并且全部发送的分段
+     */
+    public synchronized void commit(long seq) {
+        if (seq <= committed) {
+            return;
+        }
+        committed = seq;
+        while (!inflight.isEmpty() && inflight.peek().seq <= committed) {
+            inflight.poll();
+        }
+        while (!replay.isEmpty() && replay.peek().seq <= committed) {
+            replay.poll();
+        }
+        boolean removed = false;
+        while (readIndex > 0 && segments.get(0).lastSeq <= committed) {
+            delete(segments.remove(0));
+            readIndex--;
+            removed = true;
+        }
+        // 正在写入的分段也已经全部发送时一并删除，之后的消息重新回到内存
+        if (diskCount == 0 && segments.size() == 1 && segments.get(0) == writing && writing.lastSeq <= committed) {
+            closeReader();
+            closeWriter();
+            delete(segments.remove(0));
+            readIndex = 0;
+            removed = true;
+        }
+        long now = System.currentTimeMillis();
+        if (removed || (!segments.isEmpty() && now - cursorSavedAt >= CURSOR_INTERVAL_MS)) {
+            saveCursor(now);
+        }
+    }
+
+    private void delete(Segment segment) {
+        diskBytes -= segment.bytes;
+        if (!segment.file.delete()) {
+            log.warn("Failed to delete transport spool segment {}", segment.file);
+        }
+    }
+
+    /**
+     * 与 server 断开时把内存中的消息写入磁盘，之后的消息也直接写入磁盘
+     */
+    public synchronized void setOnline(boolean online) {
+        if (this.online == online) {
+            return;
+        }
+        this.online = online;
+        if (!online) {
+            spillMemory();
+        }
+    }
+
+    /**
+     * 内存中的消息比磁盘上未读的都早，写入单独的分段，排在未读的分段之前
+     */
+    private void spillMemory() {
+        if (memory.isEmpty()) {
+            return;
+        }
+        if (diskCount == 0) {
+            // 磁盘上的分段都已经读完，之后写入的消息从新的分段开始
+            closeWriter();
+            readIndex = segments.size();
+        }
+        long first = memory.peek().getLongValue(SEQ);
+        Segment segment = new Segment(segmentFile(first));
+        File tmp = new File(dir, segment.file.getName() + ".tmp");
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (JSONObject m : memory) {
+                out.write(m.toJSONString());
+                out.write('\n');
+                segment.lastSeq = m.getLongValue(SEQ);
+                segment.unread++;
+            }
+        } catch (IOException e) {
+            log.error("Failed to spool transport messages: {}", e.getMessage());
+            tmp.delete();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), segment.file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Failed to spool transport messages: {}", e.getMessage());
+            tmp.delete();
+            return;
+        }
+        segment.bytes = segment.file.length();
+        // 内存中有消息时磁盘上的分段要么已经读完，要么还没有开始读
+        closeReader();
+        segments.add(readIndex, segment);
+        diskCount += segment.unread;
+        diskBytes += segment.bytes;
+        spilled += segment.unread;
+        memory.clear();
+        saveCursor(System.currentTimeMillis());
+    }
+
+    /**
+     * 退出前把内存中的消息写入磁盘，下次启动后继续发送
+     */
+    public synchronized void close() {
+        online = false;
+        spillPending(inflight);
+        spillPending(replay);
+        spillMemory();
+        closeReader();
+        closeWriter();
+        saveCursor(System.currentTimeMillis());
+    }
+
+    /**
+     * 没有提交、也不在磁盘上的消息按连续的 seq 分别写入分段，重启后按文件名排序仍然保持顺序
+     */
+    private void spillPending(ArrayDeque<Pending> pending) {
+        List<Pending> run = new ArrayList<>();
+        for (Pending p : pending) {
+            if (!p.onDisk) {
+                run.add(p);
+                continue;
+            }
+            writePending(run);
+        }
+        writePending(run);
+    }
+
+    private void writePending(List<Pending> run) {
+        if (run.isEmpty()) {
+            return;
+        }
+        Segment segment = new Segment(segmentFile(run.get(0).seq));
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(segment.file), StandardCharsets.UTF_8))) {
+            for (Pending p : run) {
+                out.write(p.message.toJSONString());
+                out.write('\n');
+                segment.lastSeq = p.seq;
+            }
+        } catch (IOException e) {
+            log.error("Failed to spool transport messages: {}", e.getMessage());
+            run.clear();
+            return;
+        }
+        for (Pending p : run) {
+            p.onDisk = true;
+        }
+        segment.bytes = segment.file.length();
+        // 已经取出，提交后与其他读完的分段一起删除
+        segments.add(0, segment);
+        readIndex++;
+        diskBytes += segment.bytes;
+        run.clear();
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, String.format("%020d%s", seq, SEGMENT_SUFFIX));
+    }
+
+    private static BufferedReader open(File file) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+    }
+
+    private void closeReader() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+            }
+            reader = null;
+        }
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+            }
+            writer = null;
+        }
+        writing = null;
+    }
+
+    private long readCursor() {
+        File cursor = new File(dir, CURSOR_FILE);
+        if (!cursor.exists()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(Files.readString(cursor.toPath()).trim());
+        } catch (IOException | NumberFormatException e) {
+            log.error("Failed to read transport spool cursor: {}", e.getMessage());
+            return 0;
+        }
+    }
+
+    private void saveCursor(long now) {
+        cursorSavedAt = now;
+        if (committed == cursorSaved) {
+            return;
+        }
+        File tmp = new File(dir, CURSOR_FILE + ".tmp");
+        try {
+            Files.writeString(tmp.toPath(), String.valueOf(committed));
+            Files.move(tmp.toPath(), new File(dir, CURSOR_FILE).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            cursorSaved = committed;
+        } catch (IOException e) {
+            log.error("Failed to save transport spool cursor: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 还没有取出的条数
+     */
+    public synchronized long size() {
+        return replay.size() + memory.size() + diskCount;
+    }
+
+    /**
+     * 已经取出、等待提交的条数
+     */
+    public synchronized int getInflight() {
+        return inflight.size();
+    }
+
+    public synchronized int getMemorySize() {
+        return memory.size();
+    }
+
+    public synchronized long getDiskCount() {
+        return diskCount;
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * 写入过磁盘的条数
+     */
+    public synchronized long getSpilled() {
+        return spilled;
+    }
+
+    /**
+     * 超出磁盘上限或写入失败而丢弃的条数
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized long getCommitted() {
+        return committed;
+    }
+}
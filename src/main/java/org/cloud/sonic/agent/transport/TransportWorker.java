@@ -18,45 +18,228 @@
 package org.cloud.sonic.agent.transport;
 
 import com.alibaba.fastjson.JSONObject;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.cloud.sonic.agent.tools.BytesTool;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 
+import java.io.File;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Configuration
 @Slf4j
 public class TransportWorker {
-    private static LinkedBlockingQueue<JSONObject> dataQueue = new LinkedBlockingQueue<>();
     public static ExecutorService cachedThreadPool = Executors.newCachedThreadPool();
     public static TransportClient client = null;
     public static Boolean isKeyAuth = true;
 
-    public static void send(JSONObject jsonObject) {
-        dataQueue.offer(jsonObject);
+    private static final long SPOOL_SEGMENT_BYTES = 4L * 1024 * 1024;
+
+    @Value("${modules.transport.batch-enable:false}")
+    private boolean getBatchEnable;
+
+    @Value("${modules.transport.batch-linger-ms:5}")
+    private long getBatchLingerMs;
+
+    @Value("${modules.transport.batch-max-bytes:32768}")
+    private int getBatchMaxBytes;
+
+    @Value("${modules.transport.wire-format:jsonb-deflate}")
+    private String getWireFormat;
+
+    @Value("${modules.transport.inbound-workers:8}")
+    private int getInboundWorkers;
+
+    @Value("${modules.transport.inbound-lane-capacity:64}")
+    private int getInboundLaneCapacity;
+
+    @Value("${modules.transport.inbound-max-pending:1024}")
+    private int getInboundMaxPending;
+
+    @Value("${modules.transport.spool-dir:spool/transport}")
+    private String getSpoolDir;
+
+    @Value("${modules.transport.spool-memory-messages:1000}")
+    private int getSpoolMemoryMessages;
+
+    @Value("${modules.transport.spool-max-mb:512}")
+    private long getSpoolMaxMb;
+
+    private static boolean batchEnable = false;
+
+    private static long batchLingerMs = 5;
+
+    private static int batchMaxBytes = 32768;
+
+    private static TransportCodec wireFormat = TransportCodec.TEXT;
+
+    private static String spoolDir = "spool/transport";
+
+    private static int spoolMemoryMessages = 1000;
+
+    private static long spoolMaxMb = 512;
+
+    private static volatile TransportQueue queue;
+
+    private static volatile InboundDispatcher commandDispatcher = new InboundDispatcher("inbound", 8, 64, 1024);
+
+    private static final AtomicInteger runningSuites = new AtomicInteger();
+
+    private static TransportSender sender;
+
+    @PostConstruct
+    public void setEnv() {
+        batchEnable = getBatchEnable;
+        batchLingerMs = getBatchLingerMs;
+        batchMaxBytes = getBatchMaxBytes;
+        wireFormat = TransportCodec.of(getWireFormat);
+        spoolDir = getSpoolDir;
+        spoolMemoryMessages = Math.max(1, getSpoolMemoryMessages);
+        spoolMaxMb = Math.max(1, getSpoolMaxMb);
+        log.info("transport batch: {}, linger: {} ms, max bytes: {}", batchEnable, batchLingerMs, batchMaxBytes);
+        log.info("transport wire format offered: {}", TransportCodec.offer(wireFormat));
+        log.info("transport spool: {}, memory messages: {}, max size: {} MB", spoolDir, spoolMemoryMessages, spoolMaxMb);
+        commandDispatcher.shutdown();
+        int workers = Math.max(1, getInboundWorkers);
+        int laneCapacity = Math.max(1, getInboundLaneCapacity);
+        int maxPending = Math.max(1, getInboundMaxPending);
+        commandDispatcher = new InboundDispatcher("inbound", workers, laneCapacity, maxPending);
+        log.info("inbound workers: {}, lane capacity: {}, max pending: {}", workers, laneCapacity, maxPending);
+        getQueue();
     }
 
-    public static void readQueue() {
-        cachedThreadPool.execute(() -> {
-            while (isKeyAuth) {
+    @PreDestroy
+    public void destroy() {
+        TransportQueue q = queue;
+        if (q != null) {
+            q.getSpool().close();
+        }
+        commandDispatcher.shutdown();
+    }
+
+    /**
+     * 执行 server 下发的指令，同一台设备的指令按顺序执行，见 {@link InboundDispatcher}
+     * suite 会阻塞到整个测试套件结束，和之前一样每个套件一个线程、不限数量，
+     * 不占用设备指令的线程，排队的套件也不会因为 forceStopSuite 找不到正在执行的用例而停不下来
+     *
+     * @return 积压超过上限被拒绝时为 false
+     */
+    public static boolean dispatch(JSONObject jsonObject, Runnable task) {
+        if ("suite".equals(jsonObject.getString("msg"))) {
+            cachedThreadPool.execute(() -> {
+                runningSuites.incrementAndGet();
                 try {
-                    if (client != null && client.isOpen()) {
-                        if (!dataQueue.isEmpty()) {
-                            JSONObject m = dataQueue.poll();
-                            m.put("agentId", BytesTool.agentId);
-                            client.send(m.toJSONString());
-                        } else {
-                            Thread.sleep(1000);
-                        }
-                    } else {
-                        Thread.sleep(5000);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    task.run();
+                } finally {
+                    runningSuites.decrementAndGet();
+                }
+            });
+            return true;
+        }
+        return commandDispatcher.dispatch(InboundDispatcher.keyOf(jsonObject), task,
+                InboundDispatcher.isMandatory(jsonObject));
+    }
+
+    public static InboundDispatcher getCommandDispatcher() {
+        return commandDispatcher;
+    }
+
+    /**
+     * 正在执行的测试套件数
+     */
+    public static int getRunningSuites() {
+        return runningSuites.get();
+    }
+
+    /**
+     * 发往 server 的消息按类别进入 {@link TransportQueue}，
+     * 其中步骤日志等消息由 {@link TransportSpool} 保存，断开期间写入磁盘，重连或重启后按顺序补发
+     */
+    public static TransportQueue getQueue() {
+        TransportQueue q = queue;
+        if (q == null) {
+            synchronized (TransportWorker.class) {
+                q = queue;
+                if (q == null) {
+                    q = new TransportQueue(new TransportSpool(new File(spoolDir), spoolMemoryMessages,
+                            SPOOL_SEGMENT_BYTES, spoolMaxMb * 1024 * 1024));
+                    queue = q;
                 }
             }
-        });
+        }
+        return q;
+    }
+
+    public static void send(JSONObject jsonObject) {
+        getQueue().offer(jsonObject);
+    }
+
+    /**
+     * 认证通过后设置连接，唤醒等待连接的发送线程
+     */
+    public static void setClient(TransportClient transportClient) {
+        client = transportClient;
+        TransportSender s = sender;
+        if (s != null) {
+            s.wakeUp();
+        }
+    }
+
+    /**
+     * server 确认 seq 及之前的消息已经处理
+     */
+    public static void ack(long seq) {
+        getQueue().commit(seq);
+        TransportSender s = sender;
+        if (s != null) {
+            s.wakeUp();
+        }
+    }
+
+    /**
+     * 阻塞等待队列中的消息，到达后立即发送，短时间内的多条消息合并成一帧，见 {@link TransportSender}
+     */
+    public static void readQueue() {
+        TransportBatcher batcher = new TransportBatcher(getQueue(), batchEnable, batchLingerMs, batchMaxBytes);
+        sender = new TransportSender(getQueue(), batcher, () -> client, () -> BytesTool.agentId, () -> isKeyAuth,
+                () -> {
+                    TransportClient c = client;
+                    return c == null ? TransportCodec.TEXT : c.getCodec();
+                },
+                () -> {
+                    TransportClient c = client;
+                    return c != null && c.isAck();
+                });
+        cachedThreadPool.execute(sender);
+    }
+
+    /**
+     * 连接时提供的最优格式，server 可以选择它或更简单的格式
+     */
+    public static TransportCodec getWireFormat() {
+        return wireFormat;
+    }
+
+    public static long getQueueSize() {
+        return getQueue().size();
+    }
+
+    /**
+     * @return 当前的合并器，readQueue 之前为 null
+     */
+    public static TransportBatcher getBatcher() {
+        TransportSender s = sender;
+        return s == null ? null : s.getBatcher();
+    }
+
+    /**
+     * @return 发送线程，readQueue 之前为 null
+     */
+    public static TransportSender getSender() {
+        return sender;
     }
 }
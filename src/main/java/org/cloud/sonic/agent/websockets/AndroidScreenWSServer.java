@@ -30,8 +30,8 @@ import org.cloud.sonic.agent.common.maps.AndroidAPKMap;
 import org.cloud.sonic.agent.common.maps.AndroidDeviceManagerMap;
 import org.cloud.sonic.agent.common.maps.ScreenMap;
 import org.cloud.sonic.agent.common.maps.WebSocketSessionMap;
-import org.cloud.sonic.agent.tests.android.minicap.MiniCapUtil;
-import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyServerUtil;
+import org.cloud.sonic.agent.tests.android.AndroidScreenHub;
+import org.cloud.sonic.agent.tests.android.AndroidScreenViewer;
 import org.cloud.sonic.agent.tests.handlers.AndroidMonitorHandler;
 import org.cloud.sonic.agent.tools.BytesTool;
 import org.cloud.sonic.agent.tools.ScheduleTool;
@@ -42,7 +42,6 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.atomic.AtomicReference;
 
 @Component
 @Slf4j
@@ -52,6 +51,10 @@ public class AndroidScreenWSServer implements IAndroidWSServer {
     private String key;
     private Map<String, String> typeMap = new ConcurrentHashMap<>();
     private Map<String, String> picMap = new ConcurrentHashMap<>();
+    /**
+     * 每个连接各自的 scrcpy 输出格式：jpeg（默认，agent 端解码）或 h264（透传，前端 WebCodecs 解码）
+     */
+    private Map<Session, String> codecMap = new ConcurrentHashMap<>();
 
     private AndroidMonitorHandler androidMonitorHandler = new AndroidMonitorHandler();
 
@@ -124,78 +127,77 @@ public class AndroidScreenWSServer implements IAndroidWSServer {
             case "switch" -> {
                 typeMap.put(udId, msg.getString("detail"));
                 IDevice iDevice = udIdMap.get(session);
+                attach(session);
                 if (!androidMonitorHandler.isMonitorRunning(iDevice)) {
                     androidMonitorHandler.startMonitor(iDevice, res -> {
                         JSONObject rotationJson = new JSONObject();
                         rotationJson.put("msg", "rotation");
                         rotationJson.put("value", Integer.parseInt(res) * 90);
-                        BytesTool.sendText(session, rotationJson.toJSONString());
-                        startScreen(session);
+                        AndroidScreenHub hub = ScreenMap.getMap().get(udId);
+                        if (hub != null) {
+                            hub.sendText(rotationJson.toJSONString());
+                        }
+                        startScreen(udId, true);
                     });
                 } else {
-                    startScreen(session);
+                    startScreen(udId, false);
                 }
             }
             case "pic" -> {
                 picMap.put(udId, msg.getString("detail"));
-                startScreen(session);
+                attach(session);
+                startScreen(udId, false);
+            }
+            case "codec" -> {
+                // 只影响当前连接，设备端的链路保持不变
+                codecMap.put(session, msg.getString("detail"));
+                attach(session);
             }
         }
     }
 
-    private void startScreen(Session session) {
+    private void attach(Session session) {
         IDevice iDevice = udIdMap.get(session);
         if (iDevice != null) {
-            Thread old = ScreenMap.getMap().get(session);
-            if (old != null) {
-                old.interrupt();
-                do {
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                while (ScreenMap.getMap().get(session) != null);
-            }
-            typeMap.putIfAbsent(iDevice.getSerialNumber(), "scrcpy");
-            switch (typeMap.get(iDevice.getSerialNumber())) {
-                case "scrcpy" -> {
-                    ScrcpyServerUtil scrcpyServerUtil = new ScrcpyServerUtil();
-                    Thread scrcpyThread = scrcpyServerUtil.start(iDevice.getSerialNumber(), AndroidDeviceManagerMap.getRotationMap().get(iDevice.getSerialNumber()), session);
-                    ScreenMap.getMap().put(session, scrcpyThread);
-                }
-                case "minicap" -> {
-                    MiniCapUtil miniCapUtil = new MiniCapUtil();
-                    AtomicReference<String[]> banner = new AtomicReference<>(new String[24]);
-                    Thread miniCapThread = miniCapUtil.start(
-                            iDevice.getSerialNumber(), banner, null,
-                            picMap.get(iDevice.getSerialNumber()) == null ? "high" : picMap.get(iDevice.getSerialNumber()),
-                            AndroidDeviceManagerMap.getRotationMap().get(iDevice.getSerialNumber()), session
-                    );
-                    ScreenMap.getMap().put(session, miniCapThread);
-                }
-            }
-            JSONObject picFinish = new JSONObject();
-            picFinish.put("msg", "picFinish");
-            BytesTool.sendText(session, picFinish.toJSONString());
+            ScreenMap.getMap().computeIfAbsent(iDevice.getSerialNumber(), AndroidScreenHub::new)
+                    .attach(session, codecMap.getOrDefault(session, AndroidScreenViewer.CODEC_JPEG));
         }
     }
 
+    /**
+     * 同一台设备的链路只启动一次，后加入的观看者直接复用
+     */
+    private void startScreen(String udId, boolean restart) {
+        AndroidScreenHub hub = ScreenMap.getMap().get(udId);
+        if (hub == null) {
+            return;
+        }
+        typeMap.putIfAbsent(udId, "scrcpy");
+        hub.start(typeMap.get(udId), picMap.get(udId) == null ? "high" : picMap.get(udId), restart);
+        JSONObject picFinish = new JSONObject();
+        picFinish.put("msg", "picFinish");
+        hub.sendText(picFinish.toJSONString());
+    }
+
     private void exit(Session session) {
         synchronized (session) {
             ScheduledFuture<?> future = (ScheduledFuture<?>) session.getUserProperties().get("schedule");
             future.cancel(true);
             String udId = session.getUserProperties().get("udId").toString();
-            androidMonitorHandler.stopMonitor(udIdMap.get(session));
+            IDevice iDevice = udIdMap.get(session);
             WebSocketSessionMap.removeSession(session);
             removeUdIdMapAndSet(session);
-            AndroidDeviceManagerMap.getRotationMap().remove(udId);
-            if (ScreenMap.getMap().get(session) != null) {
-                ScreenMap.getMap().get(session).interrupt();
+            codecMap.remove(session);
+            AndroidScreenHub hub = ScreenMap.getMap().get(udId);
+            // 最后一个观看者离开时才停止设备端服务和方向监听
+            if (hub == null || hub.detach(session) == 0) {
+                if (iDevice != null) {
+                    androidMonitorHandler.stopMonitor(iDevice);
+                }
+                AndroidDeviceManagerMap.getRotationMap().remove(udId);
+                typeMap.remove(udId);
+                picMap.remove(udId);
             }
-            typeMap.remove(udId);
-            picMap.remove(udId);
             try {
                 session.close();
             } catch (IOException e) {
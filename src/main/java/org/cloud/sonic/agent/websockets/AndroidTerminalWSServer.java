@@ -33,6 +33,7 @@ import org.cloud.sonic.agent.common.maps.WebSocketSessionMap;
 import org.cloud.sonic.agent.tools.BytesTool;
 import org.cloud.sonic.agent.tools.PortTool;
 import org.cloud.sonic.agent.tools.ScheduleTool;
+import org.cloud.sonic.agent.tools.SessionOutbox;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
@@ -231,7 +232,7 @@ public class AndroidTerminalWSServer implements IAndroidWSServer {
                                 JSONObject resp = new JSONObject();
                                 resp.put("msg", "logcatResp");
                                 resp.put("detail", res);
-                                BytesTool.sendText(session, resp.toJSONString());
+                                BytesTool.sendText(session, resp.toJSONString(), SessionOutbox.Policy.STREAM);
                             }
 
                             @Override
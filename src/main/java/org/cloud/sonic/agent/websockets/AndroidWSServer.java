@@ -228,7 +228,7 @@ public class AndroidWSServer implements IAndroidWSServer {
             case "scan" -> AndroidDeviceBridgeTool.pushToCamera(iDevice, msg.getString("url"));
             case "text" -> AndroidDeviceBridgeTool.sendKeysByKeyboard(iDevice, msg.getString("detail"));
             case "touch" -> AndroidTouchHandler.writeToOutputStream(iDevice, msg.getString("detail"));
-            case "keyEvent" -> AndroidDeviceBridgeTool.pressKey(iDevice, msg.getInteger("detail"));
+            case "keyEvent" -> AndroidTouchHandler.pressKey(iDevice, msg.getInteger("detail"));
             case "pullFile" -> {
                 JSONObject result = new JSONObject();
                 result.put("msg", "pullResult");
@@ -30,6 +30,7 @@ import org.cloud.sonic.agent.common.config.WsEndpointConfigure;
 import org.cloud.sonic.agent.common.maps.AndroidAPKMap;
 import org.cloud.sonic.agent.common.maps.WebSocketSessionMap;
 import org.cloud.sonic.agent.tools.BytesTool;
+import org.cloud.sonic.agent.tools.SessionOutbox;
 import org.cloud.sonic.agent.tools.PortTool;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
@@ -122,7 +123,8 @@ public class AudioWSServer implements IAndroidWSServer {
                         ByteBuffer byteBuffer = ByteBuffer.allocate(dataBytes.length);
                         byteBuffer.put(dataBytes);
                         byteBuffer.flip();
-                        BytesTool.sendByte(session, byteBuffer);
+                        // 按顺序发送，前端跟不上时丢弃最旧的音频
+                        BytesTool.sendByte(session, byteBuffer, SessionOutbox.Policy.STREAM);
                     }
                 } catch (IOException e) {
                     e.printStackTrace();
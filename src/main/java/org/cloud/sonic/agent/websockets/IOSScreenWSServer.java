@@ -27,21 +27,17 @@ import jakarta.websocket.server.ServerEndpoint;
 import lombok.extern.slf4j.Slf4j;
 import org.cloud.sonic.agent.bridge.ios.SibTool;
 import org.cloud.sonic.agent.common.config.WsEndpointConfigure;
+import org.cloud.sonic.agent.common.maps.IOSScreenMap;
 import org.cloud.sonic.agent.common.maps.WebSocketSessionMap;
-import org.cloud.sonic.agent.tests.ios.mjpeg.MjpegInputStream;
+import org.cloud.sonic.agent.tests.ios.IOSScreenHub;
 import org.cloud.sonic.agent.tools.BytesTool;
 import org.cloud.sonic.agent.tools.ScheduleTool;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.ByteBuffer;
 import java.util.concurrent.ScheduledFuture;
 
-import static org.cloud.sonic.agent.tools.BytesTool.sendByte;
-
 @Component
 @Slf4j
 @ServerEndpoint(value = "/websockets/ios/screen/{key}/{udId}/{token}", configurator = WsEndpointConfigure.class)
@@ -83,57 +79,10 @@ public class IOSScreenWSServer implements IIOSWSServer {
         if (screenPort == 0) {
             return;
         }
-        int finalScreenPort = screenPort;
-        new Thread(() -> {
-            URL url;
-            try {
-                url = new URL("http://localhost:" + finalScreenPort);
-            } catch (MalformedURLException e) {
-                return;
-            }
-            MjpegInputStream mjpegInputStream = null;
-            int waitMjpeg = 0;
-            while (mjpegInputStream == null) {
-                try {
-                    mjpegInputStream = new MjpegInputStream(url.openStream());
-                } catch (IOException e) {
-                    log.info(e.getMessage());
-                }
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    log.info(e.getMessage());
-                    return;
-                }
-                waitMjpeg++;
-                if (waitMjpeg >= 20) {
-                    log.info("mjpeg server connect fail");
-                    return;
-                }
-            }
-            ByteBuffer bufferedImage;
-            int i = 0;
-            while (true) {
-                try {
-                    if ((bufferedImage = mjpegInputStream.readFrameForByteBuffer()) == null) break;
-                } catch (IOException e) {
-                    log.info(e.getMessage());
-                    break;
-                }
-                i++;
-                if (i % 3 != 0) {
-                    sendByte(session, bufferedImage);
-                } else {
-                    i = 0;
-                }
-            }
-            try {
-                mjpegInputStream.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-            log.info("screen done.");
-        }).start();
+        // 同一台设备的观看者共享一条 mjpeg 连接
+        IOSScreenHub hub = IOSScreenMap.getMap().computeIfAbsent(udId, IOSScreenHub::new);
+        session.getUserProperties().put("screenHub", hub);
+        hub.attach(session, screenPort);
 
         session.getUserProperties().put("schedule", ScheduleTool.schedule(() -> {
             log.info("time up!");
@@ -160,6 +109,10 @@ public class IOSScreenWSServer implements IIOSWSServer {
         synchronized (session) {
             ScheduledFuture<?> future = (ScheduledFuture<?>) session.getUserProperties().get("schedule");
             future.cancel(true);
+            IOSScreenHub hub = (IOSScreenHub) session.getUserProperties().remove("screenHub");
+            if (hub != null) {
+                hub.detach(session);
+            }
             WebSocketSessionMap.removeSession(session);
             removeUdIdMapAndSet(session);
             try {
@@ -30,11 +30,14 @@ import org.cloud.sonic.agent.common.config.WsEndpointConfigure;
 import org.cloud.sonic.agent.common.interfaces.DeviceStatus;
 import org.cloud.sonic.agent.common.maps.DevicesLockMap;
 import org.cloud.sonic.agent.common.maps.HandlerMap;
+import org.cloud.sonic.agent.common.maps.IOSScreenMap;
 import org.cloud.sonic.agent.common.maps.WebSocketSessionMap;
 import org.cloud.sonic.agent.common.models.HandleContext;
 import org.cloud.sonic.agent.tests.TaskManager;
 import org.cloud.sonic.agent.tests.handlers.IOSStepHandler;
 import org.cloud.sonic.agent.tests.ios.IOSRunStepThread;
+import org.cloud.sonic.agent.tests.ios.IOSScreenHub;
+import org.cloud.sonic.agent.tests.ios.mjpeg.MjpegQuality;
 import org.cloud.sonic.agent.tools.*;
 import org.cloud.sonic.agent.tools.file.DownloadTool;
 import org.cloud.sonic.agent.tools.file.UploadTools;
@@ -58,6 +61,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static org.cloud.sonic.agent.tools.BytesTool.sendText;
 
@@ -147,11 +151,18 @@ public class IOSWSServer implements IIOSWSServer {
                 result.put("height", iosStepHandler.getIOSDriver().getWindowSize().getHeight());
                 result.put("wda", ports[0]);
                 screenMap.put(udId, ports[1]);
-                JSONObject appiumSettings = new JSONObject();
-                appiumSettings.put("mjpegServerFramerate", 60);
-                appiumSettings.put("mjpegScalingFactor", 100);
-                appiumSettings.put("mjpegServerScreenshotQuality", 50);
-                iosStepHandler.appiumSettings(appiumSettings);
+                // 投屏中心按到达间隔和发送耗时自动调整 mjpeg 设置
+                IOSScreenHub screenHub = IOSScreenMap.getMap().computeIfAbsent(udId, IOSScreenHub::new);
+                Consumer<JSONObject> settingsSink = settings -> {
+                    try {
+                        iosStepHandler.appiumSettings(settings);
+                    } catch (SonicRespException e) {
+                        log.info("set mjpeg settings failed: {}", e.getMessage());
+                    }
+                };
+                session.getUserProperties().put("screenSettings", settingsSink);
+                screenHub.setSettingsSink(settingsSink);
+                screenHub.setCeiling(MjpegQuality.HIGH);
                 HandlerMap.getIOSMap().put(udId, iosStepHandler);
             } catch (Exception e) {
                 log.error(e.getMessage());
@@ -214,20 +225,10 @@ public class IOSWSServer implements IIOSWSServer {
                     BytesTool.sendText(session, forwardView.toJSONString());
                 }
                 case "screen" -> {
-                    JSONObject appiumSettings = new JSONObject();
-                    if (msg.getString("detail").equals("low")) {
-                        appiumSettings.put("mjpegServerFramerate", 50);
-                        appiumSettings.put("mjpegScalingFactor", 50);
-                        appiumSettings.put("mjpegServerScreenshotQuality", 10);
-                    } else {
-                        appiumSettings.put("mjpegServerFramerate", 60);
-                        appiumSettings.put("mjpegScalingFactor", 100);
-                        appiumSettings.put("mjpegServerScreenshotQuality", 50);
-                    }
-                    try {
-                        iosStepHandler.appiumSettings(appiumSettings);
-                    } catch (SonicRespException e) {
-                        e.printStackTrace();
+                    // 前端选择的画质作为上限，WDA 的设置对共享的 mjpeg 连接立即生效
+                    IOSScreenHub screenHub = IOSScreenMap.getMap().get(udId);
+                    if (screenHub != null) {
+                        screenHub.setCeiling(MjpegQuality.fromDetail(msg.getString("detail")));
                     }
                 }
                 case "setPasteboard" -> {
@@ -502,12 +503,19 @@ public class IOSWSServer implements IIOSWSServer {
         });
     }
 
+    @SuppressWarnings("unchecked")
     private void exit(Session session) {
         synchronized (session) {
             ScheduledFuture<?> future = (ScheduledFuture<?>) session.getUserProperties().get("schedule");
             future.cancel(true);
             String udId = udIdMap.get(session);
             screenMap.remove(udId);
+            // 投屏连接和录像各自退出，这里只撤回 driver 下发设置的方式
+            IOSScreenHub screenHub = IOSScreenMap.getMap().get(udId);
+            Object settingsSink = session.getUserProperties().remove("screenSettings");
+            if (screenHub != null && settingsSink != null) {
+                screenHub.removeSettingsSink((Consumer<JSONObject>) settingsSink);
+            }
             SibTool.stopOrientationWatcher(udId);
             try {
                 IOSStepHandler iosStepHandler = HandlerMap.getIOSMap().get(udId);
@@ -0,0 +1,202 @@
+package org.cloud.sonic.agent.load;
+
+import com.alibaba.fastjson.JSONObject;
+import org.cloud.sonic.agent.tests.android.AndroidScreenViewer;
+import org.cloud.sonic.agent.transport.InboundDispatcher;
+import org.cloud.sonic.agent.transport.TransportCodec;
+import org.cloud.sonic.agent.transport.TransportQueue;
+import org.cloud.sonic.agent.transport.TransportSession;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.ffmpeg.global.avformat.avformat_version;
+
+/**
+ * 单个 agent 进程的压测：进程内启动 {@link FakeSonicServer}，逐级增加 {@link FakeAndroidDevice} 和观看者，
+ * 每级报告各阶段耗时、进程 CPU、堆和线程数，找出 agent 撑不住的设备数
+ * 默认不参与 mvn test，执行 mvn test -Dtest=AgentLoadBenchmark -Dsonic.load.devices=32
+ * <ul>
+ * <li>sonic.load.devices：最多的设备数，按 1、2、4... 递增，默认 16</li>
+ * <li>sonic.load.viewers：每台设备的投屏观看者，默认 2；另有一个终端接收 logcat 和性能数据</li>
+ * <li>sonic.load.codec：scrcpy 观看者的格式，h264 / jpeg / mixed，默认 mixed，即两种交替；jpeg 需要 FFmpeg 解码和编码</li>
+ * <li>sonic.load.screen：scrcpy / minicap / mixed，默认 mixed，即两种设备各一半</li>
+ * <li>sonic.load.stepSeconds：每一级持续的秒数，默认 10</li>
+ * <li>sonic.load.sendMillis：观看者单次发送的耗时，模拟前端的网络，默认 0</li>
+ * <li>sonic.load.p99BudgetMs：任一阶段 p99 超过它即认为过载，默认 200</li>
+ * <li>sonic.load.recordings：录制的码流目录，见 {@link Recording#load(File)}，默认使用生成的数据</li>
+ * </ul>
+ * 各阶段：device.* 为设备端处理，viewer.* 为回放到发给前端，server.* 为回放到 server 收到，server.loadProbe 为指令往返
+ * scrcpy 设备经过真实的 ScrcpyOutputSocketThread，解码和 JPEG 编码的开销体现在 viewer.h264 / viewer.scrcpy-jpeg 和进程 CPU 中
+ */
+public class AgentLoadBenchmark {
+
+    private final com.sun.management.OperatingSystemMXBean osMXBean =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+
+    private static List<Integer> steps(int max) {
+        List<Integer> steps = new ArrayList<>();
+        for (int n = 1; n < max; n *= 2) {
+            steps.add(n);
+        }
+        steps.add(max);
+        return steps;
+    }
+
+    private static boolean ffmpeg() {
+        try {
+            return avformat_version() > 0;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        int maxDevices = Integer.getInteger("sonic.load.devices", 16);
+        int viewers = Integer.getInteger("sonic.load.viewers", 2);
+        String codec = System.getProperty("sonic.load.codec", "mixed");
+        String screen = System.getProperty("sonic.load.screen", "mixed");
+        int stepSeconds = Integer.getInteger("sonic.load.stepSeconds", 10);
+        long sendMillis = Long.getLong("sonic.load.sendMillis", 0);
+        long budget = TimeUnit.MILLISECONDS.toNanos(Long.getLong("sonic.load.p99BudgetMs", 200));
+        String recordings = System.getProperty("sonic.load.recordings");
+        Recording recording = Recording.load(recordings == null ? null : new File(recordings));
+        if (!"minicap".equals(screen) && !"h264".equals(codec)) {
+            Assume.assumeTrue("FFmpeg is not available on this platform", ffmpeg());
+        }
+
+        LatencyRecorder latency = new LatencyRecorder();
+        FakeSonicServer server = new FakeSonicServer("load", TransportCodec.JSONB_DEFLATE, true, latency);
+        server.start();
+        Assert.assertTrue(server.awaitStarted(5, TimeUnit.SECONDS));
+        File dir = Files.createTempDirectory("sonic-load").toFile();
+        TransportSession.setRegistered(false);
+        LoadAgent agent = new LoadAgent(server.getUrl(), dir, TransportCodec.JSONB_DEFLATE, true);
+        ScheduledExecutorService network = Executors.newScheduledThreadPool(4, r -> {
+            Thread thread = new Thread(r, "load-viewer-network");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<FakeAndroidDevice> devices = new CopyOnWriteArrayList<>();
+        try {
+            Assert.assertTrue(agent.connect(5, TimeUnit.SECONDS));
+            agent.on("loadProbe", probe -> {
+                int index = Integer.parseInt(probe.getString("udId").substring("load-".length()));
+                devices.get(index).onProbe(probe);
+            });
+            System.out.printf("screen=%s viewers/device=%d codec=%s step=%ds sendMillis=%d recordings=%s cores=%d%n",
+                    screen, viewers, codec, stepSeconds, sendMillis, recordings == null ? "synthetic" : recordings,
+                    osMXBean.getAvailableProcessors());
+            Integer tippedAt = null;
+            for (int target : steps(maxDevices)) {
+                while (devices.size() < target) {
+                    int index = devices.size();
+                    FakeAndroidDevice.Screen type = switch (screen) {
+                        case "scrcpy" -> FakeAndroidDevice.Screen.SCRCPY;
+                        case "minicap" -> FakeAndroidDevice.Screen.MINICAP;
+                        default -> index % 2 == 0 ? FakeAndroidDevice.Screen.SCRCPY : FakeAndroidDevice.Screen.MINICAP;
+                    };
+                    FakeAndroidDevice device = new FakeAndroidDevice("load-" + index, type, recording, agent, latency);
+                    for (int v = 0; v < viewers; v++) {
+                        String viewerCodec = switch (codec) {
+                            case "h264" -> AndroidScreenViewer.CODEC_H264;
+                            case "jpeg" -> AndroidScreenViewer.CODEC_JPEG;
+                            default -> v % 2 == 0 ? AndroidScreenViewer.CODEC_H264 : AndroidScreenViewer.CODEC_JPEG;
+                        };
+                        device.attachViewer(ViewerSession.create(latency, network, sendMillis, device::getLastProduced),
+                                viewerCodec);
+                    }
+                    device.attachTerminal(ViewerSession.create(latency, network, sendMillis));
+                    devices.add(device);
+                    device.start();
+                }
+                if (run(target, viewers, stepSeconds, budget, server, agent, devices, latency) && tippedAt == null) {
+                    tippedAt = target;
+                }
+            }
+            System.out.println(tippedAt == null
+                    ? "no stage exceeded the p99 budget up to " + maxDevices + " devices"
+                    : "p99 budget first exceeded at " + tippedAt + " devices");
+        } finally {
+            for (FakeAndroidDevice device : devices) {
+                device.close();
+            }
+            agent.close();
+            network.shutdownNow();
+            server.stop(1000);
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * 运行一级并打印报告，前 1 秒用于预热，不计入
+     *
+     * @return 有阶段的 p99 超过 budget 时为 true
+     */
+    private boolean run(int target, int viewers, int stepSeconds, long budget, FakeSonicServer server, LoadAgent agent,
+                        List<FakeAndroidDevice> devices, LatencyRecorder latency) throws InterruptedException {
+        Thread.sleep(1000);
+        latency.drain();
+        long serverBytes = server.getBytes();
+        long cpuStart = osMXBean.getProcessCpuTime();
+        long start = System.nanoTime();
+        for (int s = 0; s < stepSeconds; s++) {
+            for (FakeAndroidDevice device : devices) {
+                JSONObject probe = new JSONObject();
+                probe.put("msg", "loadProbe");
+                probe.put("udId", device.getUdId());
+                server.command(probe);
+            }
+            Thread.sleep(1000);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double cores = (osMXBean.getProcessCpuTime() - cpuStart) / 1e9 / seconds;
+        Map<String, LatencyRecorder.Summary> summary = latency.drain();
+        long scrcpyDropped = 0;
+        for (FakeAndroidDevice device : devices) {
+            scrcpyDropped += device.getPacketQueue().getDropped();
+        }
+        System.out.printf("%n== devices=%d viewers=%d: cpu=%.2f cores (%.0f%%) heap=%dMB threads=%d "
+                        + "server=%.0fKB/s queue=%d inflight=%d rejected=%d (server got %d) scrcpyDropped=%d%n",
+                target, target * viewers, cores, cores * 100 / osMXBean.getAvailableProcessors(),
+                memoryMXBean.getHeapMemoryUsage().getUsed() >> 20, threadMXBean.getThreadCount(),
+                (server.getBytes() - serverBytes) / 1024.0 / seconds,
+                agent.getQueue().size(), agent.getQueue().getSpool().getInflight(),
+                agent.getRejected(), server.getCount(InboundDispatcher.REJECTED_MSG), scrcpyDropped);
+        boolean overBudget = false;
+        for (Map.Entry<String, LatencyRecorder.Summary> entry : summary.entrySet()) {
+            LatencyRecorder.Summary stage = entry.getValue();
+            boolean over = stage.getP99() > budget;
+            overBudget |= over;
+            System.out.printf("  %-20s %8.1f/s  %s%s%n", entry.getKey(), stage.getCount() / seconds, stage,
+                    over ? "  <-- over budget" : "");
+        }
+        System.out.printf("  lanes: control=%d latest=%d bulk=%d%n", agent.getQueue().getDepth(TransportQueue.Lane.CONTROL),
+                agent.getQueue().getDepth(TransportQueue.Lane.LATEST), agent.getQueue().getDepth(TransportQueue.Lane.BULK));
+        return overBudget;
+    }
+}
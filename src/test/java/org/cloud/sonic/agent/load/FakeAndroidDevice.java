@@ -0,0 +1,341 @@
+package org.cloud.sonic.agent.load;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.android.ddmlib.IDevice;
+import jakarta.websocket.Session;
+import org.cloud.sonic.agent.common.interfaces.DeviceStatus;
+import org.cloud.sonic.agent.tests.android.AndroidScreenHub;
+import org.cloud.sonic.agent.tests.android.AndroidScreenViewer;
+import org.cloud.sonic.agent.tests.android.AndroidTestTaskBootThread;
+import org.cloud.sonic.agent.tests.android.FrameChangeDetector;
+import org.cloud.sonic.agent.tests.android.minicap.MiniCapFrameDecoder;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyInputSocketThread;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyLocalThread;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyOutputSocketThread;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyPacket;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyPacketQueue;
+import org.cloud.sonic.agent.tools.BytesTool;
+
+import java.io.Closeable;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 模拟一台 Android 设备，按录制时的节奏回放 {@link Recording}，经过与真机相同的处理类：
+ * <ul>
+ * <li>scrcpy：回放线程代替 {@link ScrcpyInputSocketThread} 写入 {@link ScrcpyPacketQueue}，
+ * 由真实的 {@link ScrcpyOutputSocketThread} 取出，h264 观看者收到原始包，jpeg 观看者收到解码、编码后的画面（需要 FFmpeg）</li>
+ * <li>minicap：按 socket 的格式写入 {@link MiniCapFrameDecoder}，去重后交给 {@link AndroidScreenHub#sendJpeg}</li>
+ * <li>logcat：与 AndroidTerminalWSServer 一样按块发给终端</li>
+ * <li>perfmon：与 AndroidSupplyTool 一样发给终端，同时按 LogUtil 的格式经 agent 发给 server</li>
+ * </ul>
+ * 回放时写入当前时间，见 {@link ViewerSession}；与真机链路一样每路流一个线程
+ */
+public class FakeAndroidDevice implements Closeable {
+
+    public enum Screen {
+        SCRCPY,
+        MINICAP
+    }
+
+    /**
+     * 模拟 adb shell 输出的块大小
+     */
+    private static final int LOGCAT_CHUNK_BYTES = 4096;
+
+    private static final long LOGCAT_INTERVAL_MS = 50;
+
+    private static final long PERF_INTERVAL_MS = 1000;
+
+    private static final long MINICAP_FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / 30;
+
+    private final String udId;
+
+    private final Screen screen;
+
+    private final Recording recording;
+
+    private final LoadAgent agent;
+
+    private final LatencyRecorder latency;
+
+    private final AndroidScreenHub hub;
+
+    private final ScrcpyPacketQueue packetQueue = new ScrcpyPacketQueue();
+
+    private final List<Session> viewers = new CopyOnWriteArrayList<>();
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    private volatile Session terminal;
+
+    /**
+     * 最近一个视频包写入队列的时间（{@link System#nanoTime()}）
+     */
+    private volatile long lastProduced;
+
+    private volatile boolean running = true;
+
+    public FakeAndroidDevice(String udId, Screen screen, Recording recording, LoadAgent agent, LatencyRecorder latency) {
+        this.udId = udId;
+        this.screen = screen;
+        this.recording = recording;
+        this.agent = agent;
+        this.latency = latency;
+        this.hub = new AndroidScreenHub(udId);
+        agent.setDeviceStatus(udId, DeviceStatus.ONLINE);
+    }
+
+    public String getUdId() {
+        return udId;
+    }
+
+    public Screen getScreen() {
+        return screen;
+    }
+
+    public AndroidScreenHub getHub() {
+        return hub;
+    }
+
+    public ScrcpyPacketQueue getPacketQueue() {
+        return packetQueue;
+    }
+
+    public long getLastProduced() {
+        return lastProduced;
+    }
+
+    /**
+     * @param codec 只对 scrcpy 有效，minicap 的观看者都是 jpeg
+     */
+    public void attachViewer(Session session, String codec) {
+        viewers.add(session);
+        hub.attach(session, screen == Screen.SCRCPY ? codec : AndroidScreenViewer.CODEC_JPEG);
+    }
+
+    public void attachTerminal(Session session) {
+        terminal = session;
+    }
+
+    public void start() {
+        if (screen == Screen.SCRCPY) {
+            ScrcpyLocalThread server = new ScrcpyLocalThread(device(udId), 0, hub.getQuality(), hub,
+                    new AndroidTestTaskBootThread().setUdId(udId));
+            ReplayInputThread input = new ReplayInputThread(server);
+            ScrcpyOutputSocketThread output = new ScrcpyOutputSocketThread(input, hub);
+            threads.add(input);
+            threads.add(output);
+            // 输出线程在输入线程存活期间运行
+            input.start();
+            output.start();
+        } else {
+            start("minicap", this::replayMinicap);
+        }
+        start("logcat", this::replayLogcat);
+        start("perfmon", this::replayPerf);
+    }
+
+    /**
+     * 代替 ScrcpyInputSocketThread 读取设备的 socket，其余与真机相同
+     */
+    private class ReplayInputThread extends ScrcpyInputSocketThread {
+
+        ReplayInputThread(ScrcpyLocalThread server) {
+            super(server.getiDevice(), packetQueue, server, hub);
+            setDaemon(true);
+            setName(udId + "-scrcpy-input");
+        }
+
+        @Override
+        public void run() {
+            replayScrcpy();
+        }
+    }
+
+    /**
+     * 只提供序列号，不会启动设备端服务
+     */
+    private static IDevice device(String udId) {
+        return (IDevice) Proxy.newProxyInstance(FakeAndroidDevice.class.getClassLoader(), new Class[]{IDevice.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getSerialNumber" -> udId;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> null;
+                });
+    }
+
+    private void start(String name, Runnable task) {
+        Thread thread = new Thread(task, udId + "-" + name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * 等到 deadline，被关闭时返回 false
+     */
+    private boolean sleepUntil(long deadline) {
+        long remaining;
+        while (running && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+        return running;
+    }
+
+    /**
+     * 按录制的 pts 间隔写入队列，pts 换成当前时间
+     */
+    private void replayScrcpy() {
+        List<ScrcpyPacket> packets = recording.getScrcpy();
+        long next = System.nanoTime();
+        long lastPts = -1;
+        try {
+            while (running) {
+                for (ScrcpyPacket packet : packets) {
+                    if (!packet.isConfig()) {
+                        long interval = lastPts < 0 ? 0 : (packet.getPts() - lastPts) * 1000;
+                        if (interval <= 0 || interval > TimeUnit.SECONDS.toNanos(1)) {
+                            interval = Recording.SCRCPY_FRAME_NANOS;
+                        }
+                        lastPts = packet.getPts();
+                        next += interval;
+                        if (!sleepUntil(next)) {
+                            return;
+                        }
+                    }
+                    long now = System.nanoTime();
+                    packetQueue.put(new ScrcpyPacket(packet.isConfig() ? 0 : now / 1000,
+                            packet.isConfig(), packet.isKeyFrame(), packet.getData()));
+                    if (!packet.isConfig()) {
+                        lastProduced = now;
+                    }
+                }
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * 与 MiniCapInputSocketThread 一样拆帧、去重后交给 hub，device.minicap 为拆帧到 hub 返回的耗时
+     */
+    private void replayMinicap() {
+        MiniCapFrameDecoder decoder = new MiniCapFrameDecoder();
+        FrameChangeDetector frameChange = hub.getFrameChange();
+        byte[] banner = recording.getMinicapBanner();
+        decoder.feed(banner, 0, banner.length);
+        long next = System.nanoTime();
+        while (running) {
+            for (byte[] jpeg : recording.getMinicapFrames()) {
+                next += MINICAP_FRAME_NANOS;
+                if (!sleepUntil(next)) {
+                    return;
+                }
+                long start = System.nanoTime();
+                byte[] stamped = ViewerSession.stamp(jpeg, start);
+                byte[] length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(stamped.length).array();
+                decoder.feed(length, 0, 4);
+                decoder.feed(stamped, 0, stamped.length);
+                ByteBuffer frame;
+                while ((frame = decoder.nextFrame()) != null) {
+                    if (frameChange.isChanged(frame)) {
+                        long sendStart = System.nanoTime();
+                        hub.sendJpeg(frame);
+                        frameChange.recordWork(System.nanoTime() - sendStart);
+                        frameChange.markSent();
+                    }
+                    latency.since("device.minicap", start);
+                }
+            }
+        }
+    }
+
+    private void replayLogcat() {
+        List<String> lines = recording.getLogcat();
+        StringBuilder chunk = new StringBuilder();
+        int index = 0;
+        long next = System.nanoTime();
+        while (running) {
+            next += TimeUnit.MILLISECONDS.toNanos(LOGCAT_INTERVAL_MS);
+            if (!sleepUntil(next)) {
+                return;
+            }
+            chunk.setLength(0);
+            while (chunk.length() < LOGCAT_CHUNK_BYTES) {
+                chunk.append(lines.get(index++ % lines.size())).append('\n');
+            }
+            JSONObject resp = new JSONObject();
+            resp.put("msg", "logcatResp");
+            resp.put("detail", chunk.toString());
+            resp.put(FakeSonicServer.SENT_AT, System.nanoTime());
+            BytesTool.sendText(terminal, resp.toJSONString());
+        }
+    }
+
+    private void replayPerf() {
+        List<String> samples = recording.getPerf();
+        int index = 0;
+        long next = System.nanoTime();
+        while (running) {
+            next += TimeUnit.MILLISECONDS.toNanos(PERF_INTERVAL_MS);
+            if (!sleepUntil(next)) {
+                return;
+            }
+            JSONObject perf = JSON.parseObject(samples.get(index++ % samples.size()));
+            long now = System.nanoTime();
+            JSONObject perfDetail = new JSONObject();
+            perfDetail.put("msg", "perfDetail");
+            perfDetail.put("detail", perf);
+            perfDetail.put(FakeSonicServer.SENT_AT, now);
+            BytesTool.sendText(terminal, perfDetail.toJSONString(), "perfDetail");
+            JSONObject log = new JSONObject();
+            log.put("msg", "perform");
+            log.put("des", "");
+            log.put("status", 1);
+            log.put("log", perf.toJSONString());
+            log.put("cid", 0);
+            log.put("rid", 0);
+            log.put("udId", udId);
+            log.put("time", System.currentTimeMillis());
+            log.put(FakeSonicServer.SENT_AT, now);
+            agent.send(log);
+        }
+    }
+
+    /**
+     * server 下发的探测指令，回复时带回原来的时间戳，server.loadProbe 即一次往返的耗时
+     */
+    public void onProbe(JSONObject probe) {
+        JSONObject reply = new JSONObject();
+        reply.put("msg", "loadProbe");
+        reply.put("udId", udId);
+        reply.put(FakeSonicServer.SENT_AT, probe.getLongValue(FakeSonicServer.SENT_AT));
+        agent.send(reply);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Session session : viewers) {
+            hub.detach(session);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.cloud.sonic.agent.load;
+
+import com.alibaba.fastjson.JSONObject;
+import org.cloud.sonic.agent.transport.TransportCodec;
+import org.cloud.sonic.agent.transport.TransportSession;
+import org.cloud.sonic.agent.transport.TransportSpool;
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内的 server，按 TransportClient 的协议与 agent 通信：
+ * 连接后回复 auth，从 agent 提供的格式中选定 wireFormat；开启确认时按帧回复 ack；
+ * 同一个会话上报过 agentInfo 后重连，auth 回复 resumed
+ * 收到的消息按 msg 计数，带有 {@link #SENT_AT} 的消息记录从发出到 server 收到的耗时，阶段名为 server.msg
+ */
+public class FakeSonicServer extends WebSocketServer {
+
+    public static final String PATH = "/server/websockets/agent/";
+
+    /**
+     * 压测时写入消息的 {@link System#nanoTime()}，同一进程内可以直接相减
+     */
+    public static final String SENT_AT = "sentAt";
+
+    private static class AgentSession {
+        private volatile long seq;
+        private volatile boolean registered;
+    }
+
+    private final String key;
+
+    private final TransportCodec format;
+
+    private final boolean ack;
+
+    private final LatencyRecorder latency;
+
+    private final Map<String, AgentSession> sessions = new ConcurrentHashMap<>();
+
+    private final Map<WebSocket, AgentSession> connections = new ConcurrentHashMap<>();
+
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+    private final AtomicInteger auths = new AtomicInteger();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    /**
+     * @param key    agent 连接路径中的密钥，不一致时 auth 失败
+     * @param format server 支持的最优格式，text 相当于旧版本的 server
+     * @param ack    是否确认收到的消息
+     */
+    public FakeSonicServer(String key, TransportCodec format, boolean ack, LatencyRecorder latency) {
+        super(new InetSocketAddress("127.0.0.1", 0));
+        setReuseAddr(true);
+        this.key = key;
+        this.format = format;
+        this.ack = ack;
+        this.latency = latency;
+    }
+
+    public boolean awaitStarted(long timeout, TimeUnit unit) throws InterruptedException {
+        return started.await(timeout, unit);
+    }
+
+    public String getUrl() {
+        return "ws://127.0.0.1:" + getPort() + PATH + key;
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        auths.incrementAndGet();
+        JSONObject auth = new JSONObject();
+        auth.put("msg", "auth");
+        if (!handshake.getResourceDescriptor().equals(PATH + key)) {
+            auth.put("result", "fail");
+            conn.send(auth.toJSONString());
+            return;
+        }
+        String id = handshake.getFieldValue(TransportSession.HEADER_ID);
+        AgentSession session = id.isEmpty() ? new AgentSession() : sessions.computeIfAbsent(id, i -> new AgentSession());
+        boolean resumed = session.registered;
+        String seq = handshake.getFieldValue(TransportSession.HEADER_SEQ);
+        if (!seq.isEmpty()) {
+            session.seq = Math.max(session.seq, Long.parseLong(seq));
+        }
+        connections.put(conn, session);
+        auth.put("result", "pass");
+        auth.put("id", 1);
+        auth.put("highTemp", 45);
+        auth.put("highTempTime", 15);
+        auth.put("remoteTimeout", 480);
+        String offer = handshake.getFieldValue(TransportCodec.HEADER);
+        if (!offer.isEmpty()) {
+            auth.put("wireFormat", choose(offer).getName());
+        }
+        auth.put("ack", ack);
+        auth.put("ackSeq", session.seq);
+        auth.put("resumed", resumed);
+        conn.send(auth.toJSONString());
+    }
+
+    /**
+     * 按 agent 列出的顺序选第一个自己支持的格式
+     */
+    private TransportCodec choose(String offer) {
+        for (String name : offer.split(",")) {
+            TransportCodec codec = TransportCodec.of(name.trim());
+            if (codec.ordinal() <= format.ordinal()) {
+                return codec;
+            }
+        }
+        return TransportCodec.TEXT;
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        connections.remove(conn);
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        bytes.addAndGet(message.length());
+        receive(conn, TransportCodec.decode(message));
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer message) {
+        bytes.addAndGet(message.remaining());
+        receive(conn, TransportCodec.decode(message));
+    }
+
+    private void receive(WebSocket conn, List<JSONObject> messages) {
+        AgentSession session = connections.get(conn);
+        long now = System.nanoTime();
+        long maxSeq = 0;
+        for (JSONObject m : messages) {
+            String msg = m.getString("msg");
+            counts.computeIfAbsent(String.valueOf(msg), k -> new LongAdder()).increment();
+            if (m.containsKey(SENT_AT)) {
+                latency.record("server." + msg, now - m.getLongValue(SENT_AT));
+            }
+            maxSeq = Math.max(maxSeq, m.getLongValue(TransportSpool.SEQ));
+            if ("ping".equals(msg)) {
+                JSONObject pong = new JSONObject();
+                pong.put("msg", "pong");
+                conn.send(pong.toJSONString());
+            }
+            if ("agentInfo".equals(msg) && session != null) {
+                session.registered = true;
+            }
+        }
+        if (maxSeq > 0 && session != null) {
+            session.seq = Math.max(session.seq, maxSeq);
+            if (ack) {
+                JSONObject ackMsg = new JSONObject();
+                ackMsg.put("msg", "ack");
+                ackMsg.put("seq", maxSeq);
+                conn.send(ackMsg.toJSONString());
+            }
+        }
+    }
+
+    /**
+     * 下发给所有已连接的 agent，带上发出的时间
+     */
+    public void command(JSONObject command) {
+        command.put(SENT_AT, System.nanoTime());
+        String text = command.toJSONString();
+        for (WebSocket conn : connections.keySet()) {
+            if (conn.isOpen()) {
+                conn.send(text);
+            }
+        }
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+    }
+
+    @Override
+    public void onStart() {
+        started.countDown();
+    }
+
+    public long getCount(String msg) {
+        LongAdder count = counts.get(msg);
+        return count == null ? 0 : count.sum();
+    }
+
+    public Map<String, Long> getCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        counts.forEach((msg, count) -> result.put(msg, count.sum()));
+        return result;
+    }
+
+    /**
+     * 收到的帧长度之和，文本帧按字符数计
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public int getAuths() {
+        return auths.get();
+    }
+}
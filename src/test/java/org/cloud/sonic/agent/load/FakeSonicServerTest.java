@@ -0,0 +1,173 @@
+package org.cloud.sonic.agent.load;
+
+import com.alibaba.fastjson.JSONObject;
+import org.cloud.sonic.agent.transport.InboundDispatcher;
+import org.cloud.sonic.agent.transport.TransportCodec;
+import org.cloud.sonic.agent.transport.TransportSession;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+public class FakeSonicServerTest {
+
+    private final LatencyRecorder latency = new LatencyRecorder();
+
+    private FakeSonicServer server;
+
+    private LoadAgent agent;
+
+    private File dir;
+
+    private void start(TransportCodec format, boolean ack) throws Exception {
+        TransportSession.setRegistered(false);
+        server = new FakeSonicServer("key", format, ack, latency);
+        server.start();
+        Assert.assertTrue(server.awaitStarted(5, TimeUnit.SECONDS));
+        dir = Files.createTempDirectory("sonic-load").toFile();
+        agent = new LoadAgent(server.getUrl(), dir, TransportCodec.JSONB_DEFLATE, true);
+        Assert.assertTrue(agent.connect(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (agent != null) {
+            agent.close();
+        }
+        if (server != null) {
+            server.stop(1000);
+        }
+        if (dir != null) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+        TransportSession.setRegistered(false);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(condition.getAsBoolean());
+    }
+
+    private static JSONObject step(int i) {
+        JSONObject m = new JSONObject();
+        m.put("msg", "step");
+        m.put("udId", "a");
+        m.put("index", i);
+        m.put(FakeSonicServer.SENT_AT, System.nanoTime());
+        return m;
+    }
+
+    @Test
+    public void testNegotiatesFormatAndAcks() throws Exception {
+        start(TransportCodec.JSONB_DEFLATE, true);
+        Assert.assertEquals(TransportCodec.JSONB_DEFLATE, agent.getCodec());
+        Assert.assertTrue(agent.isAck());
+        for (int i = 0; i < 200; i++) {
+            agent.send(step(i));
+        }
+        await(() -> server.getCount("step") == 200);
+        // 只有 server 确认后才提交
+        await(() -> agent.getQueue().getSpool().getInflight() == 0);
+        Assert.assertEquals(1, server.getCount("agentInfo"));
+        Assert.assertEquals(200, latency.drain().get("server.step").getCount());
+    }
+
+    @Test
+    public void testOldServerKeepsText() throws Exception {
+        start(TransportCodec.TEXT, false);
+        Assert.assertEquals(TransportCodec.TEXT, agent.getCodec());
+        Assert.assertFalse(agent.isAck());
+        for (int i = 0; i < 50; i++) {
+            agent.send(step(i));
+        }
+        await(() -> server.getCount("step") == 50);
+    }
+
+    @Test
+    public void testResumeSkipsRegistration() throws Exception {
+        start(TransportCodec.JSONB_PLAIN, true);
+        await(() -> server.getCount("agentInfo") == 1);
+        agent.disconnect();
+        for (int i = 0; i < 20; i++) {
+            agent.send(step(i));
+        }
+        Assert.assertTrue(agent.connect(5, TimeUnit.SECONDS));
+        await(() -> server.getCount("step") == 20);
+        Assert.assertEquals(2, server.getAuths());
+        // 同一个会话重连，不再重新上报
+        Assert.assertEquals(1, server.getCount("agentInfo"));
+    }
+
+    @Test
+    public void testCommandRoundTrip() throws Exception {
+        start(TransportCodec.JSONB_DEFLATE, true);
+        agent.on("loadProbe", m -> {
+            JSONObject reply = new JSONObject();
+            reply.put("msg", "loadProbe");
+            reply.put("udId", m.getString("udId"));
+            reply.put(FakeSonicServer.SENT_AT, m.getLongValue(FakeSonicServer.SENT_AT));
+            agent.send(reply);
+        });
+        for (int i = 0; i < 10; i++) {
+            JSONObject probe = new JSONObject();
+            probe.put("msg", "loadProbe");
+            probe.put("udId", "device-" + i);
+            server.command(probe);
+        }
+        await(() -> server.getCount("loadProbe") == 10);
+        Map<String, LatencyRecorder.Summary> summary = latency.drain();
+        Assert.assertEquals(10, summary.get("server.loadProbe").getCount());
+        Assert.assertEquals(10, agent.getDispatcher().getExecuted());
+    }
+
+    @Test
+    public void testRejectedCommandIsReported() throws Exception {
+        start(TransportCodec.JSONB_DEFLATE, true);
+        CountDownLatch release = new CountDownLatch(1);
+        agent.on("loadProbe", m -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (int i = 0; i < 70; i++) {
+            JSONObject probe = new JSONObject();
+            probe.put("msg", "loadProbe");
+            probe.put("udId", "a");
+            server.command(probe);
+        }
+        // 同一台设备最多积压 64 条，包括正在执行的一条
+        await(() -> server.getCount(InboundDispatcher.REJECTED_MSG) == 6);
+        Assert.assertEquals(6, agent.getRejected());
+        release.countDown();
+        await(() -> agent.getDispatcher().getExecuted() == 64);
+    }
+
+    @Test
+    public void testDeviceStatusOnEveryConnect() throws Exception {
+        start(TransportCodec.JSONB_PLAIN, true);
+        agent.setDeviceStatus("a", "ONLINE");
+        await(() -> server.getCount("deviceDetail") == 1);
+        agent.disconnect();
+        Assert.assertTrue(agent.connect(5, TimeUnit.SECONDS));
+        // 会话恢复时也重新上报
+        await(() -> server.getCount("deviceDetail") == 2);
+        Assert.assertEquals(1, server.getCount("agentInfo"));
+    }
+}
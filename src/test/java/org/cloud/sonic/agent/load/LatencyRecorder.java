@@ -0,0 +1,107 @@
+package org.cloud.sonic.agent.load;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按阶段记录耗时，每个报告周期取出一次后清空
+ * 每个阶段最多保留 {@link #MAX_SAMPLES} 个样本，超过后只计数
+ */
+public class LatencyRecorder {
+
+    public static final int MAX_SAMPLES = 1 << 20;
+
+    public static class Summary {
+        private final long count;
+        private final long p50;
+        private final long p99;
+        private final long max;
+
+        Summary(long count, long p50, long p99, long max) {
+            this.count = count;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d p50=%.2fms p99=%.2fms max=%.2fms", count, p50 / 1e6, p99 / 1e6, max / 1e6);
+        }
+    }
+
+    private static class Samples {
+        private long[] values = new long[1024];
+        private int size = 0;
+        private long count = 0;
+
+        synchronized void add(long nanos) {
+            count++;
+            if (size == values.length) {
+                if (size == MAX_SAMPLES) {
+                    return;
+                }
+                values = Arrays.copyOf(values, Math.min(size * 2, MAX_SAMPLES));
+            }
+            values[size++] = nanos;
+        }
+
+        synchronized Summary drain() {
+            if (count == 0) {
+                return null;
+            }
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            Summary summary = new Summary(count, sorted[size / 2], sorted[Math.min(size - 1, size * 99 / 100)],
+                    sorted[size - 1]);
+            size = 0;
+            count = 0;
+            return summary;
+        }
+    }
+
+    private final Map<String, Samples> stages = new ConcurrentHashMap<>();
+
+    public void record(String stage, long nanos) {
+        stages.computeIfAbsent(stage, s -> new Samples()).add(Math.max(0, nanos));
+    }
+
+    /**
+     * 记录从 start（{@link System#nanoTime()}）到现在的耗时
+     */
+    public void since(String stage, long start) {
+        record(stage, System.nanoTime() - start);
+    }
+
+    /**
+     * @return 上次取出之后有样本的阶段，按名称排序
+     */
+    public Map<String, Summary> drain() {
+        Map<String, Summary> result = new TreeMap<>();
+        for (Map.Entry<String, Samples> entry : stages.entrySet()) {
+            Summary summary = entry.getValue().drain();
+            if (summary != null) {
+                result.put(entry.getKey(), summary);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,257 @@
+package org.cloud.sonic.agent.load;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import org.cloud.sonic.agent.transport.InboundDispatcher;
+import org.cloud.sonic.agent.transport.TransportBatcher;
+import org.cloud.sonic.agent.transport.TransportCodec;
+import org.cloud.sonic.agent.transport.TransportQueue;
+import org.cloud.sonic.agent.transport.TransportSender;
+import org.cloud.sonic.agent.transport.TransportSession;
+import org.cloud.sonic.agent.transport.TransportSpool;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.io.Closeable;
+import java.io.File;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 压测用的 agent 连接，握手与消息处理和 TransportClient 一致：
+ * 发送走真实的 {@link TransportQueue} / {@link TransportSender}；auth 在连接线程中处理，其余 server 下发的消息
+ * 都经 {@link InboundDispatcher} 按设备排队执行，积压被拒绝时回复 {@link InboundDispatcher#REJECTED_MSG}；
+ * 每次 auth 通过后重新上报设备状态
+ * TransportClient 依赖 Spring 配置和 adb，这里使用同样的 {@link TransportSession} / {@link TransportCodec} / {@link InboundDispatcher}
+ */
+public class LoadAgent implements Closeable {
+
+    private final URI uri;
+
+    private final TransportCodec wireFormat;
+
+    private final TransportQueue queue;
+
+    private final TransportSender sender;
+
+    private final Thread senderThread;
+
+    private final InboundDispatcher dispatcher;
+
+    private final Map<String, Consumer<JSONObject>> handlers = new ConcurrentHashMap<>();
+
+    /**
+     * 设备状态，与 AndroidDeviceManagerMap 的状态一样在每次连接后重新上报
+     */
+    private final Map<String, String> deviceStatus = new ConcurrentHashMap<>();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    private volatile Link link;
+
+    private volatile Link connecting;
+
+    private volatile TransportCodec codec = TransportCodec.TEXT;
+
+    private volatile boolean ack = false;
+
+    private volatile CountDownLatch authed = new CountDownLatch(1);
+
+    /**
+     * 一次连接，auth 通过后才用于发送
+     */
+    private class Link extends WebSocketClient {
+
+        Link() {
+            super(uri, TransportSession.headers(TransportCodec.offer(wireFormat), queue.getSpool().getCommitted()));
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+        }
+
+        @Override
+        public void onMessage(String message) {
+            LoadAgent.this.onMessage(this, JSON.parseObject(message));
+        }
+
+        @Override
+        public void onMessage(ByteBuffer bytes) {
+            for (JSONObject m : TransportCodec.decode(bytes)) {
+                LoadAgent.this.onMessage(this, m);
+            }
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            if (link == this) {
+                link = null;
+            }
+        }
+
+        @Override
+        public void onError(Exception ex) {
+        }
+    }
+
+    /**
+     * @param spoolDir   发送队列的磁盘目录，由调用方清理
+     * @param wireFormat 提供给 server 的最优格式
+     */
+    public LoadAgent(String url, File spoolDir, TransportCodec wireFormat, boolean batch) {
+        this.uri = URI.create(url);
+        this.wireFormat = wireFormat;
+        this.queue = new TransportQueue(new TransportSpool(spoolDir, 1000, 4L * 1024 * 1024, 512L * 1024 * 1024));
+        this.sender = new TransportSender(queue, new TransportBatcher(queue, batch, 5, 32768), () -> link,
+                () -> 1, () -> running, () -> codec, () -> ack);
+        this.dispatcher = new InboundDispatcher("load-inbound", 8, 64, 1024);
+        this.senderThread = new Thread(sender, "load-transport-sender");
+        this.senderThread.setDaemon(true);
+        this.senderThread.start();
+    }
+
+    /**
+     * 建立连接并等待 auth 通过
+     */
+    public boolean connect(long timeout, TimeUnit unit) throws InterruptedException {
+        authed = new CountDownLatch(1);
+        Link newLink = new Link();
+        connecting = newLink;
+        return newLink.connectBlocking(timeout, unit) && authed.await(timeout, unit);
+    }
+
+    /**
+     * 断开当前连接，模拟网络中断
+     */
+    public void disconnect() {
+        Link current = link;
+        link = null;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private void onMessage(Link from, JSONObject m) {
+        switch (m.getString("msg")) {
+            case "pong" -> {
+            }
+            case "ack" -> {
+                queue.commit(m.getLongValue("seq"));
+                sender.wakeUp();
+            }
+            case "auth" -> onAuth(from, m);
+            default -> {
+                boolean accepted = dispatcher.dispatch(InboundDispatcher.keyOf(m), () -> {
+                    Consumer<JSONObject> handler = handlers.get(m.getString("msg"));
+                    if (handler != null) {
+                        handler.accept(m);
+                    }
+                }, InboundDispatcher.isMandatory(m));
+                if (!accepted) {
+                    rejected.incrementAndGet();
+                    send(InboundDispatcher.rejection(m, "busy"));
+                }
+            }
+        }
+    }
+
+    private void onAuth(Link from, JSONObject m) {
+        if (!"pass".equals(m.getString("result")) || from != connecting || from.isClosed() || from.isClosing()) {
+            return;
+        }
+        codec = TransportCodec.choose(m.getString("wireFormat"), wireFormat);
+        ack = m.getBooleanValue("ack");
+        if (ack) {
+            queue.commit(m.getLongValue("ackSeq"));
+        }
+        link = from;
+        sender.wakeUp();
+        if (!TransportSession.canResume(m.getBooleanValue("resumed"))) {
+            JSONObject agentInfo = new JSONObject();
+            agentInfo.put("msg", "agentInfo");
+            agentInfo.put("agentId", m.getInteger("id"));
+            agentInfo.put("version", "load");
+            agentInfo.put("systemType", System.getProperty("os.name"));
+            from.send(agentInfo.toJSONString());
+            TransportSession.setRegistered(true);
+        }
+        deviceStatus.forEach(this::sendDeviceDetail);
+        authed.countDown();
+    }
+
+    private void sendDeviceDetail(String udId, String status) {
+        JSONObject deviceDetail = new JSONObject();
+        deviceDetail.put("msg", "deviceDetail");
+        deviceDetail.put("udId", udId);
+        deviceDetail.put("status", status);
+        send(deviceDetail);
+    }
+
+    /**
+     * 上报设备状态，之后每次连接都会重新上报
+     */
+    public void setDeviceStatus(String udId, String status) {
+        deviceStatus.put(udId, status);
+        sendDeviceDetail(udId, status);
+    }
+
+    /**
+     * 处理 server 下发的某类指令，与 TransportClient 一样在 {@link InboundDispatcher} 中执行
+     */
+    public void on(String msg, Consumer<JSONObject> handler) {
+        handlers.put(msg, handler);
+    }
+
+    public void send(JSONObject m) {
+        queue.offer(m);
+    }
+
+    public TransportQueue getQueue() {
+        return queue;
+    }
+
+    public TransportSender getSender() {
+        return sender;
+    }
+
+    public InboundDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public TransportCodec getCodec() {
+        return codec;
+    }
+
+    public boolean isAck() {
+        return ack;
+    }
+
+    /**
+     * 积压超过上限被拒绝并回复给 server 的指令数
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        senderThread.interrupt();
+        try {
+            senderThread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        disconnect();
+        dispatcher.shutdown();
+        queue.getSpool().close();
+    }
+}
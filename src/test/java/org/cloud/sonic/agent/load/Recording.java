@@ -0,0 +1,206 @@
+package org.cloud.sonic.agent.load;
+
+import org.cloud.sonic.agent.tests.android.minicap.MiniCapFrameDecoder;
+import org.cloud.sonic.agent.tests.android.scrcpy.H264Fixture;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyPacket;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 模拟设备回放的码流，所有设备共用，回放时不修改
+ * 目录中有录制的文件时使用录制的数据，缺少的部分按固定种子生成：
+ * <ul>
+ * <li>scrcpy.bin：scrcpy 视频 socket 中尺寸信息之后的部分，即若干个 [8 字节 pts 与 flags][4 字节长度][数据]</li>
+ * <li>minicap.bin：minicap socket 的完整输出，banner + [4 字节小端长度][JPEG]...</li>
+ * <li>logcat.txt：logcat 输出，按行回放</li>
+ * <li>perf.jsonl：sonic-android-supply perfmon 的输出，每行一条</li>
+ * </ul>
+ */
+public class Recording {
+
+    public static final long SCRCPY_FRAME_NANOS = H264Fixture.FRAME_INTERVAL_US * 1000;
+
+    private static final long CONFIG_FLAG = 0x8000000000000000L;
+
+    private static final long KEY_FRAME_FLAG = 0x4000000000000000L;
+
+    private static final long PTS_MASK = KEY_FRAME_FLAG - 1;
+
+    private final List<ScrcpyPacket> scrcpy;
+
+    private final byte[] minicapBanner;
+
+    private final List<byte[]> minicapFrames;
+
+    private final List<String> logcat;
+
+    private final List<String> perf;
+
+    public Recording(List<ScrcpyPacket> scrcpy, byte[] minicapBanner, List<byte[]> minicapFrames,
+                     List<String> logcat, List<String> perf) {
+        this.scrcpy = scrcpy;
+        this.minicapBanner = minicapBanner;
+        this.minicapFrames = minicapFrames;
+        this.logcat = logcat;
+        this.perf = perf;
+    }
+
+    public List<ScrcpyPacket> getScrcpy() {
+        return scrcpy;
+    }
+
+    public byte[] getMinicapBanner() {
+        return minicapBanner;
+    }
+
+    public List<byte[]> getMinicapFrames() {
+        return minicapFrames;
+    }
+
+    public List<String> getLogcat() {
+        return logcat;
+    }
+
+    public List<String> getPerf() {
+        return perf;
+    }
+
+    public static Recording synthetic() {
+        Random random = new Random(25);
+        return new Recording(syntheticScrcpy(), syntheticBanner(), syntheticMinicap(random),
+                syntheticLogcat(random), syntheticPerf(random));
+    }
+
+    /**
+     * @param dir 为 null 或不存在时全部生成
+     */
+    public static Recording load(File dir) throws IOException {
+        Recording synthetic = synthetic();
+        if (dir == null || !dir.isDirectory()) {
+            return synthetic;
+        }
+        List<ScrcpyPacket> scrcpy = synthetic.scrcpy;
+        File scrcpyFile = new File(dir, "scrcpy.bin");
+        if (scrcpyFile.isFile()) {
+            scrcpy = readScrcpy(scrcpyFile);
+        }
+        byte[] banner = synthetic.minicapBanner;
+        List<byte[]> frames = synthetic.minicapFrames;
+        File minicapFile = new File(dir, "minicap.bin");
+        if (minicapFile.isFile()) {
+            byte[] capture = Files.readAllBytes(minicapFile.toPath());
+            // 第二个字节为 banner 的长度
+            banner = Arrays.copyOf(capture, capture[1] & 0xFF);
+            frames = readMinicap(capture);
+        }
+        List<String> logcat = synthetic.logcat;
+        File logcatFile = new File(dir, "logcat.txt");
+        if (logcatFile.isFile()) {
+            logcat = Files.readAllLines(logcatFile.toPath(), StandardCharsets.UTF_8);
+        }
+        List<String> perf = synthetic.perf;
+        File perfFile = new File(dir, "perf.jsonl");
+        if (perfFile.isFile()) {
+            perf = Files.readAllLines(perfFile.toPath(), StandardCharsets.UTF_8);
+            perf.removeIf(String::isBlank);
+        }
+        return new Recording(scrcpy, banner, frames, logcat, perf);
+    }
+
+    private static List<ScrcpyPacket> readScrcpy(File file) throws IOException {
+        List<ScrcpyPacket> packets = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            while (true) {
+                long ptsAndFlags;
+                try {
+                    ptsAndFlags = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                packets.add(new ScrcpyPacket(ptsAndFlags & PTS_MASK, (ptsAndFlags & CONFIG_FLAG) != 0,
+                        (ptsAndFlags & KEY_FRAME_FLAG) != 0, data));
+            }
+        }
+        return packets;
+    }
+
+    /**
+     * 用真实的解码器拆帧，回放时再按 minicap 的格式拼回去
+     */
+    private static List<byte[]> readMinicap(byte[] capture) {
+        MiniCapFrameDecoder decoder = new MiniCapFrameDecoder();
+        decoder.feed(capture, 0, capture.length);
+        List<byte[]> frames = new ArrayList<>();
+        ByteBuffer frame;
+        while ((frame = decoder.nextFrame()) != null) {
+            byte[] jpeg = new byte[frame.remaining()];
+            frame.get(jpeg);
+            frames.add(jpeg);
+        }
+        return frames;
+    }
+
+    /**
+     * 2 秒一个 GOP，每个关键帧由 I_PCM 宏块组成，比真实码流大，偏向高估
+     */
+    private static List<ScrcpyPacket> syntheticScrcpy() {
+        return H264Fixture.stream(320, 576, 2, 120);
+    }
+
+    private static byte[] syntheticBanner() {
+        ByteBuffer banner = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        banner.put((byte) 1).put((byte) 24);
+        banner.putInt(4321).putInt(1080).putInt(2400).putInt(540).putInt(1200);
+        banner.put((byte) 1).put((byte) 2);
+        return banner.array();
+    }
+
+    private static List<byte[]> syntheticMinicap(Random random) {
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            byte[] jpeg = new byte[40 * 1024 + random.nextInt(40 * 1024)];
+            random.nextBytes(jpeg);
+            jpeg[0] = (byte) 0xFF;
+            jpeg[1] = (byte) 0xD8;
+            frames.add(jpeg);
+        }
+        return frames;
+    }
+
+    private static List<String> syntheticLogcat(Random random) {
+        String[] tags = {"ActivityManager", "WindowManager", "InputDispatcher", "SurfaceFlinger", "chromium"};
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            lines.add(String.format("10-15 12:%02d:%02d.%03d  %5d  %5d %s %s: event %d, state=%s",
+                    i / 60 % 60, i % 60, random.nextInt(1000), 1000 + random.nextInt(9000), 1000 + random.nextInt(9000),
+                    "VDIWE".charAt(random.nextInt(5)), tags[random.nextInt(tags.length)], i,
+                    Long.toHexString(random.nextLong())));
+        }
+        return lines;
+    }
+
+    private static List<String> syntheticPerf(Random random) {
+        List<String> samples = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            samples.add(String.format("{\"type\":\"sys\",\"timestamp\":%d,\"cpu\":{\"cpu\":{\"usage\":%.2f}},"
+                            + "\"mem\":{\"memTotal\":7843256,\"memFree\":%d},\"fps\":{\"fps\":%d,\"jank\":%d}}",
+                    1697371200000L + i * 1000L, random.nextDouble() * 100, 1000000 + random.nextInt(3000000),
+                    30 + random.nextInt(31), random.nextInt(3)));
+        }
+        return samples;
+    }
+}
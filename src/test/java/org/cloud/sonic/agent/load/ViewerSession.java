@@ -0,0 +1,111 @@
+package org.cloud.sonic.agent.load;
+
+import com.alibaba.fastjson.JSONObject;
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyPacket;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 模拟前端的 Session：每次发送在 network 线程中延迟 sendMillis 后完成，
+ * 按消息中的时间戳记录从设备端产生到发给前端的耗时，阶段名为 viewer.h264 / viewer.jpeg / viewer.msg
+ * <ul>
+ * <li>h264：帧头中的 pts 为回放时的 {@link System#nanoTime()} / 1000</li>
+ * <li>jpeg：SOI 之后的 COM 段中是回放时的 {@link System#nanoTime()}，见 {@link #stamp(byte[], long)}</li>
+ * <li>scrcpy 解码后重新编码的 jpeg：不带时间戳，按设备最近一个包写入队列的时间计，阶段名为 viewer.scrcpy-jpeg，是耗时的下限</li>
+ * <li>文本：{@link FakeSonicServer#SENT_AT} 字段</li>
+ * </ul>
+ */
+public class ViewerSession {
+
+    /**
+     * SOI + COM 标记 + 长度 + 8 字节时间戳
+     */
+    public static final int STAMP_SIZE = 14;
+
+    private ViewerSession() {
+    }
+
+    public static Session create(LatencyRecorder latency, ScheduledExecutorService network, long sendMillis) {
+        return create(latency, network, sendMillis, null);
+    }
+
+    /**
+     * @param produced scrcpy 设备最近一个包写入队列的时间，见 {@link FakeAndroidDevice#getLastProduced()}
+     */
+    public static Session create(LatencyRecorder latency, ScheduledExecutorService network, long sendMillis,
+                                 LongSupplier produced) {
+        RemoteEndpoint.Async async = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                ViewerSession.class.getClassLoader(), new Class[]{RemoteEndpoint.Async.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("sendBinary")) {
+                        onBinary(latency, produced, (ByteBuffer) args[0]);
+                        complete(network, sendMillis, (SendHandler) args[1]);
+                    } else if (method.getName().equals("sendText")) {
+                        onText(latency, (String) args[0]);
+                        complete(network, sendMillis, (SendHandler) args[1]);
+                    }
+                    return null;
+                });
+        Map<String, Object> properties = new ConcurrentHashMap<>();
+        return (Session) Proxy.newProxyInstance(
+                ViewerSession.class.getClassLoader(), new Class[]{Session.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "isOpen" -> true;
+                    case "getAsyncRemote" -> async;
+                    case "getUserProperties" -> properties;
+                    case "getId" -> Integer.toHexString(System.identityHashCode(proxy));
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> null;
+                });
+    }
+
+    private static void complete(ScheduledExecutorService network, long sendMillis, SendHandler handler) {
+        network.schedule(() -> handler.onResult(new SendResult()), sendMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void onBinary(LatencyRecorder latency, LongSupplier produced, ByteBuffer data) {
+        long now = System.nanoTime();
+        int p = data.position();
+        if (data.remaining() >= STAMP_SIZE && data.get(p) == (byte) 0xFF && data.get(p + 1) == (byte) 0xD8) {
+            if (data.get(p + 2) == (byte) 0xFF && data.get(p + 3) == (byte) 0xFE) {
+                latency.record("viewer.jpeg", now - data.getLong(p + 6));
+            } else if (produced != null) {
+                latency.record("viewer.scrcpy-jpeg", now - produced.getAsLong());
+            }
+            return;
+        }
+        if (data.remaining() > ScrcpyPacket.FRAME_HEADER_SIZE && (data.get(p) & ScrcpyPacket.FLAG_CONFIG) == 0) {
+            latency.record("viewer.h264", now - data.getLong(p + 1) * 1000);
+        }
+    }
+
+    private static void onText(LatencyRecorder latency, String text) {
+        if (!text.contains(FakeSonicServer.SENT_AT)) {
+            return;
+        }
+        JSONObject m = JSONObject.parseObject(text);
+        latency.record("viewer." + m.getString("msg"), System.nanoTime() - m.getLongValue(FakeSonicServer.SENT_AT));
+    }
+
+    /**
+     * 在 SOI 之后插入一个带时间戳的 COM 段，解码器会忽略它
+     */
+    public static byte[] stamp(byte[] jpeg, long nanos) {
+        byte[] stamped = new byte[jpeg.length + STAMP_SIZE - 2];
+        ByteBuffer buffer = ByteBuffer.wrap(stamped);
+        buffer.put((byte) 0xFF).put((byte) 0xD8).put((byte) 0xFF).put((byte) 0xFE).putShort((short) 10).putLong(nanos);
+        buffer.put(jpeg, 2, jpeg.length - 2);
+        return stamped;
+    }
+}
@@ -0,0 +1,273 @@
+package org.cloud.sonic.agent.tests.android;
+
+import com.alibaba.fastjson.JSONObject;
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import org.cloud.sonic.agent.tests.android.scrcpy.ScrcpyRecorder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+public class AndroidScreenHubTest {
+
+    /**
+     * 不连接设备，启动链路时只起一个等待中断的 server 线程
+     * 设置 exitGate 后，server 线程被中断后要等它打开才退出，模拟释放端口转发较慢的设备
+     */
+    private static class FakeHub extends AndroidScreenHub {
+        private final AtomicInteger launches = new AtomicInteger();
+
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+
+        private volatile CountDownLatch exitGate;
+
+        FakeHub() {
+            super("fake");
+        }
+
+        @Override
+        Thread startStream(int tor) {
+            launches.incrementAndGet();
+            Thread server = new Thread(() -> {
+                try {
+                    Thread.sleep(Long.MAX_VALUE);
+                } catch (InterruptedException ignored) {
+                    interrupted.countDown();
+                } finally {
+                    awaitGate();
+                    onStreamExit(Thread.currentThread());
+                }
+            });
+            server.setDaemon(true);
+            server.start();
+            return server;
+        }
+
+        private void awaitGate() {
+            CountDownLatch gate = exitGate;
+            while (gate != null) {
+                try {
+                    gate.await();
+                    return;
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 记录收到的文本消息，发送立即完成
+     */
+    private static Session session(List<String> texts) {
+        RemoteEndpoint.Async async = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                AndroidScreenHubTest.class.getClassLoader(), new Class[]{RemoteEndpoint.Async.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("sendText")) {
+                        texts.add((String) args[0]);
+                        ((SendHandler) args[1]).onResult(new SendResult());
+                    } else if (method.getName().equals("sendBinary")) {
+                        ((SendHandler) args[1]).onResult(new SendResult());
+                    }
+                    return null;
+                });
+        Map<String, Object> properties = new ConcurrentHashMap<>();
+        return (Session) Proxy.newProxyInstance(
+                AndroidScreenHubTest.class.getClassLoader(), new Class[]{Session.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "isOpen" -> true;
+                    case "getAsyncRemote" -> async;
+                    case "getUserProperties" -> properties;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> null;
+                });
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(condition.getAsBoolean());
+    }
+
+    private static long count(List<String> texts, String msg) {
+        return texts.stream().filter(t -> msg.equals(JSONObject.parseObject(t).getString("msg"))).count();
+    }
+
+    @Test
+    public void testStopWhenIdle() {
+        FakeHub hub = new FakeHub();
+        // 没有观看者时不启动
+        hub.start("scrcpy", "high", false);
+        Assert.assertEquals(0, hub.launches.get());
+
+        Session a = session(new CopyOnWriteArrayList<>());
+        Session b = session(new CopyOnWriteArrayList<>());
+        hub.attach(a, AndroidScreenViewer.CODEC_JPEG);
+        hub.start("scrcpy", "high", false);
+        hub.attach(b, AndroidScreenViewer.CODEC_JPEG);
+        // 后加入的观看者复用同一条链路
+        hub.start("scrcpy", "high", false);
+        Assert.assertEquals(1, hub.launches.get());
+        Assert.assertTrue(hub.isRunning());
+        Assert.assertEquals(2, hub.getViewerCount());
+
+        Assert.assertEquals(1, hub.detach(a));
+        Assert.assertTrue(hub.isRunning());
+        Assert.assertEquals(0, hub.detach(b));
+        Assert.assertFalse(hub.isRunning());
+        Assert.assertTrue(hub.isIdle());
+
+        hub.attach(a, AndroidScreenViewer.CODEC_JPEG);
+        hub.start("scrcpy", "high", false);
+        Assert.assertEquals(2, hub.launches.get());
+        Assert.assertEquals(0, hub.detach(a));
+    }
+
+    @Test
+    public void testRestartAndTypeChange() {
+        FakeHub hub = new FakeHub();
+        Session session = session(new CopyOnWriteArrayList<>());
+        hub.attach(session, AndroidScreenViewer.CODEC_JPEG);
+        hub.start("scrcpy", "high", false);
+        // 屏幕旋转时强制重启
+        hub.start("scrcpy", "high", true);
+        Assert.assertEquals(2, hub.launches.get());
+        hub.start("minicap", "high", false);
+        Assert.assertEquals(3, hub.launches.get());
+        Assert.assertEquals("minicap", hub.getType());
+        Assert.assertTrue(hub.isRunning());
+        hub.detach(session);
+        Assert.assertFalse(hub.isRunning());
+    }
+
+    @Test
+    public void testCodecSwitchRequestsReplay() {
+        FakeHub hub = new FakeHub();
+        List<String> texts = new CopyOnWriteArrayList<>();
+        Session session = session(texts);
+        hub.attach(session, AndroidScreenViewer.CODEC_JPEG);
+        AndroidScreenViewer viewer = hub.getViewers().iterator().next();
+        // 新观看者先补发一次画面
+        Assert.assertTrue(viewer.takeReplay());
+        Assert.assertFalse(viewer.takeReplay());
+        Assert.assertEquals(0, count(texts, "codec"));
+        Assert.assertTrue(hub.hasJpegViewers());
+
+        hub.attach(session, AndroidScreenViewer.CODEC_JPEG);
+        Assert.assertFalse(viewer.takeReplay());
+
+        hub.attach(session, AndroidScreenViewer.CODEC_H264);
+        Assert.assertSame(viewer, hub.getViewers().iterator().next());
+        Assert.assertTrue(viewer.isPassthrough());
+        Assert.assertTrue(viewer.takeReplay());
+        Assert.assertEquals(1, count(texts, "codec"));
+        Assert.assertTrue(hub.hasPassthroughViewers());
+        Assert.assertFalse(hub.hasJpegViewers());
+        hub.detach(session);
+    }
+
+    @Test
+    public void testLateViewerGetsSize() throws InterruptedException {
+        FakeHub hub = new FakeHub();
+        List<String> first = new CopyOnWriteArrayList<>();
+        hub.attach(session(first), AndroidScreenViewer.CODEC_JPEG);
+        hub.start("scrcpy", "high", false);
+        JSONObject size = new JSONObject();
+        size.put("msg", "size");
+        size.put("width", 1080);
+        size.put("height", 2400);
+        hub.sendSize(size.toJSONString());
+
+        List<String> late = new CopyOnWriteArrayList<>();
+        hub.attach(session(late), AndroidScreenViewer.CODEC_JPEG);
+        await(() -> count(late, "size") == 1);
+        Assert.assertEquals(1, count(first, "size"));
+
+        // 链路停止后尺寸不再有效
+        hub.stop();
+        List<String> afterStop = new CopyOnWriteArrayList<>();
+        hub.attach(session(afterStop), AndroidScreenViewer.CODEC_JPEG);
+        Thread.sleep(100);
+        Assert.assertEquals(0, count(afterStop, "size"));
+    }
+
+    @Test
+    public void testRecorderKeepsStreamAlive() {
+        FakeHub hub = new FakeHub();
+        Session session = session(new CopyOnWriteArrayList<>());
+        ScrcpyRecorder recorder = new ScrcpyRecorder(new File("unused.mp4"));
+        hub.attach(session, AndroidScreenViewer.CODEC_JPEG);
+        hub.start("scrcpy", "high", false);
+        Assert.assertTrue(hub.addRecorder(recorder));
+        // 已有 scrcpy 链路，录像直接复用
+        Assert.assertEquals(1, hub.launches.get());
+
+        // 没有观看者时录像仍然保持链路
+        Assert.assertEquals(0, hub.detach(session));
+        Assert.assertTrue(hub.isRunning());
+        Assert.assertEquals(1, hub.getRecorderCount());
+
+        hub.removeRecorder(recorder);
+        Assert.assertFalse(hub.isRunning());
+        Assert.assertTrue(hub.isIdle());
+    }
+
+    @Test
+    public void testRecorderStartsScrcpy() {
+        FakeHub hub = new FakeHub();
+        ScrcpyRecorder recorder = new ScrcpyRecorder(new File("unused.mp4"));
+        Assert.assertTrue(hub.addRecorder(recorder));
+        Assert.assertEquals("scrcpy", hub.getType());
+        Assert.assertTrue(hub.isRunning());
+        hub.removeRecorder(recorder);
+        Assert.assertFalse(hub.isRunning());
+
+        // minicap 链路无法录像
+        Session session = session(new CopyOnWriteArrayList<>());
+        hub.attach(session, AndroidScreenViewer.CODEC_JPEG);
+        hub.start("minicap", "high", false);
+        Assert.assertFalse(hub.addRecorder(recorder));
+        Assert.assertEquals(0, hub.getRecorderCount());
+        hub.detach(session);
+    }
+
+    @Test
+    public void testSlowStopDoesNotBlockAttach() throws InterruptedException {
+        FakeHub hub = new FakeHub();
+        CountDownLatch exitGate = new CountDownLatch(1);
+        hub.exitGate = exitGate;
+        Session a = session(new CopyOnWriteArrayList<>());
+        hub.attach(a, AndroidScreenViewer.CODEC_JPEG);
+        hub.start("scrcpy", "high", false);
+
+        Thread detaching = new Thread(() -> hub.detach(a));
+        detaching.start();
+        hub.interrupted.await();
+        // 等待旧链路退出时不持有锁，新观看者可以加入
+        Session b = session(new CopyOnWriteArrayList<>());
+        hub.attach(b, AndroidScreenViewer.CODEC_JPEG);
+        Assert.assertTrue(detaching.isAlive());
+        Assert.assertEquals(1, hub.getViewerCount());
+
+        exitGate.countDown();
+        detaching.join();
+        Assert.assertFalse(hub.isRunning());
+        hub.start("scrcpy", "high", false);
+        Assert.assertEquals(2, hub.launches.get());
+        Assert.assertTrue(hub.isRunning());
+        Assert.assertEquals(0, hub.detach(b));
+    }
+}
@@ -0,0 +1,65 @@
+package org.cloud.sonic.agent.tests.android;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 与原来 Arrays.equals 整帧比较的耗时对比，只打印结果
+ * 默认不参与 mvn test，执行 mvn test -Dtest=FrameChangeDetectorBenchmark -Dsonic.benchmark=true
+ */
+public class FrameChangeDetectorBenchmark {
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("run with -Dsonic.benchmark=true", Boolean.getBoolean("sonic.benchmark"));
+    }
+
+    @Test
+    public void benchmarkAgainstArraysEquals() throws IOException {
+        int rounds = 20000;
+        byte[] jpeg = new byte[200 * 1024];
+        new Random(7).nextBytes(jpeg);
+        byte[] same = jpeg.clone();
+        boolean equal = false;
+        FrameChangeDetector warmup = new FrameChangeDetector(0);
+        for (int i = 0; i < rounds; i++) {
+            equal ^= Arrays.equals(jpeg, same) ^ warmup.isChanged(ByteBuffer.wrap(same));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            equal ^= Arrays.equals(jpeg, same);
+        }
+        double arraysUs = (System.nanoTime() - start) / 1e3 / rounds;
+
+        FrameChangeDetector detector = new FrameChangeDetector(0);
+        FrameChangeDetectorTest.send(detector, ByteBuffer.wrap(jpeg));
+        ByteBuffer buffer = ByteBuffer.wrap(same);
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            equal ^= detector.isChanged(buffer);
+        }
+        double sampledUs = (System.nanoTime() - start) / 1e3 / rounds;
+
+        FrameChangeDetector perceptual = new FrameChangeDetector(4);
+        ByteBuffer image = FrameChangeDetectorTest.jpeg(20, Color.BLACK);
+        FrameChangeDetectorTest.send(perceptual, image);
+        ByteBuffer moved = FrameChangeDetectorTest.jpeg(21, Color.BLACK);
+        start = System.nanoTime();
+        for (int i = 0; i < 50; i++) {
+            equal ^= perceptual.isChanged(moved);
+        }
+        double perceptualUs = (System.nanoTime() - start) / 1e3 / 50;
+        System.out.printf("frame change 200KB: Arrays.equals %.1fus, sampled hash %.1fus, perceptual (360x800 jpeg) %.1fus, %s%n",
+                arraysUs, sampledUs, perceptualUs, equal);
+        System.out.println("sampled: " + detector);
+        Assert.assertEquals(rounds, detector.getDuplicates());
+    }
+}
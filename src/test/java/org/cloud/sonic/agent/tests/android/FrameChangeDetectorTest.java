@@ -0,0 +1,159 @@
+package org.cloud.sonic.agent.tests.android;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class FrameChangeDetectorTest {
+
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 1600;
+    private static final int STRIDE = 768;
+
+    private static ByteBuffer luma(long seed) {
+        byte[] plane = new byte[STRIDE * HEIGHT];
+        new Random(seed).nextBytes(plane);
+        return ByteBuffer.wrap(plane);
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    static ByteBuffer jpeg(int boxX, Color box) throws IOException {
+        BufferedImage image = new BufferedImage(360, 800, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 360, 800);
+        g.setColor(box);
+        g.fillRect(boxX, 100, 120, 120);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    static boolean send(FrameChangeDetector detector, ByteBuffer jpeg) {
+        if (detector.isChanged(jpeg)) {
+            detector.markSent();
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean send(FrameChangeDetector detector, ByteBuffer luma, int width, int height) {
+        if (detector.isChanged(luma, width, height, STRIDE)) {
+            detector.markSent();
+            return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void testExactDuplicates() {
+        FrameChangeDetector detector = new FrameChangeDetector(0);
+        ByteBuffer a = luma(1);
+        Assert.assertTrue(send(detector, a, WIDTH, HEIGHT));
+        Assert.assertFalse(send(detector, copy(a), WIDTH, HEIGHT));
+        Assert.assertTrue(send(detector, luma(2), WIDTH, HEIGHT));
+        // 尺寸变化一定输出
+        Assert.assertTrue(send(detector, luma(2), WIDTH - 16, HEIGHT));
+        Assert.assertEquals(1, detector.getDuplicates());
+        Assert.assertEquals(4, detector.getFrames());
+    }
+
+    @Test
+    public void testLumaSmallChangeNotSkipped() {
+        FrameChangeDetector detector = new FrameChangeDetector(0);
+        ByteBuffer a = luma(1);
+        Assert.assertTrue(send(detector, a, WIDTH, HEIGHT));
+        // 采样哈希不会读到的位置：非采样行的中间
+        ByteBuffer b = copy(a);
+        b.put(STRIDE + WIDTH / 2 + 3, (byte) (b.get(STRIDE + WIDTH / 2 + 3) + 1));
+        Assert.assertEquals(FrameChangeDetector.sampledHash(a, 0, WIDTH, HEIGHT, STRIDE),
+                FrameChangeDetector.sampledHash(b, 0, WIDTH, HEIGHT, STRIDE));
+        Assert.assertTrue(send(detector, b, WIDTH, HEIGHT));
+        // stride 中多出的填充字节不算画面变化
+        ByteBuffer c = copy(b);
+        c.put(STRIDE * 2 + WIDTH + 1, (byte) (c.get(STRIDE * 2 + WIDTH + 1) + 1));
+        Assert.assertFalse(send(detector, c, WIDTH, HEIGHT));
+        Assert.assertEquals(1, detector.getDuplicates());
+    }
+
+    @Test
+    public void testComparesWithLastSent() {
+        FrameChangeDetector detector = new FrameChangeDetector(0);
+        ByteBuffer a = luma(1);
+        Assert.assertTrue(send(detector, a, WIDTH, HEIGHT));
+        // 变化了但没有发出，之后回到原画面仍然是重复
+        Assert.assertTrue(detector.isChanged(luma(2), WIDTH, HEIGHT, STRIDE));
+        Assert.assertFalse(send(detector, copy(a), WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void testReset() {
+        FrameChangeDetector detector = new FrameChangeDetector(0);
+        ByteBuffer a = luma(1);
+        Assert.assertTrue(send(detector, a, WIDTH, HEIGHT));
+        detector.reset();
+        Assert.assertTrue(send(detector, copy(a), WIDTH, HEIGHT));
+        Assert.assertFalse(send(detector, copy(a), WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void testDisabled() {
+        FrameChangeDetector detector = new FrameChangeDetector(-1);
+        ByteBuffer a = luma(1);
+        Assert.assertTrue(send(detector, a, WIDTH, HEIGHT));
+        Assert.assertTrue(send(detector, copy(a), WIDTH, HEIGHT));
+        Assert.assertEquals(0, detector.getDuplicates());
+    }
+
+    @Test
+    public void testLumaThreshold() {
+        FrameChangeDetector detector = new FrameChangeDetector(3);
+        byte[] plane = new byte[STRIDE * HEIGHT];
+        Arrays.fill(plane, (byte) 100);
+        Assert.assertTrue(send(detector, ByteBuffer.wrap(plane), WIDTH, HEIGHT));
+        // 整体轻微变化，低于阈值
+        byte[] noisy = plane.clone();
+        for (int i = 0; i < noisy.length; i += 3) {
+            noisy[i] = (byte) 102;
+        }
+        Assert.assertFalse(send(detector, ByteBuffer.wrap(noisy), WIDTH, HEIGHT));
+        Assert.assertEquals(1, detector.getSimilar());
+        byte[] bright = plane.clone();
+        Arrays.fill(bright, (byte) 160);
+        Assert.assertTrue(send(detector, ByteBuffer.wrap(bright), WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void testJpeg() throws IOException {
+        FrameChangeDetector detector = new FrameChangeDetector(0);
+        ByteBuffer a = jpeg(20, Color.BLACK);
+        Assert.assertTrue(send(detector, a));
+        Assert.assertFalse(send(detector, copy(a)));
+        Assert.assertTrue(send(detector, jpeg(200, Color.BLACK)));
+    }
+
+    @Test
+    public void testJpegThreshold() throws IOException {
+        FrameChangeDetector detector = new FrameChangeDetector(4);
+        Assert.assertTrue(send(detector, jpeg(20, Color.BLACK)));
+        // 编码结果不同，但画面几乎一样
+        Assert.assertFalse(send(detector, jpeg(20, new Color(8, 8, 8))));
+        Assert.assertEquals(1, detector.getSimilar());
+        Assert.assertTrue(send(detector, jpeg(200, Color.BLACK)));
+    }
+}
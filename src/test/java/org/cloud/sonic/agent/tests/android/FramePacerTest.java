@@ -0,0 +1,80 @@
+package org.cloud.sonic.agent.tests.android;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class FramePacerTest {
+
+    private static final long MS = 1_000_000L;
+
+    private static ByteBuffer frame(int id) {
+        return ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) id});
+    }
+
+    @Test
+    public void testNewestFrameAtNextSlot() {
+        FramePacer pacer = new FramePacer(10);
+        Assert.assertTrue(pacer.tryAcquire(0));
+        Assert.assertFalse(pacer.tryAcquire(10 * MS));
+        Assert.assertEquals(90 * MS, pacer.hold(frame(1), 10 * MS));
+        // 同一个时间槽内的突发只保留最新的一张，不再重复安排
+        Assert.assertEquals(-1, pacer.hold(frame(2), 20 * MS));
+        Assert.assertEquals(-1, pacer.hold(frame(3), 30 * MS));
+        Assert.assertFalse(pacer.tryAcquire(100 * MS));
+
+        ByteBuffer sending = pacer.takePending(100 * MS);
+        Assert.assertEquals(3, sending.get(2));
+        Assert.assertEquals(-1, pacer.finish(101 * MS));
+        Assert.assertEquals(2, pacer.getCoalesced());
+        Assert.assertEquals(2, pacer.getSent());
+        Assert.assertNull(pacer.takePending(150 * MS));
+    }
+
+    @Test
+    public void testHoldWhileSending() {
+        FramePacer pacer = new FramePacer(10);
+        Assert.assertTrue(pacer.tryAcquire(0));
+        pacer.hold(frame(1), 10 * MS);
+        ByteBuffer sending = pacer.takePending(100 * MS);
+        // 发送中的缓冲区不会被新画面覆盖
+        Assert.assertEquals(-1, pacer.hold(frame(2), 110 * MS));
+        Assert.assertEquals(1, sending.get(2));
+        Assert.assertEquals(80 * MS, pacer.finish(120 * MS));
+        Assert.assertEquals(2, pacer.takePending(200 * MS).get(2));
+        Assert.assertEquals(-1, pacer.finish(200 * MS));
+    }
+
+    @Test
+    public void testTargetFps() {
+        FramePacer pacer = new FramePacer(30);
+        long flushAt = -1;
+        // 设备以 120fps 出帧 1 秒，模拟定时任务按时执行
+        for (long now = 0; now < 1000 * MS; now += 1000 * MS / 120) {
+            if (flushAt >= 0 && now >= flushAt) {
+                Assert.assertNotNull(pacer.takePending(flushAt));
+                flushAt = pacer.finish(flushAt);
+                flushAt = flushAt < 0 ? -1 : now + flushAt;
+            }
+            if (!pacer.tryAcquire(now)) {
+                long delay = pacer.hold(frame(1), now);
+                if (delay >= 0) {
+                    flushAt = now + delay;
+                }
+            }
+        }
+        Assert.assertTrue("sent " + pacer.getSent(), pacer.getSent() >= 29 && pacer.getSent() <= 31);
+    }
+
+    @Test
+    public void testIdleRestartsCadence() {
+        FramePacer pacer = new FramePacer(20);
+        Assert.assertTrue(pacer.tryAcquire(0));
+        // 空闲很久后新画面立即发出
+        Assert.assertTrue(pacer.tryAcquire(5000 * MS));
+        Assert.assertEquals(50 * MS, pacer.getDelay(5000 * MS));
+        pacer.setFps(10);
+        Assert.assertEquals(10, pacer.getFps());
+    }
+}
@@ -0,0 +1,148 @@
+package org.cloud.sonic.agent.tests.android.minicap;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * 与原来按 1024 字节分块 + addBytes 拼帧的方式对比吞吐和每帧分配的字节数，只打印结果
+ * 默认不参与 mvn test，执行 mvn test -Dtest=MiniCapFrameDecoderBenchmark -Dsonic.benchmark=true
+ * 可通过 -Dsonic.benchmark.minicap=文件 指定录制的 minicap 码流，例如：
+ * adb forward tcp:1717 localabstract:minicap 后 nc localhost 1717 > minicap.bin
+ */
+public class MiniCapFrameDecoderBenchmark {
+
+    private final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("run with -Dsonic.benchmark=true", Boolean.getBoolean("sonic.benchmark"));
+    }
+
+    @Test
+    public void benchmarkAgainstAddBytes() throws IOException {
+        String path = System.getProperty("sonic.benchmark.minicap");
+        byte[] capture = path == null
+                ? MiniCapFrameDecoderTest.capture(MiniCapFrameDecoderTest.frames(60, 60_000, 220_000))
+                : Files.readAllBytes(Paths.get(path));
+        int rounds = 5;
+        long threadId = Thread.currentThread().getId();
+
+        long frames = 0;
+        legacy(capture);
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            frames += legacy(capture);
+        }
+        report("addBytes", (long) capture.length * rounds, frames, System.nanoTime() - start,
+                threadMXBean.getThreadAllocatedBytes(threadId) - allocated);
+
+        frames = 0;
+        MiniCapFrameDecoder decoder = decode(capture, null);
+        allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            decoder = decode(capture, decoder.getCapacity());
+            frames += decoder.getFrames();
+        }
+        report("ring buffer", (long) capture.length * rounds, frames, System.nanoTime() - start,
+                threadMXBean.getThreadAllocatedBytes(threadId) - allocated);
+        System.out.printf("ring buffer compacted %.1f%% of received bytes%n",
+                100.0 * decoder.getCompactedBytes() / decoder.getBytes());
+    }
+
+    private static void report(String name, long bytes, long frames, long nanos, long allocated) {
+        frames = Math.max(frames, 1);
+        System.out.printf("minicap %s: %d frames, %.1f MB/s, %.1f us/frame, %d bytes allocated per frame%n",
+                name, frames, bytes / 1048576.0 / (nanos / 1e9), nanos / 1e3 / frames, allocated / frames);
+    }
+
+    private static MiniCapFrameDecoder decode(byte[] capture, Integer capacity) throws IOException {
+        MiniCapFrameDecoder decoder = capacity == null ? new MiniCapFrameDecoder() : new MiniCapFrameDecoder(capacity);
+        InputStream socket = MiniCapFrameDecoderTest.socket(capture, 64 * 1024);
+        long checksum = 0;
+        while (decoder.readFrom(socket) >= 0) {
+            ByteBuffer frame;
+            while ((frame = decoder.nextFrame()) != null) {
+                checksum += frame.get(frame.limit() - 1);
+            }
+        }
+        Assert.assertTrue(checksum != Long.MIN_VALUE);
+        return decoder;
+    }
+
+    /**
+     * 原实现：输入线程每次读 1024 字节并截断拷贝，输出线程逐块 addBytes 拼出整帧后再拷贝一次
+     */
+    private static int legacy(byte[] capture) throws IOException {
+        InputStream socket = MiniCapFrameDecoderTest.socket(capture, 64 * 1024);
+        int readBannerBytes = 0;
+        int bannerLength = 2;
+        int readFrameBytes = 0;
+        int frameBodyLength = 0;
+        byte[] frameBody = new byte[0];
+        int frames = 0;
+        while (true) {
+            byte[] buffer = new byte[1024];
+            int realLen = socket.read(buffer);
+            if (realLen < 0) {
+                return frames;
+            }
+            if (realLen != buffer.length) {
+                buffer = copy(buffer, 0, realLen);
+            }
+            int len = buffer.length;
+            for (int cursor = 0; cursor < len; ) {
+                int byte10 = buffer[cursor] & 0xff;
+                if (readBannerBytes < bannerLength) {
+                    if (readBannerBytes == 1) {
+                        bannerLength = buffer[cursor];
+                    }
+                    cursor++;
+                    readBannerBytes++;
+                } else if (readFrameBytes < 4) {
+                    frameBodyLength += (byte10 << (readFrameBytes * 8));
+                    cursor++;
+                    readFrameBytes++;
+                } else if (len - cursor >= frameBodyLength) {
+                    frameBody = add(frameBody, copy(buffer, cursor, cursor + frameBodyLength));
+                    byte[] finalBytes = copy(frameBody, 0, frameBody.length);
+                    Assert.assertEquals((byte) 0xD8, finalBytes[1]);
+                    frames++;
+                    cursor += frameBodyLength;
+                    frameBodyLength = 0;
+                    readFrameBytes = 0;
+                    frameBody = new byte[0];
+                } else {
+                    frameBody = add(frameBody, copy(buffer, cursor, len));
+                    frameBodyLength -= (len - cursor);
+                    readFrameBytes += (len - cursor);
+                    cursor = len;
+                }
+            }
+        }
+    }
+
+    private static byte[] copy(byte[] src, int start, int end) {
+        byte[] dst = new byte[end - start];
+        System.arraycopy(src, start, dst, 0, end - start);
+        return dst;
+    }
+
+    private static byte[] add(byte[] a, byte[] b) {
+        byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+}
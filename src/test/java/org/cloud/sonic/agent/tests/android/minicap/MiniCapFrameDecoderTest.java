@@ -0,0 +1,159 @@
+package org.cloud.sonic.agent.tests.android.minicap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class MiniCapFrameDecoderTest {
+
+    private static byte[] banner() {
+        ByteBuffer banner = ByteBuffer.allocate(24).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        banner.put((byte) 1).put((byte) 24);
+        banner.putInt(4321).putInt(1080).putInt(2400).putInt(540).putInt(1200);
+        banner.put((byte) 1).put((byte) 2);
+        return banner.array();
+    }
+
+    private static byte[] jpeg(Random random, int size) {
+        byte[] jpeg = new byte[size];
+        random.nextBytes(jpeg);
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        return jpeg;
+    }
+
+    /**
+     * 按 minicap 的格式拼出一段码流：banner + [长度][JPEG]...
+     */
+    static byte[] capture(List<byte[]> frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(banner(), 0, 24);
+        for (byte[] frame : frames) {
+            int len = frame.length;
+            out.write(len);
+            out.write(len >> 8);
+            out.write(len >> 16);
+            out.write(len >> 24);
+            out.write(frame, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    static List<byte[]> frames(int count, int minSize, int maxSize) {
+        Random random = new Random(count);
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            frames.add(jpeg(random, minSize + random.nextInt(maxSize - minSize + 1)));
+        }
+        return frames;
+    }
+
+    private static byte[] toBytes(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 模拟 socket：每次 read 返回不超过 chunk 的数据
+     */
+    static InputStream socket(byte[] data, int chunk) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    @Test
+    public void testBanner() {
+        MiniCapFrameDecoder decoder = new MiniCapFrameDecoder();
+        byte[] banner = banner();
+        decoder.feed(banner, 0, 10);
+        Assert.assertNull(decoder.nextFrame());
+        Assert.assertNull(decoder.getBanner());
+        decoder.feed(banner, 10, 14);
+        Assert.assertNull(decoder.nextFrame());
+        MiniCapBanner parsed = decoder.getBanner();
+        Assert.assertEquals(1, parsed.getVersion());
+        Assert.assertEquals(4321, parsed.getPid());
+        Assert.assertEquals(1080, parsed.getRealWidth());
+        Assert.assertEquals(2400, parsed.getRealHeight());
+        Assert.assertEquals(540, parsed.getVirtualWidth());
+        Assert.assertEquals(1200, parsed.getVirtualHeight());
+        Assert.assertEquals(90, parsed.getOrientation());
+        Assert.assertEquals(2, parsed.getQuirks());
+
+        String[] legacy = new String[24];
+        parsed.fill(legacy);
+        Assert.assertEquals("1080", legacy[9]);
+        Assert.assertEquals("2400", legacy[13]);
+    }
+
+    @Test
+    public void testByteByByte() {
+        List<byte[]> frames = frames(20, 1, 3000);
+        byte[] capture = capture(frames);
+        MiniCapFrameDecoder decoder = new MiniCapFrameDecoder(64);
+        List<byte[]> decoded = new ArrayList<>();
+        for (int i = 0; i < capture.length; i++) {
+            decoder.feed(capture, i, 1);
+            ByteBuffer frame;
+            while ((frame = decoder.nextFrame()) != null) {
+                decoded.add(toBytes(frame));
+            }
+        }
+        Assert.assertEquals(frames.size(), decoded.size());
+        for (int i = 0; i < frames.size(); i++) {
+            Assert.assertArrayEquals(frames.get(i), decoded.get(i));
+        }
+        Assert.assertEquals(capture.length, decoder.getBytes());
+    }
+
+    @Test
+    public void testGrowForLargeFrame() throws IOException {
+        List<byte[]> frames = frames(6, 200_000, 600_000);
+        MiniCapFrameDecoder decoder = new MiniCapFrameDecoder(1024);
+        InputStream socket = socket(capture(frames), 7000);
+        int index = 0;
+        while (decoder.readFrom(socket) >= 0) {
+            ByteBuffer frame;
+            while ((frame = decoder.nextFrame()) != null) {
+                Assert.assertArrayEquals(frames.get(index++), toBytes(frame));
+            }
+        }
+        Assert.assertEquals(frames.size(), index);
+        Assert.assertTrue(decoder.getCapacity() >= 600_000);
+    }
+
+    @Test
+    public void testFrameSliceIsInPlace() {
+        MiniCapFrameDecoder decoder = new MiniCapFrameDecoder();
+        byte[] capture = capture(frames(3, 100, 200));
+        decoder.feed(capture, 0, capture.length);
+        ByteBuffer first = decoder.nextFrame();
+        ByteBuffer second = decoder.nextFrame();
+        Assert.assertTrue(first.hasArray());
+        // 两帧共用同一个缓冲区，没有拷贝
+        Assert.assertSame(first.array(), second.array());
+        Assert.assertEquals((byte) 0xD8, first.get(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidLength() {
+        MiniCapFrameDecoder decoder = new MiniCapFrameDecoder();
+        byte[] banner = banner();
+        decoder.feed(banner, 0, banner.length);
+        decoder.feed(new byte[]{-1, -1, -1, -1}, 0, 4);
+        decoder.nextFrame();
+    }
+}
@@ -0,0 +1,204 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按 scrcpy 的封包方式生成一段确定的 H.264 Baseline 码流
+ * 关键帧全部由 I_PCM 宏块组成，其余帧为全 P_Skip，不依赖任何编码器即可得到可解码的样本
+ */
+public class H264Fixture {
+
+    public static final long FRAME_INTERVAL_US = 16_666;
+
+    /**
+     * 生成若干个 GOP：每个 GOP 前都带一个 config 包（SPS + PPS），随后是 1 个 IDR 帧和 framesPerGop - 1 个 P 帧
+     */
+    public static List<ScrcpyPacket> stream(int width, int height, int gops, int framesPerGop) {
+        return stream(width, height, gops, framesPerGop, 0);
+    }
+
+    public static List<ScrcpyPacket> stream(int width, int height, int gops, int framesPerGop, long startPts) {
+        if (width % 16 != 0 || height % 16 != 0) {
+            throw new IllegalArgumentException("width and height must be multiples of 16");
+        }
+        int mbWidth = width / 16;
+        int mbHeight = height / 16;
+        List<ScrcpyPacket> packets = new ArrayList<>();
+        byte[] config = concat(nal(0x67, sps(mbWidth, mbHeight)), nal(0x68, pps()));
+        long pts = startPts;
+        for (int g = 0; g < gops; g++) {
+            packets.add(new ScrcpyPacket(0, true, false, config));
+            packets.add(new ScrcpyPacket(pts, false, true, nal(0x65, idrSlice(mbWidth, mbHeight, g))));
+            pts += FRAME_INTERVAL_US;
+            for (int f = 1; f < framesPerGop; f++) {
+                packets.add(new ScrcpyPacket(pts, false, false, nal(0x41, pSlice(mbWidth * mbHeight, f))));
+                pts += FRAME_INTERVAL_US;
+            }
+        }
+        return packets;
+    }
+
+    private static byte[] sps(int mbWidth, int mbHeight) {
+        BitWriter w = new BitWriter();
+        w.u(8, 66); // profile_idc: Baseline
+        w.u(8, 0xC0); // constraint_set0_flag, constraint_set1_flag
+        w.u(8, 40); // level_idc
+        w.ue(0); // seq_parameter_set_id
+        w.ue(0); // log2_max_frame_num_minus4
+        w.ue(2); // pic_order_cnt_type
+        w.ue(1); // max_num_ref_frames
+        w.u(1, 0); // gaps_in_frame_num_value_allowed_flag
+        w.ue(mbWidth - 1);
+        w.ue(mbHeight - 1);
+        w.u(1, 1); // frame_mbs_only_flag
+        w.u(1, 1); // direct_8x8_inference_flag
+        w.u(1, 0); // frame_cropping_flag
+        w.u(1, 0); // vui_parameters_present_flag
+        w.trailing();
+        return w.toByteArray();
+    }
+
+    private static byte[] pps() {
+        BitWriter w = new BitWriter();
+        w.ue(0); // pic_parameter_set_id
+        w.ue(0); // seq_parameter_set_id
+        w.u(1, 0); // entropy_coding_mode_flag: CAVLC
+        w.u(1, 0); // bottom_field_pic_order_in_frame_present_flag
+        w.ue(0); // num_slice_groups_minus1
+        w.ue(0); // num_ref_idx_l0_default_active_minus1
+        w.ue(0); // num_ref_idx_l1_default_active_minus1
+        w.u(1, 0); // weighted_pred_flag
+        w.u(2, 0); // weighted_bipred_idc
+        w.se(0); // pic_init_qp_minus26
+        w.se(0); // pic_init_qs_minus26
+        w.se(0); // chroma_qp_index_offset
+        w.u(1, 1); // deblocking_filter_control_present_flag
+        w.u(1, 0); // constrained_intra_pred_flag
+        w.u(1, 0); // redundant_pic_cnt_present_flag
+        w.trailing();
+        return w.toByteArray();
+    }
+
+    private static byte[] idrSlice(int mbWidth, int mbHeight, int idrPicId) {
+        BitWriter w = new BitWriter();
+        w.ue(0); // first_mb_in_slice
+        w.ue(7); // slice_type: I (all slices)
+        w.ue(0); // pic_parameter_set_id
+        w.u(4, 0); // frame_num
+        w.ue(idrPicId & 0xffff); // idr_pic_id
+        w.u(1, 0); // no_output_of_prior_pics_flag
+        w.u(1, 0); // long_term_reference_flag
+        w.se(0); // slice_qp_delta
+        w.ue(1); // disable_deblocking_filter_idc
+        for (int y = 0; y < mbHeight; y++) {
+            for (int x = 0; x < mbWidth; x++) {
+                w.ue(25); // mb_type: I_PCM
+                w.align(); // pcm_alignment_zero_bit
+                int base = 16 + ((x * 13 + y * 7 + idrPicId * 29) % 200);
+                for (int i = 0; i < 256; i++) {
+                    w.u(8, base + (i & 15));
+                }
+                for (int i = 0; i < 128; i++) {
+                    w.u(8, 128);
+                }
+            }
+        }
+        w.trailing();
+        return w.toByteArray();
+    }
+
+    private static byte[] pSlice(int mbCount, int frameNum) {
+        BitWriter w = new BitWriter();
+        w.ue(0); // first_mb_in_slice
+        w.ue(5); // slice_type: P (all slices)
+        w.ue(0); // pic_parameter_set_id
+        w.u(4, frameNum & 15); // frame_num
+        w.u(1, 0); // num_ref_idx_active_override_flag
+        w.u(1, 0); // ref_pic_list_modification_flag_l0
+        w.u(1, 0); // adaptive_ref_pic_marking_mode_flag
+        w.se(0); // slice_qp_delta
+        w.ue(1); // disable_deblocking_filter_idc
+        w.ue(mbCount); // mb_skip_run
+        w.trailing();
+        return w.toByteArray();
+    }
+
+    /**
+     * Annex B：起始码 + NAL 头 + 插入防竞争字节后的 RBSP
+     */
+    private static byte[] nal(int header, byte[] rbsp) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(rbsp.length + 16);
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        out.write(header);
+        int zeros = 0;
+        for (byte b : rbsp) {
+            int v = b & 0xff;
+            if (zeros >= 2 && v <= 3) {
+                out.write(3);
+                zeros = 0;
+            }
+            out.write(v);
+            zeros = v == 0 ? zeros + 1 : 0;
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    private static class BitWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int current = 0;
+        private int bits = 0;
+
+        void bit(int b) {
+            current = (current << 1) | (b & 1);
+            if (++bits == 8) {
+                out.write(current);
+                current = 0;
+                bits = 0;
+            }
+        }
+
+        void u(int n, long value) {
+            for (int i = n - 1; i >= 0; i--) {
+                bit((int) (value >> i));
+            }
+        }
+
+        void ue(int value) {
+            int x = value + 1;
+            int len = 32 - Integer.numberOfLeadingZeros(x);
+            u(len - 1, 0);
+            u(len, x);
+        }
+
+        void se(int value) {
+            ue(value <= 0 ? -2 * value : 2 * value - 1);
+        }
+
+        void align() {
+            while (bits != 0) {
+                bit(0);
+            }
+        }
+
+        void trailing() {
+            bit(1);
+            align();
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
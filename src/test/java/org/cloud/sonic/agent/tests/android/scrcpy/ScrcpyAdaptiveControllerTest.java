@@ -0,0 +1,75 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ScrcpyAdaptiveControllerTest {
+
+    private static final long SLOW_SEND = 120_000_000L;
+
+    private static final long FAST_SEND = 2_000_000L;
+
+    private static void send(ScrcpyAdaptiveController controller, long nanos, int times) {
+        for (int i = 0; i < times; i++) {
+            controller.onSend(nanos);
+        }
+    }
+
+    @Test
+    public void testStepDownUnderSlowSend() {
+        ScrcpyAdaptiveController controller = new ScrcpyAdaptiveController(ScrcpyQuality.HIGH);
+        send(controller, SLOW_SEND, 20);
+        Assert.assertEquals(ScrcpyQuality.HIGH, controller.update(0, 0));
+        // 拥塞持续不到阈值时不降档
+        Assert.assertEquals(ScrcpyQuality.HIGH, controller.update(0, ScrcpyAdaptiveController.STEP_DOWN_AFTER_MS - 1));
+        Assert.assertEquals(ScrcpyQuality.MEDIUM, controller.update(0, ScrcpyAdaptiveController.STEP_DOWN_AFTER_MS));
+        Assert.assertEquals(ScrcpyQuality.LOW, controller.update(0, ScrcpyAdaptiveController.STEP_DOWN_AFTER_MS * 2));
+    }
+
+    @Test
+    public void testStepDownUnderQueuePressure() {
+        ScrcpyAdaptiveController controller = new ScrcpyAdaptiveController(ScrcpyQuality.HIGH);
+        send(controller, FAST_SEND, 20);
+        controller.update(1, 0);
+        Assert.assertEquals(ScrcpyQuality.MEDIUM, controller.update(1, ScrcpyAdaptiveController.STEP_DOWN_AFTER_MS));
+    }
+
+    @Test
+    public void testStepUpAfterRecovery() {
+        ScrcpyAdaptiveController controller = new ScrcpyAdaptiveController(ScrcpyQuality.HIGH);
+        send(controller, SLOW_SEND, 20);
+        controller.update(0, 0);
+        Assert.assertEquals(ScrcpyQuality.MEDIUM, controller.update(0, ScrcpyAdaptiveController.STEP_DOWN_AFTER_MS));
+
+        send(controller, FAST_SEND, 50);
+        long t = 10_000;
+        controller.update(0, t);
+        Assert.assertEquals(ScrcpyQuality.MEDIUM, controller.update(0, t + ScrcpyAdaptiveController.STEP_UP_AFTER_MS - 1));
+        Assert.assertEquals(ScrcpyQuality.HIGH, controller.update(0, t + ScrcpyAdaptiveController.STEP_UP_AFTER_MS));
+        // 不会超过上限
+        Assert.assertEquals(ScrcpyQuality.HIGH, controller.update(0, t + ScrcpyAdaptiveController.STEP_UP_AFTER_MS * 3));
+    }
+
+    @Test
+    public void testCeilingFromPic() {
+        ScrcpyAdaptiveController controller = new ScrcpyAdaptiveController(ScrcpyQuality.fromPic("low"));
+        send(controller, FAST_SEND, 50);
+        controller.update(0, 0);
+        Assert.assertEquals(ScrcpyQuality.LOW, controller.update(0, ScrcpyAdaptiveController.STEP_UP_AFTER_MS * 5));
+        controller.setCeiling(ScrcpyQuality.fromPic("high"));
+        Assert.assertEquals(ScrcpyQuality.HIGH, controller.getQuality());
+        Assert.assertEquals("max_size=800 max_fps=60 video_bit_rate=8000000", ScrcpyQuality.HIGH.toServerArgs());
+        Assert.assertEquals(ScrcpyQuality.MEDIUM, ScrcpyQuality.fromPic("fixed"));
+        Assert.assertEquals(ScrcpyQuality.MEDIUM, ScrcpyQuality.fromPic("middle"));
+    }
+
+    @Test
+    public void testNeverBelowMinimum() {
+        ScrcpyAdaptiveController controller = new ScrcpyAdaptiveController(ScrcpyQuality.HIGH);
+        send(controller, SLOW_SEND, 20);
+        for (long t = 0; t < ScrcpyAdaptiveController.STEP_DOWN_AFTER_MS * 10; t += 500) {
+            controller.update(1, t);
+        }
+        Assert.assertEquals(ScrcpyQuality.MINIMUM, controller.getQuality());
+    }
+}
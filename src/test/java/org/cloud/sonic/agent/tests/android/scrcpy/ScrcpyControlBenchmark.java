@@ -0,0 +1,93 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * 本机回环上对比 scrcpy 二进制消息和 sonic apk 文本协议的注入开销，只打印结果
+ * 默认不参与 mvn test，执行 mvn test -Dtest=ScrcpyControlBenchmark -Dsonic.benchmark=true
+ */
+public class ScrcpyControlBenchmark {
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("run with -Dsonic.benchmark=true", Boolean.getBoolean("sonic.benchmark"));
+    }
+
+    @Test
+    public void benchmarkLoopback() throws Exception {
+        int rounds = 2000;
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread sink = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try (Socket s = server.accept(); InputStream in = s.getInputStream();
+                         OutputStream out = s.getOutputStream()) {
+                        DataInputStream data = new DataInputStream(in);
+                        int b;
+                        // 每条消息回一个字节，得到往返时间
+                        while ((b = data.read()) >= 0) {
+                            if (b == ScrcpyControl.TYPE_INJECT_TOUCH_EVENT) {
+                                data.readFully(new byte[31]);
+                                out.write(1);
+                            } else if (b == '\n') {
+                                out.write(1);
+                            }
+                        }
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+            sink.setDaemon(true);
+            sink.start();
+
+            long[] scrcpy = new long[rounds];
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", server.getLocalPort()));
+                // 由测试自己读取回复，不启动丢弃设备消息的线程
+                ScrcpyControl control = new ScrcpyControl(socket, false);
+                InputStream ack = socket.getInputStream();
+                for (int i = 0; i < rounds; i++) {
+                    long start = System.nanoTime();
+                    Assert.assertTrue(control.injectTouch(ScrcpyControl.ACTION_MOVE, i % 1080, i % 2400, 1080, 2400));
+                    Assert.assertEquals(1, ack.read());
+                    scrcpy[i] = System.nanoTime() - start;
+                }
+            }
+
+            long[] apk = new long[rounds];
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", server.getLocalPort()));
+                socket.setTcpNoDelay(true);
+                OutputStream out = socket.getOutputStream();
+                InputStream ack = socket.getInputStream();
+                for (int i = 0; i < rounds; i++) {
+                    long start = System.nanoTime();
+                    out.write(String.format("move %d %d\n", i % 1080, i % 2400).getBytes());
+                    out.flush();
+                    Assert.assertEquals(1, ack.read());
+                    apk[i] = System.nanoTime() - start;
+                }
+            }
+            System.out.println("scrcpy control: " + percentiles(scrcpy));
+            System.out.println("sonic apk text: " + percentiles(apk));
+        }
+    }
+
+    private static String percentiles(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format("p50=%.3fms p99=%.3fms max=%.3fms",
+                sorted[sorted.length / 2] / 1e6, sorted[sorted.length * 99 / 100] / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+}
@@ -0,0 +1,113 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class ScrcpyControlTest {
+
+    @Test
+    public void testTouchLayout() {
+        byte[] msg = ScrcpyControl.touch(ScrcpyControl.ACTION_DOWN, ScrcpyControl.POINTER_ID_GENERIC_FINGER,
+                100, 200, 1080, 2400, 1f);
+        Assert.assertEquals(32, msg.length);
+        ByteBuffer buffer = ByteBuffer.wrap(msg);
+        Assert.assertEquals(ScrcpyControl.TYPE_INJECT_TOUCH_EVENT, buffer.get());
+        Assert.assertEquals(ScrcpyControl.ACTION_DOWN, buffer.get());
+        Assert.assertEquals(-2L, buffer.getLong());
+        Assert.assertEquals(100, buffer.getInt());
+        Assert.assertEquals(200, buffer.getInt());
+        Assert.assertEquals(1080, buffer.getShort() & 0xffff);
+        Assert.assertEquals(2400, buffer.getShort() & 0xffff);
+        Assert.assertEquals(0xffff, buffer.getShort() & 0xffff);
+        Assert.assertEquals(0, buffer.getInt());
+        Assert.assertEquals(0, buffer.getInt());
+
+        byte[] up = ScrcpyControl.touch(ScrcpyControl.ACTION_UP, 0, 1, 1, 1, 1, 0f);
+        Assert.assertEquals(0, ByteBuffer.wrap(up, 22, 2).getShort());
+    }
+
+    @Test
+    public void testKeycodeAndScrollLayout() {
+        ByteBuffer key = ByteBuffer.wrap(ScrcpyControl.keycode(ScrcpyControl.ACTION_UP, 4, 0, 0));
+        Assert.assertEquals(14, key.capacity());
+        Assert.assertEquals(ScrcpyControl.TYPE_INJECT_KEYCODE, key.get());
+        Assert.assertEquals(ScrcpyControl.ACTION_UP, key.get());
+        Assert.assertEquals(4, key.getInt());
+
+        ByteBuffer scroll = ByteBuffer.wrap(ScrcpyControl.scroll(10, 20, 720, 1600, 0f, -1f));
+        Assert.assertEquals(21, scroll.capacity());
+        Assert.assertEquals(ScrcpyControl.TYPE_INJECT_SCROLL_EVENT, scroll.get());
+        Assert.assertEquals(10, scroll.getInt());
+        Assert.assertEquals(20, scroll.getInt());
+        Assert.assertEquals(720, scroll.getShort());
+        Assert.assertEquals(1600, scroll.getShort());
+        Assert.assertEquals(0, scroll.getShort());
+        Assert.assertEquals(-0x8000, scroll.getShort());
+    }
+
+    @Test
+    public void testTextTruncation() {
+        ByteBuffer text = ByteBuffer.wrap(ScrcpyControl.text("sonic"));
+        Assert.assertEquals(ScrcpyControl.TYPE_INJECT_TEXT, text.get());
+        Assert.assertEquals(5, text.getInt());
+
+        // 每个汉字 3 字节，截断时不能拆开
+        char[] chars = new char[200];
+        Arrays.fill(chars, '测');
+        byte[] msg = ScrcpyControl.text(new String(chars));
+        int length = ByteBuffer.wrap(msg, 1, 4).getInt();
+        Assert.assertEquals(300, length);
+        Assert.assertEquals(100, new String(msg, 5, length, StandardCharsets.UTF_8).length());
+
+        chars = new char[300];
+        Arrays.fill(chars, 'a');
+        chars[299] = '测';
+        msg = ScrcpyControl.text(new String(chars));
+        Assert.assertEquals(299, ByteBuffer.wrap(msg, 1, 4).getInt());
+    }
+
+    @Test
+    public void testToVideo() {
+        // 没有视频时使用原始坐标
+        Assert.assertArrayEquals(new int[]{540, 1200, 1080, 2400},
+                ScrcpyControl.toVideo(540, 1200, 1080, 2400, 0, 0));
+        Assert.assertArrayEquals(new int[]{360, 800, 720, 1600},
+                ScrcpyControl.toVideo(540, 1200, 1080, 2400, 720, 1600));
+        // 连接时是竖屏，之后转为横屏
+        Assert.assertArrayEquals(new int[]{1599, 0, 1600, 720},
+                ScrcpyControl.toVideo(2399, 0, 2400, 1080, 720, 1600));
+    }
+
+    @Test
+    public void testDrainsDeviceMessages() throws Exception {
+        try (ServerSocket server = new ServerSocket(0); Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("localhost", server.getLocalPort()));
+            try (Socket device = server.accept()) {
+                ScrcpyControl control = new ScrcpyControl(socket);
+                // 远大于 socket 缓冲区，没有读取时设备端会一直阻塞在写入上
+                Thread writer = new Thread(() -> {
+                    try {
+                        device.getOutputStream().write(new byte[8 * 1024 * 1024]);
+                    } catch (IOException ignored) {
+                    }
+                });
+                writer.start();
+                writer.join(5000);
+                Assert.assertFalse(writer.isAlive());
+                Assert.assertTrue(control.injectTouch(ScrcpyControl.ACTION_DOWN, 1, 2, 1080, 2400));
+                DataInputStream in = new DataInputStream(device.getInputStream());
+                Assert.assertEquals(ScrcpyControl.TYPE_INJECT_TOUCH_EVENT, in.read());
+                control.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ScrcpyCpuBudgetTest {
+
+    @Test
+    public void testLeaseShare() {
+        int before = ScrcpyCpuBudget.getActiveStreams();
+        try (ScrcpyCpuBudget.Lease lease = ScrcpyCpuBudget.acquire()) {
+            Assert.assertEquals(before + 1, ScrcpyCpuBudget.getActiveStreams());
+            Assert.assertTrue(lease.getDecodeThreads() >= 1);
+            Assert.assertTrue(lease.getDecodeThreads() <= ScrcpyCpuBudget.MAX_STAGE_THREADS);
+            Assert.assertTrue(lease.getEncodeThreads() >= 1);
+            if (lease.getShare() >= 2) {
+                Assert.assertTrue(lease.getDecodeThreads() + lease.getEncodeThreads() <= lease.getShare());
+            }
+        }
+        Assert.assertEquals(before, ScrcpyCpuBudget.getActiveStreams());
+    }
+}
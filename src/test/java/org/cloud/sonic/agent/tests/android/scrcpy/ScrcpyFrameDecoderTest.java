@@ -0,0 +1,101 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.bytedeco.javacpp.Pointer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ScrcpyFrameDecoderTest {
+
+    private ScrcpyFrameDecoder decoder;
+
+    private final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Before
+    public void setUp() {
+        boolean ok;
+        try {
+            decoder = new ScrcpyFrameDecoder();
+            ok = decoder.init();
+        } catch (Throwable e) {
+            // 当前平台没有对应的 FFmpeg 本地库
+            ok = false;
+        }
+        Assume.assumeTrue("FFmpeg is not available on this platform", ok);
+    }
+
+    @After
+    public void tearDown() {
+        if (decoder != null && decoder.isInitialized()) {
+            decoder.close();
+        }
+    }
+
+    private int play(List<ScrcpyPacket> packets) {
+        int frames = 0;
+        for (ScrcpyPacket packet : packets) {
+            ByteBuffer jpeg = decoder.decodeToJpeg(packet.getData());
+            if (jpeg != null) {
+                Assert.assertEquals((byte) 0xFF, jpeg.get(jpeg.position()));
+                Assert.assertEquals((byte) 0xD8, jpeg.get(jpeg.position() + 1));
+                frames++;
+            }
+        }
+        return frames;
+    }
+
+    @Test
+    public void testDecodeFixture() {
+        List<ScrcpyPacket> packets = H264Fixture.stream(320, 240, 2, 10);
+        Assert.assertEquals(20, play(packets));
+        Assert.assertEquals(320, decoder.getWidth());
+        Assert.assertEquals(240, decoder.getHeight());
+    }
+
+    @Test
+    public void testFlatHeapAllocation() {
+        int width = 640;
+        int height = 480;
+        List<ScrcpyPacket> packets = H264Fixture.stream(width, height, 2, 30);
+        // 预热：第一次解码会分配所有复用的缓冲区
+        play(packets);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        int frames = 0;
+        for (int i = 0; i < 5; i++) {
+            frames += play(packets);
+        }
+        long perFrame = (threadMXBean.getThreadAllocatedBytes(threadId) - before) / frames;
+
+        // 旧实现每帧至少要分配一整帧 BGR 图像和 JPEG 输出，现在只剩少量包装对象
+        long rawFrameSize = (long) width * height * 3;
+        Assert.assertTrue("allocated " + perFrame + " bytes per frame", perFrame < rawFrameSize / 3);
+    }
+
+    @Test
+    public void testFlatNativeMemoryAcrossResolutionChanges() {
+        List<ScrcpyPacket> packets = new ArrayList<>();
+        packets.addAll(H264Fixture.stream(640, 480, 1, 5));
+        packets.addAll(H264Fixture.stream(320, 240, 1, 5));
+        play(packets);
+        play(packets);
+
+        long before = Pointer.physicalBytes();
+        for (int i = 0; i < 40; i++) {
+            play(packets);
+        }
+        long growth = Pointer.physicalBytes() - before;
+
+        // 每次切换分辨率都泄漏一个 640x480 的 RGB 缓冲区时，这里会增长 80 * 900KB
+        Assert.assertTrue("native memory grew " + growth + " bytes", growth < 32L * 1024 * 1024);
+    }
+}
@@ -0,0 +1,96 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ScrcpyFramePipelineTest {
+
+    private ScrcpyFrameDecoder decoder;
+
+    @Before
+    public void setUp() {
+        boolean ok;
+        try {
+            decoder = new ScrcpyFrameDecoder();
+            ok = decoder.init(2);
+        } catch (Throwable e) {
+            // 当前平台没有对应的 FFmpeg 本地库
+            ok = false;
+        }
+        Assume.assumeTrue("FFmpeg is not available on this platform", ok);
+    }
+
+    @After
+    public void tearDown() {
+        if (decoder != null && decoder.isInitialized()) {
+            decoder.close();
+        }
+    }
+
+    @Test
+    public void testSlowSinkDoesNotBlockDecode() throws InterruptedException {
+        List<ScrcpyPacket> packets = H264Fixture.stream(640, 480, 2, 30);
+        AtomicInteger received = new AtomicInteger();
+        CountDownLatch first = new CountDownLatch(1);
+        ScrcpyFramePipeline pipeline = new ScrcpyFramePipeline(jpeg -> {
+            Assert.assertEquals((byte) 0xFF, jpeg.get(jpeg.position()));
+            Assert.assertEquals((byte) 0xD8, jpeg.get(jpeg.position() + 1));
+            received.incrementAndGet();
+            first.countDown();
+            try {
+                // 模拟很慢的网络
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "pipeline-test");
+        pipeline.start();
+        long start = System.nanoTime();
+        int frames = 0;
+        for (ScrcpyPacket packet : packets) {
+            if (decoder.decode(packet.getData())) {
+                pipeline.submit(decoder.getFrame());
+                frames++;
+            }
+        }
+        long decodeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertEquals(60, frames);
+        Assert.assertTrue(first.await(5, TimeUnit.SECONDS));
+        pipeline.close();
+
+        // 60 帧全部串行发送至少需要 3 秒，解码不应被发送拖住
+        Assert.assertTrue("decode took " + decodeMs + "ms", decodeMs < 60 * 50);
+        Assert.assertTrue(received.get() < frames);
+        // 关闭时还没编码的帧直接释放
+        Assert.assertTrue(pipeline.getEncoded() + pipeline.getDroppedFrames() <= frames);
+        Assert.assertTrue(pipeline.getDroppedFrames() + pipeline.getDroppedJpegs() > 0);
+    }
+
+    @Test
+    public void testFramesAreReferencedNotShared() throws InterruptedException {
+        List<ScrcpyPacket> packets = H264Fixture.stream(320, 240, 2, 1);
+        CountDownLatch done = new CountDownLatch(2);
+        ScrcpyFramePipeline pipeline = new ScrcpyFramePipeline(jpeg -> done.countDown(), "pipeline-test");
+        pipeline.start();
+        for (ScrcpyPacket packet : packets) {
+            if (decoder.decode(packet.getData())) {
+                pipeline.submit(decoder.getFrame());
+                // 等编码阶段处理完，两帧都应该被编码
+                Thread.sleep(200);
+            }
+        }
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        pipeline.close();
+        Assert.assertEquals(2, pipeline.getSent());
+        Assert.assertEquals(0, pipeline.getDroppedFrames());
+    }
+}
@@ -0,0 +1,79 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public class ScrcpyGopCacheTest {
+
+    @Test
+    public void testKeepsLatestGop() {
+        List<ScrcpyPacket> packets = H264Fixture.stream(64, 48, 3, 5);
+        ScrcpyGopCache cache = new ScrcpyGopCache();
+        for (ScrcpyPacket packet : packets) {
+            cache.add(packet);
+        }
+        Assert.assertTrue(cache.hasKeyFrame());
+        Assert.assertTrue(cache.getConfig().isConfig());
+        Assert.assertEquals(5, cache.getGop().size());
+        Assert.assertTrue(cache.getGop().get(0).isKeyFrame());
+        Assert.assertSame(packets.get(packets.size() - 1), cache.getGop().get(4));
+    }
+
+    @Test
+    public void testIgnoresDeltaWithoutKeyFrame() {
+        List<ScrcpyPacket> packets = H264Fixture.stream(64, 48, 1, 5);
+        ScrcpyGopCache cache = new ScrcpyGopCache();
+        // 跳过 config 和关键帧，从中途开始
+        for (ScrcpyPacket packet : packets.subList(2, packets.size())) {
+            cache.add(packet);
+        }
+        Assert.assertFalse(cache.hasKeyFrame());
+        Assert.assertEquals(-1, cache.getKeyFrameAge());
+    }
+
+    @Test
+    public void testOverlongGopIsDropped() {
+        List<ScrcpyPacket> packets = H264Fixture.stream(16, 16, 1, ScrcpyGopCache.MAX_GOP_PACKETS + 2);
+        ScrcpyGopCache cache = new ScrcpyGopCache();
+        for (ScrcpyPacket packet : packets) {
+            cache.add(packet);
+        }
+        Assert.assertFalse(cache.hasKeyFrame());
+        Assert.assertEquals(0, cache.getGopBytes());
+    }
+
+    @Test
+    public void testLateDecoderCatchesUpFromCache() {
+        ScrcpyFrameDecoder decoder = new ScrcpyFrameDecoder();
+        boolean ok;
+        try {
+            ok = decoder.init();
+        } catch (Throwable e) {
+            ok = false;
+        }
+        Assume.assumeTrue("FFmpeg is not available on this platform", ok);
+        try {
+            ScrcpyGopCache cache = new ScrcpyGopCache();
+            for (ScrcpyPacket packet : H264Fixture.stream(320, 240, 2, 10)) {
+                cache.add(packet);
+            }
+            // 新加入的解码器只拿到缓存，不需要等下一个关键帧
+            decoder.decode(cache.getConfig().getData());
+            for (ScrcpyPacket packet : cache.getGop()) {
+                decoder.decode(packet.getData());
+            }
+            ByteBuffer jpeg = decoder.encodeJpeg();
+            Assert.assertNotNull(jpeg);
+            Assert.assertEquals((byte) 0xFF, jpeg.get(jpeg.position()));
+            Assert.assertEquals(320, decoder.getWidth());
+            // 没有新帧时重新编码当前画面
+            Assert.assertNotNull(decoder.encodeJpeg());
+        } finally {
+            decoder.close();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 对比 mjpeg 与原来 RGB + ImageIO 的单帧编码耗时，只打印结果
+ * 默认不参与 mvn test，执行 mvn test -Dtest=ScrcpyJpegEncoderBenchmark -Dsonic.benchmark=true
+ */
+public class ScrcpyJpegEncoderBenchmark {
+
+    private ScrcpyFrameDecoder decoder;
+
+    private ScrcpyJpegEncoder encoder;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("run with -Dsonic.benchmark=true", Boolean.getBoolean("sonic.benchmark"));
+        boolean ok;
+        try {
+            decoder = new ScrcpyFrameDecoder();
+            ok = decoder.init();
+        } catch (Throwable e) {
+            ok = false;
+        }
+        Assume.assumeTrue("FFmpeg is not available on this platform", ok);
+        encoder = new ScrcpyJpegEncoder();
+    }
+
+    @After
+    public void tearDown() {
+        if (encoder != null) {
+            encoder.close();
+        }
+        if (decoder != null && decoder.isInitialized()) {
+            decoder.close();
+        }
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void benchmarkAgainstImageIO() throws IOException {
+        int width = 720;
+        int height = 1600;
+        for (ScrcpyPacket packet : H264Fixture.stream(width, height, 1, 1)) {
+            decoder.decode(packet.getData());
+        }
+        Assert.assertNotNull(decoder.getFrame());
+        int rounds = 30;
+        encoder.encode(decoder.getFrame());
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            Assert.assertNotNull(encoder.encode(decoder.getFrame()));
+        }
+        double mjpegMs = (System.nanoTime() - start) / 1e6 / rounds;
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(toBytes(encoder.encode(null))));
+        BufferedImage rgb = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        rgb.getGraphics().drawImage(image, 0, 0, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(rgb, "jpeg", out);
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            out.reset();
+            ImageIO.write(rgb, "jpeg", out);
+        }
+        double imageIoMs = (System.nanoTime() - start) / 1e6 / rounds;
+        System.out.printf("jpeg %dx%d: mjpeg %.2fms, imageio %.2fms (without yuv -> rgb)%n",
+                width, height, mjpegMs, imageIoMs);
+    }
+}
@@ -0,0 +1,114 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.ffmpeg.global.avutil.AV_PIX_FMT_NONE;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_alloc;
+import static org.bytedeco.ffmpeg.global.avutil.av_frame_free;
+
+public class ScrcpyJpegEncoderTest {
+
+    private ScrcpyFrameDecoder decoder;
+
+    private ScrcpyJpegEncoder encoder;
+
+    @Before
+    public void setUp() {
+        boolean ok;
+        try {
+            decoder = new ScrcpyFrameDecoder();
+            ok = decoder.init();
+        } catch (Throwable e) {
+            // 当前平台没有对应的 FFmpeg 本地库
+            ok = false;
+        }
+        Assume.assumeTrue("FFmpeg is not available on this platform", ok);
+        encoder = new ScrcpyJpegEncoder();
+    }
+
+    @After
+    public void tearDown() {
+        if (encoder != null) {
+            encoder.close();
+        }
+        if (decoder != null && decoder.isInitialized()) {
+            decoder.close();
+        }
+    }
+
+    private void decodeFirstFrame(int width, int height) {
+        for (ScrcpyPacket packet : H264Fixture.stream(width, height, 1, 1)) {
+            decoder.decode(packet.getData());
+        }
+        Assert.assertNotNull(decoder.getFrame());
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testQscaleMapping() {
+        Assert.assertEquals(5, ScrcpyJpegEncoder.toQscale(ScrcpyQuality.HIGH.getJpegQuality()));
+        Assert.assertEquals(2, ScrcpyJpegEncoder.toQscale(1f));
+        Assert.assertEquals(31, ScrcpyJpegEncoder.toQscale(0f));
+        int last = 0;
+        for (ScrcpyQuality quality : ScrcpyQuality.values()) {
+            int qscale = ScrcpyJpegEncoder.toQscale(quality.getJpegQuality());
+            Assert.assertTrue(qscale > last);
+            last = qscale;
+        }
+    }
+
+    @Test
+    public void testEncodeIsReadableJpeg() throws IOException {
+        decodeFirstFrame(320, 240);
+        byte[] jpeg = toBytes(encoder.encode(decoder.getFrame()));
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        Assert.assertEquals(320, image.getWidth());
+        Assert.assertEquals(240, image.getHeight());
+        // 不传入新帧时重新编码上一帧
+        Assert.assertArrayEquals(jpeg, toBytes(encoder.encode(null)));
+    }
+
+    @Test
+    public void testRetriesAfterFailedOpen() {
+        decodeFirstFrame(320, 240);
+        AVFrame bad = av_frame_alloc();
+        try {
+            bad.width(320);
+            bad.height(240);
+            bad.format(AV_PIX_FMT_NONE);
+            Assert.assertNull(encoder.encode(bad));
+            // 失败后不保留半初始化的编码器，同样的输入再次尝试
+            Assert.assertNull(encoder.encode(bad));
+            Assert.assertNull(encoder.encode(null));
+        } finally {
+            av_frame_free(bad);
+        }
+        Assert.assertNotNull(encoder.encode(decoder.getFrame()));
+    }
+
+    @Test
+    public void testLowerQualityIsSmaller() {
+        decodeFirstFrame(320, 240);
+        encoder.setJpegQuality(ScrcpyQuality.HIGH.getJpegQuality());
+        int high = encoder.encode(decoder.getFrame()).remaining();
+        encoder.setJpegQuality(ScrcpyQuality.MINIMUM.getJpegQuality());
+        int minimum = encoder.encode(null).remaining();
+        Assert.assertTrue(high + " vs " + minimum, minimum < high);
+    }
+}
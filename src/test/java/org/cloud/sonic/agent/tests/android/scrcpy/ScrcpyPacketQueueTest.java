@@ -0,0 +1,94 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class ScrcpyPacketQueueTest {
+
+    private static ScrcpyPacket config() {
+        return new ScrcpyPacket(0, true, false, new byte[1]);
+    }
+
+    private static ScrcpyPacket key(long pts) {
+        return new ScrcpyPacket(pts, false, true, new byte[1]);
+    }
+
+    private static ScrcpyPacket delta(long pts) {
+        return new ScrcpyPacket(pts, false, false, new byte[1]);
+    }
+
+    private static String drain(ScrcpyPacketQueue queue) throws InterruptedException {
+        StringBuilder sb = new StringBuilder();
+        ScrcpyPacket packet;
+        while ((packet = queue.poll(0, TimeUnit.MILLISECONDS)) != null) {
+            sb.append(packet.isConfig() ? "c" : packet.isKeyFrame() ? "k" + packet.getPts() : "p" + packet.getPts()).append(' ');
+        }
+        return sb.toString().trim();
+    }
+
+    @Test
+    public void testSkipToNextKeyFrame() throws InterruptedException {
+        ScrcpyPacketQueue queue = new ScrcpyPacketQueue(4, ScrcpyPacketQueue.DropPolicy.SKIP_TO_KEY_FRAME);
+        queue.put(config());
+        queue.put(key(1));
+        for (int i = 2; i < 8; i++) {
+            queue.put(delta(i));
+        }
+        // 当前 GOP 放不下，只留下 config，等待下一个关键帧
+        Assert.assertEquals(1, queue.size());
+        Assert.assertTrue(queue.isSkipping());
+        queue.put(key(8));
+        Assert.assertFalse(queue.isSkipping());
+        queue.put(delta(9));
+        Assert.assertEquals("c k8 p9", drain(queue));
+        Assert.assertEquals(7, queue.getDropped());
+        Assert.assertEquals(1, queue.getSkips());
+        Assert.assertEquals(10, queue.getReceived());
+    }
+
+    @Test
+    public void testKeepLatestGop() throws InterruptedException {
+        ScrcpyPacketQueue queue = new ScrcpyPacketQueue(4, ScrcpyPacketQueue.DropPolicy.SKIP_TO_KEY_FRAME);
+        queue.put(key(1));
+        queue.put(delta(2));
+        queue.put(key(3));
+        queue.put(delta(4));
+        queue.put(delta(5));
+        // 队列里已经有更新的关键帧，丢掉它之前的包即可
+        Assert.assertEquals("k3 p4 p5", drain(queue));
+        Assert.assertEquals(2, queue.getDropped());
+    }
+
+    @Test
+    public void testConfigAlwaysKept() throws InterruptedException {
+        ScrcpyPacketQueue queue = new ScrcpyPacketQueue(2, ScrcpyPacketQueue.DropPolicy.SKIP_TO_KEY_FRAME);
+        queue.put(key(1));
+        queue.put(delta(2));
+        queue.put(config());
+        queue.put(key(3));
+        Assert.assertEquals("c k3", drain(queue));
+        Assert.assertTrue(queue.getMaxDepth() >= 3);
+    }
+
+    @Test
+    public void testBlockPolicy() throws InterruptedException {
+        ScrcpyPacketQueue queue = new ScrcpyPacketQueue(1, ScrcpyPacketQueue.DropPolicy.BLOCK);
+        queue.put(key(1));
+        Thread producer = new Thread(() -> {
+            try {
+                queue.put(delta(2));
+            } catch (InterruptedException ignored) {
+            }
+        });
+        producer.start();
+        producer.join(200);
+        Assert.assertTrue(producer.isAlive());
+        Assert.assertEquals(1, queue.take().getPts());
+        producer.join(1000);
+        Assert.assertFalse(producer.isAlive());
+        Assert.assertEquals(2, queue.take().getPts());
+        Assert.assertEquals(0, queue.getDropped());
+    }
+}
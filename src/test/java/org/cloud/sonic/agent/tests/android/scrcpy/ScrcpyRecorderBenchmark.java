@@ -0,0 +1,58 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.bytedeco.ffmpeg.global.avformat.avformat_version;
+
+/**
+ * 录像封装每个包的 CPU 耗时，只打印结果
+ * 默认不参与 mvn test，执行 mvn test -Dtest=ScrcpyRecorderBenchmark -Dsonic.benchmark=true
+ */
+public class ScrcpyRecorderBenchmark {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue("run with -Dsonic.benchmark=true", Boolean.getBoolean("sonic.benchmark"));
+        boolean ok;
+        try {
+            ok = avformat_version() > 0;
+        } catch (Throwable e) {
+            ok = false;
+        }
+        Assume.assumeTrue("FFmpeg is not available on this platform", ok);
+        file = Files.createTempFile("sonic-record", ".mp4").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void benchmarkCpuCostPerPacket() {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        List<ScrcpyPacket> packets = H264Fixture.stream(640, 480, 10, 60);
+        ScrcpyRecorder recorder = new ScrcpyRecorder(file);
+        long before = threadMXBean.getCurrentThreadCpuTime();
+        for (ScrcpyPacket packet : packets) {
+            recorder.write(packet, 640, 480);
+        }
+        recorder.close();
+        long perPacket = (threadMXBean.getCurrentThreadCpuTime() - before) / packets.size();
+        System.out.println("record cost per packet: " + perPacket / 1000 + "us");
+    }
+}
@@ -0,0 +1,96 @@
+package org.cloud.sonic.agent.tests.android.scrcpy;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVInputFormat;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.javacpp.PointerPointer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avformat.*;
+
+public class ScrcpyRecorderTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        boolean ok;
+        try {
+            ok = avformat_version() > 0;
+        } catch (Throwable e) {
+            // 当前平台没有对应的 FFmpeg 本地库
+            ok = false;
+        }
+        Assume.assumeTrue("FFmpeg is not available on this platform", ok);
+        file = Files.createTempFile("sonic-record", ".mp4").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * @return 文件中每个包的 pts（毫秒）
+     */
+    private List<Long> readBack() {
+        AVFormatContext context = new AVFormatContext(null);
+        Assert.assertEquals(0, avformat_open_input(context, file.getPath(), (AVInputFormat) null, (AVDictionary) null));
+        Assert.assertTrue(avformat_find_stream_info(context, (PointerPointer) null) >= 0);
+        Assert.assertEquals(320, context.streams(0).codecpar().width());
+        List<Long> pts = new ArrayList<>();
+        AVPacket packet = av_packet_alloc();
+        while (av_read_frame(context, packet) >= 0) {
+            pts.add(packet.pts() * 1000 * context.streams(0).time_base().num() / context.streams(0).time_base().den());
+            av_packet_unref(packet);
+        }
+        av_packet_free(packet);
+        avformat_close_input(context);
+        return pts;
+    }
+
+    @Test
+    public void testRemux() {
+        ScrcpyRecorder recorder = new ScrcpyRecorder(file);
+        List<ScrcpyPacket> packets = H264Fixture.stream(320, 240, 2, 10);
+        // 没有 config 和关键帧之前的包会被丢弃
+        recorder.write(packets.get(2), 320, 240);
+        for (ScrcpyPacket packet : packets) {
+            recorder.write(packet, 320, 240);
+        }
+        recorder.close();
+        Assert.assertEquals(20, recorder.getFrames());
+        Assert.assertEquals(20, readBack().size());
+    }
+
+    @Test
+    public void testServerRestartKeepsPtsIncreasing() {
+        ScrcpyRecorder recorder = new ScrcpyRecorder(file);
+        // 设备端服务重启后 pts 从 0 重新开始
+        for (int i = 0; i < 2; i++) {
+            for (ScrcpyPacket packet : H264Fixture.stream(320, 240, 1, 10)) {
+                recorder.write(packet, 320, 240);
+            }
+        }
+        recorder.close();
+        List<Long> pts = readBack();
+        Assert.assertEquals(20, pts.size());
+        for (int i = 1; i < pts.size(); i++) {
+            Assert.assertTrue("pts " + pts, pts.get(i) > pts.get(i - 1));
+        }
+    }
+}
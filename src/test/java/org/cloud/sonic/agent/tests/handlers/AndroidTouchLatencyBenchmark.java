@@ -0,0 +1,62 @@
+package org.cloud.sonic.agent.tests.handlers;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 真机上对比各触控模式一次按下 + 抬起的注入耗时
+ * 默认不参与 mvn test，需要连接设备后执行 mvn test -Dtest=AndroidTouchLatencyBenchmark -Dsonic.benchmark.udId=序列号
+ * sonic apk 模式还需要设备已安装 sonic apk
+ * uiautomator2 模式依赖测试任务里的 driver，这里不参与对比
+ */
+public class AndroidTouchLatencyBenchmark {
+
+    private static final int ROUNDS = 50;
+
+    @Test
+    public void benchmark() throws Exception {
+        String udId = System.getProperty("sonic.benchmark.udId");
+        Assume.assumeTrue("sonic.benchmark.udId is not set", udId != null && !udId.isEmpty());
+        AndroidDebugBridge.init(false);
+        AndroidDebugBridge bridge = AndroidDebugBridge.createBridge(
+                System.getProperty("sonic.benchmark.adb", "adb"), false, 10, TimeUnit.SECONDS);
+        IDevice iDevice = null;
+        for (int i = 0; i < 20 && iDevice == null; i++) {
+            iDevice = Arrays.stream(bridge.getDevices()).filter(d -> udId.equals(d.getSerialNumber())).findFirst().orElse(null);
+            Thread.sleep(500);
+        }
+        Assume.assumeTrue("device " + udId + " is not online", iDevice != null);
+        int x = 100;
+        int y = 100;
+        try {
+            AndroidTouchHandler.startTouch(iDevice);
+            for (AndroidTouchHandler.TouchMode mode : new AndroidTouchHandler.TouchMode[]{
+                    AndroidTouchHandler.TouchMode.ADB,
+                    AndroidTouchHandler.TouchMode.SONIC_APK,
+                    AndroidTouchHandler.TouchMode.SCRCPY}) {
+                AndroidTouchHandler.switchTouchMode(iDevice, mode);
+                // 预热，scrcpy 模式在这里启动服务
+                AndroidTouchHandler.motionEvent(iDevice, "DOWN", x, y);
+                AndroidTouchHandler.motionEvent(iDevice, "UP", x, y);
+                long[] cost = new long[ROUNDS];
+                for (int i = 0; i < ROUNDS; i++) {
+                    long start = System.nanoTime();
+                    AndroidTouchHandler.motionEvent(iDevice, "DOWN", x, y);
+                    AndroidTouchHandler.motionEvent(iDevice, "UP", x, y);
+                    cost[i] = System.nanoTime() - start;
+                }
+                Arrays.sort(cost);
+                System.out.printf("%s: p50=%.2fms p99=%.2fms%n", AndroidTouchHandler.getTouchMode(iDevice),
+                        cost[ROUNDS / 2] / 1e6, cost[ROUNDS * 99 / 100] / 1e6);
+            }
+        } finally {
+            AndroidTouchHandler.stopTouch(iDevice);
+            AndroidDebugBridge.terminate();
+        }
+    }
+}
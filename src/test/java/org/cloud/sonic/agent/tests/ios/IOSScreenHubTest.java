@@ -0,0 +1,269 @@
+package org.cloud.sonic.agent.tests.ios;
+
+import com.alibaba.fastjson.JSONObject;
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import org.cloud.sonic.agent.tests.ios.mjpeg.MjpegQuality;
+import org.cloud.sonic.agent.tests.ios.mjpeg.MjpegRecorder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class IOSScreenHubTest {
+
+    private ServerSocket server;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+
+    /**
+     * 模拟 WDA 的 mjpeg 服务，每个连接持续推送带 Content-Length 的画面
+     */
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    connections.incrementAndGet();
+                    new Thread(() -> stream(socket)).start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private void stream(Socket socket) {
+        openConnections.incrementAndGet();
+        byte[] jpeg = new byte[4096];
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[jpeg.length - 2] = (byte) 0xFF;
+        jpeg[jpeg.length - 1] = (byte) 0xD9;
+        try (Socket s = socket; OutputStream out = s.getOutputStream()) {
+            out.write(("HTTP/1.0 200 OK\r\nContent-Type: multipart/x-mixed-replace; boundary=--BoundaryString\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            for (int i = 0; ; i++) {
+                jpeg[2] = (byte) i;
+                out.write(("--BoundaryString\r\nContent-type: image/jpg\r\nContent-Length: " + jpeg.length + "\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                out.write(jpeg);
+                out.write("\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                Thread.sleep(5);
+            }
+        } catch (IOException | InterruptedException e) {
+            // 客户端断开
+        } finally {
+            openConnections.decrementAndGet();
+        }
+    }
+
+    /**
+     * 每次发送耗时 sendMillis 的观看者，发送在其他线程中完成
+     */
+    private static Session session(AtomicInteger received, long sendMillis) {
+        RemoteEndpoint.Async async = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                IOSScreenHubTest.class.getClassLoader(), new Class[]{RemoteEndpoint.Async.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("sendBinary")) {
+                        Assert.assertEquals((byte) 0xD8, ((ByteBuffer) args[0]).get(1));
+                        SendHandler handler = (SendHandler) args[1];
+                        new Thread(() -> {
+                            try {
+                                Thread.sleep(sendMillis);
+                            } catch (InterruptedException ignored) {
+                            }
+                            received.incrementAndGet();
+                            handler.onResult(new SendResult());
+                        }).start();
+                    }
+                    return null;
+                });
+        Map<String, Object> properties = new ConcurrentHashMap<>();
+        return (Session) Proxy.newProxyInstance(
+                IOSScreenHubTest.class.getClassLoader(), new Class[]{Session.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "isOpen" -> true;
+                    case "getAsyncRemote" -> async;
+                    case "getUserProperties" -> properties;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> null;
+                });
+    }
+
+    private static void await(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void testSharedConnectionWithSlowViewer() throws InterruptedException {
+        IOSScreenHub hub = new IOSScreenHub("fake");
+        AtomicInteger fast = new AtomicInteger();
+        AtomicInteger slow = new AtomicInteger();
+        Session fastSession = session(fast, 0);
+        Session slowSession = session(slow, 300);
+        hub.attach(fastSession, server.getLocalPort());
+        hub.attach(slowSession, server.getLocalPort());
+
+        await(() -> fast.get() >= 60);
+        // 两个观看者共用一条连接，慢的观看者只丢帧，不影响读取和其他观看者
+        Assert.assertEquals(1, connections.get());
+        Assert.assertTrue("slow viewer got " + slow.get(), slow.get() <= 10);
+        Assert.assertTrue(hub.getViewers().get(slowSession).getPacer().getCoalesced() > 0);
+
+        Assert.assertEquals(1, hub.detach(fastSession));
+        Assert.assertTrue(hub.isRunning());
+        Assert.assertEquals(0, hub.detach(slowSession));
+        Assert.assertFalse(hub.isRunning());
+        await(() -> openConnections.get() == 0);
+
+        // 重新加入时建立新的连接
+        hub.attach(fastSession, server.getLocalPort());
+        int before = fast.get();
+        await(() -> fast.get() > before);
+        Assert.assertEquals(2, connections.get());
+        hub.detach(fastSession);
+    }
+
+    @Test
+    public void testRestartKeepsNewConnection() throws InterruptedException {
+        IOSScreenHub hub = new IOSScreenHub("fake");
+        AtomicInteger received = new AtomicInteger();
+        Session session = session(received, 0);
+        hub.attach(session, server.getLocalPort());
+        await(() -> received.get() > 5);
+        // 旧的读取线程退出时只关闭自己的连接，不能关掉紧接着建立的新连接
+        hub.stop();
+        hub.attach(session, server.getLocalPort());
+        await(() -> connections.get() == 2 && openConnections.get() == 1);
+        Thread.sleep(200);
+        int before = received.get();
+        await(() -> received.get() > before + 5);
+        Assert.assertTrue(hub.isRunning());
+        Assert.assertEquals(1, openConnections.get());
+        hub.detach(session);
+    }
+
+    @Test
+    public void testRemoveOnlyOwnSettingsSink() {
+        IOSScreenHub hub = new IOSScreenHub("fake");
+        List<JSONObject> first = new CopyOnWriteArrayList<>();
+        List<JSONObject> second = new CopyOnWriteArrayList<>();
+        Consumer<JSONObject> firstSink = first::add;
+        Consumer<JSONObject> secondSink = second::add;
+        hub.setSettingsSink(firstSink);
+        hub.setSettingsSink(secondSink);
+        // 先前的 driver 连接断开，不影响之后建立的连接
+        hub.removeSettingsSink(firstSink);
+        hub.setCeiling(MjpegQuality.HIGH);
+        Assert.assertEquals(0, first.size());
+        Assert.assertEquals(1, second.size());
+        hub.removeSettingsSink(secondSink);
+        hub.setCeiling(MjpegQuality.MEDIUM);
+        Assert.assertEquals(1, second.size());
+    }
+
+    @Test
+    public void testSettingsFollowFramerate() throws InterruptedException {
+        IOSScreenHub hub = new IOSScreenHub("fake");
+        AtomicInteger received = new AtomicInteger();
+        Session session = session(received, 0);
+        hub.attach(session, server.getLocalPort());
+        JSONObject settings = new JSONObject();
+        settings.put("mjpegServerFramerate", 10);
+        settings.put("mjpegScalingFactor", 50);
+        hub.applySettings(settings);
+        Assert.assertEquals(10, hub.getViewers().get(session).getPacer().getFps());
+        Assert.assertEquals(50, hub.getScalingFactor());
+
+        Thread.sleep(200);
+        int start = received.get();
+        Thread.sleep(1000);
+        int sent = received.get() - start;
+        // 上游约 200 帧每秒，按 10 fps 发送
+        Assert.assertTrue("sent " + sent, sent >= 5 && sent <= 15);
+        hub.detach(session);
+    }
+
+    @Test
+    public void testSlowViewerLowersQuality() throws InterruptedException {
+        IOSScreenHub hub = new IOSScreenHub("fake");
+        List<JSONObject> pushed = new CopyOnWriteArrayList<>();
+        hub.setSettingsSink(pushed::add);
+        hub.setCeiling(MjpegQuality.HIGH);
+        Assert.assertEquals(1, pushed.size());
+
+        AtomicInteger received = new AtomicInteger();
+        Session session = session(received, 100);
+        hub.attach(session, server.getLocalPort());
+        // 发送耗时持续超过阈值，降档后把新的设置下发给 WDA
+        await(() -> pushed.size() >= 2);
+        Assert.assertEquals(MjpegQuality.MEDIUM.getFramerate(), pushed.get(1).getIntValue("mjpegServerFramerate"));
+        Assert.assertEquals(MjpegQuality.MEDIUM.getFramerate(), hub.getFramerate());
+        Assert.assertEquals(MjpegQuality.MEDIUM.getFramerate(), hub.getViewers().get(session).getPacer().getFps());
+        hub.detach(session);
+    }
+
+    @Test
+    public void testRecorderSharesConnection() throws IOException, InterruptedException {
+        IOSScreenHub hub = new IOSScreenHub("fake");
+        AtomicInteger received = new AtomicInteger();
+        Session session = session(received, 0);
+        File file = Files.createTempFile("sonic-ios-record", ".mp4").toFile();
+        MjpegRecorder recorder = new MjpegRecorder(file);
+        try {
+            hub.attach(session, server.getLocalPort());
+            hub.addRecorder(recorder, server.getLocalPort());
+            await(() -> received.get() > 10);
+            // 录像不会再建立一条连接
+            Assert.assertEquals(1, connections.get());
+
+            // 没有观看者时录像仍然保持连接
+            Assert.assertEquals(0, hub.detach(session));
+            Assert.assertTrue(hub.isRunning());
+            Assert.assertEquals(1, hub.getRecorderCount());
+
+            hub.removeRecorder(recorder);
+            Assert.assertFalse(hub.isRunning());
+            await(() -> openConnections.get() == 0);
+        } finally {
+            recorder.close();
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.cloud.sonic.agent.tests.ios.mjpeg;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MjpegAdaptiveControllerTest {
+
+    private static final double SLOW_SEND_MS = 120;
+
+    private static final double FAST_SEND_MS = 2;
+
+    /**
+     * 按固定间隔到达 count 帧，返回最后一帧的时间
+     */
+    private static long frames(MjpegAdaptiveController controller, long startNanos, long intervalMs, int count) {
+        long t = startNanos;
+        for (int i = 0; i < count; i++) {
+            t += intervalMs * 1_000_000L;
+            controller.onFrame(t);
+        }
+        return t;
+    }
+
+    @Test
+    public void testStepDownUnderSlowSend() {
+        MjpegAdaptiveController controller = new MjpegAdaptiveController(MjpegQuality.HIGH);
+        frames(controller, 0, 16, 30);
+        Assert.assertEquals(MjpegQuality.HIGH, controller.update(SLOW_SEND_MS, 0));
+        // 拥塞持续不到阈值时不降档
+        Assert.assertEquals(MjpegQuality.HIGH, controller.update(SLOW_SEND_MS, MjpegAdaptiveController.STEP_DOWN_AFTER_MS - 1));
+        Assert.assertEquals(MjpegQuality.MEDIUM, controller.update(SLOW_SEND_MS, MjpegAdaptiveController.STEP_DOWN_AFTER_MS));
+        Assert.assertEquals(MjpegQuality.LOW, controller.update(SLOW_SEND_MS, MjpegAdaptiveController.STEP_DOWN_AFTER_MS * 2));
+    }
+
+    @Test
+    public void testStepDownWhenFramesArriveLate() {
+        MjpegAdaptiveController controller = new MjpegAdaptiveController(MjpegQuality.HIGH);
+        // 目标 60 帧，实际只有约 25 帧
+        frames(controller, 0, 40, 30);
+        Assert.assertTrue(controller.getArrivalRatio() > MjpegAdaptiveController.CONGESTED_ARRIVAL);
+        controller.update(FAST_SEND_MS, 0);
+        Assert.assertEquals(MjpegQuality.MEDIUM, controller.update(FAST_SEND_MS, MjpegAdaptiveController.STEP_DOWN_AFTER_MS));
+        Assert.assertEquals(MjpegQuality.LOW, controller.update(FAST_SEND_MS, MjpegAdaptiveController.STEP_DOWN_AFTER_MS * 2));
+        // 30 帧的档位已经跟得上，停止降档
+        Assert.assertEquals(MjpegQuality.LOW, controller.update(FAST_SEND_MS, MjpegAdaptiveController.STEP_DOWN_AFTER_MS * 5));
+    }
+
+    @Test
+    public void testIdleGapIgnored() {
+        MjpegAdaptiveController controller = new MjpegAdaptiveController(MjpegQuality.HIGH);
+        long t = frames(controller, 0, 16, 30);
+        double before = controller.getArrivalMs();
+        frames(controller, t, MjpegAdaptiveController.IDLE_GAP_MS * 3, 1);
+        Assert.assertEquals(before, controller.getArrivalMs(), 0.001);
+    }
+
+    @Test
+    public void testStepUpAfterRecovery() {
+        MjpegAdaptiveController controller = new MjpegAdaptiveController(MjpegQuality.HIGH);
+        long t = frames(controller, 0, 16, 30);
+        controller.update(SLOW_SEND_MS, 0);
+        Assert.assertEquals(MjpegQuality.MEDIUM, controller.update(SLOW_SEND_MS, MjpegAdaptiveController.STEP_DOWN_AFTER_MS));
+
+        frames(controller, t, 20, 30);
+        long now = 10_000;
+        controller.update(FAST_SEND_MS, now);
+        Assert.assertEquals(MjpegQuality.MEDIUM, controller.update(FAST_SEND_MS, now + MjpegAdaptiveController.STEP_UP_AFTER_MS - 1));
+        Assert.assertEquals(MjpegQuality.HIGH, controller.update(FAST_SEND_MS, now + MjpegAdaptiveController.STEP_UP_AFTER_MS));
+        // 不会超过上限
+        Assert.assertEquals(MjpegQuality.HIGH, controller.update(FAST_SEND_MS, now + MjpegAdaptiveController.STEP_UP_AFTER_MS * 3));
+    }
+
+    @Test
+    public void testCeilingFromDetail() {
+        MjpegAdaptiveController controller = new MjpegAdaptiveController(MjpegQuality.fromDetail("low"));
+        frames(controller, 0, 30, 30);
+        controller.update(FAST_SEND_MS, 0);
+        Assert.assertEquals(MjpegQuality.LOW, controller.update(FAST_SEND_MS, MjpegAdaptiveController.STEP_UP_AFTER_MS * 5));
+        controller.setCeiling(MjpegQuality.fromDetail("high"));
+        Assert.assertEquals(MjpegQuality.HIGH, controller.getQuality());
+        Assert.assertEquals(60, MjpegQuality.HIGH.toSettings().getIntValue("mjpegServerFramerate"));
+        Assert.assertEquals(100, MjpegQuality.HIGH.toSettings().getIntValue("mjpegScalingFactor"));
+        Assert.assertEquals(50, MjpegQuality.HIGH.toSettings().getIntValue("mjpegServerScreenshotQuality"));
+    }
+
+    @Test
+    public void testNeverBelowMinimum() {
+        MjpegAdaptiveController controller = new MjpegAdaptiveController(MjpegQuality.HIGH);
+        for (long t = 0; t < MjpegAdaptiveController.STEP_DOWN_AFTER_MS * 10; t += 500) {
+            controller.update(SLOW_SEND_MS, t);
+        }
+        Assert.assertEquals(MjpegQuality.MINIMUM, controller.getQuality());
+    }
+}
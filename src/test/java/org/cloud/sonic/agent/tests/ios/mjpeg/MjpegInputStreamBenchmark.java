@@ -0,0 +1,154 @@
+package org.cloud.sonic.agent.tests.ios.mjpeg;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * JMH 风格：预热若干轮后测量，与原来逐字节查找 + BufferedReader 解析分段头的实现对比，只打印结果
+ * 默认不参与 mvn test，执行 mvn test -Dtest=MjpegInputStreamBenchmark -Dsonic.benchmark=true
+ * 可通过 -Dsonic.benchmark.mjpeg=文件 指定录制的 WDA 码流，例如：curl -s http://localhost:9100 > wda.mjpeg
+ */
+public class MjpegInputStreamBenchmark {
+
+    private final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("run with -Dsonic.benchmark=true", Boolean.getBoolean("sonic.benchmark"));
+    }
+
+    @Test
+    public void benchmarkAgainstLegacy() throws IOException {
+        String path = System.getProperty("sonic.benchmark.mjpeg");
+        byte[] capture = path == null
+                ? MjpegInputStreamTest.multipart(MjpegInputStreamTest.frames(120, 80_000, 250_000), true)
+                : Files.readAllBytes(Paths.get(path));
+        measure("legacy", capture, () -> {
+            LegacyMjpegInputStream stream = new LegacyMjpegInputStream(MjpegInputStreamTest.socket(capture, 64 * 1024));
+            int frames = 0;
+            try {
+                while (stream.available() > 0 && stream.readFrameForByteBuffer() != null) {
+                    frames++;
+                }
+            } catch (IOException ignored) {
+                // 末尾不完整的一帧
+            }
+            return frames;
+        });
+        measure("reusable buffer", capture, () -> {
+            MjpegInputStream stream = new MjpegInputStream(MjpegInputStreamTest.socket(capture, 64 * 1024));
+            int frames = 0;
+            while (stream.readFrameForByteBuffer() != null) {
+                frames++;
+            }
+            return frames;
+        });
+        if (path == null) {
+            byte[] withoutLength = MjpegInputStreamTest.multipart(MjpegInputStreamTest.frames(120, 80_000, 250_000), false);
+            measure("reusable buffer, EOI scan", withoutLength, () -> {
+                MjpegInputStream stream = new MjpegInputStream(MjpegInputStreamTest.socket(withoutLength, 64 * 1024));
+                int frames = 0;
+                while (stream.readFrameForByteBuffer() != null) {
+                    frames++;
+                }
+                return frames;
+            });
+        }
+    }
+
+    private interface Run {
+        int run() throws IOException;
+    }
+
+    private void measure(String name, byte[] capture, Run run) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            run.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+        long cpu = threadMXBean.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        long frames = 0;
+        int iterations = 5;
+        for (int i = 0; i < iterations; i++) {
+            frames += run.run();
+        }
+        long nanos = System.nanoTime() - start;
+        cpu = threadMXBean.getCurrentThreadCpuTime() - cpu;
+        allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+        frames = Math.max(frames, 1);
+        System.out.printf("mjpeg %s: %.0f frames/s, %.1f MB/s, %.1f us cpu/frame, %d bytes allocated per frame%n",
+                name, frames / (nanos / 1e9), (double) capture.length * iterations / 1048576 / (nanos / 1e9),
+                cpu / 1e3 / frames, allocated / frames);
+    }
+
+    /**
+     * 原实现，仅用于对比
+     */
+    private static class LegacyMjpegInputStream extends DataInputStream {
+        private final byte[] SOI_MARKER = {(byte) 0xFF, (byte) 0xD8};
+        private final static int FRAME_MAX_LENGTH = 1024 * 5 + 100;
+
+        LegacyMjpegInputStream(InputStream in) {
+            super(new BufferedInputStream(in, FRAME_MAX_LENGTH));
+        }
+
+        private int getEndOfSequence(byte[] sequence) throws IOException {
+            int s = 0;
+            for (int i = 0; i < FRAME_MAX_LENGTH; i++) {
+                byte b = (byte) readUnsignedByte();
+                if (b == sequence[s]) {
+                    s++;
+                    if (s == sequence.length) {
+                        return i + 1;
+                    }
+                } else {
+                    s = 0;
+                }
+            }
+            return -1;
+        }
+
+        private int parseContentLength(byte[] headerBytes) throws IOException {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(headerBytes)));
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.toLowerCase().startsWith("content-length")) {
+                    String[] parts = line.split(":");
+                    if (parts.length == 2) {
+                        return Integer.parseInt(parts[1].trim());
+                    }
+                }
+            }
+            return 0;
+        }
+
+        ByteBuffer readFrameForByteBuffer() throws IOException {
+            mark(FRAME_MAX_LENGTH);
+            int n = getEndOfSequence(SOI_MARKER) - SOI_MARKER.length;
+            reset();
+            byte[] header = new byte[n];
+            readFully(header);
+            int length = parseContentLength(header);
+            reset();
+            byte[] frame = new byte[length];
+            skipBytes(n);
+            readFully(frame);
+            return ByteBuffer.wrap(frame);
+        }
+    }
+}
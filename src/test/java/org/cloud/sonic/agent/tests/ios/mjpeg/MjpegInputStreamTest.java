@@ -0,0 +1,166 @@
+package org.cloud.sonic.agent.tests.ios.mjpeg;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class MjpegInputStreamTest {
+
+    private static byte[] jpeg(Random random, int size) {
+        byte[] jpeg = new byte[size];
+        random.nextBytes(jpeg);
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        // 内容中不出现 EOI，便于没有 Content-Length 时按 EOI 截取
+        for (int i = 2; i < size - 2; i++) {
+            if (jpeg[i] == (byte) 0xFF) {
+                jpeg[i + 1] = 0x00;
+            }
+        }
+        jpeg[size - 2] = (byte) 0xFF;
+        jpeg[size - 1] = (byte) 0xD9;
+        return jpeg;
+    }
+
+    static List<byte[]> frames(int count, int minSize, int maxSize) {
+        Random random = new Random(count);
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            frames.add(jpeg(random, minSize + random.nextInt(maxSize - minSize + 1)));
+        }
+        return frames;
+    }
+
+    /**
+     * 按 WDA 的格式拼出 multipart 码流
+     */
+    static byte[] multipart(List<byte[]> frames, boolean contentLength) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            StringBuilder header = new StringBuilder("--BoundaryString\r\nContent-type: image/jpg\r\n");
+            if (contentLength) {
+                header.append("Content-Length: ").append(frame.length).append("\r\n");
+            }
+            header.append("\r\n");
+            out.writeBytes(header.toString().getBytes(StandardCharsets.US_ASCII));
+            out.writeBytes(frame);
+            out.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        return out.toByteArray();
+    }
+
+    static InputStream socket(byte[] data, int chunk) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    private static List<byte[]> readAll(MjpegInputStream stream) throws IOException {
+        List<byte[]> result = new ArrayList<>();
+        ByteBuffer frame;
+        while ((frame = stream.readFrameForByteBuffer()) != null) {
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            result.add(bytes);
+        }
+        return result;
+    }
+
+    private static void assertFrames(List<byte[]> expected, List<byte[]> actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void testContentLength() throws IOException {
+        List<byte[]> frames = frames(30, 100, 20_000);
+        for (int chunk : new int[]{1, 7, 1500, 1 << 20}) {
+            assertFrames(frames, readAll(new MjpegInputStream(socket(multipart(frames, true), chunk), 1024)));
+        }
+    }
+
+    @Test
+    public void testWithoutContentLength() throws IOException {
+        List<byte[]> frames = frames(30, 100, 20_000);
+        for (int chunk : new int[]{1, 7, 1500, 1 << 20}) {
+            assertFrames(frames, readAll(new MjpegInputStream(socket(multipart(frames, false), chunk), 1024)));
+        }
+    }
+
+    @Test
+    public void testWithoutHeaders() throws IOException {
+        List<byte[]> frames = frames(10, 100, 5_000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frames.forEach(out::writeBytes);
+        assertFrames(frames, readAll(new MjpegInputStream(socket(out.toByteArray(), 333))));
+    }
+
+    @Test
+    public void testHeaderCase() throws IOException {
+        byte[] frame = jpeg(new Random(1), 64);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(("--b\r\ncontent-type: image/jpeg\r\nCONTENT-LENGTH:   " + frame.length + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        out.writeBytes(frame);
+        List<byte[]> result = readAll(new MjpegInputStream(new ByteArrayInputStream(out.toByteArray())));
+        Assert.assertEquals(1, result.size());
+        Assert.assertArrayEquals(frame, result.get(0));
+    }
+
+    @Test
+    public void testBlankLineAfterFrame() throws IOException {
+        // WDA 在每帧之后追加 \r\n\r\n
+        List<byte[]> frames = frames(10, 100, 5_000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            out.writeBytes("--BoundaryString\r\nContent-type: image/jpg\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.writeBytes(frame);
+            out.writeBytes("\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        for (int chunk : new int[]{1, 3, 1500}) {
+            assertFrames(frames, readAll(new MjpegInputStream(socket(out.toByteArray(), chunk), 1024)));
+        }
+    }
+
+    @Test
+    public void testGrowForLargeFrame() throws IOException {
+        List<byte[]> frames = frames(4, 600_000, 1_200_000);
+        MjpegInputStream stream = new MjpegInputStream(socket(multipart(frames, true), 64 * 1024), 1024);
+        assertFrames(frames, readAll(stream));
+        Assert.assertTrue(stream.getCapacity() >= 1_200_000);
+    }
+
+    @Test
+    public void testIndexOf() {
+        Random random = new Random(3);
+        byte[] data = new byte[4096];
+        for (int round = 0; round < 200; round++) {
+            random.nextBytes(data);
+            byte value = (byte) random.nextInt(256);
+            int from = random.nextInt(100);
+            int to = data.length - random.nextInt(100);
+            int expected = -1;
+            for (int i = from; i < to; i++) {
+                if (data[i] == value) {
+                    expected = i;
+                    break;
+                }
+            }
+            Assert.assertEquals(expected, MjpegInputStream.indexOf(data, from, to, value));
+        }
+    }
+}
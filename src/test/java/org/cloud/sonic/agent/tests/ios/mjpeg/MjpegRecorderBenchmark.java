@@ -0,0 +1,67 @@
+package org.cloud.sonic.agent.tests.ios.mjpeg;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.ffmpeg.global.avformat.avformat_version;
+
+/**
+ * iOS 录像每帧的 CPU 耗时，只打印结果
+ * 默认不参与 mvn test，执行 mvn test -Dtest=MjpegRecorderBenchmark -Dsonic.benchmark=true
+ */
+public class MjpegRecorderBenchmark {
+
+    private static final long FRAME_INTERVAL_NANOS = 100_000_000L;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue("run with -Dsonic.benchmark=true", Boolean.getBoolean("sonic.benchmark"));
+        boolean ok;
+        try {
+            ok = avformat_version() > 0;
+        } catch (Throwable e) {
+            ok = false;
+        }
+        Assume.assumeTrue("FFmpeg is not available on this platform", ok);
+        file = Files.createTempFile("sonic-ios-record", ".mp4").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void benchmarkCpuCostPerFrame() throws IOException {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        List<ByteBuffer> frames = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            frames.add(MjpegRecorderTest.slice(MjpegRecorderTest.jpeg(750, 1334, i)));
+        }
+        MjpegRecorder recorder = new MjpegRecorder(file);
+        long t = 0;
+        long before = threadMXBean.getCurrentThreadCpuTime();
+        for (int i = 0; i < 300; i++) {
+            recorder.write(frames.get(i % frames.size()).duplicate(), t);
+            t += FRAME_INTERVAL_NANOS;
+        }
+        recorder.close();
+        long perFrame = (threadMXBean.getCurrentThreadCpuTime() - before) / 300;
+        System.out.println("ios record cost per frame: " + perFrame / 1000 + "us");
+    }
+}
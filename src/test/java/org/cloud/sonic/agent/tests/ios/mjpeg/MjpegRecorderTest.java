@@ -0,0 +1,143 @@
+package org.cloud.sonic.agent.tests.ios.mjpeg;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVInputFormat;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.javacpp.PointerPointer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avformat.*;
+
+public class MjpegRecorderTest {
+
+    private static final long FRAME_INTERVAL_NANOS = 100_000_000L;
+
+    private File file;
+
+    private void assumeFFmpeg() throws IOException {
+        boolean ok;
+        try {
+            ok = avformat_version() > 0;
+        } catch (Throwable e) {
+            // 当前平台没有对应的 FFmpeg 本地库
+            ok = false;
+        }
+        Assume.assumeTrue("FFmpeg is not available on this platform", ok);
+        file = Files.createTempFile("sonic-ios-record", ".mp4").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    static byte[] jpeg(int width, int height, int index) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.BLUE);
+        g.fillRect((index * 7) % width, (index * 5) % height, 40, 40);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * 模拟 MjpegInputStream 交出的切片：前后带着分段头等其他数据
+     */
+    static ByteBuffer slice(byte[] jpeg) {
+        byte[] data = new byte[jpeg.length + 64];
+        System.arraycopy(jpeg, 0, data, 32, jpeg.length);
+        return ByteBuffer.wrap(data, 32, jpeg.length).slice();
+    }
+
+    /**
+     * @return 文件中每个包的 pts（毫秒）
+     */
+    private List<Long> readBack(int codecId, int width) {
+        AVFormatContext context = new AVFormatContext(null);
+        Assert.assertEquals(0, avformat_open_input(context, file.getPath(), (AVInputFormat) null, (AVDictionary) null));
+        Assert.assertTrue(avformat_find_stream_info(context, (PointerPointer) null) >= 0);
+        Assert.assertEquals(codecId, context.streams(0).codecpar().codec_id());
+        Assert.assertEquals(width, context.streams(0).codecpar().width());
+        List<Long> pts = new ArrayList<>();
+        AVPacket packet = av_packet_alloc();
+        while (av_read_frame(context, packet) >= 0) {
+            pts.add(packet.pts() * 1000 * context.streams(0).time_base().num() / context.streams(0).time_base().den());
+            av_packet_unref(packet);
+        }
+        av_packet_free(packet);
+        avformat_close_input(context);
+        return pts;
+    }
+
+    @Test
+    public void testJpegSize() throws IOException {
+        Assert.assertArrayEquals(new int[]{320, 240}, MjpegRecorder.jpegSize(slice(jpeg(320, 240, 0))));
+        Assert.assertArrayEquals(new int[]{750, 1334}, MjpegRecorder.jpegSize(ByteBuffer.wrap(jpeg(750, 1334, 0))));
+        Assert.assertNull(MjpegRecorder.jpegSize(ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xD8, 0, 0})));
+        Assert.assertNull(MjpegRecorder.jpegSize(ByteBuffer.wrap("--BoundaryString".getBytes())));
+    }
+
+    @Test
+    public void testMjpegRemux() throws IOException {
+        assumeFFmpeg();
+        MjpegRecorder recorder = new MjpegRecorder(file);
+        long t = 1_000_000_000L;
+        for (int i = 0; i < 20; i++) {
+            recorder.write(slice(jpeg(320, 240, i)), t);
+            // 同一时刻到达的画面也要保持 pts 递增
+            t += i == 5 ? 0 : FRAME_INTERVAL_NANOS;
+        }
+        recorder.close();
+        Assert.assertEquals(20, recorder.getFrames());
+        List<Long> pts = readBack(AV_CODEC_ID_MJPEG, 320);
+        Assert.assertEquals(20, pts.size());
+        Assert.assertEquals(0L, (long) pts.get(0));
+        Assert.assertEquals(100L, (long) pts.get(1));
+        for (int i = 1; i < pts.size(); i++) {
+            Assert.assertTrue("pts " + pts, pts.get(i) > pts.get(i - 1));
+        }
+    }
+
+    @Test
+    public void testH264Transcode() throws IOException, InterruptedException {
+        assumeFFmpeg();
+        MjpegRecorder recorder = new MjpegRecorder(file, MjpegRecorder.CODEC_H264, 10);
+        long t = 1_000_000_000L;
+        for (int i = 0; i < 30; i++) {
+            recorder.write(slice(jpeg(320, 240, i)), t);
+            // 超过帧率上限的画面直接跳过
+            recorder.write(slice(jpeg(320, 240, i)), t + FRAME_INTERVAL_NANOS / 2);
+            t += FRAME_INTERVAL_NANOS;
+            Thread.sleep(5);
+        }
+        recorder.close();
+        Assert.assertTrue(recorder.getFrames() > 0);
+        int codecId = MjpegRecorder.CODEC_H264.equals(recorder.getCodec()) ? AV_CODEC_ID_H264 : AV_CODEC_ID_MJPEG;
+        List<Long> pts = readBack(codecId, 320);
+        Assert.assertEquals(recorder.getFrames(), pts.size());
+        Assert.assertTrue(pts.size() + recorder.getDropped() <= 30);
+    }
+}
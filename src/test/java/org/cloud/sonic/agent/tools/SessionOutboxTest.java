@@ -0,0 +1,277 @@
+package org.cloud.sonic.agent.tools;
+
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SessionOutboxTest {
+
+    /**
+     * 模拟的连接：inline 为 true 时发送在调用线程中立即完成，否则挂起到 complete() 被调用
+     */
+    private static class FakeSession {
+        private final boolean inline;
+        private final List<String> sent = new CopyOnWriteArrayList<>();
+        private final ArrayDeque<SendHandler> pending = new ArrayDeque<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private volatile boolean open = true;
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private final Session session;
+
+        FakeSession(boolean inline) {
+            this.inline = inline;
+            RemoteEndpoint.Async async = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                    SessionOutboxTest.class.getClassLoader(), new Class[]{RemoteEndpoint.Async.class},
+                    (proxy, method, args) -> {
+                        if (method.getName().equals("sendText")) {
+                            send((String) args[0], (SendHandler) args[1]);
+                        } else if (method.getName().equals("sendBinary")) {
+                            ByteBuffer data = (ByteBuffer) args[0];
+                            send(StandardCharsets.UTF_8.decode(data.duplicate()).toString(), (SendHandler) args[1]);
+                        }
+                        return null;
+                    });
+            Map<String, Object> properties = new ConcurrentHashMap<>();
+            session = (Session) Proxy.newProxyInstance(
+                    SessionOutboxTest.class.getClassLoader(), new Class[]{Session.class},
+                    (proxy, method, args) -> switch (method.getName()) {
+                        case "isOpen" -> open;
+                        case "getAsyncRemote" -> async;
+                        case "getUserProperties" -> properties;
+                        case "close" -> {
+                            open = false;
+                            closed.countDown();
+                            yield null;
+                        }
+                        case "hashCode" -> System.identityHashCode(proxy);
+                        case "equals" -> proxy == args[0];
+                        default -> null;
+                    });
+        }
+
+        private void send(String message, SendHandler handler) {
+            sent.add(message);
+            if (inline) {
+                // 记录回调嵌套的深度，递归发送时会不断增长
+                maxDepth.accumulateAndGet(depth.incrementAndGet(), Math::max);
+                handler.onResult(new SendResult());
+                depth.decrementAndGet();
+            } else {
+                synchronized (pending) {
+                    pending.add(handler);
+                }
+            }
+        }
+
+        boolean complete() {
+            SendHandler handler;
+            synchronized (pending) {
+                handler = pending.poll();
+            }
+            if (handler == null) {
+                return false;
+            }
+            handler.onResult(open ? new SendResult() : new SendResult(new IllegalStateException("closed")));
+            return true;
+        }
+
+        void completeAll() {
+            while (complete()) {
+            }
+        }
+    }
+
+    private static ByteBuffer frame(String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testProducerNeverBlocks() {
+        FakeSession fake = new FakeSession(false);
+        SessionOutbox outbox = SessionOutbox.of(fake.session);
+        long start = System.nanoTime();
+        for (int i = 0; i < 10000; i++) {
+            outbox.sendBinary(frame("f" + i), SessionOutbox.Policy.FRAME, null);
+        }
+        // 连接一直没有完成发送，生产者也不会等待
+        Assert.assertTrue(System.nanoTime() - start < 2_000_000_000L);
+        Assert.assertEquals(1, fake.sent.size());
+        Assert.assertEquals(SessionOutbox.FRAME_CAPACITY, outbox.getDepth());
+        Assert.assertSame(outbox, SessionOutbox.of(fake.session));
+    }
+
+    @Test
+    public void testFramesDropOldest() {
+        FakeSession fake = new FakeSession(false);
+        SessionOutbox outbox = SessionOutbox.of(fake.session);
+        for (int i = 0; i < 6; i++) {
+            outbox.sendBinary(frame("f" + i), SessionOutbox.Policy.FRAME, null);
+        }
+        fake.completeAll();
+        // 第一帧已经在发送中，积压的只留下最新的两帧
+        Assert.assertEquals(List.of("f0", "f4", "f5"), fake.sent);
+        Assert.assertEquals(3, outbox.getDropped());
+        Assert.assertEquals(3, outbox.getSent());
+        Assert.assertEquals(0, outbox.getDepth());
+    }
+
+    @Test
+    public void testFrameCopiedOnEnqueue() {
+        FakeSession fake = new FakeSession(false);
+        SessionOutbox outbox = SessionOutbox.of(fake.session);
+        outbox.sendBinary(frame("busy"), SessionOutbox.Policy.FRAME, null);
+        byte[] reused = "aaaa".getBytes(StandardCharsets.UTF_8);
+        outbox.sendBinary(ByteBuffer.wrap(reused), SessionOutbox.Policy.FRAME, null);
+        // 调用方入队后马上复用自己的缓冲区
+        reused[0] = 'b';
+        fake.completeAll();
+        Assert.assertEquals(List.of("busy", "aaaa"), fake.sent);
+    }
+
+    @Test
+    public void testPerfCoalescedByKey() {
+        FakeSession fake = new FakeSession(false);
+        SessionOutbox outbox = SessionOutbox.of(fake.session);
+        outbox.sendText("busy");
+        for (int i = 0; i < 5; i++) {
+            outbox.sendText("cpu" + i, "cpu");
+            outbox.sendText("mem" + i, "mem");
+        }
+        fake.completeAll();
+        Assert.assertEquals(List.of("busy", "cpu4", "mem4"), fake.sent);
+        Assert.assertEquals(8, outbox.getCoalesced());
+    }
+
+    @Test
+    public void testControlFirstAndInOrder() {
+        FakeSession fake = new FakeSession(false);
+        SessionOutbox outbox = SessionOutbox.of(fake.session);
+        outbox.sendBinary(frame("f0"), SessionOutbox.Policy.FRAME, null);
+        outbox.sendBinary(frame("f1"), SessionOutbox.Policy.FRAME, null);
+        outbox.sendText("perf", "perf");
+        for (int i = 0; i < 100; i++) {
+            outbox.sendText("c" + i);
+        }
+        fake.completeAll();
+        Assert.assertEquals(103, fake.sent.size());
+        Assert.assertEquals("f0", fake.sent.get(0));
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("c" + i, fake.sent.get(i + 1));
+        }
+        Assert.assertEquals("perf", fake.sent.get(101));
+        Assert.assertEquals("f1", fake.sent.get(102));
+        Assert.assertEquals(102, outbox.getMaxDepth());
+    }
+
+    @Test
+    public void testInlineCompletionDoesNotRecurse() {
+        FakeSession fake = new FakeSession(true);
+        SessionOutbox outbox = SessionOutbox.of(fake.session);
+        for (int i = 0; i < 20000; i++) {
+            outbox.sendText("c" + i);
+        }
+        Assert.assertEquals(20000, fake.sent.size());
+        Assert.assertEquals(1, fake.maxDepth.get());
+        Assert.assertEquals(20000, outbox.getSent());
+    }
+
+    @Test
+    public void testOnSentLatency() throws InterruptedException {
+        FakeSession fake = new FakeSession(false);
+        SessionOutbox outbox = SessionOutbox.of(fake.session);
+        AtomicLong latency = new AtomicLong(-1);
+        outbox.sendBinary(frame("f0"), SessionOutbox.Policy.FRAME, latency::set);
+        Thread.sleep(50);
+        Assert.assertEquals(-1, latency.get());
+        fake.complete();
+        Assert.assertTrue(latency.get() >= 50_000_000L);
+        Assert.assertTrue(outbox.getSendMs() > 0);
+    }
+
+    @Test
+    public void testClosedSessionDropsBacklog() {
+        FakeSession fake = new FakeSession(false);
+        SessionOutbox outbox = SessionOutbox.of(fake.session);
+        outbox.sendText("c0");
+        outbox.sendText("c1");
+        outbox.sendBinary(frame("f0"), SessionOutbox.Policy.FRAME, null);
+        fake.open = false;
+        fake.completeAll();
+        Assert.assertEquals(List.of("c0"), fake.sent);
+        Assert.assertEquals(1, outbox.getFailed());
+        Assert.assertEquals(0, outbox.getDepth());
+        outbox.sendText("c2");
+        Assert.assertEquals(1, fake.sent.size());
+    }
+
+    @Test
+    public void testStreamDropsOldest() {
+        FakeSession fake = new FakeSession(false);
+        SessionOutbox outbox = SessionOutbox.of(fake.session);
+        outbox.sendText("c0");
+        for (int i = 0; i < SessionOutbox.STREAM_CAPACITY + 10; i++) {
+            outbox.sendText("s" + i, SessionOutbox.Policy.STREAM);
+        }
+        outbox.sendText("c1");
+        Assert.assertEquals(10, outbox.getStreamDropped());
+        fake.completeAll();
+        // 控制消息优先，保留下来的日志按顺序发送
+        Assert.assertEquals("c1", fake.sent.get(1));
+        Assert.assertEquals("s10", fake.sent.get(2));
+        Assert.assertEquals("s" + (SessionOutbox.STREAM_CAPACITY + 9), fake.sent.get(fake.sent.size() - 1));
+        Assert.assertEquals(SessionOutbox.STREAM_CAPACITY + 2, fake.sent.size());
+    }
+
+    @Test
+    public void testControlOverflowClosesSession() throws InterruptedException {
+        FakeSession fake = new FakeSession(false);
+        SessionOutbox outbox = SessionOutbox.of(fake.session);
+        // 第一条在发送中，不计入积压
+        for (int i = 0; i <= SessionOutbox.CONTROL_MAX_COUNT; i++) {
+            outbox.sendText("c" + i);
+        }
+        Assert.assertFalse(outbox.isOverflowed());
+        Assert.assertEquals(SessionOutbox.CONTROL_MAX_COUNT, outbox.getDepth(SessionOutbox.Policy.CONTROL));
+        outbox.sendText("overflow");
+        Assert.assertTrue(outbox.isOverflowed());
+        Assert.assertEquals(0, outbox.getDepth());
+        Assert.assertTrue(fake.closed.await(5, TimeUnit.SECONDS));
+        fake.completeAll();
+        Assert.assertEquals(List.of("c0"), fake.sent);
+    }
+
+    @Test
+    public void testControlBytesLimit() {
+        FakeSession fake = new FakeSession(false);
+        SessionOutbox outbox = SessionOutbox.of(fake.session);
+        outbox.sendText("c0");
+        int size = 1024 * 1024;
+        for (int i = 0; i < SessionOutbox.CONTROL_MAX_BYTES / size; i++) {
+            outbox.sendBinary(ByteBuffer.allocate(size), SessionOutbox.Policy.CONTROL, null);
+        }
+        Assert.assertFalse(outbox.isOverflowed());
+        // 发送完一条后腾出空间
+        fake.complete();
+        outbox.sendBinary(ByteBuffer.allocate(size), SessionOutbox.Policy.CONTROL, null);
+        Assert.assertFalse(outbox.isOverflowed());
+        outbox.sendBinary(ByteBuffer.allocate(size), SessionOutbox.Policy.CONTROL, null);
+        Assert.assertTrue(outbox.isOverflowed());
+    }
+}
@@ -0,0 +1,211 @@
+package org.cloud.sonic.agent.transport;
+
+import com.alibaba.fastjson.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class InboundDispatcherTest {
+
+    private final List<InboundDispatcher> dispatchers = new ArrayList<>();
+
+    private InboundDispatcher newDispatcher(int workers, int laneCapacity, int maxPending) {
+        InboundDispatcher dispatcher = new InboundDispatcher("test", workers, laneCapacity, maxPending);
+        dispatchers.add(dispatcher);
+        return dispatcher;
+    }
+
+    @After
+    public void tearDown() {
+        for (InboundDispatcher dispatcher : dispatchers) {
+            dispatcher.shutdown();
+        }
+    }
+
+    private static void awaitIdle(InboundDispatcher dispatcher) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getPending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(0, dispatcher.getPending());
+    }
+
+    @Test
+    public void testSameDeviceInOrder() throws InterruptedException {
+        InboundDispatcher dispatcher = newDispatcher(8, 1000, 10000);
+        Map<String, List<Integer>> order = new ConcurrentHashMap<>();
+        for (int i = 0; i < 500; i++) {
+            String udId = "device-" + (i % 5);
+            int index = i;
+            Assert.assertTrue(dispatcher.dispatch(udId, () -> {
+                order.computeIfAbsent(udId, k -> new CopyOnWriteArrayList<>()).add(index);
+                Thread.yield();
+            }));
+        }
+        awaitIdle(dispatcher);
+        for (List<Integer> indexes : order.values()) {
+            Assert.assertEquals(100, indexes.size());
+            for (int i = 1; i < indexes.size(); i++) {
+                Assert.assertTrue(indexes.get(i) > indexes.get(i - 1));
+            }
+        }
+        // 队列清空后不再保留
+        Assert.assertTrue(dispatcher.getLaneDepths().isEmpty());
+        Assert.assertEquals(500, dispatcher.getExecuted());
+    }
+
+    @Test
+    public void testReleaseWaitsForOccupy() throws InterruptedException {
+        InboundDispatcher dispatcher = newDispatcher(8, 64, 1024);
+        List<String> events = new CopyOnWriteArrayList<>();
+        dispatcher.dispatch("a", () -> {
+            sleep(100);
+            events.add("occupy");
+        });
+        dispatcher.dispatch("a", () -> events.add("release"));
+        awaitIdle(dispatcher);
+        Assert.assertEquals(List.of("occupy", "release"), events);
+    }
+
+    @Test
+    public void testConcurrencyCapped() throws InterruptedException {
+        InboundDispatcher dispatcher = newDispatcher(4, 64, 1024);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        for (int i = 0; i < 200; i++) {
+            dispatcher.dispatch("device-" + i, () -> {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                sleep(2);
+                running.decrementAndGet();
+            });
+        }
+        awaitIdle(dispatcher);
+        Assert.assertTrue("peak " + peak.get(), peak.get() <= 4);
+        Assert.assertEquals(200, dispatcher.getExecuted());
+    }
+
+    @Test
+    public void testBusyDeviceDoesNotBlockOthers() throws InterruptedException {
+        InboundDispatcher dispatcher = newDispatcher(2, 64, 1024);
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch("busy", () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            });
+        }
+        CountDownLatch other = new CountDownLatch(1);
+        dispatcher.dispatch("other", other::countDown);
+        // 同一台设备只占用一个线程
+        Assert.assertTrue(other.await(1, TimeUnit.SECONDS));
+        release.countDown();
+        awaitIdle(dispatcher);
+    }
+
+    @Test
+    public void testFloodRejected() throws InterruptedException {
+        InboundDispatcher dispatcher = newDispatcher(1, 3, 5);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocked = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(dispatcher.dispatch("a", blocked));
+        }
+        // 单台设备超过上限
+        Assert.assertFalse(dispatcher.dispatch("a", blocked));
+        Assert.assertTrue(dispatcher.dispatch("b", blocked));
+        Assert.assertTrue(dispatcher.dispatch(null, blocked));
+        // 全部积压超过上限
+        Assert.assertFalse(dispatcher.dispatch("c", blocked));
+        Assert.assertEquals(2, dispatcher.getRejected());
+        Assert.assertEquals(Integer.valueOf(3), dispatcher.getLaneDepths().get("a"));
+        release.countDown();
+        awaitIdle(dispatcher);
+        Assert.assertEquals(5, dispatcher.getExecuted());
+    }
+
+    @Test
+    public void testMandatoryNeverRejected() throws InterruptedException {
+        InboundDispatcher dispatcher = newDispatcher(1, 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+        Assert.assertTrue(dispatcher.dispatch(InboundDispatcher.AGENT_KEY, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+            order.add("reboot");
+        }));
+        Assert.assertFalse(dispatcher.dispatch(InboundDispatcher.AGENT_KEY, () -> order.add("hub")));
+        // forceStopSuite 与其他没有 udId 的指令同一条队列，积压时仍然排队执行
+        Assert.assertTrue(dispatcher.dispatch(InboundDispatcher.AGENT_KEY, () -> order.add("forceStopSuite"), true));
+        release.countDown();
+        awaitIdle(dispatcher);
+        Assert.assertEquals(List.of("reboot", "forceStopSuite"), order);
+        Assert.assertEquals(1, dispatcher.getRejected());
+    }
+
+    @Test
+    public void testMandatoryAndRejection() {
+        JSONObject forceStop = new JSONObject();
+        forceStop.put("msg", "forceStopSuite");
+        Assert.assertTrue(InboundDispatcher.isMandatory(forceStop));
+        JSONObject release = new JSONObject();
+        release.put("msg", "release");
+        release.put("udId", "R5CR30");
+        Assert.assertTrue(InboundDispatcher.isMandatory(release));
+        JSONObject runStep = new JSONObject();
+        runStep.put("msg", "runStep");
+        runStep.put("udId", "R5CR30");
+        Assert.assertFalse(InboundDispatcher.isMandatory(runStep));
+        JSONObject reply = InboundDispatcher.rejection(runStep, "busy");
+        Assert.assertEquals(InboundDispatcher.REJECTED_MSG, reply.getString("msg"));
+        Assert.assertEquals("runStep", reply.getString("command"));
+        Assert.assertEquals("R5CR30", reply.getString("udId"));
+        Assert.assertEquals("busy", reply.getString("reason"));
+    }
+
+    @Test
+    public void testFailureDoesNotStallLane() throws InterruptedException {
+        InboundDispatcher dispatcher = newDispatcher(2, 64, 1024);
+        CountDownLatch done = new CountDownLatch(1);
+        dispatcher.dispatch("a", () -> {
+            throw new IllegalStateException("boom");
+        });
+        dispatcher.dispatch("a", done::countDown);
+        Assert.assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testKeyOf() {
+        JSONObject occupy = new JSONObject();
+        occupy.put("msg", "occupy");
+        occupy.put("udId", "R5CR30");
+        Assert.assertEquals("R5CR30", InboundDispatcher.keyOf(occupy));
+        JSONObject hub = new JSONObject();
+        hub.put("msg", "hub");
+        Assert.assertEquals(InboundDispatcher.AGENT_KEY, InboundDispatcher.keyOf(hub));
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.cloud.sonic.agent.transport;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TransportBackoffTest {
+
+    @Test
+    public void testDelayDoublesUpToMax() {
+        TransportBackoff backoff = new TransportBackoff(1000, 60000);
+        long cap = 1000;
+        for (int i = 0; i < 40; i++) {
+            long delay = backoff.nextDelayMs();
+            Assert.assertTrue("attempt " + i + ": " + delay, delay >= cap / 2 && delay <= cap);
+            cap = Math.min(60000, cap * 2);
+        }
+        backoff.reset();
+        Assert.assertTrue(backoff.nextDelayMs() <= 1000);
+    }
+
+    @Test
+    public void testJitterSpreadsReconnects() {
+        // 模拟 server 重启后 1000 个 agent 同时第 5 次重连
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 1000; i++) {
+            TransportBackoff backoff = new TransportBackoff(1000, 60000);
+            long delay = 0;
+            for (int j = 0; j < 5; j++) {
+                delay = backoff.nextDelayMs();
+            }
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        Assert.assertTrue("spread " + (max - min) + " ms", max - min > 4000);
+    }
+}
@@ -0,0 +1,140 @@
+package org.cloud.sonic.agent.transport;
+
+import com.alibaba.fastjson.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class TransportBatcherTest {
+
+    private static JSONObject step(int i) {
+        JSONObject m = new JSONObject();
+        m.put("msg", "step");
+        m.put("index", i);
+        m.put("des", "点击控件 " + i);
+        return m;
+    }
+
+    /**
+     * 按 server 的方式拆开所有帧
+     */
+    private static List<JSONObject> receive(List<String> frames) {
+        List<JSONObject> result = new ArrayList<>();
+        for (String frame : frames) {
+            result.addAll(TransportBatcher.unwrap(frame));
+        }
+        return result;
+    }
+
+    @Test
+    public void testBurstBecomesFewFrames() throws InterruptedException {
+        LinkedBlockingQueue<JSONObject> queue = new LinkedBlockingQueue<>();
+        TransportBatcher batcher = new TransportBatcher(queue::poll, true, 5, 32768);
+        for (int i = 0; i < 1000; i++) {
+            queue.offer(step(i));
+        }
+        List<String> frames = new ArrayList<>();
+        String frame;
+        while ((frame = batcher.next(7, 50, TimeUnit.MILLISECONDS)) != null) {
+            Assert.assertTrue(frame.length() <= 32768);
+            frames.add(frame);
+        }
+        List<JSONObject> received = receive(frames);
+        Assert.assertEquals(1000, received.size());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(i, received.get(i).getIntValue("index"));
+            Assert.assertEquals(7, received.get(i).getIntValue("agentId"));
+        }
+        Assert.assertTrue("sent " + frames.size() + " frames", frames.size() < 20);
+        Assert.assertEquals(1000, batcher.getMessages());
+        Assert.assertEquals(frames.size(), batcher.getFrames());
+    }
+
+    @Test
+    public void testSingleMessageNotWrapped() throws InterruptedException {
+        LinkedBlockingQueue<JSONObject> queue = new LinkedBlockingQueue<>();
+        TransportBatcher batcher = new TransportBatcher(queue::poll, true, 5, 32768);
+        queue.offer(step(1));
+        String frame = batcher.next(7, 50, TimeUnit.MILLISECONDS);
+        // 旧版本的 server 也能处理单条消息
+        Assert.assertEquals("step", JSONObject.parseObject(frame).getString("msg"));
+        Assert.assertNull(batcher.next(7, 10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testIdleLatency() throws InterruptedException {
+        LinkedBlockingQueue<JSONObject> queue = new LinkedBlockingQueue<>();
+        TransportBatcher batcher = new TransportBatcher(queue::poll, false, 5, 32768);
+        long[] sentAt = new long[1];
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException ignored) {
+            }
+            sentAt[0] = System.nanoTime();
+            queue.offer(step(1));
+        });
+        producer.start();
+        String frame = batcher.next(7, 5, TimeUnit.SECONDS);
+        long latency = System.nanoTime() - sentAt[0];
+        Assert.assertNotNull(frame);
+        // 空闲后的第一条消息不再等待轮询间隔
+        Assert.assertTrue("latency " + latency + " ns", latency < 50_000_000L);
+    }
+
+    @Test
+    public void testLingerCollectsLateMessages() throws InterruptedException {
+        LinkedBlockingQueue<JSONObject> queue = new LinkedBlockingQueue<>();
+        TransportBatcher batcher = new TransportBatcher(queue::poll, true, 200, 32768);
+        queue.offer(step(0));
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ignored) {
+            }
+            queue.offer(step(1));
+        });
+        producer.start();
+        String frame = batcher.next(7, 1, TimeUnit.SECONDS);
+        Assert.assertEquals(2, TransportBatcher.unwrap(frame).size());
+    }
+
+    @Test
+    public void testOversizedMessageAlone() throws InterruptedException {
+        LinkedBlockingQueue<JSONObject> queue = new LinkedBlockingQueue<>();
+        TransportBatcher batcher = new TransportBatcher(queue::poll, true, 5, 1024);
+        queue.offer(step(0));
+        JSONObject big = step(1);
+        big.put("log", "x".repeat(4096));
+        queue.offer(big);
+        queue.offer(step(2));
+        List<String> frames = new ArrayList<>();
+        String frame;
+        while ((frame = batcher.next(7, 50, TimeUnit.MILLISECONDS)) != null) {
+            frames.add(frame);
+        }
+        Assert.assertEquals(3, frames.size());
+        List<JSONObject> received = receive(frames);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(i, received.get(i).getIntValue("index"));
+        }
+    }
+
+    @Test
+    public void testWithoutBatch() throws InterruptedException {
+        LinkedBlockingQueue<JSONObject> queue = new LinkedBlockingQueue<>();
+        TransportBatcher batcher = new TransportBatcher(queue::poll, false, 5, 32768);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(step(i));
+        }
+        for (int i = 0; i < 10; i++) {
+            JSONObject m = JSONObject.parseObject(batcher.next(7, 50, TimeUnit.MILLISECONDS));
+            Assert.assertEquals(i, m.getIntValue("index"));
+        }
+        Assert.assertEquals(10, batcher.getFrames());
+    }
+}
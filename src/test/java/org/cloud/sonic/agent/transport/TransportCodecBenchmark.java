@@ -0,0 +1,103 @@
+package org.cloud.sonic.agent.transport;
+
+import com.alibaba.fastjson.JSONObject;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 对比各消息格式下步骤日志、性能数据、结果状态每条消息的字节数和编解码耗时
+ * 默认不参与 mvn test，执行 mvn test -Dtest=TransportCodecBenchmark
+ * batch 为每帧的消息数，1 即不合并
+ */
+public class TransportCodecBenchmark {
+
+    private static final int ROUNDS = 2000;
+
+    private static JSONObject base(String msg) {
+        JSONObject m = new JSONObject();
+        m.put("msg", msg);
+        m.put("cid", 1024);
+        m.put("rid", 20481);
+        m.put("udId", "R5CR30XXXXX");
+        m.put("time", "2026-10-15 10:24:31.207");
+        return m;
+    }
+
+    private static JSONObject step(int i) {
+        JSONObject m = base("step");
+        m.put("des", "点击控件元素 登录按钮");
+        m.put("status", 1);
+        m.put("log", "[id]:com.example.app:id/btn_login, 第 " + i + " 次");
+        return m;
+    }
+
+    private static JSONObject perf(int i) {
+        JSONObject detail = new JSONObject();
+        detail.put("cpu", 23.5 + i % 7);
+        detail.put("mem", 512_340 + i);
+        detail.put("fps", 58 + i % 3);
+        detail.put("jank", i % 2);
+        detail.put("networkRx", 120_345L + i * 17L);
+        detail.put("networkTx", 40_112L + i * 5L);
+        detail.put("battery", 87);
+        detail.put("temperature", 341);
+        JSONObject m = base("perform");
+        m.put("des", "");
+        m.put("status", 1);
+        m.put("log", detail.toJSONString());
+        return m;
+    }
+
+    private static JSONObject status(int i) {
+        JSONObject m = base("status");
+        m.put("des", "");
+        m.put("log", "");
+        m.put("status", i % 3);
+        return m;
+    }
+
+    private interface Payload {
+        JSONObject create(int i);
+    }
+
+    @Test
+    public void benchmark() {
+        String[] names = {"step", "perf", "status"};
+        Payload[] payloads = {TransportCodecBenchmark::step, TransportCodecBenchmark::perf, TransportCodecBenchmark::status};
+        for (int p = 0; p < payloads.length; p++) {
+            for (int batch : new int[]{1, 50}) {
+                List<JSONObject> messages = new ArrayList<>();
+                for (int i = 0; i < batch; i++) {
+                    messages.add(payloads[p].create(i));
+                    messages.get(i).put("agentId", 1);
+                }
+                for (TransportCodec codec : TransportCodec.values()) {
+                    // 预热
+                    for (int r = 0; r < ROUNDS / 4; r++) {
+                        TransportCodec.decode(codec.encode(messages, 1));
+                    }
+                    long bytes = 0;
+                    long encodeNanos = 0;
+                    long decodeNanos = 0;
+                    for (int r = 0; r < ROUNDS; r++) {
+                        long start = System.nanoTime();
+                        Object frame = codec.encode(messages, 1);
+                        long encoded = System.nanoTime();
+                        TransportCodec.decode(frame);
+                        decodeNanos += System.nanoTime() - encoded;
+                        encodeNanos += encoded - start;
+                        bytes += frame instanceof String text
+                                ? text.getBytes(StandardCharsets.UTF_8).length : ((ByteBuffer) frame).remaining();
+                    }
+                    double count = (double) ROUNDS * batch;
+                    System.out.printf("%-6s batch=%-3d %-13s %7.1f bytes/msg  encode %7.0f ns/msg  decode %7.0f ns/msg%n",
+                            names[p], batch, codec.getName(), bytes / count, encodeNanos / count, decodeNanos / count);
+                }
+            }
+        }
+    }
+}
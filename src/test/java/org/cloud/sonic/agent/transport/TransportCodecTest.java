@@ -0,0 +1,108 @@
+package org.cloud.sonic.agent.transport;
+
+import com.alibaba.fastjson.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class TransportCodecTest {
+
+    private static JSONObject step(int i) {
+        JSONObject m = new JSONObject();
+        m.put("msg", "step");
+        m.put("cid", 12);
+        m.put("rid", 345);
+        m.put("udId", "emulator-5554");
+        m.put("index", i);
+        m.put("des", "点击控件 " + i);
+        return m;
+    }
+
+    @Test
+    public void testNegotiation() {
+        Assert.assertEquals("jsonb-deflate, jsonb, text", TransportCodec.offer(TransportCodec.JSONB_DEFLATE));
+        Assert.assertEquals("text", TransportCodec.offer(TransportCodec.TEXT));
+        // 旧版本的 server 不回复 wireFormat
+        Assert.assertEquals(TransportCodec.TEXT, TransportCodec.choose(null, TransportCodec.JSONB_DEFLATE));
+        Assert.assertEquals(TransportCodec.JSONB_PLAIN, TransportCodec.choose("jsonb", TransportCodec.JSONB_DEFLATE));
+        // 没有提供的格式不会被采用
+        Assert.assertEquals(TransportCodec.TEXT, TransportCodec.choose("jsonb-deflate", TransportCodec.JSONB_PLAIN));
+        Assert.assertEquals(TransportCodec.TEXT, TransportCodec.of("msgpack"));
+    }
+
+    @Test
+    public void testBinaryBatchRoundTrip() throws InterruptedException {
+        for (TransportCodec codec : new TransportCodec[]{TransportCodec.JSONB_PLAIN, TransportCodec.JSONB_DEFLATE}) {
+            LinkedBlockingQueue<JSONObject> queue = new LinkedBlockingQueue<>();
+            TransportBatcher batcher = new TransportBatcher(queue::poll, true, 5, 32768);
+            for (int i = 0; i < 1000; i++) {
+                queue.offer(step(i));
+            }
+            List<JSONObject> received = new ArrayList<>();
+            int frames = 0;
+            ByteBuffer frame;
+            while ((frame = batcher.nextBinary(codec, 7, 50, TimeUnit.MILLISECONDS)) != null) {
+                received.addAll(TransportCodec.decode(frame));
+                frames++;
+            }
+            Assert.assertEquals(1000, received.size());
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertEquals(i, received.get(i).getIntValue("index"));
+                Assert.assertEquals(7, received.get(i).getIntValue("agentId"));
+                Assert.assertEquals("点击控件 " + i, received.get(i).getString("des"));
+            }
+            Assert.assertTrue(codec + " sent " + frames + " frames", frames < 20);
+        }
+    }
+
+    @Test
+    public void testTranscodePendingFrame() {
+        List<JSONObject> messages = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            messages.add(step(i));
+        }
+        Object text = TransportCodec.TEXT.encode(messages, 7);
+        Assert.assertTrue(text instanceof String);
+        // 重连后 server 改为 jsonb-deflate，未发出的文本帧转换后内容不变
+        Object binary = TransportCodec.JSONB_DEFLATE.encode(TransportCodec.decode(text), 7);
+        List<JSONObject> decoded = TransportCodec.decode(binary);
+        Assert.assertEquals(3, decoded.size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(i, decoded.get(i).getIntValue("index"));
+        }
+        Object back = TransportCodec.TEXT.encode(decoded, 7);
+        Assert.assertEquals(3, TransportCodec.decode(back).size());
+    }
+
+    @Test
+    public void testSmallFrameNotDeflated() {
+        List<JSONObject> messages = new ArrayList<>();
+        messages.add(step(0));
+        ByteBuffer frame = (ByteBuffer) TransportCodec.JSONB_DEFLATE.encode(messages, 7);
+        // 按 jsonb 发送，server 按第一个字节区分
+        Assert.assertEquals(1, frame.get(0));
+        Assert.assertEquals(0, TransportCodec.decode(frame).get(0).getIntValue("index"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFormatRejected() {
+        TransportCodec.decode(ByteBuffer.wrap(new byte[]{9, 0, 0, 0, 0}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedDeflateRejected() {
+        List<JSONObject> messages = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            messages.add(step(i));
+        }
+        ByteBuffer frame = (ByteBuffer) TransportCodec.JSONB_DEFLATE.encode(messages, 7);
+        Assert.assertEquals(2, frame.get(0));
+        frame.limit(frame.limit() / 2);
+        TransportCodec.decode(frame);
+    }
+}
@@ -0,0 +1,337 @@
+package org.cloud.sonic.agent.transport;
+
+import com.alibaba.fastjson.JSONObject;
+import org.java_websocket.WebSocket;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TransportSenderTest {
+
+    /**
+     * 模拟 server：拆开 batch 帧，按到达顺序记录每条消息
+     */
+    private static class FakeServer extends WebSocketServer {
+        private final List<JSONObject> received = new CopyOnWriteArrayList<>();
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        FakeServer() {
+            super(new InetSocketAddress("127.0.0.1", 0));
+            setReuseAddr(true);
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        }
+
+        /**
+         * 小于 0 时不确认
+         */
+        private volatile int ackBelow = -1;
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            for (JSONObject m : TransportBatcher.unwrap(message)) {
+                received.add(m);
+                if (m.getIntValue("index") < ackBelow) {
+                    JSONObject ack = new JSONObject();
+                    ack.put("msg", "ack");
+                    ack.put("seq", m.getLongValue(TransportSpool.SEQ));
+                    conn.send(ack.toJSONString());
+                }
+            }
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+        }
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+    }
+
+    private FakeServer server;
+
+    private File dir;
+
+    private final AtomicReference<WebSocket> link = new AtomicReference<>();
+
+    private final AtomicBoolean running = new AtomicBoolean(true);
+
+    private final AtomicBoolean ack = new AtomicBoolean(false);
+
+    private Thread senderThread;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeServer();
+        server.start();
+        Assert.assertTrue(server.started.await(5, TimeUnit.SECONDS));
+        dir = Files.createTempDirectory("sonic-transport-sender").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        running.set(false);
+        if (senderThread != null) {
+            senderThread.interrupt();
+            senderThread.join(2000);
+        }
+        WebSocket webSocket = link.get();
+        if (webSocket != null) {
+            webSocket.close();
+        }
+        server.stop(1000);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private WebSocketClient connect() throws InterruptedException {
+        return connect(null, null);
+    }
+
+    /**
+     * @param queue 收到 ack 时提交
+     */
+    private WebSocketClient connect(TransportQueue queue, TransportSender[] sender) throws InterruptedException {
+        WebSocketClient client = new WebSocketClient(URI.create("ws://127.0.0.1:" + server.getPort())) {
+            @Override
+            public void onOpen(ServerHandshake handshake) {
+            }
+
+            @Override
+            public void onMessage(String message) {
+                JSONObject m = JSONObject.parseObject(message);
+                if (queue != null && "ack".equals(m.getString("msg"))) {
+                    queue.commit(m.getLongValue("seq"));
+                    sender[0].wakeUp();
+                }
+            }
+
+            @Override
+            public void onClose(int code, String reason, boolean remote) {
+            }
+
+            @Override
+            public void onError(Exception ex) {
+            }
+        };
+        Assert.assertTrue(client.connectBlocking(5, TimeUnit.SECONDS));
+        return client;
+    }
+
+    private TransportQueue newQueue() {
+        return new TransportQueue(new TransportSpool(dir, 1000, 1 << 20, 64L << 20));
+    }
+
+    private TransportSender start(TransportQueue queue, boolean batch) {
+        TransportBatcher batcher = new TransportBatcher(queue, batch, 5, 32768);
+        TransportSender sender = new TransportSender(queue, batcher, link::get, () -> 1, running::get,
+                () -> TransportCodec.TEXT, ack::get);
+        senderThread = new Thread(sender);
+        senderThread.start();
+        return sender;
+    }
+
+    private static JSONObject message(String msg, String udId, int index) {
+        JSONObject m = new JSONObject();
+        m.put("msg", msg);
+        m.put("udId", udId);
+        m.put("index", index);
+        return m;
+    }
+
+    private void await(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.received.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, server.received.size());
+    }
+
+    private int indexOf(String msg) {
+        for (int i = 0; i < server.received.size(); i++) {
+            if (msg.equals(server.received.get(i).getString("msg"))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void testControlOvertakesBacklog() throws Exception {
+        TransportQueue queue = newQueue();
+        for (int i = 0; i < 5000; i++) {
+            queue.offer(message("step", "a", i));
+        }
+        queue.offer(message("deviceDetail", "a", 0));
+        link.set(connect());
+        start(queue, false);
+        await(5001);
+        // 排在 5000 条步骤日志之后入队，仍然最先到达
+        Assert.assertEquals(0, indexOf("deviceDetail"));
+        int expected = 0;
+        for (JSONObject m : server.received) {
+            if (m.getString("msg").equals("step")) {
+                Assert.assertEquals(expected++, m.getIntValue("index"));
+            }
+        }
+    }
+
+    @Test
+    public void testLatestValueCoalesced() throws Exception {
+        TransportQueue queue = newQueue();
+        for (int i = 0; i < 100; i++) {
+            queue.offer(message("battery", null, i));
+            queue.offer(message("heartBeat", null, i));
+            queue.offer(message("perform", "a", i));
+            queue.offer(message("perform", "b", i));
+            queue.offer(message("deviceDetail", "a", i));
+        }
+        queue.offer(message("step", "a", 0));
+        Assert.assertEquals(198, queue.getCoalesced());
+        link.set(connect());
+        start(queue, true);
+        await(303);
+        int[] next = new int[3];
+        for (JSONObject m : server.received) {
+            switch (m.getString("msg")) {
+                // 只留下最新的一条
+                case "battery", "heartBeat" -> Assert.assertEquals(99, m.getIntValue("index"));
+                // 性能数据和设备状态逐条按顺序到达
+                case "perform" -> Assert.assertEquals(next[m.getString("udId").equals("a") ? 0 : 1]++, m.getIntValue("index"));
+                case "deviceDetail" -> Assert.assertEquals(next[2]++, m.getIntValue("index"));
+                default -> Assert.assertEquals(0, m.getIntValue("index"));
+            }
+        }
+        Assert.assertArrayEquals(new int[]{100, 100, 100}, next);
+    }
+
+    @Test
+    public void testBulkNotStarvedByControl() throws Exception {
+        TransportQueue queue = newQueue();
+        for (int i = 0; i < 1000; i++) {
+            queue.offer(message("debugUser", "a", i));
+        }
+        for (int i = 0; i < 10; i++) {
+            queue.offer(message("step", "a", i));
+        }
+        link.set(connect());
+        start(queue, false);
+        await(1010);
+        // 按权重轮流，步骤日志不必等 1000 条控制消息全部发完
+        int first = indexOf("step");
+        Assert.assertTrue("first step at " + first, first >= 0 && first <= TransportQueue.Lane.CONTROL.getWeight() + 1);
+    }
+
+    @Test
+    public void testReplayAfterOutage() throws Exception {
+        TransportQueue queue = newQueue();
+        TransportSender sender = start(queue, true);
+        for (int i = 0; i < 500; i++) {
+            queue.offer(message("step", "a", i));
+        }
+        Thread.sleep(100);
+        Assert.assertEquals(0, server.received.size());
+        // 断开期间的消息已经写入磁盘
+        Assert.assertEquals(500, queue.getSpool().getDiskCount());
+        link.set(connect());
+        sender.wakeUp();
+        await(500);
+        for (int i = 0; i < 500; i++) {
+            Assert.assertEquals(i, server.received.get(i).getIntValue("index"));
+        }
+        long deadline = System.currentTimeMillis() + 2000;
+        while (queue.getSpool().getDiskBytes() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, queue.getSpool().getDiskBytes());
+    }
+
+    @Test
+    public void testAckedResumeResendsUnacked() throws Exception {
+        TransportQueue queue = newQueue();
+        for (int i = 0; i < 100; i++) {
+            queue.offer(message("step", "a", i));
+        }
+        ack.set(true);
+        server.ackBelow = 50;
+        TransportSender[] sender = new TransportSender[1];
+        WebSocketClient first = connect(queue, sender);
+        link.set(first);
+        sender[0] = start(queue, true);
+        await(100);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (queue.getSpool().getInflight() > 50 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // 没有确认的消息不提交
+        Assert.assertEquals(50, queue.getSpool().getInflight());
+        server.ackBelow = Integer.MAX_VALUE;
+        first.close();
+        link.set(connect(queue, sender));
+        sender[0].wakeUp();
+        await(150);
+        // 只重新发送没有确认的部分，顺序不变
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(50 + i, server.received.get(100 + i).getIntValue("index"));
+        }
+        deadline = System.currentTimeMillis() + 2000;
+        while (queue.getSpool().getInflight() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, queue.getSpool().getInflight());
+    }
+
+    @Test
+    public void testIdleLatency() throws Exception {
+        TransportQueue queue = newQueue();
+        link.set(connect());
+        start(queue, true);
+        Thread.sleep(300);
+        long start = System.nanoTime();
+        queue.offer(message("step", "a", 0));
+        await(1);
+        long latency = System.nanoTime() - start;
+        Assert.assertTrue("latency " + latency + " ns", latency < 200_000_000L);
+    }
+
+    @Test
+    public void testQueueClassification() {
+        Assert.assertEquals(TransportQueue.Lane.CONTROL, TransportQueue.laneOf(message("deviceDetail", "a", 0)));
+        Assert.assertEquals(TransportQueue.Lane.LATEST, TransportQueue.laneOf(message("battery", null, 0)));
+        Assert.assertEquals(TransportQueue.Lane.BULK, TransportQueue.laneOf(message("status", "a", 0)));
+        Assert.assertEquals(TransportQueue.Lane.BULK, TransportQueue.laneOf(message("perform", "a", 0)));
+        Assert.assertEquals("battery", TransportQueue.keyOf(message("battery", null, 0)));
+        Assert.assertNull(TransportQueue.keyOf(message("perform", "a", 0)));
+        Assert.assertNull(TransportQueue.keyOf(message("deviceDetail", "a", 0)));
+        Assert.assertNull(TransportQueue.keyOf(message("step", "a", 0)));
+    }
+}
@@ -0,0 +1,229 @@
+package org.cloud.sonic.agent.transport;
+
+import com.alibaba.fastjson.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class TransportSpoolTest {
+
+    private final List<File> dirs = new ArrayList<>();
+
+    private File newDir() throws IOException {
+        File dir = Files.createTempDirectory("sonic-transport-spool").toFile();
+        dirs.add(dir);
+        return dir;
+    }
+
+    @After
+    public void tearDown() {
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    private static JSONObject step(int i) {
+        JSONObject m = new JSONObject();
+        m.put("msg", "step");
+        m.put("index", i);
+        return m;
+    }
+
+    private static int segmentCount(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+        return files == null ? 0 : files.length;
+    }
+
+    /**
+     * 取出 count 条，检查 index 从 from 开始连续，返回最后一条的 seq
+     */
+    private static long expect(TransportSpool spool, int from, int count) throws InterruptedException {
+        long lastSeq = 0;
+        for (int i = from; i < from + count; i++) {
+            JSONObject m = spool.poll(100, TimeUnit.MILLISECONDS);
+            Assert.assertNotNull("missing " + i, m);
+            Assert.assertEquals(i, m.getIntValue("index"));
+            long seq = m.getLongValue(TransportSpool.SEQ);
+            Assert.assertTrue(seq > lastSeq);
+            lastSeq = seq;
+        }
+        return lastSeq;
+    }
+
+    @Test
+    public void testMemoryBounded() throws IOException, InterruptedException {
+        TransportSpool spool = new TransportSpool(newDir(), 10, 4096, 1 << 20);
+        spool.setOnline(true);
+        for (int i = 0; i < 100; i++) {
+            spool.offer(step(i));
+        }
+        Assert.assertEquals(10, spool.getMemorySize());
+        Assert.assertEquals(90, spool.getDiskCount());
+        expect(spool, 0, 100);
+        Assert.assertNull(spool.poll(10, TimeUnit.MILLISECONDS));
+        // 磁盘排空后新消息回到内存
+        spool.offer(step(100));
+        Assert.assertEquals(1, spool.getMemorySize());
+        expect(spool, 100, 1);
+    }
+
+    @Test
+    public void testSurvivesRestart() throws IOException, InterruptedException {
+        File dir = newDir();
+        TransportSpool spool = new TransportSpool(dir, 10, 4096, 1 << 20);
+        for (int i = 0; i < 50; i++) {
+            spool.offer(step(i));
+        }
+        long seq = expect(spool, 0, 20);
+        spool.commit(seq - 5);
+        // 没有调用 close，模拟进程直接退出
+        TransportSpool restarted = new TransportSpool(dir, 10, 4096, 1 << 20);
+        // 已经取出但没有提交的消息重新发送
+        Assert.assertEquals(35, restarted.size());
+        expect(restarted, 15, 35);
+        restarted.offer(step(50));
+        JSONObject m = restarted.poll(100, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(m.getLongValue(TransportSpool.SEQ) > seq);
+    }
+
+    @Test
+    public void testGoingOfflineSpillsMemoryInOrder() throws IOException, InterruptedException {
+        File dir = newDir();
+        TransportSpool spool = new TransportSpool(dir, 100, 4096, 1 << 20);
+        spool.setOnline(true);
+        for (int i = 0; i < 5; i++) {
+            spool.offer(step(i));
+        }
+        Assert.assertEquals(5, spool.getMemorySize());
+        spool.setOnline(false);
+        Assert.assertEquals(0, spool.getMemorySize());
+        for (int i = 5; i < 10; i++) {
+            spool.offer(step(i));
+        }
+        TransportSpool restarted = new TransportSpool(dir, 100, 4096, 1 << 20);
+        expect(restarted, 0, 10);
+        expect(spool, 0, 10);
+    }
+
+    @Test
+    public void testSpillAfterPartialRead() throws IOException, InterruptedException {
+        File dir = newDir();
+        TransportSpool spool = new TransportSpool(dir, 3, 4096, 1 << 20);
+        spool.setOnline(true);
+        for (int i = 0; i < 6; i++) {
+            spool.offer(step(i));
+        }
+        expect(spool, 0, 6);
+        // 磁盘已经读完，之后的消息进入内存，再次断开时排在已读的分段之后
+        for (int i = 6; i < 8; i++) {
+            spool.offer(step(i));
+        }
+        spool.setOnline(false);
+        spool.offer(step(8));
+        expect(spool, 6, 3);
+        Assert.assertNull(spool.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testCommitCompactsSegments() throws IOException, InterruptedException {
+        File dir = newDir();
+        TransportSpool spool = new TransportSpool(dir, 10, 512, 1 << 20);
+        for (int i = 0; i < 200; i++) {
+            spool.offer(step(i));
+        }
+        Assert.assertTrue(segmentCount(dir) > 5);
+        long seq = expect(spool, 0, 100);
+        spool.commit(seq);
+        int remaining = segmentCount(dir);
+        Assert.assertTrue(remaining < 200 / 5);
+        seq = expect(spool, 100, 100);
+        spool.commit(seq);
+        Assert.assertEquals(0, segmentCount(dir));
+        Assert.assertEquals(0, spool.getDiskBytes());
+        Assert.assertEquals(0, new TransportSpool(dir, 10, 512, 1 << 20).size());
+    }
+
+    @Test
+    public void testDiskLimitDropsOldest() throws IOException, InterruptedException {
+        File dir = newDir();
+        TransportSpool spool = new TransportSpool(dir, 10, 1024, 4096);
+        for (int i = 0; i < 1000; i++) {
+            spool.offer(step(i));
+        }
+        Assert.assertTrue(spool.getDiskBytes() <= 4096 + 1024);
+        Assert.assertTrue(spool.getDropped() > 0);
+        Assert.assertEquals(1000 - spool.getDropped(), spool.size());
+        // 保留的是最新的消息
+        expect(spool, (int) spool.getDropped(), (int) spool.size());
+    }
+
+    @Test
+    public void testBatchesCommitLastSeq() throws IOException, InterruptedException {
+        File dir = newDir();
+        TransportSpool spool = new TransportSpool(dir, 10, 4096, 1 << 20);
+        for (int i = 0; i < 300; i++) {
+            spool.offer(step(i));
+        }
+        TransportBatcher batcher = new TransportBatcher(spool, true, 5, 2048);
+        int received = 0;
+        String frame;
+        while ((frame = batcher.next(1, 50, TimeUnit.MILLISECONDS)) != null) {
+            received += TransportBatcher.unwrap(frame).size();
+            spool.commit(batcher.getLastSeq());
+        }
+        Assert.assertEquals(300, received);
+        Assert.assertEquals(0, segmentCount(dir));
+    }
+
+    @Test
+    public void testRewindReplaysUncommitted() throws IOException, InterruptedException {
+        TransportSpool spool = new TransportSpool(newDir(), 100, 4096, 1 << 20);
+        spool.setOnline(true);
+        for (int i = 0; i < 20; i++) {
+            spool.offer(step(i));
+        }
+        expect(spool, 0, 10);
+        spool.rewind();
+        // 重新取出的顺序不变
+        long seq = expect(spool, 0, 5);
+        expect(spool, 5, 5);
+        // 连接断开，server 只确认了前 5 条
+        spool.commit(seq);
+        Assert.assertEquals(5, spool.getInflight());
+        spool.rewind();
+        Assert.assertEquals(0, spool.getInflight());
+        Assert.assertEquals(15, spool.size());
+        expect(spool, 5, 15);
+        Assert.assertNull(spool.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testCloseKeepsUncommitted() throws IOException, InterruptedException {
+        File dir = newDir();
+        TransportSpool spool = new TransportSpool(dir, 100, 4096, 1 << 20);
+        spool.setOnline(true);
+        for (int i = 0; i < 10; i++) {
+            spool.offer(step(i));
+        }
+        long seq = expect(spool, 0, 6);
+        spool.commit(seq - 3);
+        spool.close();
+        // 已经取出但没有确认的消息也写入磁盘
+        TransportSpool restarted = new TransportSpool(dir, 100, 4096, 1 << 20);
+        Assert.assertEquals(7, restarted.size());
+        expect(restarted, 3, 7);
+    }
+}